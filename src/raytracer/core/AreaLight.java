@@ -0,0 +1,55 @@
+package raytracer.core;
+
+import raytracer.geom.BBox;
+import raytracer.math.Point;
+
+/**
+ * Represents a light source with an extent, casting soft shadows. The
+ * location of an area light is its center.
+ */
+public interface AreaLight extends LightSource {
+
+	/**
+	 * Returns a point on the light for the given sample coordinates
+	 *
+	 * @param u
+	 *            The first sample coordinate in [0, 1)
+	 * @param v
+	 *            The second sample coordinate in [0, 1)
+	 * @return The point on the light
+	 */
+	Point sample(float u, float v);
+
+	/**
+	 * Returns a point on the light as seen from the given point. Lights parts
+	 * of which can never be seen from a point (e.g. the back of a sphere)
+	 * should only return points on the visible part; by default any point on
+	 * the light is returned.
+	 *
+	 * @param from
+	 *            The point the light is seen from
+	 * @param u
+	 *            The first sample coordinate in [0, 1)
+	 * @param v
+	 *            The second sample coordinate in [0, 1)
+	 * @return The point on the light
+	 */
+	default Point sample(final Point from, final float u, final float v) {
+		return sample(u, v);
+	}
+
+	/**
+	 * Returns the maximum number of shadow rays traced towards this light per
+	 * shading point
+	 *
+	 * @return The sample budget
+	 */
+	int getSamples();
+
+	/**
+	 * Returns the bounds of all points on the light
+	 *
+	 * @return The bounding box of the light
+	 */
+	BBox bbox();
+}
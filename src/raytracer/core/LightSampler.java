@@ -0,0 +1,46 @@
+package raytracer.core;
+
+import java.util.Collection;
+
+import raytracer.math.Point;
+
+/**
+ * Chooses a small number of light sources for a shading point. Shaders
+ * multiply the contribution of each chosen light with its weight, so that
+ * the expected sum equals the contribution of all lights.
+ */
+public interface LightSampler {
+
+	/**
+	 * Chooses the lights for the given point
+	 *
+	 * @param p
+	 *            The shading point
+	 * @param lights
+	 *            Receives the chosen lights
+	 * @param weights
+	 *            Receives the weight of each chosen light
+	 * @return The number of chosen lights, at most the length of the arrays
+	 */
+	int sample(Point p, LightSource[] lights, float[] weights);
+
+	/**
+	 * Returns the maximum number of lights chosen per point
+	 *
+	 * @return The maximum number of lights chosen per point
+	 */
+	int getSamples();
+
+	/**
+	 * Returns a sampler for a changed set of light sources, e.g. after a light
+	 * was added to or removed from an editable scene
+	 *
+	 * @param lights
+	 *            The light sources of the scene
+	 * @return A sampler for the lights, this one if it does not depend on them
+	 */
+	default LightSampler forLights(final Collection<LightSource> lights) {
+		return this;
+	}
+
+}
@@ -5,14 +5,18 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Scanner;
 
 import raytracer.core.def.Accelerator;
 import raytracer.core.def.StandardObj;
+import raytracer.math.Constants;
 import raytracer.math.Point;
 import raytracer.math.Vec3;
 import raytracer.geom.GeomFactory;
+import raytracer.geom.Primitive;
 
 /**
  * Represents a model file reader for the OBJ format
@@ -74,11 +78,59 @@ public class OBJReader {
 	public static void read(final InputStream in,
 			final Accelerator accelerator, final Shader shader, final float scale,
 			final Vec3 translate) throws FileNotFoundException {
-		// TODO Implement this method
+		read(in, accelerator, shader, scale, translate, null);
+	}
+
+	/**
+	 * Reads an OBJ file like {@link #read(String, Accelerator, Shader, float, Vec3)}
+	 * but cleans up the mesh while loading: vertices closer than the given
+	 * epsilon are welded, and faces which are degenerate (zero area, e.g.
+	 * after welding) or duplicates of an earlier face with the same winding
+	 * are dropped.
+	 *
+	 * @param filename
+	 *            The file to read the data from
+	 * @param accelerator
+	 *            The target acceleration structure
+	 * @param shader
+	 *            The shader which is used by all triangles
+	 * @param scale
+	 *            The scale factor which is responsible for scaling the model
+	 * @param translate
+	 *            A vector representing the translation coordinate with which
+	 *            all coordinates have to be translated
+	 * @param weld
+	 *            The distance (after scaling) below which vertices are welded,
+	 *            0 only welds identical vertices
+	 * @return What was removed
+	 * @throws IllegalArgumentException
+	 *             If any argument is illegal (see the read method without
+	 *             cleanup) or weld is negative
+	 */
+	public static Report read(final String filename,
+			final Accelerator accelerator, final Shader shader, final float scale,
+			final Vec3 translate, final float weld) throws FileNotFoundException {
+		if (filename == null || filename.isEmpty() || shader == null || translate == null || !(weld >= 0)) throw new IllegalArgumentException();
+		final Report report = new Report(weld);
+		read(new BufferedInputStream(new FileInputStream(filename)), accelerator, shader, scale, translate, report);
+		return report;
+	}
+
+	/**
+	 * Reads an OBJ file, cleaning up the mesh if a report is given
+	 */
+	private static void read(final InputStream in,
+			final Accelerator accelerator, final Shader shader, final float scale,
+			final Vec3 translate, final Report report) {
 		Scanner sc = new Scanner(in);
 		sc.useLocale(Locale.ENGLISH);
 		String line;
 		ArrayList<Point> vertices = new ArrayList<>();
+		// with cleanup: the welded index of every vertex, the spatial hash of
+		// the kept vertices and the faces added so far
+		ArrayList<Integer> welded = new ArrayList<>();
+		HashMap<Long, ArrayList<Integer>> cells = new HashMap<>();
+		HashSet<Primitive> faces = new HashSet<>();
 		while (sc.hasNextLine()) {
 			line = sc.nextLine();
 			if (line.isEmpty() || line.startsWith("#")) continue;
@@ -94,16 +146,162 @@ public class OBJReader {
                         float z = Float.parseFloat(parts[3]) * scale + translate.z();
 
 						vertices.add(new Point(x, y, z));
+						if (report != null) {
+							welded.add(report.weld(vertices, cells));
+						}
                     } else if (identifier.equals("f")) {
                         // Parse face data
-						Point[] vertex = new Point[3];
+						int[] index = new int[3];
 						for (int i = 1; i < 4; i++) {
-							vertex[i - 1] = vertices.get(Integer.parseInt(parts[i]) - 1 );
+							index[i - 1] = Integer.parseInt(parts[i]) - 1;
+						}
+						if (report != null) {
+							report.faces++;
+							for (int i = 0; i < 3; i++) {
+								index[i] = welded.get(index[i]);
+							}
+							// rotate the smallest index first, so that duplicates
+							// with the same winding create equal triangles
+							int first = index[0] <= index[1] && index[0] <= index[2] ? 0 : index[1] <= index[2] ? 1 : 2;
+							index = new int[] { index[first], index[(first + 1) % 3], index[(first + 2) % 3] };
+							Point a = vertices.get(index[0]), b = vertices.get(index[1]), c = vertices.get(index[2]);
+							if (index[0] == index[1] || index[1] == index[2] || index[0] == index[2]
+									|| Constants.isZero(b.sub(a).cross(c.sub(a)).norm())) {
+								report.degenerate++;
+								continue;
+							}
+							Primitive triangle = GeomFactory.createTriangle(a, b, c);
+							if (!faces.add(triangle)) {
+								report.duplicate++;
+								continue;
+							}
+							accelerator.add(new StandardObj(triangle, shader));
+						} else {
+							accelerator.add(new StandardObj(GeomFactory.createTriangle(vertices.get(index[0]),
+									vertices.get(index[1]), vertices.get(index[2])), shader));
 						}
-						accelerator.add(new StandardObj(GeomFactory.createTriangle(vertex[0], vertex[1], vertex[2]), shader));
                     }
                 }
 		}
-		// throw new UnsupportedOperationException("This method has not yet been implemented.");
+	}
+
+	/**
+	 * Describes what was removed by the cleanup while reading an OBJ file
+	 */
+	public static final class Report {
+		private final float eps;
+		private int vertices, welds, faces, degenerate, duplicate;
+
+		private Report(final float eps) {
+			this.eps = eps;
+		}
+
+		private long cell(final float x, final float y, final float z, final int dx, final int dy, final int dz) {
+			final long cx, cy, cz;
+			if (eps > 0) {
+				cx = (long) Math.floor(x / eps) + dx;
+				cy = (long) Math.floor(y / eps) + dy;
+				cz = (long) Math.floor(z / eps) + dz;
+			} else {
+				cx = Float.floatToIntBits(x);
+				cy = Float.floatToIntBits(y);
+				cz = Float.floatToIntBits(z);
+			}
+			return (cx * 73856093L) ^ (cy * 19349663L) ^ (cz * 83492791L);
+		}
+
+		/**
+		 * Returns the index of the vertex the last vertex is welded to, which
+		 * is the vertex itself if there is no earlier vertex within epsilon
+		 */
+		private int weld(final ArrayList<Point> points, final HashMap<Long, ArrayList<Integer>> cells) {
+			vertices++;
+			final int index = points.size() - 1;
+			final Point p = points.get(index);
+			final int r = eps > 0 ? 1 : 0;
+			for (int dx = -r; dx <= r; dx++) {
+				for (int dy = -r; dy <= r; dy++) {
+					for (int dz = -r; dz <= r; dz++) {
+						final ArrayList<Integer> cell = cells.get(cell(p.x(), p.y(), p.z(), dx, dy, dz));
+						if (cell == null) continue;
+						for (final int other : cell) {
+							final Point q = points.get(other);
+							if (eps > 0 ? q.sub(p).norm() <= eps : q.equals(p)) {
+								welds++;
+								return other;
+							}
+						}
+					}
+				}
+			}
+			final long key = cell(p.x(), p.y(), p.z(), 0, 0, 0);
+			ArrayList<Integer> cell = cells.get(key);
+			if (cell == null) {
+				cell = new ArrayList<Integer>();
+				cells.put(key, cell);
+			}
+			cell.add(index);
+			return index;
+		}
+
+		/**
+		 * Returns the number of vertices read
+		 *
+		 * @return The number of vertices read
+		 */
+		public int getVertices() {
+			return vertices;
+		}
+
+		/**
+		 * Returns the number of vertices welded to an earlier vertex
+		 *
+		 * @return The number of welded vertices
+		 */
+		public int getWeldedVertices() {
+			return welds;
+		}
+
+		/**
+		 * Returns the number of faces read
+		 *
+		 * @return The number of faces read
+		 */
+		public int getFaces() {
+			return faces;
+		}
+
+		/**
+		 * Returns the number of dropped zero area faces
+		 *
+		 * @return The number of degenerate faces
+		 */
+		public int getDegenerateFaces() {
+			return degenerate;
+		}
+
+		/**
+		 * Returns the number of dropped duplicate faces
+		 *
+		 * @return The number of duplicate faces
+		 */
+		public int getDuplicateFaces() {
+			return duplicate;
+		}
+
+		/**
+		 * Returns the number of faces added to the accelerator
+		 *
+		 * @return The number of kept faces
+		 */
+		public int getKeptFaces() {
+			return faces - degenerate - duplicate;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d vertices (%d welded), %d faces (%d degenerate, %d duplicate dropped, %d kept)",
+					vertices, welds, faces, degenerate, duplicate, getKeptFaces());
+		}
 	}
 }
@@ -14,4 +14,14 @@ public interface Obj extends Primitive {
 	 * @return The computed color
 	 */
 	Color shade(Hit hit, Trace trace);
+
+	/**
+	 * Returns the shader of the object. Objects sharing a shader are shaded
+	 * together by the material sorted mode of {@link WavefrontRenderer}.
+	 *
+	 * @return The shader or null if the object does not use a single shader
+	 */
+	default Shader getShader() {
+		return null;
+	}
 }
@@ -3,6 +3,7 @@ package raytracer.core;
 import raytracer.math.ONB;
 import raytracer.math.Point;
 import raytracer.math.Ray;
+import raytracer.math.Vec2;
 import raytracer.math.Vec3;
 
 /**
@@ -12,6 +13,8 @@ public class PerspectiveCamera implements Camera {
 
 	private final Point pos, corner;
 	private final Vec3 across, up;
+	private final ONB uvw;
+	private final float distance, width, height;
 
 	/**
 	 * Creates a new perspective camera
@@ -51,7 +54,10 @@ public class PerspectiveCamera implements Camera {
 	public PerspectiveCamera(final Point pos, final Vec3 gaze, final Vec3 up, final float distance,
 			final float width, final float height) {
 		this.pos = pos;
-		final ONB uvw = ONB.fromWV(gaze.neg(), up.neg());
+		this.uvw = ONB.fromWV(gaze.neg(), up.neg());
+		this.distance = distance;
+		this.width = width;
+		this.height = height;
 		this.corner = pos.add(uvw.combine(-width / 2, -height / 2, -distance));
 		this.across = uvw.u().scale(width);
 		this.up = uvw.v().scale(height);
@@ -69,4 +75,32 @@ public class PerspectiveCamera implements Camera {
 		return new Ray(pos, dir);
 	}
 
+	/**
+	 * Projects a point onto the image plane. This is the inverse of
+	 * {@link #cast(float, float)}: the ray cast through the returned
+	 * coordinates passes through the point.
+	 *
+	 * @param p
+	 *            The point to project
+	 * @return The image coordinates of the point (in [0, 1] if it is inside
+	 *         the image) or null if it does not lie in front of the camera
+	 */
+	public Vec2 project(final Point p) {
+		final Vec3 d = p.sub(pos);
+		final float depth = -d.dot(uvw.w());
+		if (!(depth > 0))
+			return null;
+		final float s = distance / depth;
+		return new Vec2((d.dot(uvw.u()) * s + width / 2) / width, (d.dot(uvw.v()) * s + height / 2) / height);
+	}
+
+	/**
+	 * Returns the origin of the camera, which is shared by all cast rays
+	 *
+	 * @return The origin of the camera
+	 */
+	public Point getPosition() {
+		return pos;
+	}
+
 }
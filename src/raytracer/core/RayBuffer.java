@@ -0,0 +1,256 @@
+package raytracer.core;
+
+import java.util.Arrays;
+
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec3;
+
+/**
+ * A growable queue of rays stored as structure of arrays. Each ray carries an
+ * integer id which tells the owner (e.g. the sample) of the ray.
+ */
+public final class RayBuffer {
+
+	private float[] ox, oy, oz, dx, dy, dz;
+	private int[] id;
+	private int size = 0;
+
+	/**
+	 * Creates a new empty buffer
+	 *
+	 * @param capacity
+	 *            The initial capacity
+	 */
+	public RayBuffer(final int capacity) {
+		final int c = Math.max(capacity, 16);
+		ox = new float[c];
+		oy = new float[c];
+		oz = new float[c];
+		dx = new float[c];
+		dy = new float[c];
+		dz = new float[c];
+		id = new int[c];
+	}
+
+	private void grow() {
+		final int c = 2 * id.length;
+		ox = Arrays.copyOf(ox, c);
+		oy = Arrays.copyOf(oy, c);
+		oz = Arrays.copyOf(oz, c);
+		dx = Arrays.copyOf(dx, c);
+		dy = Arrays.copyOf(dy, c);
+		dz = Arrays.copyOf(dz, c);
+		id = Arrays.copyOf(id, c);
+	}
+
+	/**
+	 * Appends a ray
+	 *
+	 * @param ray
+	 *            The ray to append
+	 * @param owner
+	 *            The id of the ray
+	 */
+	public void add(final Ray ray, final int owner) {
+		if (size == id.length)
+			grow();
+		final Point b = ray.base();
+		final Vec3 d = ray.dir();
+		ox[size] = b.x();
+		oy[size] = b.y();
+		oz[size] = b.z();
+		dx[size] = d.x();
+		dy[size] = d.y();
+		dz[size] = d.z();
+		id[size] = owner;
+		size++;
+	}
+
+	/**
+	 * Stores a ray at the given index, which must be smaller than the size.
+	 * Different threads may set different indices concurrently.
+	 *
+	 * @param i
+	 *            The index of the ray
+	 * @param ray
+	 *            The ray to store
+	 * @param owner
+	 *            The id of the ray
+	 */
+	public void set(final int i, final Ray ray, final int owner) {
+		final Point b = ray.base();
+		final Vec3 d = ray.dir();
+		ox[i] = b.x();
+		oy[i] = b.y();
+		oz[i] = b.z();
+		dx[i] = d.x();
+		dy[i] = d.y();
+		dz[i] = d.z();
+		id[i] = owner;
+	}
+
+	/**
+	 * Resizes the buffer to exactly n rays, growing the arrays if necessary.
+	 * The content of new entries is undefined until set.
+	 *
+	 * @param n
+	 *            The new size
+	 */
+	public void resize(final int n) {
+		while (id.length < n)
+			grow();
+		size = n;
+	}
+
+	/**
+	 * Appends all rays of the given buffer
+	 *
+	 * @param other
+	 *            The buffer to append
+	 */
+	public void append(final RayBuffer other) {
+		while (id.length < size + other.size)
+			grow();
+		System.arraycopy(other.ox, 0, ox, size, other.size);
+		System.arraycopy(other.oy, 0, oy, size, other.size);
+		System.arraycopy(other.oz, 0, oz, size, other.size);
+		System.arraycopy(other.dx, 0, dx, size, other.size);
+		System.arraycopy(other.dy, 0, dy, size, other.size);
+		System.arraycopy(other.dz, 0, dz, size, other.size);
+		System.arraycopy(other.id, 0, id, size, other.size);
+		size += other.size;
+	}
+
+	/**
+	 * Returns true if the i-th ray is exactly the given ray
+	 *
+	 * @param i
+	 *            The index of the ray
+	 * @param ray
+	 *            The ray to compare with
+	 * @return True if origin and direction are equal
+	 */
+	public boolean matches(final int i, final Ray ray) {
+		final Point b = ray.base();
+		final Vec3 d = ray.dir();
+		return ox[i] == b.x() && oy[i] == b.y() && oz[i] == b.z() && dx[i] == d.x() && dy[i] == d.y()
+				&& dz[i] == d.z();
+	}
+
+	/**
+	 * Returns the number of rays in the buffer
+	 *
+	 * @return The number of rays in the buffer
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all rays
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Returns the i-th ray
+	 *
+	 * @param i
+	 *            The index of the ray
+	 * @return The i-th ray
+	 */
+	public Ray ray(final int i) {
+		return new Ray(new Point(ox[i], oy[i], oz[i]), new Vec3(dx[i], dy[i], dz[i]));
+	}
+
+	/**
+	 * Returns the id of the i-th ray
+	 *
+	 * @param i
+	 *            The index of the ray
+	 * @return The id of the i-th ray
+	 */
+	public int id(final int i) {
+		return id[i];
+	}
+
+	public float ox(final int i) {
+		return ox[i];
+	}
+
+	public float oy(final int i) {
+		return oy[i];
+	}
+
+	public float oz(final int i) {
+		return oz[i];
+	}
+
+	public float dx(final int i) {
+		return dx[i];
+	}
+
+	public float dy(final int i) {
+		return dy[i];
+	}
+
+	public float dz(final int i) {
+		return dz[i];
+	}
+
+	/**
+	 * Spreads the lowest 10 bits of v so that there are two zero bits between
+	 * each of them
+	 */
+	private static int spread(int v) {
+		v &= 0x3ff;
+		v = (v | (v << 16)) & 0x030000ff;
+		v = (v | (v << 8)) & 0x0300f00f;
+		v = (v | (v << 4)) & 0x030c30c3;
+		v = (v | (v << 2)) & 0x09249249;
+		return v;
+	}
+
+	/**
+	 * Computes an order of the rays in which rays with similar origins and
+	 * directions are next to each other. The key of a ray is its direction
+	 * octant followed by the Morton code of its origin on a 512^3 grid over
+	 * the bounds of all origins in the buffer. Both fit into 30 bits, which
+	 * are sorted together with the index of the ray in a single long.
+	 *
+	 * @return The indices of the rays in coherent order
+	 */
+	public int[] coherentOrder() {
+		float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+		for (int i = 0; i < size; i++) {
+			minX = Math.min(minX, ox[i]);
+			minY = Math.min(minY, oy[i]);
+			minZ = Math.min(minZ, oz[i]);
+			maxX = Math.max(maxX, ox[i]);
+			maxY = Math.max(maxY, oy[i]);
+			maxZ = Math.max(maxZ, oz[i]);
+		}
+		final float sx = 511 / Math.max(maxX - minX, Float.MIN_NORMAL);
+		final float sy = 511 / Math.max(maxY - minY, Float.MIN_NORMAL);
+		final float sz = 511 / Math.max(maxZ - minZ, Float.MIN_NORMAL);
+
+		final long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			final int octant = (dx[i] < 0 ? 4 : 0) | (dy[i] < 0 ? 2 : 0) | (dz[i] < 0 ? 1 : 0);
+			final int morton = (spread((int) ((ox[i] - minX) * sx)) << 2)
+					| (spread((int) ((oy[i] - minY) * sy)) << 1) | spread((int) ((oz[i] - minZ) * sz));
+			// 3 octant bits above 27 Morton bits keep the key below 2^30
+			final long key = ((long) octant << 27) | morton;
+			keys[i] = (key << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		final int[] order = new int[size];
+		for (int i = 0; i < size; i++)
+			order[i] = (int) keys[i];
+		return order;
+	}
+}
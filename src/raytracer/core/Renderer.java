@@ -14,6 +14,7 @@ public class Renderer {
 	private final Camera cam;
 	private final int superSample;
 	private final float dx, dy, sdx, sdy;
+	private Termination termination = Termination.DEFAULT;
 
 	/**
 	 * Creates a new renderer
@@ -37,6 +38,19 @@ public class Renderer {
 		this.sdy = dy / superSample;
 	}
 
+	/**
+	 * Sets the policy deciding when spawned traces are terminated, e.g. a
+	 * different maximum depth or Russian roulette for deep reflections
+	 *
+	 * @param termination
+	 *            The termination policy
+	 */
+	public void setTermination(final Termination termination) {
+		if (termination == null)
+			throw new IllegalArgumentException();
+		this.termination = termination;
+	}
+
 	/**
 	 * Represents a work instance containing data to compute a part of an image.
 	 * The idea of the work class is to split the actual rendering task into
@@ -45,14 +59,24 @@ public class Renderer {
 	public class Work {
 
 		public final int[] pixels;
+		/**
+		 * The raw traversal cost of the work, two floats per pixel (visited
+		 * nodes, tested primitives). Only present for heatmap renders.
+		 */
+		public final float[] cost;
 		public final int x, y, w, h;
 
 		public Work(final int x, final int y, final int w, final int h) {
+			this(x, y, w, h, false);
+		}
+
+		public Work(final int x, final int y, final int w, final int h, final boolean withCost) {
 			this.x = x;
 			this.y = y;
 			this.w = w;
 			this.h = h;
 			this.pixels = new int[w * h];
+			this.cost = withCost ? new float[2 * w * h] : null;
 		}
 	}
 
@@ -90,7 +114,7 @@ public class Renderer {
 							float sux = bx - superSample / 2.0f * sdx;
 							for (int i = 0; i < superSample; i++) {
 								final Ray r = cam.cast(sux, suy);
-								final Trace trace = Trace.primary(scene, r);
+								final Trace trace = Trace.primary(scene, r, termination);
 								final Color c = trace.shade();
 								res = res.avg(c, n);
 								sux += sdx;
@@ -108,4 +132,83 @@ public class Renderer {
 		};
 	}
 
+	/**
+	 * Returns a Callable<Work> object which renders a traversal cost heatmap
+	 * instead of the shaded image. Each pixel is coloured by the average
+	 * number of visited hierarchy nodes plus tested primitives of its primary
+	 * rays. The raw counts are stored in {@link Work#cost}.
+	 *
+	 * @param sx
+	 *            The x point to start
+	 * @param sy
+	 *            The y point to start
+	 * @param w
+	 *            The width to use
+	 * @param h
+	 *            The height to use
+	 * @param shadows
+	 *            True if the rays spawned while shading (e.g. shadow rays)
+	 *            should be counted as well
+	 * @param maxCost
+	 *            The cost which is mapped to the hottest colour
+	 * @return Callable<Work> object which describes the callable task
+	 */
+	public Callable<Work> renderHeatmap(final int sx, final int sy, final int w,
+			final int h, final boolean shadows, final float maxCost) {
+		return new Callable<Work>() {
+			@Override
+			public Work call() throws Exception {
+				final Work work = new Work(sx, sy, w, h, true);
+				// counting stays enabled only while heatmap tiles are running
+				TraversalStats.begin();
+				try {
+					final TraversalStats stats = TraversalStats.get();
+					final int samples = superSample * superSample;
+					int ofs = 0;
+					float by = sy * dy;
+					for (int y = 0; y < h; y++) {
+						float bx = sx * dx;
+						for (int x = 0; x < w; x++) {
+							stats.reset();
+							float suy = by - superSample / 2.0f * sdy;
+							for (int j = 0; j < superSample; j++) {
+								float sux = bx - superSample / 2.0f * sdx;
+								for (int i = 0; i < superSample; i++) {
+									final Trace trace = Trace.primary(scene, cam.cast(sux, suy), termination);
+									if (shadows)
+										trace.shade();
+									sux += sdx;
+								}
+								suy += sdy;
+							}
+							final float nodes = stats.nodes() / (float) samples;
+							final float prims = stats.prims() / (float) samples;
+							work.cost[2 * ofs] = nodes;
+							work.cost[2 * ofs + 1] = prims;
+							work.pixels[ofs++] = heat((nodes + prims) / maxCost).rgb();
+							bx += dx;
+						}
+						by += dy;
+					}
+				} finally {
+					TraversalStats.end();
+				}
+				return work;
+			}
+		};
+	}
+
+	/**
+	 * Maps a value in [0, 1] onto a blue-cyan-green-yellow-red colour ramp
+	 */
+	private static Color heat(final float v) {
+		final float t = Math.max(0, Math.min(1, v)) * 4;
+		if (t < 1)
+			return new Color(0, t, 1);
+		if (t < 2)
+			return new Color(0, 1, 2 - t);
+		if (t < 3)
+			return new Color(t - 2, 1, 0);
+		return new Color(1, 4 - t, 0);
+	}
 }
@@ -31,6 +31,16 @@ public interface Scene {
 	 */
 	Collection<LightSource> getLightSources();
 
+	/**
+	 * Returns the sampler choosing a subset of the light sources per shading
+	 * point
+	 *
+	 * @return The light sampler or null if all lights are to be used
+	 */
+	default LightSampler getLightSampler() {
+		return null;
+	}
+
 	/**
 	 * Computes an hit (if possible) with the given ray and the scene
 	 *
@@ -40,4 +50,17 @@ public interface Scene {
 	 */
 	Hit hit(Ray ray);
 
+	/**
+	 * Computes the hit of a shadow ray with the scene. Scenes recording the
+	 * rays they trace can tell shadow rays apart this way; by default this is
+	 * the same as {@link #hit(Ray)}.
+	 *
+	 * @param ray
+	 *            The shadow ray
+	 * @return The computed hit
+	 */
+	default Hit shadowHit(final Ray ray) {
+		return hit(ray);
+	}
+
 }
@@ -0,0 +1,24 @@
+package raytracer.core;
+
+import java.io.IOException;
+
+/**
+ * Represents a description of a scene which can be instantiated in any JVM.
+ * Implementations must provide a public no-argument constructor so that
+ * remote workers can create them by class name.
+ */
+public interface SceneFactory {
+
+	/**
+	 * Creates the scene
+	 *
+	 * @param args
+	 *            Factory specific arguments, e.g. paths of model files on
+	 *            shared storage
+	 * @return The created scene
+	 * @throws IOException
+	 *             If a model file could not be read
+	 */
+	Scene create(String[] args) throws IOException;
+
+}
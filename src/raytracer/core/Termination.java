@@ -0,0 +1,72 @@
+package raytracer.core;
+
+/**
+ * Decides when a trace is terminated. Every trace carries a throughput, the
+ * factor with which its color contributes to the pixel. Traces are cut at a
+ * hard maximum depth and, optionally, as soon as their throughput falls below
+ * a threshold. With Russian roulette such traces are not cut deterministically
+ * but survive with a probability proportional to their throughput; the color
+ * of a survivor is scaled up accordingly, which keeps the image unbiased.
+ */
+public final class Termination {
+
+	/**
+	 * Terminates traces at {@link Trace#DEPTH} regardless of their
+	 * contribution
+	 */
+	public static final Termination DEFAULT = new Termination(Trace.DEPTH, 0, false);
+
+	private final int maxDepth;
+	private final float threshold;
+	private final boolean roulette;
+
+	/**
+	 * Creates a new termination policy
+	 *
+	 * @param maxDepth
+	 *            The maximum generation of a trace
+	 * @param threshold
+	 *            Traces whose throughput falls below this value are terminated
+	 *            (0 disables the test)
+	 * @param roulette
+	 *            True to terminate traces below the threshold by Russian
+	 *            roulette instead of always
+	 * @throws IllegalArgumentException
+	 *             If the depth is negative or the threshold is not in [0, 1]
+	 */
+	public Termination(final int maxDepth, final float threshold, final boolean roulette) {
+		if (maxDepth < 0 || !(threshold >= 0 && threshold <= 1))
+			throw new IllegalArgumentException();
+		this.maxDepth = maxDepth;
+		this.threshold = threshold;
+		this.roulette = roulette;
+	}
+
+	/**
+	 * Returns the maximum generation of a trace
+	 *
+	 * @return The maximum generation of a trace
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Returns the throughput below which traces are terminated
+	 *
+	 * @return The throughput threshold
+	 */
+	public float getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Returns whether traces below the threshold are terminated by Russian
+	 * roulette
+	 *
+	 * @return True if Russian roulette is used
+	 */
+	public boolean isRoulette() {
+		return roulette;
+	}
+}
@@ -1,5 +1,7 @@
 package raytracer.core;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import raytracer.math.Color;
 import raytracer.math.Point;
 import raytracer.math.Ray;
@@ -7,22 +9,51 @@ import raytracer.math.Vec3;
 
 /**
  * Represents a single trace through the scene. The idea of the trace is to keep
- * track of the generation of the spawned trace. If this number exceeds the
- * constant DEPTH the trace is terminated.
+ * track of the generation and the throughput of the spawned trace. If the
+ * generation exceeds the maximum depth or the throughput becomes negligible
+ * the trace is terminated (see {@link Termination}).
  */
 public abstract class Trace {
 
 	/**
-	 * The maximum depth of a trace
+	 * The default maximum depth of a trace
 	 */
 	public static final int DEPTH = 4;
 
+	/**
+	 * Supplies the hits of rays spawned by a trace. This allows to intersect
+	 * spawned rays in batches (see {@link WavefrontRenderer}) instead of one
+	 * at a time during shading.
+	 */
+	public interface HitSource {
+
+		/**
+		 * Returns the hit of a spawned ray
+		 *
+		 * @param ray
+		 *            The spawned ray
+		 * @return The hit of the ray with the scene
+		 */
+		Hit hit(Ray ray);
+
+		/**
+		 * Returns whether this source only records the spawned rays, so that
+		 * the color of the trace is discarded and the run is repeated later
+		 * with the actual hits
+		 *
+		 * @return True if the spawned rays are only recorded
+		 */
+		default boolean isRecording() {
+			return false;
+		}
+	}
+
 	/**
 	 * The internal terminator of the trace
 	 */
 	private static final class Terminator extends Trace {
 		public Terminator(final int gen, final Ray ray, final Scene scene) {
-			super(gen, ray, scene);
+			super(gen, ray, scene, null, Termination.DEFAULT, 0, 1);
 		}
 
 		@Override
@@ -39,9 +70,11 @@ public abstract class Trace {
 	private static final class NormalTrace extends Trace {
 		private final Hit hit;
 
-		public NormalTrace(final int gen, final Ray ray, final Scene scene) {
-			super(gen, ray, scene);
-			this.hit = scene.hit(ray);
+		public NormalTrace(final int gen, final Ray ray, final Scene scene, final Hit hit,
+				final HitSource source, final Termination termination, final float throughput,
+				final float scale) {
+			super(gen, ray, scene, source, termination, throughput, scale);
+			this.hit = hit;
 		}
 
 		@Override
@@ -58,18 +91,28 @@ public abstract class Trace {
 	private final int gen;
 	private final Ray ray;
 	private final Scene scene;
+	private final HitSource source;
+	private final Termination termination;
+	private final float throughput;
+	private final float scale;
 
-	private Trace(final int gen, final Ray ray, final Scene scene) {
+	private Trace(final int gen, final Ray ray, final Scene scene, final HitSource source,
+			final Termination termination, final float throughput, final float scale) {
 		this.gen = gen;
 		this.ray = ray;
 		this.scene = scene;
+		this.source = source;
+		this.termination = termination;
+		this.throughput = throughput;
+		this.scale = scale;
 	}
 
-	private static final Trace create(final int gen, final Ray ray, final Scene scene) {
-		if (gen > DEPTH)
+	private static final Trace create(final int gen, final Ray ray, final Scene scene, final HitSource source,
+			final Termination termination, final float throughput, final float scale) {
+		if (gen > termination.getMaxDepth())
 			return new Terminator(gen, ray, scene);
-		else
-			return new NormalTrace(gen, ray, scene);
+		final Hit hit = source == null ? scene.hit(ray) : source.hit(ray);
+		return new NormalTrace(gen, ray, scene, hit, source, termination, throughput, scale);
 	}
 
 	/**
@@ -81,6 +124,30 @@ public abstract class Trace {
 		return gen;
 	}
 
+	/**
+	 * Returns the throughput of the trace, i.e. the factor with which its
+	 * color contributes to the pixel
+	 *
+	 * @return The throughput of the trace
+	 */
+	public float getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * Returns the factor with which the spawning trace has to scale the color
+	 * of this trace in addition to the weight passed to
+	 * {@link #spawn(Point, Vec3, float)}: 1/q for a trace which survived
+	 * Russian roulette with probability q, 1 otherwise. The factor is not
+	 * applied by {@link #shade()}, since colors are clamped to [0, 1]; folded
+	 * into the weight it never exceeds 1.
+	 *
+	 * @return The factor of the color of the trace
+	 */
+	public float getScale() {
+		return scale;
+	}
+
 	/**
 	 * Returns the used ray
 	 *
@@ -99,6 +166,17 @@ public abstract class Trace {
 		return scene;
 	}
 
+	/**
+	 * Returns whether the spawned rays of this trace are only recorded (see
+	 * {@link HitSource#isRecording()}). Shaders should not count statistics
+	 * in such a run, since it is repeated.
+	 *
+	 * @return True if the spawned rays are only recorded
+	 */
+	public boolean isRecording() {
+		return source != null && source.isRecording();
+	}
+
 	/**
 	 * Spawns a new trace from the given point p with the given direction dir
 	 *
@@ -109,7 +187,53 @@ public abstract class Trace {
 	 * @return A new spawned trace
 	 */
 	public Trace spawn(final Point p, final Vec3 /* normalized */dir) {
-		return create(gen + 1, new Ray(p, dir), scene);
+		return spawn(p, dir, 1);
+	}
+
+	/**
+	 * Spawns a new trace from the given point p with the given direction dir,
+	 * whose color will contribute with the given weight to the color of this
+	 * trace (e.g. the reflectivity of a mirror). The new trace is terminated
+	 * if its throughput becomes negligible. The caller has to scale the color
+	 * of the new trace by the weight times its {@link #getScale() scale}.
+	 *
+	 * @param p
+	 *            The origin of the new trace
+	 * @param dir
+	 *            The direction of the new trace (normalized)
+	 * @param weight
+	 *            The weight of the new trace in [0, 1]
+	 * @return A new spawned trace
+	 */
+	public Trace spawn(final Point p, final Vec3 /* normalized */dir, final float weight) {
+		float t = throughput * weight;
+		float scale = 1;
+		if (t < termination.getThreshold()) {
+			if (!termination.isRoulette())
+				return new Terminator(gen + 1, new Ray(p, dir), scene);
+			final float q = t / termination.getThreshold();
+			if (ThreadLocalRandom.current().nextFloat() >= q)
+				return new Terminator(gen + 1, new Ray(p, dir), scene);
+			scale = 1 / q;
+			t = termination.getThreshold();
+		}
+		return create(gen + 1, new Ray(p, dir), scene, source, termination, t, scale);
+	}
+
+	/**
+	 * Returns the hit of a shadow ray from the given point. Unlike spawned
+	 * traces, shadow rays are never terminated by the {@link Termination}:
+	 * whether a point is lit must not depend on its depth or throughput.
+	 *
+	 * @param p
+	 *            The origin of the shadow ray
+	 * @param dir
+	 *            The direction of the shadow ray (normalized)
+	 * @return The hit of the shadow ray with the scene
+	 */
+	public Hit shadowHit(final Point p, final Vec3 /* normalized */dir) {
+		final Ray shadow = new Ray(p, dir);
+		return source == null ? scene.shadowHit(shadow) : source.hit(shadow);
 	}
 
 	/**
@@ -122,7 +246,61 @@ public abstract class Trace {
 	 * @return A primary trace (with generation 0)
 	 */
 	public static Trace primary(final Scene scene, final Ray ray) {
-		return new NormalTrace(0, ray, scene);
+		return primary(scene, ray, Termination.DEFAULT);
+	}
+
+	/**
+	 * Returns a primary trace (with generation 0)
+	 *
+	 * @param scene
+	 *            The used scene
+	 * @param ray
+	 *            The initial ray
+	 * @param termination
+	 *            Decides when spawned traces are terminated
+	 * @return A primary trace (with generation 0)
+	 */
+	public static Trace primary(final Scene scene, final Ray ray, final Termination termination) {
+		return new NormalTrace(0, ray, scene, scene.hit(ray), null, termination, 1, 1);
+	}
+
+	/**
+	 * Returns a primary trace (with generation 0) whose hit has already been
+	 * computed
+	 *
+	 * @param scene
+	 *            The used scene
+	 * @param ray
+	 *            The initial ray
+	 * @param hit
+	 *            The hit of the initial ray with the scene
+	 * @param source
+	 *            The source of the hits of all spawned rays
+	 * @return A primary trace (with generation 0)
+	 */
+	public static Trace primary(final Scene scene, final Ray ray, final Hit hit, final HitSource source) {
+		return primary(scene, ray, hit, source, Termination.DEFAULT);
+	}
+
+	/**
+	 * Returns a primary trace (with generation 0) whose hit has already been
+	 * computed
+	 *
+	 * @param scene
+	 *            The used scene
+	 * @param ray
+	 *            The initial ray
+	 * @param hit
+	 *            The hit of the initial ray with the scene
+	 * @param source
+	 *            The source of the hits of all spawned rays
+	 * @param termination
+	 *            Decides when spawned traces are terminated
+	 * @return A primary trace (with generation 0)
+	 */
+	public static Trace primary(final Scene scene, final Ray ray, final Hit hit, final HitSource source,
+			final Termination termination) {
+		return new NormalTrace(0, ray, scene, hit, source, termination, 1, 1);
 	}
 
 	/**
@@ -0,0 +1,118 @@
+package raytracer.core;
+
+/**
+ * Per-thread counters of the work done by the acceleration structures. The
+ * counters are only updated while counting is enabled, so the regular render
+ * path only pays for a single static field read.
+ */
+public final class TraversalStats {
+
+	private static volatile boolean enabled = false;
+	// the state set by setEnabled() and the number of running begin() calls
+	private static boolean requested = false;
+	private static int sessions = 0;
+
+	private static final ThreadLocal<TraversalStats> LOCAL = new ThreadLocal<TraversalStats>() {
+		@Override
+		protected TraversalStats initialValue() {
+			return new TraversalStats();
+		}
+	};
+
+	private long nodes, prims;
+
+	private TraversalStats() {
+	}
+
+	/**
+	 * Returns true if the counters are updated
+	 *
+	 * @return True if the counters are updated
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables counting for all threads
+	 *
+	 * @param on
+	 *            True to enable counting
+	 */
+	public static synchronized void setEnabled(final boolean on) {
+		requested = on;
+		enabled = on || sessions > 0;
+	}
+
+	/**
+	 * Enables counting until the matching call of {@link #end()}. Sessions
+	 * may overlap, e.g. for tiles rendered in parallel; counting stays
+	 * enabled until the last one ended and then returns to the state set by
+	 * {@link #setEnabled(boolean)}.
+	 */
+	public static synchronized void begin() {
+		sessions++;
+		enabled = true;
+	}
+
+	/**
+	 * Ends a session started by {@link #begin()}
+	 */
+	public static synchronized void end() {
+		if (sessions == 0)
+			throw new IllegalStateException();
+		sessions--;
+		enabled = requested || sessions > 0;
+	}
+
+	/**
+	 * Returns the counters of the current thread
+	 *
+	 * @return The counters of the current thread
+	 */
+	public static TraversalStats get() {
+		return LOCAL.get();
+	}
+
+	/**
+	 * Records the visit of a hierarchy node (one bounding box test)
+	 */
+	public static void countNode() {
+		if (enabled)
+			LOCAL.get().nodes++;
+	}
+
+	/**
+	 * Records the intersection test of a single primitive
+	 */
+	public static void countPrimitive() {
+		if (enabled)
+			LOCAL.get().prims++;
+	}
+
+	/**
+	 * Returns the number of visited nodes since the last reset
+	 *
+	 * @return The number of visited nodes
+	 */
+	public long nodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the number of tested primitives since the last reset
+	 *
+	 * @return The number of tested primitives
+	 */
+	public long prims() {
+		return prims;
+	}
+
+	/**
+	 * Resets the counters of this thread
+	 */
+	public void reset() {
+		nodes = 0;
+		prims = 0;
+	}
+}
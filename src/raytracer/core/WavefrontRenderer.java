@@ -0,0 +1,354 @@
+package raytracer.core;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import raytracer.math.Color;
+import raytracer.math.Ray;
+
+/**
+ * An alternative to {@link Renderer} which processes rays stage by stage
+ * instead of depth first. All samples of a region are generated first, then
+ * intersected as one batch, then shaded. Rays spawned while shading (e.g.
+ * shadow rays) are collected into a queue, intersected as a second batch and
+ * handed back to the shaders. Every stage runs on all threads and the ray
+ * queues are kept as structure of arrays.
+ *
+ * Shaders are not aware of the stages: they are run once with spawned rays
+ * recorded instead of traced, and once more with the spawned hits taken from
+ * the batch. Rays which were not recorded in the first run (e.g. the second
+ * bounce of a reflection) are traced directly. The first run is marked as
+ * recording (see {@link Trace#isRecording()}), so that shaders count their
+ * statistics only once.
+ */
+public class WavefrontRenderer {
+
+	private final Scene scene;
+	private final Camera cam;
+	private final int superSample;
+	private final float dx, dy, sdx, sdy;
+	private final ExecutorService exe;
+	private final int threads;
+	private boolean sortSpawned = false;
+	private boolean sortByMaterial = false;
+	private Termination termination = Termination.DEFAULT;
+	private final AtomicLong spawnedRays = new AtomicLong(), spawnedNanos = new AtomicLong();
+
+	/**
+	 * A kernel processing the index range [from, to) of a stage
+	 */
+	private interface Kernel {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Creates a new wavefront renderer
+	 *
+	 * @param scene
+	 *            The scene to render
+	 * @param xRes
+	 *            The X target resolution to render the image with
+	 * @param yRes
+	 *            The Y target resolution to render the image with
+	 * @param superSample
+	 *            The amount of super sampling to use
+	 * @param exe
+	 *            The executor running the stages
+	 * @param threads
+	 *            The number of parts each stage is split into
+	 */
+	public WavefrontRenderer(final Scene scene, final int xRes, final int yRes, final int superSample,
+			final ExecutorService exe, final int threads) {
+		this.scene = scene;
+		this.cam = scene.getCamera();
+		this.superSample = superSample;
+		this.dx = 1.0f / xRes;
+		this.dy = 1.0f / yRes;
+		this.sdx = dx / superSample;
+		this.sdy = dy / superSample;
+		this.exe = exe;
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the policy deciding when spawned traces are terminated, e.g. a
+	 * different maximum depth or Russian roulette for deep reflections
+	 *
+	 * @param termination
+	 *            The termination policy
+	 */
+	public void setTermination(final Termination termination) {
+		if (termination == null)
+			throw new IllegalArgumentException();
+		this.termination = termination;
+	}
+
+	/**
+	 * Enables sorting of the spawned rays by origin and direction before they
+	 * are intersected, so that consecutive rays traverse similar parts of the
+	 * acceleration structure
+	 *
+	 * @param sort
+	 *            True to sort the spawned rays
+	 */
+	public void setSortSpawned(final boolean sort) {
+		this.sortSpawned = sort;
+	}
+
+	/**
+	 * Enables deferred, material sorted shading: after the intersection stage
+	 * the samples are grouped by the shader of the hit object and every group
+	 * is shaded in one run, so that its spawned rays also form a contiguous
+	 * batch. The image does not change.
+	 *
+	 * @param sort
+	 *            True to shade the samples grouped by material
+	 */
+	public void setSortByMaterial(final boolean sort) {
+		this.sortByMaterial = sort;
+	}
+
+	/**
+	 * Returns the number of spawned rays intersected so far
+	 *
+	 * @return The number of spawned rays intersected so far
+	 */
+	public long getSpawnedRays() {
+		return spawnedRays.get();
+	}
+
+	/**
+	 * Returns the wall clock time spent in the spawned ray stage, including
+	 * sorting
+	 *
+	 * @return The time in nanoseconds
+	 */
+	public long getSpawnedNanos() {
+		return spawnedNanos.get();
+	}
+
+	private void parallel(final int n, final Kernel kernel) throws InterruptedException, ExecutionException {
+		final int chunk = (n + threads - 1) / threads;
+		final List<Future<Void>> parts = new ArrayList<Future<Void>>(threads);
+		for (int from = 0; from < n; from += chunk) {
+			final int f = from, t = Math.min(n, from + chunk);
+			parts.add(exe.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					kernel.run(f, t);
+					return null;
+				}
+			}));
+		}
+		for (final Future<Void> p : parts)
+			p.get();
+	}
+
+	/**
+	 * Returns the sample indices grouped by the shader of their hit object,
+	 * keeping the sample order within a group. Misses form a group of their
+	 * own, objects without a shader are grouped by object.
+	 */
+	private static int[] materialOrder(final Hit[] hits) {
+		final Map<Object, Integer> groups = new IdentityHashMap<Object, Integer>();
+		final int[] group = new int[hits.length];
+		for (int i = 0; i < hits.length; i++) {
+			Object key = hits;
+			if (hits[i].hits()) {
+				final Obj obj = hits[i].get();
+				key = obj.getShader() != null ? obj.getShader() : obj;
+			}
+			Integer g = groups.get(key);
+			if (g == null) {
+				g = groups.size();
+				groups.put(key, g);
+			}
+			group[i] = g;
+		}
+		final int[] start = new int[groups.size() + 1];
+		for (final int g : group)
+			start[g + 1]++;
+		for (int g = 0; g < groups.size(); g++)
+			start[g + 1] += start[g];
+		final int[] order = new int[hits.length];
+		for (int i = 0; i < hits.length; i++)
+			order[start[group[i]]++] = i;
+		return order;
+	}
+
+	/**
+	 * Renders a region of the image
+	 *
+	 * @param sx
+	 *            The x point to start
+	 * @param sy
+	 *            The y point to start
+	 * @param w
+	 *            The width to use
+	 * @param h
+	 *            The height to use
+	 * @return The rgb values of the region, row by row
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted
+	 * @throws ExecutionException
+	 *             If a stage failed
+	 */
+	public int[] render(final int sx, final int sy, final int w, final int h)
+			throws InterruptedException, ExecutionException {
+		final int spp = superSample * superSample;
+		final int n = w * h * spp;
+
+		// camera generation, using the same incremental sample positions as
+		// the depth first renderer
+		final float[] bxs = new float[w], bys = new float[h];
+		float b = sx * dx;
+		for (int x = 0; x < w; x++, b += dx)
+			bxs[x] = b;
+		b = sy * dy;
+		for (int y = 0; y < h; y++, b += dy)
+			bys[y] = b;
+		final RayBuffer primary = new RayBuffer(n);
+		primary.resize(n);
+		parallel(w * h, new Kernel() {
+			@Override
+			public void run(final int from, final int to) {
+				for (int p = from; p < to; p++) {
+					int s = p * spp;
+					float suy = bys[p / w] - superSample / 2.0f * sdy;
+					for (int j = 0; j < superSample; j++) {
+						float sux = bxs[p % w] - superSample / 2.0f * sdx;
+						for (int i = 0; i < superSample; i++) {
+							primary.set(s, cam.cast(sux, suy), s);
+							s++;
+							sux += sdx;
+						}
+						suy += sdy;
+					}
+				}
+			}
+		});
+
+		// intersection
+		final Hit[] hits = new Hit[n];
+		parallel(n, new Kernel() {
+			@Override
+			public void run(final int from, final int to) {
+				for (int i = from; i < to; i++) {
+					hits[i] = scene.hit(primary.ray(i));
+					hits[i].hits();
+				}
+			}
+		});
+
+		// optionally group the samples by material, the shading stages run in
+		// this order
+		final int[] shadeOrder = sortByMaterial ? materialOrder(hits) : null;
+
+		// shading, first run: collect the spawned rays per sample
+		final int[] spawnStart = new int[n], spawnEnd = new int[n];
+		final List<RayBuffer> parts = new ArrayList<RayBuffer>();
+		final List<int[]> partRange = new ArrayList<int[]>();
+		parallel(n, new Kernel() {
+			@Override
+			public void run(final int from, final int to) {
+				final RayBuffer part = new RayBuffer(to - from);
+				for (int k = from; k < to; k++) {
+					final int i = shadeOrder != null ? shadeOrder[k] : k;
+					spawnStart[i] = part.size();
+					if (hits[i].hits()) {
+						final int owner = i;
+						Trace.primary(scene, primary.ray(i), hits[i], new Trace.HitSource() {
+							@Override
+							public Hit hit(final Ray ray) {
+								part.add(ray, owner);
+								return Hit.No.get();
+							}
+
+							@Override
+							public boolean isRecording() {
+								return true;
+							}
+						}, termination).shade();
+					}
+					spawnEnd[i] = part.size();
+				}
+				synchronized (parts) {
+					parts.add(part);
+					partRange.add(new int[] { from, to });
+				}
+			}
+		});
+		final RayBuffer spawned = new RayBuffer(n);
+		for (int k = 0; k < parts.size(); k++) {
+			final int offset = spawned.size();
+			final int from = partRange.get(k)[0], to = partRange.get(k)[1];
+			for (int j = from; j < to; j++) {
+				final int i = shadeOrder != null ? shadeOrder[j] : j;
+				spawnStart[i] += offset;
+				spawnEnd[i] += offset;
+			}
+			spawned.append(parts.get(k));
+		}
+
+		// shadow test, optionally in coherent order
+		final long start = System.nanoTime();
+		final int[] order = sortSpawned ? spawned.coherentOrder() : null;
+		final Hit[] spawnedHits = new Hit[spawned.size()];
+		parallel(spawned.size(), new Kernel() {
+			@Override
+			public void run(final int from, final int to) {
+				for (int k = from; k < to; k++) {
+					final int i = order != null ? order[k] : k;
+					spawnedHits[i] = scene.hit(spawned.ray(i));
+					spawnedHits[i].hits();
+				}
+			}
+		});
+		spawnedNanos.addAndGet(System.nanoTime() - start);
+		spawnedRays.addAndGet(spawned.size());
+
+		// shading, second run: replay the collected hits
+		final Color[] colors = new Color[n];
+		parallel(n, new Kernel() {
+			@Override
+			public void run(final int from, final int to) {
+				for (int k = from; k < to; k++) {
+					final int i = shadeOrder != null ? shadeOrder[k] : k;
+					final int start = spawnStart[i], end = spawnEnd[i];
+					colors[i] = Trace.primary(scene, primary.ray(i), hits[i], new Trace.HitSource() {
+						private int next = start;
+
+						@Override
+						public Hit hit(final Ray ray) {
+							// the shadow cache may skip recorded rays, so look
+							// ahead for the ray instead of expecting it next
+							for (int k = next; k < end; k++) {
+								if (spawned.matches(k, ray)) {
+									next = k + 1;
+									return spawnedHits[k];
+								}
+							}
+							return scene.hit(ray);
+						}
+					}, termination).shade();
+				}
+			}
+		});
+
+		final int[] pixels = new int[w * h];
+		for (int p = 0; p < pixels.length; p++) {
+			Color res = Color.BLACK;
+			for (int k = 0; k < spp; k++)
+				res = res.avg(colors[p * spp + k], k);
+			pixels[p] = res.rgb();
+		}
+		return pixels;
+	}
+}
@@ -1,9 +1,14 @@
 package raytracer.core.def;
 
+import java.util.List;
+
 import raytracer.core.Hit;
 import raytracer.core.Obj;
 import raytracer.core.Trace;
+import raytracer.core.TraversalStats;
+import raytracer.geom.BBox;
 import raytracer.math.Color;
+import raytracer.math.Ray;
 
 /**
  * A base class for all intersection acceleration structures
@@ -26,4 +31,88 @@ public abstract class Accelerator implements Obj {
 	 */
 	public abstract void add(Obj prim);
 
+	/**
+	 * Removes an object from the acceleration structure. {@link DynamicBVH}
+	 * removes objects in place, structures which can only be built as a whole
+	 * are built again before the next trace.
+	 *
+	 * @param prim
+	 *            The object to remove
+	 * @return True if the object was contained
+	 * @throws UnsupportedOperationException
+	 *             If the structure cannot remove objects
+	 */
+	public boolean remove(final Obj prim) {
+		throw new UnsupportedOperationException("remove on " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Checks whether the object has finite bounds and can be sorted into a
+	 * spatial structure. Objects with infinite bounds, such as planes, would
+	 * make every node containing them infinitely large; structures keep them
+	 * in a separate list instead and test them with
+	 * {@link #hitUnbounded(List, Ray, float, float, Hit)}.
+	 *
+	 * @param obj
+	 *            The object to check
+	 * @return True if all coordinates of the bounds are finite
+	 */
+	protected static boolean isBounded(final Obj obj) {
+		final BBox b = obj.bbox();
+		for (int i = 0; i != 3; ++i) {
+			if (!(Math.abs(b.getMin().get(i)) < Float.POSITIVE_INFINITY)
+					|| !(Math.abs(b.getMax().get(i)) < Float.POSITIVE_INFINITY))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the union of the bounds of the objects
+	 *
+	 * @param objects
+	 *            The objects
+	 * @return The bounds of all objects, {@link BBox#EMPTY} if there are none
+	 */
+	protected static BBox surround(final List<Obj> objects) {
+		BBox bounds = BBox.EMPTY;
+		for (final Obj o : objects) {
+			bounds = BBox.surround(bounds, o.bbox());
+		}
+		return bounds;
+	}
+
+	/**
+	 * Tests the objects with infinite bounds after the bounded ones have been
+	 * traversed. The interval is shrunk to the nearest hit found so far, so
+	 * an object behind it is rejected as early as possible.
+	 *
+	 * @param unbounded
+	 *            The objects with infinite bounds
+	 * @param ray
+	 *            The ray to intersect
+	 * @param tMin
+	 *            The minimum distance
+	 * @param tMax
+	 *            The maximum distance
+	 * @param nearest
+	 *            The nearest hit among the bounded objects
+	 * @return The nearest hit among all objects
+	 */
+	protected static Hit hitUnbounded(final List<Obj> unbounded, final Ray ray, final float tMin,
+			final float tMax, final Hit nearest) {
+		Hit result = nearest;
+		float closest = nearest.hits() ? nearest.getParameter() : tMax;
+		for (int i = 0; i < unbounded.size(); i++) {
+			final Obj o = unbounded.get(i);
+			TraversalStats.countPrimitive();
+			final Hit hit = o.hit(ray, o, tMin, closest);
+			if (hit.hits() && hit.getParameter() < closest) {
+				closest = hit.getParameter();
+				result = hit;
+			}
+		}
+		return result;
+	}
+
 }
@@ -0,0 +1,233 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import raytracer.core.Obj;
+import raytracer.geom.BBox;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec3;
+
+/**
+ * Picks the fastest acceleration structure for a set of objects. Every
+ * candidate is built over a random sample of the objects and traces the same
+ * probe rays, which start outside the bounds of the sample and point at
+ * sampled objects. The candidate with the lowest time per probe is then
+ * built over all objects.
+ *
+ * The default candidates are {@link CompactBVH}, {@link WideBVH},
+ * {@link KdTree} and {@link UniformGrid}. Objects with infinite bounds are
+ * left out of the sample, since every candidate tests them the same way after
+ * its traversal.
+ */
+public final class AcceleratorSelector {
+
+    /** The default number of probe rays */
+    public static final int DEFAULT_PROBES = 500;
+    /** The default maximum number of sampled objects */
+    public static final int DEFAULT_SAMPLE = 20000;
+
+    /**
+     * Creates empty instances of a candidate structure
+     */
+    public interface Factory {
+        /**
+         * Creates an empty acceleration structure
+         *
+         * @return The new structure
+         */
+        Accelerator create();
+    }
+
+    private final int probes, sample;
+    private final long seed;
+    private final Map<String, Factory> candidates = new LinkedHashMap<String, Factory>();
+    private final Map<String, Float> timings = new LinkedHashMap<String, Float>();
+    private String selected = null;
+
+    /**
+     * Creates a selector with the default candidates, number of probes and
+     * sample size
+     */
+    public AcceleratorSelector() {
+        this(DEFAULT_PROBES, DEFAULT_SAMPLE, 1);
+    }
+
+    /**
+     * Creates a selector with the default candidates
+     *
+     * @param probes
+     *            The number of probe rays
+     * @param sample
+     *            The maximum number of objects the candidates are built over
+     * @param seed
+     *            The seed of the sample and the probe rays
+     * @throws IllegalArgumentException
+     *             If the number of probes or the sample size is not positive
+     */
+    public AcceleratorSelector(final int probes, final int sample, final long seed) {
+        if (probes < 1 || sample < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.probes = probes;
+        this.sample = sample;
+        this.seed = seed;
+        addCandidate("CompactBVH", new Factory() {
+            @Override
+            public Accelerator create() {
+                return new CompactBVH();
+            }
+        });
+        addCandidate("WideBVH", new Factory() {
+            @Override
+            public Accelerator create() {
+                return new WideBVH();
+            }
+        });
+        addCandidate("KdTree", new Factory() {
+            @Override
+            public Accelerator create() {
+                return new KdTree();
+            }
+        });
+        addCandidate("UniformGrid", new Factory() {
+            @Override
+            public Accelerator create() {
+                return new UniformGrid();
+            }
+        });
+    }
+
+    /**
+     * Adds a candidate structure or replaces the one with the same name
+     *
+     * @param name
+     *            The name of the candidate
+     * @param factory
+     *            Creates empty instances of the candidate
+     * @throws IllegalArgumentException
+     *             If the name or the factory is null
+     */
+    public void addCandidate(final String name, final Factory factory) {
+        if (name == null || factory == null) {
+            throw new IllegalArgumentException();
+        }
+        candidates.put(name, factory);
+    }
+
+    /**
+     * Times all candidates and returns the fastest one, filled with all
+     * objects
+     *
+     * @param objects
+     *            The objects to accelerate
+     * @return The fastest structure containing all objects
+     * @throws IllegalArgumentException
+     *             If there are no candidates
+     */
+    public Accelerator select(final Collection<? extends Obj> objects) {
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        final Random random = new Random(seed);
+        final List<Obj> sampled = new ArrayList<Obj>(objects.size());
+        for (final Obj o : objects) {
+            if (Accelerator.isBounded(o)) {
+                sampled.add(o);
+            }
+        }
+        if (sampled.size() > sample) {
+            Collections.shuffle(sampled, random);
+            sampled.subList(sample, sampled.size()).clear();
+        }
+        final Ray[] rays = probes(sampled, random);
+
+        timings.clear();
+        selected = null;
+        float best = Float.POSITIVE_INFINITY;
+        for (final Map.Entry<String, Factory> candidate : candidates.entrySet()) {
+            final Accelerator accel = candidate.getValue().create();
+            for (final Obj o : sampled) {
+                accel.add(o);
+            }
+            // the first round builds the structure and warms up the code
+            long fastest = Long.MAX_VALUE;
+            for (int round = 0; round < 3; round++) {
+                final long start = System.nanoTime();
+                for (final Ray ray : rays) {
+                    accel.hit(ray, null, 0, Float.POSITIVE_INFINITY);
+                }
+                if (round > 0) {
+                    fastest = Math.min(fastest, System.nanoTime() - start);
+                }
+            }
+            final float perRay = (float) fastest / Math.max(1, rays.length);
+            timings.put(candidate.getKey(), perRay);
+            if (perRay < best) {
+                best = perRay;
+                selected = candidate.getKey();
+            }
+        }
+
+        final Accelerator result = candidates.get(selected).create();
+        for (final Obj o : objects) {
+            result.add(o);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the probe rays: from random points around the bounds of the
+     * objects towards random points in the bounds of random objects
+     */
+    private Ray[] probes(final List<Obj> objects, final Random random) {
+        if (objects.isEmpty()) {
+            return new Ray[0];
+        }
+        BBox bounds = BBox.EMPTY;
+        for (final Obj o : objects) {
+            bounds = BBox.surround(bounds, o.bbox());
+        }
+        final Point center = bounds.getMin().add(bounds.getMax().sub(bounds.getMin()).scale(0.5f));
+        final float radius = Math.max(1e-3f, bounds.getMax().sub(bounds.getMin()).norm());
+        final Ray[] rays = new Ray[probes];
+        for (int i = 0; i < probes; i++) {
+            Vec3 dir;
+            do {
+                dir = new Vec3(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1);
+            } while (dir.norm() > 1 || dir.norm() < 1e-3f);
+            final Point origin = center.add(dir.normalized().scale(radius));
+            final BBox target = objects.get(random.nextInt(objects.size())).bbox();
+            final Vec3 extent = target.getMax().sub(target.getMin());
+            final Point aim = target.getMin().add(new Vec3(extent.x() * random.nextFloat(),
+                    extent.y() * random.nextFloat(), extent.z() * random.nextFloat()));
+            final Vec3 d = aim.sub(origin);
+            rays[i] = new Ray(origin, d.norm() > 0 ? d.normalized() : Vec3.Y);
+        }
+        return rays;
+    }
+
+    /**
+     * Returns the name of the structure chosen by the last selection
+     *
+     * @return The name of the fastest candidate, or null
+     */
+    public String getSelected() {
+        return selected;
+    }
+
+    /**
+     * Returns the time per probe ray of every candidate in the last selection
+     *
+     * @return The nanoseconds per ray by candidate name
+     */
+    public Map<String, Float> getTimings() {
+        return Collections.unmodifiableMap(timings);
+    }
+}
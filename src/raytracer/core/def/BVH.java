@@ -5,6 +5,7 @@ import java.util.List;
 
 import raytracer.core.Hit;
 import raytracer.core.Obj;
+import raytracer.core.TraversalStats;
 import raytracer.geom.BBox;
 import raytracer.geom.Primitive;
 import raytracer.math.Point;
@@ -17,21 +18,25 @@ import raytracer.math.Vec3;
 public class BVH extends BVHBase {
     private List<Obj> objects; // List of objects in the BVH
     private BBox boundingBox; // Additionally created by me
+    private final List<Obj> unbounded; // Objects with infinite bounds, tested after the hierarchy
 
     public BVH() {
 
         objects = new ArrayList<>();
+        unbounded = new ArrayList<>();
         boundingBox = BBox.EMPTY;
     }
 
     @Override
     public BBox bbox() {
 
-        return boundingBox;
+        return unbounded.isEmpty() ? boundingBox : BBox.INF;
     }
 
     /**
-     * Adds an object to the acceleration structure
+     * Adds an object to the acceleration structure. Objects with infinite
+     * bounds, such as planes, are not sorted into the hierarchy but tested
+     * after it.
      *
      * @param prim
      *             The object to add
@@ -39,6 +44,11 @@ public class BVH extends BVHBase {
     @Override
     public void add(final Obj prim) {
 
+        if (!isBounded(prim)) {
+            unbounded.add(prim);
+            return;
+        }
+
         objects.add(prim);
 
         if (boundingBox == null) {
@@ -48,6 +58,39 @@ public class BVH extends BVHBase {
         }
     }
 
+    /**
+     * Removes an object from the hierarchy. The bounds of the nodes above it
+     * are shrunk and nodes left empty are dropped, the hierarchy is not
+     * built again.
+     *
+     * @param prim
+     *             The object to remove
+     * @return True if the object was contained
+     */
+    @Override
+    public boolean remove(final Obj prim) {
+
+        if (!isBounded(prim)) {
+            return unbounded.remove(prim);
+        }
+
+        boolean removed = objects.remove(prim);
+        for (int i = 0; !removed && i < objects.size(); i++) {
+            final Obj child = objects.get(i);
+            if (child instanceof BVH && ((BVH) child).remove(prim)) {
+                removed = true;
+                if (((BVH) child).objects.isEmpty()) {
+                    objects.remove(i);
+                }
+            }
+        }
+
+        if (removed) {
+            boundingBox = surround(objects);
+        }
+        return removed;
+    }
+
     /**
      * Builds the actual bounding volume hierarchy
      */
@@ -69,9 +112,17 @@ public class BVH extends BVHBase {
 
         distributeObjects(a, b, splitDim, splitPos);
 
+        if (a.getObjects().isEmpty() || b.getObjects().isEmpty()) {
+            return; // All objects share the split position, keep them as a leaf
+        }
+
         a.buildBVH();
         b.buildBVH();
 
+        // The two sub-BVHs replace the objects of this node
+        objects = new ArrayList<>(2);
+        objects.add(a);
+        objects.add(b);
         boundingBox = BBox.surround(a.bbox(), b.bbox());
     }
 
@@ -135,22 +186,34 @@ public class BVH extends BVHBase {
     @Override
     public Hit hit(final Ray ray, final Obj obj, final float tMin, final float tMax) {
 
-        if (boundingBox != null && boundingBox.hit(ray, tMin, tMax) != Hit.No.get()) {
-            Hit firstHit = null;
-            float closestT = tMax;
+        return hitUnbounded(unbounded, ray, tMin, tMax, traverse(ray, tMin, tMax));
+    }
 
-            for (Obj child : objects) {
-                Hit hit = child.hit(ray, this, tMin, tMax);
-                if (hit != Hit.No.get()) {
-                    closestT = hit.getParameter();
-                    firstHit = hit;
+    private Hit traverse(final Ray ray, final float tMin, final float tMax) {
+
+        TraversalStats.countNode();
+        if (!boundingBox.hit(ray, tMin, tMax).hits()) {
+            return Hit.No.get();
+        }
+
+        Hit nearest = Hit.No.get();
+        float closestT = tMax;
+
+        for (Obj child : objects) {
+            if (!(child instanceof BVHBase)) {
+                TraversalStats.countPrimitive();
+            }
+            Hit hit = child.hit(ray, child, tMin, closestT);
+            if (hit.hits()) {
+                float t = hit.getParameter();
+                if (t < closestT) {
+                    closestT = t;
+                    nearest = hit;
                 }
             }
-
-            return firstHit;
         }
 
-        return Hit.No.get();
+        return nearest;
     }
 
     @Override
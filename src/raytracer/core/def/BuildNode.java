@@ -0,0 +1,45 @@
+package raytracer.core.def;
+
+/**
+ * A node of a binary hierarchy while it is built, before it is encoded into
+ * the node format of an acceleration structure. Leaves reference the range
+ * [first, first + count) of the primitive array of the builder.
+ */
+final class BuildNode {
+    float minX, minY, minZ, maxX, maxY, maxZ;
+    BuildNode left, right;
+    int first, count;
+    /** The surface area heuristic cost of the subtree, see {@link TreeletOptimizer} */
+    float cost;
+
+    boolean isLeaf() {
+        return left == null;
+    }
+
+    /**
+     * Returns half the surface area of the bounds
+     */
+    float area() {
+        final float ex = maxX - minX, ey = maxY - minY, ez = maxZ - minZ;
+        return ex * ey + ey * ez + ez * ex;
+    }
+
+    /**
+     * Sets the bounds to the union of the bounds of the children
+     */
+    void fit() {
+        minX = Math.min(left.minX, right.minX);
+        minY = Math.min(left.minY, right.minY);
+        minZ = Math.min(left.minZ, right.minZ);
+        maxX = Math.max(left.maxX, right.maxX);
+        maxY = Math.max(left.maxY, right.maxY);
+        maxZ = Math.max(left.maxZ, right.maxZ);
+    }
+
+    /**
+     * Returns the number of nodes of the subtree
+     */
+    int size() {
+        return isLeaf() ? 1 : 1 + left.size() + right.size();
+    }
+}
@@ -0,0 +1,232 @@
+package raytracer.core.def;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import raytracer.core.Renderer;
+
+/**
+ * An append-only log of finished tiles which allows to resume a render after
+ * the JVM has been killed. Every tile record carries a CRC32 so that a
+ * partially written tail is detected and dropped on restart. Tiles are
+ * written by a background thread and synced to disk periodically.
+ */
+public class Checkpoint implements Closeable {
+
+	private static final int MAGIC = 0x5254434b; // "RTCK"
+	private static final int VERSION = 1;
+
+	/**
+	 * A tile restored from the checkpoint file
+	 */
+	public static final class Tile {
+		public final int x, y, w, h;
+		public final int[] pixels;
+
+		private Tile(final int x, final int y, final int w, final int h, final int[] pixels) {
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+			this.pixels = pixels;
+		}
+	}
+
+	private final List<Tile> restored;
+	private final Set<Long> done = Collections.synchronizedSet(new HashSet<Long>());
+	private final FileOutputStream file;
+	private final DataOutputStream out;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+	private final long syncInterval;
+	private long lastSync = System.currentTimeMillis();
+	private IOException failure = null;
+
+	private Checkpoint(final File f, final String settings, final long syncInterval) throws IOException {
+		this.syncInterval = syncInterval;
+		final List<Tile> tiles = new ArrayList<Tile>();
+		final long valid = f.exists() ? load(f, settings, tiles) : -1;
+		if (valid < 0) {
+			tiles.clear();
+			try (DataOutputStream header = new DataOutputStream(new FileOutputStream(f))) {
+				header.writeInt(MAGIC);
+				header.writeInt(VERSION);
+				header.writeUTF(settings);
+			}
+		} else {
+			// drop a torn record at the end so that new records follow valid ones
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+				raf.setLength(valid);
+			}
+		}
+		for (final Tile t : tiles)
+			done.add(key(t.x, t.y));
+		this.restored = Collections.unmodifiableList(tiles);
+		this.file = new FileOutputStream(f, true);
+		this.out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+	}
+
+	/**
+	 * Opens a checkpoint file. If the file exists and was written with the
+	 * same settings its valid tiles are restored, otherwise a new file is
+	 * started.
+	 *
+	 * @param f
+	 *            The checkpoint file
+	 * @param settings
+	 *            A description of the scene and all render settings; a
+	 *            checkpoint is only resumed if it matches exactly
+	 * @param syncInterval
+	 *            The time in milliseconds between two syncs to disk
+	 * @return The opened checkpoint
+	 * @throws IOException
+	 *             If the file could not be read or written
+	 */
+	public static Checkpoint open(final File f, final String settings, final long syncInterval) throws IOException {
+		return new Checkpoint(f, settings, syncInterval);
+	}
+
+	private static long key(final int x, final int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * Reads the tiles of the given file
+	 *
+	 * @return The length of the valid part of the file or -1 if the file does
+	 *         not belong to the given settings
+	 */
+	private static long load(final File f, final String settings, final List<Tile> tiles) throws IOException {
+		long valid = -1;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(settings))
+				return -1;
+			valid = 8 + 2 + settings.getBytes(StandardCharsets.UTF_8).length;
+			while (true) {
+				final int x = in.readInt(), y = in.readInt(), w = in.readInt(), h = in.readInt();
+				if (w <= 0 || h <= 0 || w > 1 << 12 || h > 1 << 12)
+					return valid;
+				final ByteBuffer buf = ByteBuffer.allocate(16 + 4 * w * h);
+				buf.putInt(x).putInt(y).putInt(w).putInt(h);
+				in.readFully(buf.array(), 16, 4 * w * h);
+				final CRC32 crc = new CRC32();
+				crc.update(buf.array());
+				if (in.readInt() != (int) crc.getValue())
+					return valid;
+				final int[] pixels = new int[w * h];
+				buf.position(16);
+				buf.asIntBuffer().get(pixels);
+				tiles.add(new Tile(x, y, w, h, pixels));
+				valid += buf.capacity() + 4;
+			}
+		} catch (final EOFException e) {
+			// torn record (or header) at the end of the file
+			return valid;
+		}
+	}
+
+	/**
+	 * Returns the tiles restored from the file
+	 *
+	 * @return The restored tiles
+	 */
+	public List<Tile> restored() {
+		return restored;
+	}
+
+	/**
+	 * Returns true if the tile at the given position is already finished
+	 *
+	 * @param x
+	 *            The x position of the tile
+	 * @param y
+	 *            The y position of the tile
+	 * @return True if the tile is already finished
+	 */
+	public boolean isDone(final int x, final int y) {
+		return done.contains(key(x, y));
+	}
+
+	/**
+	 * Queues a finished tile for writing. Returns immediately.
+	 *
+	 * @param w
+	 *            The finished tile
+	 */
+	public void record(final Renderer.Work w) {
+		done.add(key(w.x, w.y));
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(w.x, w.y, w.w, w.h, w.pixels);
+					final long now = System.currentTimeMillis();
+					if (now - lastSync >= syncInterval) {
+						sync();
+						lastSync = now;
+					}
+				} catch (final IOException e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+		});
+	}
+
+	private void write(final int x, final int y, final int w, final int h, final int[] pixels) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(16 + 4 * w * h);
+		buf.putInt(x).putInt(y).putInt(w).putInt(h);
+		buf.asIntBuffer().put(pixels);
+		final CRC32 crc = new CRC32();
+		crc.update(buf.array());
+		out.write(buf.array());
+		out.writeInt((int) crc.getValue());
+	}
+
+	private void sync() throws IOException {
+		out.flush();
+		file.getFD().sync();
+	}
+
+	/**
+	 * Writes all queued tiles and syncs the file
+	 *
+	 * @throws IOException
+	 *             If a tile could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			sync();
+		} finally {
+			out.close();
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
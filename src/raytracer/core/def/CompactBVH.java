@@ -0,0 +1,517 @@
+package raytracer.core.def;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import raytracer.core.Hit;
+import raytracer.core.Obj;
+import raytracer.core.TraversalStats;
+import raytracer.geom.BBox;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+
+/**
+ * A bounding volume hierarchy stored in a single int array with one 64 byte
+ * node (16 ints) per inner node. A node stores its own bounds as origin and
+ * per axis scale in full precision, the bounds of both children quantized to
+ * 16 bits relative to these, and for every child either the index of its node
+ * or the range of its objects. Both children are therefore tested with a
+ * single node fetch.
+ *
+ * The quantized bounds are rounded outwards and checked against the decoder
+ * while encoding, so a decoded box always contains the exact one and no hit
+ * is missed. Nodes are laid out in treelets: the first nodes of a subtree in
+ * breadth first order are stored next to each other, so that the top levels
+ * of every subtree share a few cache lines.
+ *
+ * The hierarchy is built with the surface area heuristic by {@link #build()}
+ * before the first trace after objects were added or removed, optionally with spatial splits (see
+ * {@link #setSpatialSplits(float)}). Objects with infinite bounds, such as
+ * planes, are kept out of the hierarchy and tested after its traversal.
+ */
+public class CompactBVH extends Accelerator {
+
+    /** The number of ints per node */
+    public static final int NODE_INTS = 16;
+    /** The number of nodes stored next to each other per subtree */
+    public static final int TREELET = 16;
+    /** The maximum number of objects per leaf, if the heuristic allows */
+    public static final int MAX_LEAF = 4;
+
+    /** The maximum number of rays recorded for {@link RayDistributionOptimizer} */
+    public static final int MAX_RECORDED = 1 << 20;
+
+    private static final int QMAX = 0xFFFF;
+
+    private final List<Obj> pending = new ArrayList<Obj>();
+    /** Objects with infinite bounds, tested after the traversal */
+    private final List<Obj> unbounded = new ArrayList<Obj>();
+    private float splitGrowth = 0;
+    private boolean fastBuild = false;
+    private BuildNode tree = null;
+    private BBox boundingBox = BBox.EMPTY;
+    private volatile boolean built = false;
+    private int[] nodes = new int[0];
+    /** Origin, inverse direction and interval of the traced rays, while recording */
+    private volatile List<float[]> recorded = null;
+    private Obj[] objects = new Obj[0];
+    private int depth = 0;
+
+    @Override
+    public BBox bbox() {
+        return unbounded.isEmpty() ? boundingBox : BBox.INF;
+    }
+
+    /**
+     * Adds an object to the acceleration structure. The hierarchy is built
+     * again before the next trace.
+     *
+     * @param prim
+     *             The object to add
+     */
+    @Override
+    public synchronized void add(final Obj prim) {
+        if (!isBounded(prim)) {
+            unbounded.add(prim);
+            return;
+        }
+        pending.add(prim);
+        boundingBox = BBox.surround(boundingBox, prim.bbox());
+        built = false;
+    }
+
+    /**
+     * Removes an object. The hierarchy is built again before the next trace.
+     *
+     * @param prim
+     *             The object to remove
+     * @return True if the object was contained
+     */
+    @Override
+    public synchronized boolean remove(final Obj prim) {
+        if (!isBounded(prim)) {
+            return unbounded.remove(prim);
+        }
+        if (!pending.remove(prim)) {
+            return false;
+        }
+        boundingBox = surround(pending);
+        built = false;
+        return true;
+    }
+
+    /**
+     * Builds and encodes the hierarchy over all added objects
+     */
+    public synchronized void build() {
+        final BuildNode root;
+        if (splitGrowth > 0) {
+            final SplitBuilder builder = new SplitBuilder(pending, splitGrowth);
+            root = builder.build(MAX_LEAF);
+            objects = builder.getObjects();
+        } else {
+            final SAHBuilder builder = new SAHBuilder(pending);
+            root = fastBuild ? builder.buildMidpoint(1) : builder.build(MAX_LEAF);
+            objects = builder.getObjects();
+        }
+        tree = root;
+        refresh(objects);
+        built = true;
+    }
+
+    /**
+     * Returns the hierarchy, building it first if necessary
+     */
+    BuildNode getTree() {
+        ensureBuilt();
+        return tree;
+    }
+
+    /**
+     * Returns the objects referenced by the leaves of the hierarchy
+     */
+    Obj[] getLeafObjects() {
+        return objects;
+    }
+
+    /**
+     * Encodes the hierarchy again after it was restructured
+     *
+     * @param leafObjects
+     *            The objects referenced by the leaves
+     */
+    synchronized void refresh(final Obj[] leafObjects) {
+        final BuildNode root = tree;
+        objects = leafObjects;
+        if (root == null) {
+            nodes = new int[0];
+            depth = 0;
+        } else {
+            encode(root);
+            depth = depth(root);
+        }
+    }
+
+    private static int depth(final BuildNode node) {
+        return node.isLeaf() ? 0 : 1 + Math.max(depth(node.left), depth(node.right));
+    }
+
+    /**
+     * Enables spatial splits for the next build: nodes whose object partition
+     * would produce overlapping children may instead be cut by a plane, with
+     * the objects straddling it referenced from both sides. This reduces the
+     * overlap caused by long, thin triangles at the cost of memory.
+     *
+     * @param growth
+     *            The number of additional object references allowed, as a
+     *            fraction of the number of objects (e.g. 0.3 for 30% more
+     *            references), or 0 to disable spatial splits
+     * @throws IllegalArgumentException
+     *             If the growth is negative
+     */
+    public synchronized void setSpatialSplits(final float growth) {
+        if (!(growth >= 0)) {
+            throw new IllegalArgumentException();
+        }
+        splitGrowth = growth;
+    }
+
+    /**
+     * Selects a fast build for the next build, which splits nodes at the
+     * middle of their largest extent instead of evaluating the surface area
+     * heuristic, down to single objects per leaf. The result is meant to be
+     * improved with {@link TreeletOptimizer}, which also merges leaves.
+     * Ignored if spatial splits are enabled.
+     *
+     * @param fast
+     *            Whether to build fast
+     */
+    public synchronized void setFastBuild(final boolean fast) {
+        fastBuild = fast;
+    }
+
+    /**
+     * Returns the number of object references stored in the leaves, which
+     * exceeds the number of objects if spatial splits duplicated some
+     *
+     * @return The number of object references
+     */
+    public int getReferenceCount() {
+        return objects.length;
+    }
+
+    /**
+     * Starts or stops recording the rays traced through this hierarchy, as
+     * input for {@link RayDistributionOptimizer}. Starting discards earlier
+     * rays; at most {@link #MAX_RECORDED} rays are kept.
+     *
+     * @param on
+     *            True to record
+     */
+    public synchronized void setRecording(final boolean on) {
+        recorded = on ? Collections.synchronizedList(new ArrayList<float[]>()) : null;
+    }
+
+    /**
+     * Returns the rays recorded since the recording started, each as origin,
+     * inverse direction, and the interval up to the nearest hit, or null if
+     * nothing is recorded
+     */
+    List<float[]> getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * Returns the objects in the order they were added
+     */
+    List<Obj> getAdded() {
+        return pending;
+    }
+
+    /**
+     * Replaces the hierarchy, e.g. by one restored from a file
+     *
+     * @param root
+     *            The new root
+     * @param leafObjects
+     *            The objects referenced by the leaves
+     */
+    synchronized void setTree(final BuildNode root, final Obj[] leafObjects) {
+        tree = root;
+        refresh(leafObjects);
+        built = true;
+    }
+
+    /**
+     * Returns the number of nodes
+     *
+     * @return The number of nodes
+     */
+    public int getNodeCount() {
+        return nodes.length / NODE_INTS;
+    }
+
+    /**
+     * Returns the size of the node array
+     *
+     * @return The size of the nodes in bytes
+     */
+    public long getNodeBytes() {
+        return 4L * nodes.length;
+    }
+
+    /**
+     * Assigns node indices treelet by treelet and writes the nodes
+     */
+    private void encode(final BuildNode root) {
+        // a leaf root is stored as a node with a single child
+        BuildNode top = root;
+        if (root.isLeaf()) {
+            top = new BuildNode();
+            top.left = root;
+            top.right = null;
+            top.minX = root.minX;
+            top.minY = root.minY;
+            top.minZ = root.minZ;
+            top.maxX = root.maxX;
+            top.maxY = root.maxY;
+            top.maxZ = root.maxZ;
+        }
+
+        final List<BuildNode> order = new ArrayList<BuildNode>();
+        final Map<BuildNode, Integer> index = new IdentityHashMap<BuildNode, Integer>();
+        final Deque<BuildNode> treelets = new ArrayDeque<BuildNode>();
+        treelets.push(top);
+        while (!treelets.isEmpty()) {
+            final ArrayDeque<BuildNode> queue = new ArrayDeque<BuildNode>();
+            queue.add(treelets.pop());
+            int n = 0;
+            while (!queue.isEmpty() && n < TREELET) {
+                final BuildNode node = queue.poll();
+                index.put(node, order.size());
+                order.add(node);
+                n++;
+                for (final BuildNode child : new BuildNode[] { node.left, node.right }) {
+                    if (child != null && !child.isLeaf()) {
+                        queue.add(child);
+                    }
+                }
+            }
+            // the rest of the frontier starts new treelets, in depth first order
+            final List<BuildNode> rest = new ArrayList<BuildNode>(queue);
+            for (int i = rest.size() - 1; i >= 0; i--) {
+                treelets.push(rest.get(i));
+            }
+        }
+
+        nodes = new int[NODE_INTS * order.size()];
+        for (int i = 0; i < order.size(); i++) {
+            final BuildNode node = order.get(i);
+            final int base = NODE_INTS * i;
+            final float[] min = { node.minX, node.minY, node.minZ };
+            final float[] max = { node.maxX, node.maxY, node.maxZ };
+            final float[] scale = new float[3];
+            for (int k = 0; k < 3; k++) {
+                scale[k] = (max[k] - min[k]) / QMAX;
+                while (min[k] + QMAX * scale[k] < max[k]) {
+                    scale[k] = Math.nextUp(scale[k]);
+                }
+                nodes[base + k] = Float.floatToRawIntBits(min[k]);
+                nodes[base + 3 + k] = Float.floatToRawIntBits(scale[k]);
+            }
+            final BuildNode[] children = { node.left, node.right };
+            for (int c = 0; c < 2; c++) {
+                final BuildNode child = children[c];
+                if (child == null) {
+                    nodes[base + 12 + c] = -1;
+                    continue;
+                }
+                nodes[base + 6 + 3 * c] = quantize(min[0], scale[0], child.minX, child.maxX);
+                nodes[base + 7 + 3 * c] = quantize(min[1], scale[1], child.minY, child.maxY);
+                nodes[base + 8 + 3 * c] = quantize(min[2], scale[2], child.minZ, child.maxZ);
+                if (child.isLeaf()) {
+                    nodes[base + 12 + c] = child.first;
+                    nodes[base + 14 + c] = child.count;
+                } else {
+                    nodes[base + 12 + c] = index.get(child);
+                    nodes[base + 14 + c] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Quantizes the interval [lo, hi] to 16 bit steps of the given scale
+     * starting at min, rounding outwards so that the decoded interval
+     * contains the original one
+     */
+    private static int quantize(final float min, final float scale, final float lo, final float hi) {
+        if (!(scale > 0)) {
+            return 0;
+        }
+        int qlo = (int) Math.max(0, Math.min(QMAX, Math.floor((lo - min) / scale)));
+        while (qlo > 0 && decode(min, scale, qlo) > lo) {
+            qlo--;
+        }
+        int qhi = (int) Math.max(0, Math.min(QMAX, Math.ceil((hi - min) / scale)));
+        while (qhi < QMAX && decode(min, scale, qhi) < hi) {
+            qhi++;
+        }
+        return qlo << 16 | qhi;
+    }
+
+    private static float decode(final float min, final float scale, final int q) {
+        return min + q * scale;
+    }
+
+    private void ensureBuilt() {
+        if (!built) {
+            synchronized (this) {
+                if (!built) {
+                    build();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Hit hit(final Ray ray, final Obj obj, final float tMin, final float tMax) {
+        return hitUnbounded(unbounded, ray, tMin, tMax, traverse(ray, tMin, tMax));
+    }
+
+    /**
+     * Returns the nearest hit among the objects with finite bounds
+     */
+    private Hit traverse(final Ray ray, final float tMin, final float tMax) {
+        ensureBuilt();
+        TraversalStats.countNode();
+        if (nodes.length == 0 || !boundingBox.hit(ray, tMin, tMax).hits()) {
+            return Hit.No.get();
+        }
+
+        final Point base = ray.base();
+        final float ox = base.x(), oy = base.y(), oz = base.z();
+        final float ix = ray.invDir().x(), iy = ray.invDir().y(), iz = ray.invDir().z();
+        final int[] n = nodes;
+        final int[] stack = new int[depth + 1];
+        final float[] stackT = new float[depth + 1];
+        int sp = 0;
+        int node = 0;
+
+        Hit nearest = Hit.No.get();
+        float closest = tMax;
+        while (true) {
+            final int b = NODE_INTS * node;
+            final float mx = Float.intBitsToFloat(n[b]), my = Float.intBitsToFloat(n[b + 1]);
+            final float mz = Float.intBitsToFloat(n[b + 2]);
+            final float sx = Float.intBitsToFloat(n[b + 3]), sy = Float.intBitsToFloat(n[b + 4]);
+            final float sz = Float.intBitsToFloat(n[b + 5]);
+
+            int next = -1, far = -1;
+            float nextT = 0, farT = 0;
+            for (int c = 0; c < 2; c++) {
+                final int ref = n[b + 12 + c];
+                if (ref < 0) {
+                    continue;
+                }
+                final int qx = n[b + 6 + 3 * c], qy = n[b + 7 + 3 * c], qz = n[b + 8 + 3 * c];
+                final float t = enter(decode(mx, sx, qx >>> 16), decode(mx, sx, qx & QMAX), ox, ix,
+                        decode(my, sy, qy >>> 16), decode(my, sy, qy & QMAX), oy, iy,
+                        decode(mz, sz, qz >>> 16), decode(mz, sz, qz & QMAX), oz, iz, tMin, closest);
+                if (!(t <= closest)) {
+                    continue;
+                }
+                final int count = n[b + 14 + c];
+                if (count > 0) {
+                    for (int k = ref; k < ref + count; k++) {
+                        TraversalStats.countPrimitive();
+                        final Hit hit = objects[k].hit(ray, objects[k], tMin, closest);
+                        if (hit.hits() && hit.getParameter() < closest) {
+                            closest = hit.getParameter();
+                            nearest = hit;
+                        }
+                    }
+                } else if (next < 0) {
+                    next = ref;
+                    nextT = t;
+                } else if (t < nextT) {
+                    far = next;
+                    farT = nextT;
+                    next = ref;
+                    nextT = t;
+                } else {
+                    far = ref;
+                    farT = t;
+                }
+            }
+
+            if (far >= 0 && farT <= closest) {
+                stack[sp] = far;
+                stackT[sp++] = farT;
+            }
+            if (next >= 0 && nextT <= closest) {
+                TraversalStats.countNode();
+                node = next;
+                continue;
+            }
+            // pop the next subtree which may still contain a closer hit
+            node = -1;
+            while (sp > 0) {
+                sp--;
+                if (stackT[sp] <= closest) {
+                    node = stack[sp];
+                    break;
+                }
+            }
+            if (node < 0) {
+                final List<float[]> log = recorded;
+                if (log != null && log.size() < MAX_RECORDED) {
+                    log.add(new float[] { ox, oy, oz, ix, iy, iz, tMin, closest });
+                }
+                return nearest;
+            }
+            TraversalStats.countNode();
+        }
+    }
+
+    /**
+     * Returns the distance at which the ray enters the box within [tmin,
+     * tmax], or NaN if it misses the box (so that every comparison fails)
+     */
+    private static float enter(final float x0, final float x1, final float ox, final float ix,
+            final float y0, final float y1, final float oy, final float iy,
+            final float z0, final float z1, final float oz, final float iz, float tmin, float tmax) {
+        float a = (x0 - ox) * ix, c = (x1 - ox) * ix;
+        if (ix < 0) {
+            final float t = a;
+            a = c;
+            c = t;
+        }
+        if (a > tmin) tmin = a;
+        if (c < tmax) tmax = c;
+        a = (y0 - oy) * iy;
+        c = (y1 - oy) * iy;
+        if (iy < 0) {
+            final float t = a;
+            a = c;
+            c = t;
+        }
+        if (a > tmin) tmin = a;
+        if (c < tmax) tmax = c;
+        a = (z0 - oz) * iz;
+        c = (z1 - oz) * iz;
+        if (iz < 0) {
+            final float t = a;
+            a = c;
+            c = t;
+        }
+        if (a > tmin) tmin = a;
+        if (c < tmax) tmax = c;
+        return tmin <= tmax ? tmin : Float.NaN;
+    }
+}
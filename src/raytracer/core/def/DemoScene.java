@@ -0,0 +1,116 @@
+package raytracer.core.def;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import raytracer.core.Camera;
+import raytracer.core.LightSource;
+import raytracer.core.OBJReader;
+import raytracer.core.Obj;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Scene;
+import raytracer.core.SceneFactory;
+import raytracer.core.Shader;
+import raytracer.geom.GeomFactory;
+import raytracer.geom.Primitive;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Vec3;
+import raytracer.shade.ShaderCompiler;
+import raytracer.shade.ShaderFactory;
+import raytracer.shade.SingleColor;
+
+/**
+ * The demo scene shown by {@link Main}: a checkerboard plane, a triangle, two
+ * spheres and the bunny model. All shaders are compiled with
+ * {@link ShaderCompiler}.
+ */
+public class DemoScene implements SceneFactory {
+
+	/**
+	 * Creates the demo scene
+	 *
+	 * @param args
+	 *            Optionally the path of the OBJ model to use instead of the
+	 *            bunny
+	 */
+	@Override
+	public Scene create(final String[] args) throws IOException {
+		final boolean implementedPlane        = true; // TODO implement Plane
+		final boolean implementedCheckerBoard = true; // TODO implement CheckerBoard
+		final boolean implementedSphere       = true; // TODO implement Sphere
+		final boolean implementedPhong        = true; // TODO implement Phong
+		final boolean implementedOBJReader    = true; // TODO implement OBJReader
+		final boolean implementedBVH          = true; // TODO implement BVH
+		final LightSource ls      = new PointLightSource(new Point(-10, 10, -10), Color.WHITE);
+		final Color       ambient = Color.WHITE.scale(0.05f);
+		final Camera      cam     = new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, new Vec3(0, 5, 0), 3, 4, 3);
+		// the plane has infinite bounds, the hierarchy tests it after its traversal
+		final BVH         bvh     = implementedBVH ? new BVH() : null;
+		final Accelerator accel   = bvh != null ? bvh : new SimpleAccelerator();
+
+		{
+			final Primitive tri      = GeomFactory.createTriangle(new Point(-3, .5f, -1.5f), new Point(-1, 2.5f, -1.5f), new Point(1, .5f, -1.5f));
+			final Shader    yellow   = new SingleColor(Color.YELLOW);
+			final Obj       triangle = new StandardObj(tri, ShaderCompiler.compile(yellow));
+			accel.add(triangle);
+		}
+
+		if (implementedPlane) {
+			final Primitive plane    = GeomFactory.createPlane(Vec3.Y, Point.ORIGIN);
+			final Shader    black    = new SingleColor(Color.BLACK);
+			final Shader    white    = new SingleColor(Color.WHITE);
+			final Shader    shader   = implementedCheckerBoard ? ShaderFactory.createCheckerBoard(black, white, 2f) : white;
+			final Obj       triangle = new StandardObj(plane, ShaderCompiler.compile(shader));
+			accel.add(triangle);
+		}
+
+		if (implementedSphere) {
+			{
+				final Primitive prim   = GeomFactory.createSphere(new Point(0, 1, 0), 1);
+				final Shader    blue   = new SingleColor(Color.BLUE);
+				final Shader    shader = implementedPhong ? ShaderFactory.createPhong(blue, ambient, 0.4f, 1.0f, 15) : blue;
+				final Obj       sphere = new StandardObj(prim, ShaderCompiler.compile(shader));
+				accel.add(sphere);
+			}
+
+			{
+				final Primitive prim   = GeomFactory.createSphere(new Point(1, 1.3f, 0), 1);
+				final Shader    red    = new SingleColor(Color.RED);
+				final Shader    shader = implementedPhong ? ShaderFactory.createPhong(red, ambient, 0.4f, 1.0f, 15) : red;
+				final Obj       sphere = new StandardObj(prim, ShaderCompiler.compile(shader));
+				accel.add(sphere);
+			}
+		}
+
+		if (implementedOBJReader) {
+			final String filename;
+			final float  scale;
+			if (args.length > 0) {
+				filename = args[0];
+				scale    = 25;
+			} else if (implementedBVH) {
+				filename = "obj/bunny.obj";
+				scale    = 25;
+			} else {
+				filename = "obj/pyramid.obj";
+				scale    = 1;
+			}
+
+			final Shader green  = new SingleColor(Color.GREEN);
+			final Shader shader = implementedPhong ? ShaderFactory.createPhong(green, ambient, 1.f, .5f, 50) : green;
+			OBJReader.read(filename, accel, ShaderCompiler.compile(shader), scale, new Vec3(-3, 0, 0));
+		}
+
+		if (bvh != null) {
+			bvh.buildBVH();
+		}
+
+		final List<LightSource> lights = new ArrayList<LightSource>();
+		lights.add(ls);
+
+		return new StandardScene(cam, lights, accel);
+	}
+
+}
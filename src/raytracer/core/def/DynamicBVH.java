@@ -0,0 +1,624 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import raytracer.core.Hit;
+import raytracer.core.Obj;
+import raytracer.core.TraversalStats;
+import raytracer.geom.BBox;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+
+/**
+ * A bounding volume hierarchy which is changed in place: objects can be added
+ * and removed at any time, and an edit costs a few microseconds instead of a
+ * rebuild of the whole hierarchy. Every leaf holds a single object.
+ *
+ * A new object becomes the sibling of the node for which the surface area
+ * added to the hierarchy is smallest. That node is found with a branch and
+ * bound search from the root (Bittner, Hapala and Havran, "Incremental BVH
+ * construction for ray tracing"). The ancestors of an inserted or removed
+ * leaf are refitted, and rotated where this shrinks a child (Kensler, "Tree
+ * rotations for improving bounding volume hierarchies").
+ *
+ * Incremental edits slowly degrade the hierarchy. Its surface area heuristic
+ * cost is tracked, and once it exceeds the cost after the last full build by
+ * the rebuild threshold, the hierarchy is rebuilt with {@link SAHBuilder} in
+ * the background. Edits made in the meantime are replayed on the new
+ * hierarchy, which replaces the old one at the next edit or trace.
+ *
+ * Edits must not overlap with tracing. Objects with infinite bounds, such as
+ * planes, are kept out of the hierarchy and tested after its traversal.
+ */
+public class DynamicBVH extends Accelerator {
+
+    /** The default relative increase of the cost which triggers a rebuild */
+    public static final float DEFAULT_REBUILD_THRESHOLD = 0.25f;
+    /** Hierarchies with fewer objects are not rebuilt in the background */
+    public static final int MIN_REBUILD_SIZE = 64;
+
+    private final float threshold;
+    private volatile Hierarchy current = new Hierarchy();
+    /** Objects with infinite bounds, tested after the traversal */
+    private final List<Obj> unbounded = new ArrayList<Obj>();
+    /** The cost after the last full build */
+    private float baseCost = 0;
+    private volatile Future<Hierarchy> rebuild = null;
+    /** The edits since the snapshot of the running rebuild, true for additions */
+    private final List<Obj> journal = new ArrayList<Obj>();
+    private final List<Boolean> journalAdded = new ArrayList<Boolean>();
+
+    /**
+     * Creates an empty hierarchy rebuilt at {@link #DEFAULT_REBUILD_THRESHOLD}
+     */
+    public DynamicBVH() {
+        this(DEFAULT_REBUILD_THRESHOLD);
+    }
+
+    /**
+     * Creates an empty hierarchy
+     *
+     * @param threshold
+     *            The relative increase of the cost after which the hierarchy
+     *            is rebuilt in the background, infinity to never rebuild it
+     * @throws IllegalArgumentException
+     *             If the threshold is negative or NaN
+     */
+    public DynamicBVH(final float threshold) {
+        if (!(threshold >= 0)) {
+            throw new IllegalArgumentException();
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * A node; leaves have no children and reference their object
+     */
+    private static final class Node {
+        float minX, minY, minZ, maxX, maxY, maxZ;
+        Node parent, left, right;
+        Obj obj;
+
+        boolean isLeaf() {
+            return left == null;
+        }
+
+        float area() {
+            final float ex = maxX - minX, ey = maxY - minY, ez = maxZ - minZ;
+            return ex * ey + ey * ez + ez * ex;
+        }
+
+        /**
+         * Returns half the surface area of the union with the other node
+         */
+        float unionArea(final Node o) {
+            final float ex = Math.max(maxX, o.maxX) - Math.min(minX, o.minX);
+            final float ey = Math.max(maxY, o.maxY) - Math.min(minY, o.minY);
+            final float ez = Math.max(maxZ, o.maxZ) - Math.min(minZ, o.minZ);
+            return ex * ey + ey * ez + ez * ex;
+        }
+
+        void replace(final Node child, final Node by) {
+            if (left == child) {
+                left = by;
+            } else {
+                right = by;
+            }
+        }
+    }
+
+    /**
+     * A tree of nodes with the leaf of every object and the summed areas of
+     * its nodes, so that its cost is known after every edit
+     */
+    private static final class Hierarchy {
+        Node root = null;
+        final Map<Obj, Node> leaves = new IdentityHashMap<Obj, Node>();
+        double innerArea = 0, leafArea = 0;
+        /** Reused by the search for the best sibling */
+        private Node[] stack = new Node[64];
+        private float[] stackCost = new float[64];
+
+        float cost() {
+            final float area = root == null ? 0 : root.area();
+            return area > 0 ? (float) ((innerArea * SAHBuilder.TRAVERSAL_COST + leafArea) / area) : 0;
+        }
+
+        /**
+         * Inserts the leaf of an object, returns false if the object already
+         * has one
+         */
+        boolean insert(final Obj obj) {
+            if (leaves.containsKey(obj)) {
+                return false;
+            }
+            final Node leaf = new Node();
+            final BBox b = obj.bbox();
+            leaf.obj = obj;
+            leaf.minX = b.getMin().x();
+            leaf.minY = b.getMin().y();
+            leaf.minZ = b.getMin().z();
+            leaf.maxX = b.getMax().x();
+            leaf.maxY = b.getMax().y();
+            leaf.maxZ = b.getMax().z();
+            leaves.put(obj, leaf);
+            leafArea += leaf.area();
+            if (root == null) {
+                root = leaf;
+                return true;
+            }
+
+            // the sibling adding the least area: its new parent's area plus
+            // the growth of all its ancestors, which bounds the cost of any
+            // node below it from below
+            final float leafOnly = leaf.area();
+            Node best = root;
+            float bestCost = root.unionArea(leaf);
+            int sp = 0;
+            stack[sp] = root;
+            stackCost[sp++] = 0;
+            while (sp > 0) {
+                final Node n = stack[--sp];
+                final float inherited = stackCost[sp];
+                if (inherited + leafOnly >= bestCost) {
+                    continue;
+                }
+                final float direct = n.unionArea(leaf);
+                if (direct + inherited < bestCost) {
+                    bestCost = direct + inherited;
+                    best = n;
+                }
+                if (!n.isLeaf()) {
+                    final float below = inherited + direct - n.area();
+                    if (below + leafOnly < bestCost) {
+                        if (sp + 2 > stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * stack.length);
+                            stackCost = Arrays.copyOf(stackCost, 2 * stackCost.length);
+                        }
+                        stack[sp] = n.left;
+                        stackCost[sp++] = below;
+                        stack[sp] = n.right;
+                        stackCost[sp++] = below;
+                    }
+                }
+            }
+
+            final Node parent = new Node();
+            final Node above = best.parent;
+            parent.parent = above;
+            parent.left = best;
+            parent.right = leaf;
+            best.parent = parent;
+            leaf.parent = parent;
+            if (above == null) {
+                root = parent;
+            } else {
+                above.replace(best, parent);
+            }
+            refit(parent);
+            return true;
+        }
+
+        boolean remove(final Obj obj) {
+            final Node leaf = leaves.remove(obj);
+            if (leaf == null) {
+                return false;
+            }
+            leafArea -= leaf.area();
+            final Node parent = leaf.parent;
+            if (parent == null) {
+                root = null;
+                innerArea = leafArea = 0;
+                return true;
+            }
+            final Node sibling = parent.left == leaf ? parent.right : parent.left;
+            final Node above = parent.parent;
+            innerArea -= parent.area();
+            sibling.parent = above;
+            if (above == null) {
+                root = sibling;
+            } else {
+                above.replace(parent, sibling);
+            }
+            refit(above);
+            return true;
+        }
+
+        /**
+         * Refits the node and its ancestors, rotating each of them
+         */
+        private void refit(final Node from) {
+            for (Node n = from; n != null; n = n.parent) {
+                fit(n);
+                rotate(n);
+            }
+        }
+
+        /**
+         * Sets the bounds of an inner node to the union of its children
+         */
+        private void fit(final Node n) {
+            final float before = n.area();
+            n.minX = Math.min(n.left.minX, n.right.minX);
+            n.minY = Math.min(n.left.minY, n.right.minY);
+            n.minZ = Math.min(n.left.minZ, n.right.minZ);
+            n.maxX = Math.max(n.left.maxX, n.right.maxX);
+            n.maxY = Math.max(n.left.maxY, n.right.maxY);
+            n.maxZ = Math.max(n.left.maxZ, n.right.maxZ);
+            innerArea += n.area() - before;
+        }
+
+        /**
+         * Swaps a child of the node with a grandchild below its other child
+         * if this shrinks that other child the most
+         */
+        private void rotate(final Node a) {
+            final Node b = a.left, c = a.right;
+            Node child = null, grandchild = null;
+            float best = 0;
+            if (!c.isLeaf()) {
+                final float area = c.area();
+                if (b.unionArea(c.right) - area < best) {
+                    best = b.unionArea(c.right) - area;
+                    child = b;
+                    grandchild = c.left;
+                }
+                if (b.unionArea(c.left) - area < best) {
+                    best = b.unionArea(c.left) - area;
+                    child = b;
+                    grandchild = c.right;
+                }
+            }
+            if (!b.isLeaf()) {
+                final float area = b.area();
+                if (c.unionArea(b.right) - area < best) {
+                    best = c.unionArea(b.right) - area;
+                    child = c;
+                    grandchild = b.left;
+                }
+                if (c.unionArea(b.left) - area < best) {
+                    child = c;
+                    grandchild = b.right;
+                }
+            }
+            if (child == null) {
+                return;
+            }
+            final Node other = grandchild.parent;
+            a.replace(child, grandchild);
+            other.replace(grandchild, child);
+            grandchild.parent = a;
+            child.parent = other;
+            fit(other);
+        }
+
+        /**
+         * Creates a hierarchy with the surface area heuristic
+         */
+        static Hierarchy build(final List<Obj> objects) {
+            final Hierarchy h = new Hierarchy();
+            final SAHBuilder builder = new SAHBuilder(objects);
+            final BuildNode root = builder.build(1);
+            if (root != null) {
+                h.root = h.convert(root, builder.getObjects(), root.first, root.count);
+            }
+            return h;
+        }
+
+        /**
+         * Converts a built node, splitting leaves of several objects by count
+         */
+        private Node convert(final BuildNode node, final Obj[] objects, final int first, final int count) {
+            final Node n = new Node();
+            if (node != null && !node.isLeaf()) {
+                n.left = convert(node.left, objects, node.left.first, node.left.count);
+                n.right = convert(node.right, objects, node.right.first, node.right.count);
+            } else if (count > 1) {
+                n.left = convert(null, objects, first, count / 2);
+                n.right = convert(null, objects, first + count / 2, count - count / 2);
+            } else {
+                final BBox b = objects[first].bbox();
+                n.obj = objects[first];
+                n.minX = b.getMin().x();
+                n.minY = b.getMin().y();
+                n.minZ = b.getMin().z();
+                n.maxX = b.getMax().x();
+                n.maxY = b.getMax().y();
+                n.maxZ = b.getMax().z();
+                leaves.put(n.obj, n);
+                leafArea += n.area();
+                return n;
+            }
+            n.left.parent = n;
+            n.right.parent = n;
+            fit(n);
+            return n;
+        }
+    }
+
+    @Override
+    public BBox bbox() {
+        if (!unbounded.isEmpty()) {
+            return BBox.INF;
+        }
+        final Node root = current.root;
+        return root == null ? BBox.EMPTY
+                : BBox.create(new Point(root.minX, root.minY, root.minZ), new Point(root.maxX, root.maxY, root.maxZ));
+    }
+
+    /**
+     * Inserts an object into the hierarchy
+     *
+     * @param prim
+     *             The object to add
+     * @throws IllegalArgumentException
+     *             If the object is already contained
+     */
+    @Override
+    public synchronized void add(final Obj prim) {
+        if (!isBounded(prim)) {
+            unbounded.add(prim);
+            return;
+        }
+        install();
+        if (!current.insert(prim)) {
+            throw new IllegalArgumentException();
+        }
+        edited(prim, true);
+    }
+
+    /**
+     * Removes an object from the hierarchy
+     *
+     * @param prim
+     *             The object to remove
+     * @return True if the object was contained
+     */
+    @Override
+    public synchronized boolean remove(final Obj prim) {
+        if (!isBounded(prim) && unbounded.remove(prim)) {
+            return true;
+        }
+        install();
+        if (!current.remove(prim)) {
+            return false;
+        }
+        edited(prim, false);
+        return true;
+    }
+
+    /**
+     * Rebuilds the hierarchy with the surface area heuristic right away,
+     * e.g. after a scene has been loaded object by object
+     */
+    public synchronized void rebuild() {
+        if (rebuild != null) {
+            rebuild.cancel(false);
+            rebuild = null;
+            journal.clear();
+            journalAdded.clear();
+        }
+        current = Hierarchy.build(new ArrayList<Obj>(current.leaves.keySet()));
+        baseCost = current.cost();
+    }
+
+    /**
+     * Waits for a running background rebuild and installs its result
+     *
+     * @throws InterruptedException
+     *             If the thread was interrupted while waiting
+     */
+    public void awaitRebuild() throws InterruptedException {
+        final Future<Hierarchy> running = rebuild;
+        if (running != null) {
+            try {
+                running.get();
+            } catch (final ExecutionException e) {
+                // installing discards the failed rebuild
+            }
+            synchronized (this) {
+                install();
+            }
+        }
+    }
+
+    /**
+     * Returns the surface area heuristic cost of the hierarchy relative to
+     * the area of its root
+     *
+     * @return The current cost
+     */
+    public float getCost() {
+        return current.cost();
+    }
+
+    /**
+     * Returns the number of objects in the hierarchy
+     *
+     * @return The number of objects with finite bounds
+     */
+    public int size() {
+        return current.leaves.size();
+    }
+
+    /**
+     * Logs an edit for a running rebuild and starts a rebuild if the
+     * hierarchy has become too expensive
+     */
+    private void edited(final Obj prim, final boolean added) {
+        if (rebuild != null) {
+            journal.add(prim);
+            journalAdded.add(added);
+            return;
+        }
+        final Hierarchy h = current;
+        if (h.leaves.size() < MIN_REBUILD_SIZE) {
+            baseCost = h.cost();
+        } else if (h.cost() > baseCost * (1 + threshold)) {
+            final List<Obj> snapshot = new ArrayList<Obj>(h.leaves.keySet());
+            rebuild = ForkJoinPool.commonPool().submit(new Callable<Hierarchy>() {
+                @Override
+                public Hierarchy call() {
+                    return Hierarchy.build(snapshot);
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the hierarchy by the result of a finished rebuild, after
+     * replaying the edits made since its snapshot
+     */
+    private void install() {
+        final Future<Hierarchy> done = rebuild;
+        if (done == null || !done.isDone()) {
+            return;
+        }
+        rebuild = null;
+        Hierarchy h;
+        try {
+            h = done.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            h = null;
+        } catch (final ExecutionException e) {
+            h = null;
+        }
+        if (h != null) {
+            final float built = h.cost();
+            for (int i = 0; i < journal.size(); i++) {
+                if (journalAdded.get(i)) {
+                    h.insert(journal.get(i));
+                } else {
+                    h.remove(journal.get(i));
+                }
+            }
+            current = h;
+            baseCost = built;
+        }
+        journal.clear();
+        journalAdded.clear();
+    }
+
+    @Override
+    public Hit hit(final Ray ray, final Obj obj, final float tMin, final float tMax) {
+        final Future<Hierarchy> done = rebuild;
+        if (done != null && done.isDone()) {
+            synchronized (this) {
+                install();
+            }
+        }
+        return hitUnbounded(unbounded, ray, tMin, tMax, traverse(current.root, ray, tMin, tMax));
+    }
+
+    /**
+     * Returns the nearest hit among the objects with finite bounds
+     */
+    private static Hit traverse(final Node root, final Ray ray, final float tMin, final float tMax) {
+        TraversalStats.countNode();
+        final Point base = ray.base();
+        final float ox = base.x(), oy = base.y(), oz = base.z();
+        final float ix = ray.invDir().x(), iy = ray.invDir().y(), iz = ray.invDir().z();
+        if (root == null || !(enter(root, ox, oy, oz, ix, iy, iz, tMin, tMax) <= tMax)) {
+            return Hit.No.get();
+        }
+
+        Node[] stack = new Node[64];
+        float[] stackT = new float[64];
+        int sp = 0;
+        Node node = root;
+        Hit nearest = Hit.No.get();
+        float closest = tMax;
+        while (true) {
+            if (node.isLeaf()) {
+                TraversalStats.countPrimitive();
+                final Hit hit = node.obj.hit(ray, node.obj, tMin, closest);
+                if (hit.hits() && hit.getParameter() < closest) {
+                    closest = hit.getParameter();
+                    nearest = hit;
+                }
+            } else {
+                Node near = node.left, far = node.right;
+                float nearT = enter(near, ox, oy, oz, ix, iy, iz, tMin, closest);
+                float farT = enter(far, ox, oy, oz, ix, iy, iz, tMin, closest);
+                if (farT < nearT || !(nearT <= closest)) {
+                    final Node n = near;
+                    near = far;
+                    far = n;
+                    final float t = nearT;
+                    nearT = farT;
+                    farT = t;
+                }
+                if (nearT <= closest) {
+                    if (farT <= closest) {
+                        if (sp == stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * sp);
+                            stackT = Arrays.copyOf(stackT, 2 * sp);
+                        }
+                        stack[sp] = far;
+                        stackT[sp++] = farT;
+                    }
+                    TraversalStats.countNode();
+                    node = near;
+                    continue;
+                }
+            }
+            // pop the next subtree which may still contain a closer hit
+            node = null;
+            while (sp > 0) {
+                sp--;
+                if (stackT[sp] <= closest) {
+                    node = stack[sp];
+                    break;
+                }
+            }
+            if (node == null) {
+                return nearest;
+            }
+            TraversalStats.countNode();
+        }
+    }
+
+    /**
+     * Returns the distance at which the ray enters the bounds of the node
+     * within [tmin, tmax], or NaN if it misses them
+     */
+    private static float enter(final Node n, final float ox, final float oy, final float oz, final float ix,
+            final float iy, final float iz, float tmin, float tmax) {
+        float a = (n.minX - ox) * ix, c = (n.maxX - ox) * ix;
+        if (ix < 0) {
+            final float t = a;
+            a = c;
+            c = t;
+        }
+        if (a > tmin) tmin = a;
+        if (c < tmax) tmax = c;
+        a = (n.minY - oy) * iy;
+        c = (n.maxY - oy) * iy;
+        if (iy < 0) {
+            final float t = a;
+            a = c;
+            c = t;
+        }
+        if (a > tmin) tmin = a;
+        if (c < tmax) tmax = c;
+        a = (n.minZ - oz) * iz;
+        c = (n.maxZ - oz) * iz;
+        if (iz < 0) {
+            final float t = a;
+            a = c;
+            c = t;
+        }
+        if (a > tmin) tmin = a;
+        if (c < tmax) tmax = c;
+        return tmin <= tmax ? tmin : Float.NaN;
+    }
+}
@@ -0,0 +1,175 @@
+package raytracer.core.def;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import raytracer.core.Camera;
+import raytracer.core.LightSampler;
+import raytracer.core.LightSource;
+import raytracer.core.Obj;
+import raytracer.geom.BBox;
+import raytracer.shade.ShadowCache;
+
+/**
+ * A scene whose objects and lights are edited between frames. Every edit
+ * reports the world space region it affects to the registered listeners,
+ * e.g. an {@link IncrementalRenderer} re-rendering only the tiles whose rays
+ * pass through that region.
+ *
+ * Objects are added to and removed from the acceleration structure, which
+ * therefore has to support {@link Accelerator#remove(Obj)}; a
+ * {@link DynamicBVH} does this in place, while structures built as a whole
+ * are built again at the next trace. Edits must not overlap with rendering.
+ */
+public class EditableScene extends StandardScene {
+
+	/**
+	 * Receives the changes of a scene
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when objects inside the given region were added or removed
+		 *
+		 * @param region
+		 *            The bounds of the changed objects
+		 */
+		void regionChanged(BBox region);
+
+		/**
+		 * Called when a light source was added or removed
+		 *
+		 * @param light
+		 *            The changed light source
+		 */
+		void lightChanged(LightSource light);
+	}
+
+	private final Accelerator accel;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Creates a new editable scene
+	 *
+	 * @param cam
+	 *            The camera to use
+	 * @param lights
+	 *            The lights to use, edited by
+	 *            {@link #addLight(LightSource)} and
+	 *            {@link #removeLight(LightSource)}
+	 * @param accel
+	 *            The acceleration structure holding the objects
+	 */
+	public EditableScene(final Camera cam, final Collection<LightSource> lights, final Accelerator accel) {
+		super(cam, lights, accel);
+		this.accel = accel;
+	}
+
+	/**
+	 * Registers a listener for the changes of the scene
+	 *
+	 * @param listener
+	 *            The listener to add
+	 */
+	public void addListener(final Listener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException();
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a listener
+	 *
+	 * @param listener
+	 *            The listener to remove
+	 */
+	public void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Adds an object to the scene
+	 *
+	 * @param obj
+	 *            The object to add
+	 */
+	public void add(final Obj obj) {
+		accel.add(obj);
+		changed(obj.bbox());
+	}
+
+	/**
+	 * Removes an object from the scene
+	 *
+	 * @param obj
+	 *            The object to remove
+	 * @return True if the object was part of the scene
+	 */
+	public boolean remove(final Obj obj) {
+		if (!accel.remove(obj))
+			return false;
+		ShadowCache.invalidate();
+		changed(obj.bbox());
+		return true;
+	}
+
+	/**
+	 * Replaces an object, e.g. by a moved copy of it. Both the old and the
+	 * new bounds are reported as changed.
+	 *
+	 * @param old
+	 *            The object to remove
+	 * @param obj
+	 *            The object to add in its place
+	 * @return True if the old object was part of the scene
+	 */
+	public boolean replace(final Obj old, final Obj obj) {
+		final boolean removed = remove(old);
+		add(obj);
+		return removed;
+	}
+
+	/**
+	 * Adds a light source to the scene
+	 *
+	 * @param light
+	 *            The light source to add
+	 */
+	public void addLight(final LightSource light) {
+		getLightSources().add(light);
+		lightsChanged(light);
+	}
+
+	/**
+	 * Removes a light source from the scene
+	 *
+	 * @param light
+	 *            The light source to remove
+	 * @return True if the light source was part of the scene
+	 */
+	public boolean removeLight(final LightSource light) {
+		if (!getLightSources().remove(light))
+			return false;
+		ShadowCache.invalidate();
+		lightsChanged(light);
+		return true;
+	}
+
+	/**
+	 * Updates the light sampler, which may depend on the set of lights, and
+	 * notifies the listeners
+	 */
+	private void lightsChanged(final LightSource light) {
+		final LightSampler sampler = getLightSampler();
+		if (sampler != null)
+			setLightSampler(sampler.forLights(getLightSources()));
+		for (final Listener l : listeners)
+			l.lightChanged(light);
+	}
+
+	private void changed(final BBox region) {
+		for (final Listener l : listeners)
+			l.regionChanged(region);
+	}
+}
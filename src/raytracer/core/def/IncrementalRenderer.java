@@ -0,0 +1,403 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import raytracer.core.AreaLight;
+import raytracer.core.Camera;
+import raytracer.core.Hit;
+import raytracer.core.LightSampler;
+import raytracer.core.LightSource;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Renderer;
+import raytracer.core.Scene;
+import raytracer.geom.BBox;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec2;
+
+/**
+ * Keeps the tiles of a frame of an {@link EditableScene} and re-renders only
+ * the tiles which an edit can change. While a tile is rendered, the rays it
+ * traces are recorded as a footprint: the bounds of its shading points and of
+ * the end points of its secondary rays, and whether one of its secondary rays
+ * left the scene. Shadow rays are traced through {@link Scene#shadowHit(Ray)}
+ * and are covered by the light instead of their end points.
+ *
+ * An edit of the objects in a region invalidates
+ * <ul>
+ * <li>the tiles the region covers on screen, found by projecting it with the
+ * {@link PerspectiveCamera} (primary rays),</li>
+ * <li>the tiles whose footprint intersects the region (secondary rays),</li>
+ * <li>the tiles for which the region intersects the hull of the footprint and
+ * a light source (shadow rays),</li>
+ * <li>and the tiles with a secondary ray leaving the scene.</li>
+ * </ul>
+ * An edit of the lights invalidates every tile with a shading point. All
+ * other tiles are kept, so an edit costs time proportional to the part of the
+ * image it changes.
+ */
+public class IncrementalRenderer implements EditableScene.Listener {
+
+	/** The default edge length of a tile */
+	public static final int DEFAULT_TILE = 16;
+
+	private final EditableScene scene;
+	private final PerspectiveCamera cam;
+	private final Renderer renderer;
+	private final int xRes, yRes, tile, tilesX, tilesY;
+	private final int[] image;
+	private final boolean[] valid;
+	/** Per tile: bounds of the shading points and secondary rays */
+	private final float[] boxes;
+	private final boolean[] escaped;
+	private final ThreadLocal<Footprint> recording = new ThreadLocal<Footprint>();
+
+	/**
+	 * The rays of a tile while it is rendered
+	 */
+	private static final class Footprint {
+		final float[] box = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+				Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+		boolean escaped = false;
+
+		void include(final Point p) {
+			for (int k = 0; k < 3; k++) {
+				box[k] = Math.min(box[k], p.get(k));
+				box[3 + k] = Math.max(box[3 + k], p.get(k));
+			}
+		}
+	}
+
+	/**
+	 * Traces the rays of the scene and records them in the footprint of the
+	 * tile rendered by the current thread
+	 */
+	private final class Recorder implements Scene {
+
+		@Override
+		public Color getBackground() {
+			return scene.getBackground();
+		}
+
+		@Override
+		public Camera getCamera() {
+			return cam;
+		}
+
+		@Override
+		public Collection<LightSource> getLightSources() {
+			return scene.getLightSources();
+		}
+
+		@Override
+		public LightSampler getLightSampler() {
+			return scene.getLightSampler();
+		}
+
+		@Override
+		public Hit hit(final Ray ray) {
+			final Hit hit = scene.hit(ray);
+			final Footprint f = recording.get();
+			if (f == null)
+				return hit;
+			if (ray.base() == cam.getPosition()) {
+				// primary rays are covered by the projection
+				if (hit.hits())
+					f.include(hit.getPoint());
+			} else if (hit.hits()) {
+				f.include(hit.getPoint());
+			} else {
+				f.escaped = true;
+			}
+			return hit;
+		}
+
+		/**
+		 * Shadow rays are not recorded, they are covered by the lights
+		 */
+		@Override
+		public Hit shadowHit(final Ray ray) {
+			return scene.shadowHit(ray);
+		}
+	}
+
+	/**
+	 * Creates a renderer for the scene with tiles of {@link #DEFAULT_TILE}
+	 * pixels and registers it as a listener
+	 *
+	 * @param scene
+	 *            The scene to render, with a {@link PerspectiveCamera}
+	 * @param xRes
+	 *            The X resolution of the image
+	 * @param yRes
+	 *            The Y resolution of the image
+	 * @param superSample
+	 *            The amount of super sampling to use
+	 */
+	public IncrementalRenderer(final EditableScene scene, final int xRes, final int yRes, final int superSample) {
+		this(scene, xRes, yRes, superSample, DEFAULT_TILE);
+	}
+
+	/**
+	 * Creates a renderer for the scene and registers it as a listener
+	 *
+	 * @param scene
+	 *            The scene to render, with a {@link PerspectiveCamera}
+	 * @param xRes
+	 *            The X resolution of the image
+	 * @param yRes
+	 *            The Y resolution of the image
+	 * @param superSample
+	 *            The amount of super sampling to use
+	 * @param tile
+	 *            The edge length of a tile
+	 * @throws IllegalArgumentException
+	 *             If the camera of the scene is not a perspective camera or a
+	 *             size is not positive
+	 */
+	public IncrementalRenderer(final EditableScene scene, final int xRes, final int yRes, final int superSample,
+			final int tile) {
+		if (!(scene.getCamera() instanceof PerspectiveCamera) || xRes <= 0 || yRes <= 0 || tile <= 0)
+			throw new IllegalArgumentException();
+		this.scene = scene;
+		this.cam = (PerspectiveCamera) scene.getCamera();
+		this.renderer = new Renderer(new Recorder(), xRes, yRes, superSample);
+		this.xRes = xRes;
+		this.yRes = yRes;
+		this.tile = tile;
+		this.tilesX = (xRes + tile - 1) / tile;
+		this.tilesY = (yRes + tile - 1) / tile;
+		this.image = new int[xRes * yRes];
+		this.valid = new boolean[tilesX * tilesY];
+		this.boxes = new float[6 * tilesX * tilesY];
+		this.escaped = new boolean[tilesX * tilesY];
+		scene.addListener(this);
+	}
+
+	/**
+	 * Returns the renderer tracing the tiles, e.g. to set its termination
+	 * policy
+	 *
+	 * @return The renderer
+	 */
+	public Renderer getRenderer() {
+		return renderer;
+	}
+
+	/**
+	 * Renders all invalid tiles
+	 *
+	 * @param exe
+	 *            The executor running the tiles
+	 * @return The number of rendered tiles
+	 * @throws InterruptedException
+	 *             If the thread was interrupted while waiting for a tile
+	 * @throws ExecutionException
+	 *             If rendering a tile failed
+	 */
+	public synchronized int render(final ExecutorService exe) throws InterruptedException, ExecutionException {
+		final List<Future<Footprint>> futures = new ArrayList<Future<Footprint>>();
+		final List<Integer> rendered = new ArrayList<Integer>();
+		for (int t = 0; t < valid.length; t++) {
+			if (valid[t])
+				continue;
+			final int sx = (t % tilesX) * tile, sy = (t / tilesX) * tile;
+			final Callable<Renderer.Work> work = renderer.render(sx, sy, Math.min(tile, xRes - sx),
+					Math.min(tile, yRes - sy));
+			futures.add(exe.submit(new Callable<Footprint>() {
+				@Override
+				public Footprint call() throws Exception {
+					final Footprint f = new Footprint();
+					recording.set(f);
+					try {
+						final Renderer.Work w = work.call();
+						for (int j = 0; j < w.h; j++)
+							System.arraycopy(w.pixels, j * w.w, image, (w.y + j) * xRes + w.x, w.w);
+					} finally {
+						recording.remove();
+					}
+					return f;
+				}
+			}));
+			rendered.add(t);
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			final Footprint f = futures.get(i).get();
+			final int t = rendered.get(i);
+			System.arraycopy(f.box, 0, boxes, 6 * t, 6);
+			escaped[t] = f.escaped;
+			valid[t] = true;
+		}
+		return rendered.size();
+	}
+
+	/**
+	 * Returns the image, which is updated in place by
+	 * {@link #render(ExecutorService)}
+	 *
+	 * @return The pixels in row-major order
+	 */
+	public int[] getImage() {
+		return image;
+	}
+
+	/**
+	 * Returns the number of tiles of the image
+	 *
+	 * @return The number of tiles
+	 */
+	public int getTileCount() {
+		return valid.length;
+	}
+
+	/**
+	 * Returns the number of tiles which have to be rendered again
+	 *
+	 * @return The number of invalid tiles
+	 */
+	public synchronized int getInvalidCount() {
+		int n = 0;
+		for (final boolean v : valid)
+			if (!v)
+				n++;
+		return n;
+	}
+
+	/**
+	 * Invalidates all tiles, e.g. after the camera was changed
+	 */
+	public synchronized void invalidateAll() {
+		Arrays.fill(valid, false);
+	}
+
+	/**
+	 * Invalidates the tiles whose rays may pass through the region
+	 */
+	@Override
+	public synchronized void regionChanged(final BBox region) {
+		final float[] b = new float[6];
+		for (int k = 0; k < 3; k++) {
+			final float lo = region.getMin().get(k), hi = region.getMax().get(k);
+			if (!(Math.abs(lo) < Float.POSITIVE_INFINITY && Math.abs(hi) < Float.POSITIVE_INFINITY)) {
+				invalidateAll();
+				return;
+			}
+			// hit points are rounded, so a point on the region may lie just outside
+			final float eps = 1e-4f * (hi - lo + Math.abs(lo) + Math.abs(hi)) + 1e-6f;
+			b[k] = lo - eps;
+			b[3 + k] = hi + eps;
+		}
+		invalidateProjection(b);
+
+		final List<float[]> lights = new ArrayList<float[]>();
+		for (final LightSource light : scene.getLightSources())
+			lights.add(bounds(light));
+		for (int t = 0; t < valid.length; t++) {
+			if (!valid[t])
+				continue;
+			if (escaped[t]) {
+				valid[t] = false;
+				continue;
+			}
+			if (!(boxes[6 * t] <= boxes[6 * t + 3]))
+				continue; // no shading points, only background
+			if (overlaps(boxes, 6 * t, b)) {
+				valid[t] = false;
+				continue;
+			}
+			for (final float[] l : lights) {
+				if (swept(boxes, 6 * t, l, b)) {
+					valid[t] = false;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidates every tile with a shading point
+	 */
+	@Override
+	public synchronized void lightChanged(final LightSource light) {
+		for (int t = 0; t < valid.length; t++)
+			if (escaped[t] || boxes[6 * t] <= boxes[6 * t + 3])
+				valid[t] = false;
+	}
+
+	/**
+	 * Invalidates the tiles covered by the projection of the box
+	 */
+	private void invalidateProjection(final float[] b) {
+		float x0 = Float.POSITIVE_INFINITY, y0 = x0, x1 = Float.NEGATIVE_INFINITY, y1 = x1;
+		for (int c = 0; c < 8; c++) {
+			final Vec2 p = cam.project(new Point(b[(c & 1) * 3], b[1 + (c >> 1 & 1) * 3], b[2 + (c >> 2) * 3]));
+			if (p == null) {
+				// the box reaches behind the camera
+				Arrays.fill(valid, false);
+				return;
+			}
+			x0 = Math.min(x0, p.x());
+			x1 = Math.max(x1, p.x());
+			y0 = Math.min(y0, p.y());
+			y1 = Math.max(y1, p.y());
+		}
+		// a pixel samples up to half a pixel around its position
+		final int px0 = Math.max(0, (int) Math.floor(x0 * xRes - 0.5f) - 1);
+		final int px1 = Math.min(xRes - 1, (int) Math.ceil(x1 * xRes + 0.5f) + 1);
+		final int py0 = Math.max(0, (int) Math.floor(y0 * yRes - 0.5f) - 1);
+		final int py1 = Math.min(yRes - 1, (int) Math.ceil(y1 * yRes + 0.5f) + 1);
+		for (int ty = py0 / tile; ty <= py1 / tile && py0 <= py1; ty++)
+			for (int tx = px0 / tile; tx <= px1 / tile && px0 <= px1; tx++)
+				valid[ty * tilesX + tx] = false;
+	}
+
+	private static float[] bounds(final LightSource light) {
+		final BBox b = light instanceof AreaLight ? ((AreaLight) light).bbox()
+				: BBox.create(light.getLocation(), light.getLocation());
+		return new float[] { b.getMin().x(), b.getMin().y(), b.getMin().z(), b.getMax().x(), b.getMax().y(),
+				b.getMax().z() };
+	}
+
+	private static boolean overlaps(final float[] a, final int o, final float[] b) {
+		for (int k = 0; k < 3; k++)
+			if (a[o + k] > b[3 + k] || a[o + 3 + k] < b[k])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns whether the box b intersects a box moved linearly from a to the
+	 * light l. The moved boxes cover all segments from a point in a to a point
+	 * on the light, exactly so for a point light.
+	 */
+	private static boolean swept(final float[] a, final int o, final float[] l, final float[] b) {
+		float lo = 0, hi = 1;
+		for (int k = 0; k < 3 && lo <= hi; k++) {
+			// min(s) = a.min + s (l.min - a.min) <= b.max
+			final float dMin = l[k] - a[o + k], rMin = b[3 + k] - a[o + k];
+			// max(s) = a.max + s (l.max - a.max) >= b.min
+			final float dMax = l[3 + k] - a[o + 3 + k], rMax = b[k] - a[o + 3 + k];
+			if (dMin > 0)
+				hi = Math.min(hi, rMin / dMin);
+			else if (dMin < 0)
+				lo = Math.max(lo, rMin / dMin);
+			else if (rMin < 0)
+				return false;
+			if (dMax < 0)
+				hi = Math.min(hi, rMax / dMax);
+			else if (dMax > 0)
+				lo = Math.max(lo, rMax / dMax);
+			else if (rMax > 0)
+				return false;
+		}
+		return lo <= hi;
+	}
+}
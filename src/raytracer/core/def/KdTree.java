@@ -0,0 +1,403 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import raytracer.core.Hit;
+import raytracer.core.Obj;
+import raytracer.core.TraversalStats;
+import raytracer.geom.BBox;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+
+/**
+ * A kd-tree built with the surface area heuristic. Every inner node splits
+ * its box by an axis aligned plane; objects straddling the plane are listed
+ * in both children. Candidate planes are the bounds of the objects clipped
+ * to the node with {@link Obj#clip(BBox)}, so the planes are placed where the
+ * objects actually end inside the node ("perfect splits"), and splits which
+ * cut off empty space are slightly preferred.
+ *
+ * Nodes are stored in pre-order as two ints each, the below child of an
+ * inner node following it directly. The traversal visits the children front
+ * to back and stops as soon as the nearest hit lies before the next node.
+ *
+ * The tree is built by {@link #build()} before the first trace after objects
+ * were added or removed.
+ * Objects with infinite bounds, such as planes, are kept out of the tree and
+ * tested after its traversal.
+ */
+public class KdTree extends Accelerator {
+
+    /** The cost of a primitive test relative to a traversal step */
+    public static final float INTERSECTION_COST = 1.5f;
+    /** The factor applied to the cost of splits with an empty side */
+    public static final float EMPTY_BONUS = 0.8f;
+
+    private static final int LEAF = 3;
+
+    private final List<Obj> pending = new ArrayList<Obj>();
+    /** Objects with infinite bounds, tested after the traversal */
+    private final List<Obj> unbounded = new ArrayList<Obj>();
+    private BBox boundingBox = BBox.EMPTY;
+    private volatile boolean built = false;
+
+    /** Per node: leaf (count << 2 | 3) or inner (above child << 2 | axis) */
+    private int[] nodes = new int[0];
+    /** Per node: first item of a leaf or the bits of the split position */
+    private int[] data = new int[0];
+    private int nodeCount = 0, depth = 0;
+    private Obj[] items = new Obj[0];
+    private final List<Obj> itemList = new ArrayList<Obj>();
+
+    @Override
+    public BBox bbox() {
+        return unbounded.isEmpty() ? boundingBox : BBox.INF;
+    }
+
+    /**
+     * Adds an object to the tree. The tree is built again before the next
+     * trace.
+     *
+     * @param prim
+     *             The object to add
+     */
+    @Override
+    public synchronized void add(final Obj prim) {
+        if (!isBounded(prim)) {
+            unbounded.add(prim);
+            return;
+        }
+        pending.add(prim);
+        boundingBox = BBox.surround(boundingBox, prim.bbox());
+        built = false;
+    }
+
+    /**
+     * Removes an object. The tree is built again before the next trace.
+     *
+     * @param prim
+     *             The object to remove
+     * @return True if the object was contained
+     */
+    @Override
+    public synchronized boolean remove(final Obj prim) {
+        if (!isBounded(prim)) {
+            return unbounded.remove(prim);
+        }
+        if (!pending.remove(prim)) {
+            return false;
+        }
+        boundingBox = surround(pending);
+        built = false;
+        return true;
+    }
+
+    /**
+     * Returns the number of nodes
+     *
+     * @return The number of nodes
+     */
+    public int getNodeCount() {
+        ensureBuilt();
+        return nodeCount;
+    }
+
+    /**
+     * Builds the tree over all added objects
+     */
+    public synchronized void build() {
+        final int n = pending.size();
+        nodes = new int[64];
+        data = new int[64];
+        nodeCount = 0;
+        depth = 0;
+        itemList.clear();
+        if (n > 0) {
+            final int[] ids = new int[n];
+            final float[] bounds = new float[6 * n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = i;
+                final BBox b = pending.get(i).bbox();
+                for (int k = 0; k < 3; k++) {
+                    bounds[6 * i + k] = b.getMin().get(k);
+                    bounds[6 * i + 3 + k] = b.getMax().get(k);
+                }
+            }
+            final float[] box = new float[6];
+            for (int k = 0; k < 3; k++) {
+                box[k] = boundingBox.getMin().get(k);
+                box[3 + k] = boundingBox.getMax().get(k);
+            }
+            final int maxDepth = (int) (8 + 1.3 * (Math.log(n) / Math.log(2)));
+            build(ids, bounds, n, box, 0, maxDepth);
+        }
+        items = itemList.toArray(new Obj[itemList.size()]);
+        itemList.clear();
+        built = true;
+    }
+
+    private int allocate() {
+        if (nodeCount == nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * nodeCount);
+            data = Arrays.copyOf(data, 2 * nodeCount);
+        }
+        return nodeCount++;
+    }
+
+    private void leaf(final int[] ids, final int n) {
+        final int node = allocate();
+        nodes[node] = n << 2 | LEAF;
+        data[node] = itemList.size();
+        for (int i = 0; i < n; i++) {
+            itemList.add(pending.get(ids[i]));
+        }
+    }
+
+    private static float area(final float[] box) {
+        final float ex = box[3] - box[0], ey = box[4] - box[1], ez = box[5] - box[2];
+        return ex * ey + ey * ez + ez * ex;
+    }
+
+    private void build(final int[] ids, final float[] bounds, final int n, final float[] box, final int level,
+            final int maxDepth) {
+        depth = Math.max(depth, level);
+        if (n <= 1 || level >= maxDepth) {
+            leaf(ids, n);
+            return;
+        }
+
+        // find the cheapest plane among the clipped bounds of the objects
+        final float area = area(box);
+        final float leafCost = INTERSECTION_COST * n;
+        float bestCost = Float.POSITIVE_INFINITY, bestPlane = 0;
+        int bestAxis = -1;
+        final float[] mins = new float[n], maxs = new float[n], planar = new float[n];
+        for (int axis = 0; axis < 3; axis++) {
+            if (!(box[3 + axis] > box[axis])) {
+                continue;
+            }
+            int planarCount = 0;
+            for (int i = 0; i < n; i++) {
+                mins[i] = bounds[6 * i + axis];
+                maxs[i] = bounds[6 * i + 3 + axis];
+                if (mins[i] == maxs[i]) {
+                    planar[planarCount++] = mins[i];
+                }
+            }
+            Arrays.sort(mins);
+            Arrays.sort(maxs);
+            Arrays.sort(planar, 0, planarCount);
+            final int a1 = (axis + 1) % 3, a2 = (axis + 2) % 3;
+            final float ea1 = box[3 + a1] - box[a1], ea2 = box[3 + a2] - box[a2];
+            for (int e = 0; e < 2 * n; e++) {
+                final float p = e < n ? mins[e] : maxs[e - n];
+                if (!(p > box[axis] && p < box[3 + axis])) {
+                    continue;
+                }
+                // left: starting below the plane or lying in it, right: ending above it
+                final int nl = lower(mins, n, p) + upper(planar, planarCount, p) - lower(planar, planarCount, p);
+                final int nr = n - upper(maxs, n, p);
+                final float below = p - box[axis], above = box[3 + axis] - p;
+                final float al = ea1 * ea2 + (ea1 + ea2) * below, ar = ea1 * ea2 + (ea1 + ea2) * above;
+                float cost = SAHBuilder.TRAVERSAL_COST + INTERSECTION_COST * (al * nl + ar * nr) / area;
+                if (nl == 0 || nr == 0) {
+                    cost *= EMPTY_BONUS;
+                }
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestPlane = p;
+                }
+            }
+        }
+        if (bestAxis < 0 || bestCost >= leafCost) {
+            leaf(ids, n);
+            return;
+        }
+
+        // distribute the objects, clipping those which straddle the plane
+        final float[] belowBox = box.clone(), aboveBox = box.clone();
+        belowBox[3 + bestAxis] = bestPlane;
+        aboveBox[bestAxis] = bestPlane;
+        final int[] belowIds = new int[n], aboveIds = new int[n];
+        final float[] belowBounds = new float[6 * n], aboveBounds = new float[6 * n];
+        int nb = 0, na = 0;
+        for (int i = 0; i < n; i++) {
+            final float lo = bounds[6 * i + bestAxis], hi = bounds[6 * i + 3 + bestAxis];
+            final boolean left = lo < bestPlane || (lo == bestPlane && hi == bestPlane);
+            final boolean right = hi > bestPlane;
+            if (left && right) {
+                if (clip(ids[i], bounds, i, belowBox, belowBounds, nb)) {
+                    belowIds[nb++] = ids[i];
+                }
+                if (clip(ids[i], bounds, i, aboveBox, aboveBounds, na)) {
+                    aboveIds[na++] = ids[i];
+                }
+            } else if (left) {
+                System.arraycopy(bounds, 6 * i, belowBounds, 6 * nb, 6);
+                belowIds[nb++] = ids[i];
+            } else {
+                System.arraycopy(bounds, 6 * i, aboveBounds, 6 * na, 6);
+                aboveIds[na++] = ids[i];
+            }
+        }
+
+        final int node = allocate();
+        build(belowIds, belowBounds, nb, belowBox, level + 1, maxDepth);
+        nodes[node] = nodeCount << 2 | bestAxis;
+        data[node] = Float.floatToRawIntBits(bestPlane);
+        build(aboveIds, aboveBounds, na, aboveBox, level + 1, maxDepth);
+    }
+
+    /**
+     * Clips the object to the box and stores its bounds at the given index,
+     * returns false if nothing of the object is left inside the box
+     */
+    private boolean clip(final int id, final float[] bounds, final int i, final float[] box, final float[] to,
+            final int j) {
+        final float[] lo = new float[3], hi = new float[3];
+        for (int k = 0; k < 3; k++) {
+            lo[k] = Math.max(bounds[6 * i + k], box[k]);
+            hi[k] = Math.min(bounds[6 * i + 3 + k], box[3 + k]);
+        }
+        final BBox part = pending.get(id).clip(BBox.create(new Point(lo[0], lo[1], lo[2]),
+                new Point(hi[0], hi[1], hi[2])));
+        for (int k = 0; k < 3; k++) {
+            to[6 * j + k] = part.getMin().get(k);
+            to[6 * j + 3 + k] = part.getMax().get(k);
+            if (!(to[6 * j + k] <= to[6 * j + 3 + k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of the first n sorted values which are below v
+     */
+    private static int lower(final float[] sorted, final int n, final float v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < v) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the number of the first n sorted values which are at most v
+     */
+    private static int upper(final float[] sorted, final int n, final float v) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= v) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void ensureBuilt() {
+        if (!built) {
+            synchronized (this) {
+                if (!built) {
+                    build();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Hit hit(final Ray ray, final Obj obj, final float tMin, final float tMax) {
+        return hitUnbounded(unbounded, ray, tMin, tMax, traverse(ray, tMin, tMax));
+    }
+
+    /**
+     * Returns the nearest hit among the objects with finite bounds
+     */
+    private Hit traverse(final Ray ray, final float tMin, final float tMax) {
+        ensureBuilt();
+        TraversalStats.countNode();
+        if (nodeCount == 0) {
+            return Hit.No.get();
+        }
+        final Point base = ray.base();
+        final float[] o = { base.x(), base.y(), base.z() };
+        final float[] inv = { ray.invDir().x(), ray.invDir().y(), ray.invDir().z() };
+        float t0 = tMin, t1 = tMax;
+        for (int k = 0; k < 3; k++) {
+            final float a = (boundingBox.getMin().get(k) - o[k]) * inv[k];
+            final float b = (boundingBox.getMax().get(k) - o[k]) * inv[k];
+            t0 = Math.max(t0, Math.min(a, b));
+            t1 = Math.min(t1, Math.max(a, b));
+        }
+        if (!(t0 <= t1)) {
+            return Hit.No.get();
+        }
+
+        final int[] stack = new int[depth + 1];
+        final float[] stackMin = new float[depth + 1], stackMax = new float[depth + 1];
+        int sp = 0;
+        int node = 0;
+        Hit nearest = Hit.No.get();
+        float closest = tMax;
+        while (true) {
+            if (closest < t0) {
+                break; // all remaining nodes lie behind the nearest hit
+            }
+            TraversalStats.countNode();
+            final int word = nodes[node];
+            final int axis = word & 3;
+            if (axis != LEAF) {
+                final float split = Float.intBitsToFloat(data[node]);
+                final float tPlane = (split - o[axis]) * inv[axis];
+                final boolean belowFirst = o[axis] < split || (o[axis] == split && inv[axis] <= 0);
+                final int first = belowFirst ? node + 1 : word >>> 2;
+                final int second = belowFirst ? word >>> 2 : node + 1;
+                if (tPlane != tPlane) {
+                    // the ray lies in the plane, both sides may contain hits
+                    stack[sp] = second;
+                    stackMin[sp] = t0;
+                    stackMax[sp++] = t1;
+                    node = first;
+                } else if (tPlane > t1 || tPlane <= 0) {
+                    node = first;
+                } else if (tPlane < t0) {
+                    node = second;
+                } else {
+                    stack[sp] = second;
+                    stackMin[sp] = tPlane;
+                    stackMax[sp++] = t1;
+                    node = first;
+                    t1 = tPlane;
+                }
+                continue;
+            }
+            final int first = data[node], count = word >>> 2;
+            for (int i = first; i < first + count; i++) {
+                TraversalStats.countPrimitive();
+                final Hit hit = items[i].hit(ray, items[i], tMin, closest);
+                if (hit.hits() && hit.getParameter() < closest) {
+                    closest = hit.getParameter();
+                    nearest = hit;
+                }
+            }
+            if (sp == 0) {
+                break;
+            }
+            node = stack[--sp];
+            t0 = stackMin[sp];
+            t1 = stackMax[sp];
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,185 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import raytracer.core.LightSampler;
+import raytracer.core.LightSource;
+import raytracer.math.Color;
+import raytracer.math.Point;
+
+/**
+ * A bounding volume hierarchy over point light sources. Lights are sampled
+ * by walking down the tree and choosing each child with a probability
+ * proportional to its estimated influence (intensity over squared distance),
+ * which makes the cost per sample logarithmic in the number of lights. The
+ * weight of a sample is the inverse of its probability, so the estimate is
+ * unbiased except for lights dropped by the cutoff.
+ */
+public class LightTree implements LightSampler {
+
+	/**
+	 * A node of the tree, either with two children or with a single light
+	 */
+	private static final class Node {
+		float minX, minY, minZ, maxX, maxY, maxZ;
+		float intensity;
+		Node left, right;
+		LightSource light;
+
+		/**
+		 * Estimates the influence of the lights below this node on point p
+		 */
+		float importance(final float px, final float py, final float pz) {
+			final float cx = (minX + maxX) * 0.5f - px;
+			final float cy = (minY + maxY) * 0.5f - py;
+			final float cz = (minZ + maxZ) * 0.5f - pz;
+			final float ex = maxX - minX, ey = maxY - minY, ez = maxZ - minZ;
+			// never closer than half the diagonal, the lights may be anywhere in the box
+			final float d2 = Math.max(cx * cx + cy * cy + cz * cz, (ex * ex + ey * ey + ez * ez) * 0.25f);
+			return intensity / Math.max(d2, MIN_DIST2);
+		}
+	}
+
+	private static final float MIN_DIST2 = 1e-4f;
+
+	private final Node root;
+	private final int samples;
+	private final float cutoff;
+
+	/**
+	 * Creates a new light tree
+	 *
+	 * @param lights
+	 *            The lights of the scene
+	 * @param samples
+	 *            The number of lights chosen per shading point
+	 * @param cutoff
+	 *            Chosen lights whose intensity over squared distance is below
+	 *            this value are dropped (0 keeps all lights)
+	 */
+	public LightTree(final Collection<LightSource> lights, final int samples, final float cutoff) {
+		if (samples <= 0 || cutoff < 0)
+			throw new IllegalArgumentException();
+		this.samples = samples;
+		this.cutoff = cutoff;
+		final List<LightSource> list = new ArrayList<LightSource>();
+		for (final LightSource l : lights)
+			if (luminance(l.getColor()) > 0)
+				list.add(l);
+		this.root = list.isEmpty() ? null : build(list);
+	}
+
+	private static float luminance(final Color c) {
+		return 0.2126f * c.x() + 0.7152f * c.y() + 0.0722f * c.z();
+	}
+
+	private static Node build(final List<LightSource> lights) {
+		final Node node = new Node();
+		node.minX = node.minY = node.minZ = Float.POSITIVE_INFINITY;
+		node.maxX = node.maxY = node.maxZ = Float.NEGATIVE_INFINITY;
+		for (final LightSource l : lights) {
+			final Point p = l.getLocation();
+			node.minX = Math.min(node.minX, p.x());
+			node.minY = Math.min(node.minY, p.y());
+			node.minZ = Math.min(node.minZ, p.z());
+			node.maxX = Math.max(node.maxX, p.x());
+			node.maxY = Math.max(node.maxY, p.y());
+			node.maxZ = Math.max(node.maxZ, p.z());
+			node.intensity += luminance(l.getColor());
+		}
+		if (lights.size() == 1) {
+			node.light = lights.get(0);
+			return node;
+		}
+
+		final float ex = node.maxX - node.minX, ey = node.maxY - node.minY, ez = node.maxZ - node.minZ;
+		final int axis = ex >= ey && ex >= ez ? 0 : ey >= ez ? 1 : 2;
+		Collections.sort(lights, new Comparator<LightSource>() {
+			@Override
+			public int compare(final LightSource a, final LightSource b) {
+				return Float.compare(a.getLocation().get(axis), b.getLocation().get(axis));
+			}
+		});
+		final int mid = lights.size() / 2;
+		node.left = build(new ArrayList<LightSource>(lights.subList(0, mid)));
+		node.right = build(new ArrayList<LightSource>(lights.subList(mid, lights.size())));
+		return node;
+	}
+
+	/**
+	 * Returns a new tree over the lights with the same number of samples and
+	 * cutoff
+	 */
+	@Override
+	public LightSampler forLights(final Collection<LightSource> lights) {
+		return new LightTree(lights, samples, cutoff);
+	}
+
+	@Override
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Returns the probability with which a single walk down the tree chooses
+	 * the given light at a point, before lights are dropped by the cutoff.
+	 * The weight of a chosen light is the inverse of this probability divided
+	 * by the number of samples.
+	 *
+	 * @param p
+	 *            The shading point
+	 * @param light
+	 *            The light source
+	 * @return The probability of the light, 0 if it is not part of the tree
+	 */
+	public float pdf(final Point p, final LightSource light) {
+		return root == null ? 0 : pdf(root, p.x(), p.y(), p.z(), light);
+	}
+
+	private static float pdf(final Node node, final float px, final float py, final float pz,
+			final LightSource light) {
+		if (node.light != null)
+			return node.light == light ? 1 : 0;
+		final float il = node.left.importance(px, py, pz);
+		final float ir = node.right.importance(px, py, pz);
+		final float pl = il / (il + ir);
+		return pl * pdf(node.left, px, py, pz, light) + (1 - pl) * pdf(node.right, px, py, pz, light);
+	}
+
+	@Override
+	public int sample(final Point p, final LightSource[] lights, final float[] weights) {
+		if (root == null)
+			return 0;
+		final ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		final float px = p.x(), py = p.y(), pz = p.z();
+		final int k = Math.min(samples, lights.length);
+		int n = 0;
+		for (int s = 0; s < k; s++) {
+			Node node = root;
+			float pdf = 1;
+			while (node.light == null) {
+				final float il = node.left.importance(px, py, pz);
+				final float ir = node.right.importance(px, py, pz);
+				final float pl = il / (il + ir);
+				if (rnd.nextFloat() < pl) {
+					node = node.left;
+					pdf *= pl;
+				} else {
+					node = node.right;
+					pdf *= 1 - pl;
+				}
+			}
+			if (pdf <= 0 || node.importance(px, py, pz) < cutoff)
+				continue;
+			lights[n] = node.light;
+			weights[n] = 1 / (k * pdf);
+			n++;
+		}
+		return n;
+	}
+}
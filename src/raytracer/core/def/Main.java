@@ -2,35 +2,41 @@ package raytracer.core.def;
 
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
-import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.Arrays;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.imageio.ImageIO;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 
-import raytracer.core.Camera;
-import raytracer.core.LightSource;
-import raytracer.core.OBJReader;
-import raytracer.core.Obj;
 import raytracer.core.PerspectiveCamera;
 import raytracer.core.Renderer;
 import raytracer.core.Scene;
-import raytracer.core.Shader;
-import raytracer.geom.GeomFactory;
-import raytracer.geom.Primitive;
-import raytracer.math.Color;
+import raytracer.core.WavefrontRenderer;
+import raytracer.core.dist.Coordinator;
 import raytracer.math.Point;
 import raytracer.math.Vec3;
-import raytracer.shade.ShaderFactory;
-import raytracer.shade.SingleColor;
+import raytracer.shade.ShadowCache;
 
 public class Main {
 
@@ -51,6 +57,22 @@ public class Main {
 			img.setRGB(x, y, w, h, data, 0, w);
 		}
 
+		/**
+		 * Draws a packet of a lower resolution level, every pixel as a block
+		 * of scale x scale pixels
+		 */
+		public void drawScaled(final int scale, final int x, final int y, final int w, final int h, final int[] data) {
+			final int x0 = x * scale, y0 = y * scale;
+			final int sw = Math.min(w * scale, img.getWidth() - x0), sh = Math.min(h * scale, img.getHeight() - y0);
+			if (sw <= 0 || sh <= 0)
+				return;
+			final int[] block = new int[sw * sh];
+			for (int j = 0; j < sh; j++)
+				for (int i = 0; i < sw; i++)
+					block[j * sw + i] = data[(j / scale) * w + i / scale];
+			img.setRGB(x0, y0, sw, sh, block, 0, sw);
+		}
+
 		@Override
 		public void paintComponent(final Graphics g) {
 			super.paintComponent(g);
@@ -58,8 +80,243 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Writes the raw heatmap costs as big-endian float pairs (visited nodes,
+	 * tested primitives) in row-major order
+	 */
+	private static void writeCosts(final String filename, final float[] costs) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+			for (final float c : costs)
+				out.writeFloat(c);
+		}
+	}
+
+	/**
+	 * Renders the demo scene with the given number of local worker processes
+	 */
+	private static void renderFarm(final MyPanel panel, final int workers, final int xRes, final int yRes,
+			final int packet) throws IOException, InterruptedException {
+		final Coordinator coordinator = new Coordinator(DemoScene.class, new String[0], xRes, yRes, 2, packet);
+		final ServerSocket server = new ServerSocket(0);
+		final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+		final Process[] procs = Coordinator.spawnLocalWorkers(workers, server.getLocalPort(), threads);
+		boolean done = false;
+		try {
+			coordinator.render(server, new Coordinator.TileSink() {
+				private int n = 0;
+
+				@Override
+				public void tile(final int x, final int y, final int w, final int h, final int[] pixels) {
+					panel.drawPacket(x, y, w, h, pixels);
+					if (n++ % 100 == 0)
+						panel.repaint();
+				}
+			});
+			done = true;
+		} finally {
+			// workers of a failed render may still be building the scene
+			for (final Process p : procs)
+				if (!done)
+					p.destroy();
+		}
+		for (final Process p : procs)
+			p.waitFor();
+	}
+
+	/**
+	 * Renders the demo scene without a window into a PNG file. The image is
+	 * kept in a memory mapped frame buffer next to the output file.
+	 */
+	private static void renderToFile(final String filename, final int xRes, final int yRes, final int packet)
+			throws IOException, InterruptedException {
+		final Scene scene = new DemoScene().create(new String[0]);
+		final Renderer r = new Renderer(scene, xRes, yRes, 2);
+		final File fbFile = new File(filename + ".fb");
+		final ExecutorService exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try (MappedFrameBuffer fb = new MappedFrameBuffer(fbFile, xRes, yRes);
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+				PngStreamWriter png = new PngStreamWriter(out, xRes, yRes)) {
+			new StreamingRender(r, fb, packet).run(exe, 256, png);
+		} finally {
+			exe.shutdown();
+			fbFile.delete();
+		}
+	}
+
+	/**
+	 * Renders the scene region by region with the wavefront renderer,
+	 * optionally shading the samples grouped by material
+	 */
+	private static void renderWavefront(final MyPanel panel, final Scene scene, final int xRes, final int yRes,
+			final boolean deferred) throws InterruptedException, ExecutionException {
+		final int region = 128, threads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService exe = Executors.newFixedThreadPool(threads);
+		final WavefrontRenderer r = new WavefrontRenderer(scene, xRes, yRes, 2, exe, threads);
+		r.setSortByMaterial(deferred);
+		try {
+			for (int y = 0; y < yRes; y += region) {
+				for (int x = 0; x < xRes; x += region) {
+					final int w = Math.min(region, xRes - x), h = Math.min(region, yRes - y);
+					panel.drawPacket(x, y, w, h, r.render(x, y, w, h));
+					panel.repaint();
+				}
+			}
+		} finally {
+			exe.shutdown();
+		}
+	}
+
+	/**
+	 * Shows the scene in a preview that follows the camera: dragging the mouse
+	 * or the arrow keys orbit around the origin, the mouse wheel or +/- change
+	 * the distance. Every change restarts the progressive render at a coarse
+	 * resolution, or renders the next frame from the reprojected previous one.
+	 */
+	private static void renderInteractive(final MyPanel panel, final Scene scene, final int xRes, final int yRes,
+			final int packet, final float fps, final boolean reproject) {
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final ReprojectionCache cache = reproject ? new ReprojectionCache(scene, xRes, yRes) : null;
+		final ExecutorService workers = reproject ? Executors.newFixedThreadPool(threads) : null;
+		final ExecutorService driver = reproject ? Executors.newSingleThreadExecutor() : null;
+		// the camera of the next reprojected frame, frames of cameras that
+		// were replaced before they started are skipped
+		final AtomicReference<PerspectiveCamera> latest = new AtomicReference<PerspectiveCamera>();
+		final Runnable frame = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					panel.drawPacket(0, 0, xRes, yRes, cache.render(latest.getAndSet(null), workers));
+					panel.repaint();
+				} catch (final InterruptedException | ExecutionException e) {
+					System.err.println(e);
+				}
+			}
+		};
+		final ProgressiveRender preview = reproject ? null : new ProgressiveRender(xRes, yRes, 2, packet, fps,
+				threads, new ProgressiveRender.TileSink() {
+					@Override
+					public void tile(final int scale, final Renderer.Work w) {
+						panel.drawScaled(scale, w.x, w.y, w.w, w.h, w.pixels);
+						panel.repaint();
+					}
+				});
+		// yaw, pitch and distance of the camera of the demo scene
+		final float[] orbit = { (float) Math.PI, (float) Math.asin(4 / Math.sqrt(116)), (float) Math.sqrt(116) };
+		final Runnable update = new Runnable() {
+			@Override
+			public void run() {
+				orbit[1] = Math.max(-1.5f, Math.min(1.5f, orbit[1]));
+				orbit[2] = Math.max(0.5f, orbit[2]);
+				final float c = (float) Math.cos(orbit[1]);
+				final Point pos = Point.ORIGIN.add(new Vec3(c * (float) Math.sin(orbit[0]), (float) Math.sin(orbit[1]),
+						c * (float) Math.cos(orbit[0])).scale(orbit[2]));
+				final PerspectiveCamera cam = new PerspectiveCamera(pos, Point.ORIGIN, Vec3.Y, 3, 4, 3);
+				if (preview != null)
+					preview.show(scene, cam);
+				else if (latest.getAndSet(cam) == null)
+					driver.execute(frame);
+			}
+		};
+		final MouseAdapter mouse = new MouseAdapter() {
+			private int lastX, lastY;
+
+			@Override
+			public void mousePressed(final MouseEvent e) {
+				lastX = e.getX();
+				lastY = e.getY();
+			}
+
+			@Override
+			public void mouseDragged(final MouseEvent e) {
+				orbit[0] -= (e.getX() - lastX) * 0.01f;
+				orbit[1] += (e.getY() - lastY) * 0.01f;
+				lastX = e.getX();
+				lastY = e.getY();
+				update.run();
+			}
+
+			@Override
+			public void mouseWheelMoved(final MouseWheelEvent e) {
+				orbit[2] *= (float) Math.pow(1.1, e.getPreciseWheelRotation());
+				update.run();
+			}
+		};
+		panel.addMouseListener(mouse);
+		panel.addMouseMotionListener(mouse);
+		panel.addMouseWheelListener(mouse);
+		panel.setFocusable(true);
+		panel.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(final KeyEvent e) {
+				switch (e.getKeyCode()) {
+				case KeyEvent.VK_LEFT:
+					orbit[0] += 0.05f;
+					break;
+				case KeyEvent.VK_RIGHT:
+					orbit[0] -= 0.05f;
+					break;
+				case KeyEvent.VK_UP:
+					orbit[1] += 0.05f;
+					break;
+				case KeyEvent.VK_DOWN:
+					orbit[1] -= 0.05f;
+					break;
+				case KeyEvent.VK_PLUS:
+				case KeyEvent.VK_ADD:
+				case KeyEvent.VK_EQUALS:
+					orbit[2] /= 1.1f;
+					break;
+				case KeyEvent.VK_MINUS:
+				case KeyEvent.VK_SUBTRACT:
+					orbit[2] *= 1.1f;
+					break;
+				default:
+					return;
+				}
+				update.run();
+			}
+		});
+		update.run();
+	}
+
 	public static void main(final String[] args) {
 		final int xRes = 640, yRes = 480, packet = 16;
+		// --out FILE [--size WxH] streams the image into a PNG file instead
+		// of showing it, the size is only limited by the disk
+		final int outArg = Arrays.asList(args).indexOf("--out");
+		if (outArg >= 0) {
+			final int sizeArg = Arrays.asList(args).indexOf("--size");
+			final String[] size = sizeArg >= 0 ? args[sizeArg + 1].split("x") : new String[] { "" + xRes, "" + yRes };
+			try {
+				renderToFile(args[outArg + 1], Integer.parseInt(size[0]), Integer.parseInt(size[1]), packet);
+			} catch (final IOException | InterruptedException e) {
+				System.err.println(e);
+				return;
+			}
+			System.out.println("done");
+			return;
+		}
+
+		// --farm N renders with N local worker processes
+		final int farm = Arrays.asList(args).indexOf("--farm");
+		int farmWorkers = 0;
+		if (farm >= 0) {
+			try {
+				farmWorkers = Integer.parseInt(args[farm + 1]);
+			} catch (final ArrayIndexOutOfBoundsException | NumberFormatException e) {
+				// reported below
+			}
+			if (farmWorkers <= 0) {
+				System.err.println("--farm needs the number of worker processes");
+				return;
+			}
+		}
+
+		// --heatmap renders the traversal cost instead of the shaded image,
+		// --heatmap-shadows additionally counts the rays spawned while shading
+		final boolean heatmapShadows = Arrays.asList(args).contains("--heatmap-shadows");
+		final boolean heatmap = heatmapShadows || Arrays.asList(args).contains("--heatmap");
+		final float[] costs = heatmap ? new float[2 * xRes * yRes] : null;
 		final MyPanel panel = new MyPanel(xRes, yRes);
 
 		SwingUtilities.invokeLater(new Runnable() {
@@ -72,91 +329,81 @@ public class Main {
 				f.setVisible(true);
 			}
 		});
-		final boolean implementedPlane        = true; // TODO implement Plane
-		final boolean implementedCheckerBoard = true; // TODO implement CheckerBoard
-		final boolean implementedSphere       = true; // TODO implement Sphere
-		final boolean implementedPhong        = true; // TODO implement Phong
-		final boolean implementedOBJReader    = true; // TODO implement OBJReader
-		final boolean implementedBVH          = true; // TODO implement BVH
-		final LightSource ls      = new PointLightSource(new Point(-10, 10, -10), Color.WHITE);
-		final Color       ambient = Color.WHITE.scale(0.05f);
-		final Camera      cam     = new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, new Vec3(0, 5, 0), 3, 4, 3);
-		final Accelerator accel   = new SimpleAccelerator();
-
-		{
-			final Primitive tri      = GeomFactory.createTriangle(new Point(-3, .5f, -1.5f), new Point(-1, 2.5f, -1.5f), new Point(1, .5f, -1.5f));
-			final Shader    yellow   = new SingleColor(Color.YELLOW);
-			final Obj       triangle = new StandardObj(tri, yellow);
-			accel.add(triangle);
-		}
-
-		if (implementedPlane) {
-			final Primitive plane    = GeomFactory.createPlane(Vec3.Y, Point.ORIGIN);
-			final Shader    black    = new SingleColor(Color.BLACK);
-			final Shader    white    = new SingleColor(Color.WHITE);
-			final Shader    shader   = implementedCheckerBoard ? ShaderFactory.createCheckerBoard(black, white, 2f) : white;
-			final Obj       triangle = new StandardObj(plane, shader);
-			accel.add(triangle);
-		}
-
-		if (implementedSphere) {
-			{
-				final Primitive prim   = GeomFactory.createSphere(new Point(0, 1, 0), 1);
-				final Shader    blue   = new SingleColor(Color.BLUE);
-				final Shader    shader = implementedPhong ? ShaderFactory.createPhong(blue, ambient, 0.4f, 1.0f, 15) : blue;
-				final Obj       sphere = new StandardObj(prim, shader);
-				accel.add(sphere);
-			}
-
-			{
-				final Primitive prim   = GeomFactory.createSphere(new Point(1, 1.3f, 0), 1);
-				final Shader    red    = new SingleColor(Color.RED);
-				final Shader    shader = implementedPhong ? ShaderFactory.createPhong(red, ambient, 0.4f, 1.0f, 15) : red;
-				final Obj       sphere = new StandardObj(prim, shader);
-				accel.add(sphere);
-			}
-		}
-
-		if (implementedOBJReader) {
-			final BVH bvh = implementedBVH ? new BVH() : null;
+		if (farm >= 0) {
 			try {
-				final String filename;
-				final float  scale;
-				if (implementedBVH) {
-					filename = "obj/bunny.obj";
-					scale    = 25;
-				} else {
-					filename = "obj/pyramid.obj";
-					scale    = 1;
-				}
-
-				final Shader green  = new SingleColor(Color.GREEN);
-				final Shader shader = implementedPhong ? ShaderFactory.createPhong(green, ambient, 1.f, .5f, 50) : green;
-				OBJReader.read(filename, bvh != null ? bvh : accel, shader, scale, new Vec3(-3, 0, 0));
-			} catch (final FileNotFoundException e) {
+				renderFarm(panel, farmWorkers, xRes, yRes, packet);
+			} catch (final IOException | InterruptedException e) {
 				System.err.println(e);
 				return;
 			}
+			panel.repaint();
+			System.out.println("done");
+			return;
+		}
 
-			if (bvh != null) {
-				bvh.buildBVH();
-				accel.add(bvh);
+		final Scene scene;
+		try {
+			scene = new DemoScene().create(new String[0]);
+		} catch (final IOException e) {
+			System.err.println(e);
+			return;
+		}
+		// --interactive [FPS] shows a preview that follows the camera and
+		// refines from 1/8 of the resolution, keeping the frame rate;
+		// --reproject instead reuses the pixels of the previous frame
+		final int interactiveArg = Arrays.asList(args).indexOf("--interactive");
+		if (interactiveArg >= 0) {
+			final float fps = interactiveArg + 1 < args.length && !args[interactiveArg + 1].startsWith("--")
+					? Float.parseFloat(args[interactiveArg + 1]) : 30;
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					panel.requestFocusInWindow();
+				}
+			});
+			renderInteractive(panel, scene, xRes, yRes, packet, fps, Arrays.asList(args).contains("--reproject"));
+			return;
+		}
+		// --wavefront renders with the batched wavefront renderer, --deferred
+		// additionally shades the samples grouped by material
+		if (Arrays.asList(args).contains("--wavefront")) {
+			try {
+				renderWavefront(panel, scene, xRes, yRes, Arrays.asList(args).contains("--deferred"));
+			} catch (final InterruptedException | ExecutionException e) {
+				System.err.println(e);
+				return;
 			}
+			System.out.println("done");
+			return;
 		}
 
-		final List<LightSource> lights = new ArrayList<LightSource>();
-		lights.add(ls);
-
-		final Scene    scene = new StandardScene(cam, lights, accel);
 		final Renderer r     = new Renderer(scene, xRes, yRes, 2);
 
+		// --checkpoint FILE keeps finished tiles on disk and resumes from
+		// them if the render is started again with the same settings
+		final int checkpointArg = Arrays.asList(args).indexOf("--checkpoint");
+		Checkpoint checkpoint = null;
+		if (checkpointArg >= 0 && !heatmap) {
+			try {
+				checkpoint = Checkpoint.open(new File(args[checkpointArg + 1]),
+						DemoScene.class.getName() + " " + xRes + "x" + yRes + " ss2 packet" + packet, 10 * 1000);
+			} catch (final IOException e) {
+				System.err.println(e);
+				return;
+			}
+			for (final Checkpoint.Tile t : checkpoint.restored())
+				panel.drawPacket(t.x, t.y, t.w, t.h, t.pixels);
+		}
 
 		final Executor exe = Executors.newFixedThreadPool(2);
 		final CompletionService<Renderer.Work> ecs = new ExecutorCompletionService<Renderer.Work>(exe);
 		int num = 0;
 		for (int x = 0; x < xRes; x += packet) {
 			for (int y = 0; y < yRes; y += packet) {
-				ecs.submit(r.render(x, y, packet, packet));
+				if (checkpoint != null && checkpoint.isDone(x, y))
+					continue;
+				ecs.submit(heatmap ? r.renderHeatmap(x, y, packet, packet, heatmapShadows, 200)
+						: r.render(x, y, packet, packet));
 				num = num + 1;
 			}
 		}
@@ -165,6 +412,11 @@ public class Main {
 			try {
 				final Renderer.Work w = ecs.take().get();
 				panel.drawPacket(w.x, w.y, packet, packet, w.pixels);
+				if (checkpoint != null)
+					checkpoint.record(w);
+				if (costs != null)
+					for (int y = 0; y < w.h; y++)
+						System.arraycopy(w.cost, 2 * y * w.w, costs, 2 * ((w.y + y) * xRes + w.x), 2 * w.w);
 				if (i % 100 == 0)
 					panel.repaint();
 			} catch (final InterruptedException e) {
@@ -175,6 +427,25 @@ public class Main {
 		}
 
 		panel.repaint();
+		if (checkpoint != null) {
+			try {
+				checkpoint.close();
+			} catch (final IOException e) {
+				System.err.println(e);
+			}
+		}
+		if (costs != null) {
+			try {
+				ImageIO.write(panel.img, "png", new File("heatmap.png"));
+				writeCosts("heatmap.raw", costs);
+			} catch (final IOException e) {
+				System.err.println(e);
+			}
+		}
+		// --stats prints the hit rate of the shadow cache
+		if (Arrays.asList(args).contains("--stats"))
+			System.out.println(String.format("shadow cache: %d hits, %d misses (%.1f%%)", ShadowCache.getHits(),
+					ShadowCache.getMisses(), 100 * ShadowCache.getHitRate()));
 		System.out.println("done");
 	}
 
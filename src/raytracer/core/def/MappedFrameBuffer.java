@@ -0,0 +1,131 @@
+package raytracer.core.def;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A frame buffer of rgb integers which lives in a memory mapped file instead
+ * of the heap. The file is mapped in chunks of whole rows because a single
+ * mapping is limited to 2 GiB.
+ */
+public class MappedFrameBuffer implements Closeable {
+
+	private static final long CHUNK_BYTES = 1L << 30;
+
+	private final int width, height, rowsPerChunk;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer[] chunks;
+
+	/**
+	 * Creates a new frame buffer backed by the given file. The file is
+	 * created or resized as needed; existing content is kept.
+	 *
+	 * @param f
+	 *            The backing file
+	 * @param width
+	 *            The width of the image
+	 * @param height
+	 *            The height of the image
+	 * @throws IOException
+	 *             If the file could not be created or mapped
+	 */
+	public MappedFrameBuffer(final File f, final int width, final int height) throws IOException {
+		if (width <= 0 || height <= 0 || 4L * width > CHUNK_BYTES)
+			throw new IllegalArgumentException("unsupported frame buffer size " + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		this.rowsPerChunk = (int) (CHUNK_BYTES / (4L * width));
+		this.file = new RandomAccessFile(f, "rw");
+		this.file.setLength(4L * width * height);
+		this.chunks = new MappedByteBuffer[(height + rowsPerChunk - 1) / rowsPerChunk];
+	}
+
+	/**
+	 * Returns the width of the image
+	 *
+	 * @return The width of the image
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the height of the image
+	 *
+	 * @return The height of the image
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	private synchronized MappedByteBuffer chunk(final int c) throws IOException {
+		if (chunks[c] == null) {
+			final long rows = Math.min(rowsPerChunk, height - (long) c * rowsPerChunk);
+			chunks[c] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, c * rowsPerChunk * 4L * width,
+					rows * 4L * width);
+		}
+		return chunks[c];
+	}
+
+	/**
+	 * Stores a block of pixels. Blocks written by different threads must not
+	 * overlap.
+	 *
+	 * @param x
+	 *            The x position of the block
+	 * @param y
+	 *            The y position of the block
+	 * @param w
+	 *            The width of the block
+	 * @param h
+	 *            The height of the block
+	 * @param pixels
+	 *            The rgb values of the block, row by row
+	 * @throws IOException
+	 *             If the file could not be mapped
+	 */
+	public void write(final int x, final int y, final int w, final int h, final int[] pixels) throws IOException {
+		int ofs = 0;
+		for (int row = y; row < y + h; row++) {
+			final MappedByteBuffer buf = chunk(row / rowsPerChunk);
+			int pos = ((row % rowsPerChunk) * width + x) * 4;
+			for (int i = 0; i < w; i++, pos += 4)
+				buf.putInt(pos, pixels[ofs++]);
+		}
+	}
+
+	/**
+	 * Reads a whole row
+	 *
+	 * @param y
+	 *            The row to read
+	 * @param row
+	 *            The target array with at least width entries
+	 * @throws IOException
+	 *             If the file could not be mapped
+	 */
+	public void readRow(final int y, final int[] row) throws IOException {
+		final MappedByteBuffer buf = chunk(y / rowsPerChunk);
+		int pos = (y % rowsPerChunk) * width * 4;
+		for (int i = 0; i < width; i++, pos += 4)
+			row[i] = buf.getInt(pos);
+	}
+
+	/**
+	 * Flushes the written pixels to the file
+	 */
+	public synchronized void force() {
+		for (final MappedByteBuffer b : chunks)
+			if (b != null)
+				b.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,147 @@
+package raytracer.core.def;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8 bit RGB PNG image row by row, so that only a single row has to
+ * be kept in memory regardless of the image size
+ */
+public class PngStreamWriter implements Closeable {
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final DataOutputStream out;
+	private final DeflaterOutputStream deflate;
+	private final int width, height;
+	private final byte[] line;
+	private int rows = 0;
+
+	/**
+	 * Collects the compressed data and emits it as IDAT chunks
+	 */
+	private final class IdatStream extends OutputStream {
+		private final byte[] buf = new byte[CHUNK_SIZE];
+		private int len = 0;
+
+		@Override
+		public void write(final int b) throws IOException {
+			buf[len++] = (byte) b;
+			if (len == buf.length)
+				flush();
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int n) throws IOException {
+			while (n > 0) {
+				final int k = Math.min(n, buf.length - len);
+				System.arraycopy(b, off, buf, len, k);
+				len += k;
+				off += k;
+				n -= k;
+				if (len == buf.length)
+					flush();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (len > 0) {
+				chunk("IDAT", buf, len);
+				len = 0;
+			}
+		}
+	}
+
+	/**
+	 * Creates a new writer and writes the PNG header
+	 *
+	 * @param out
+	 *            The target stream
+	 * @param width
+	 *            The width of the image
+	 * @param height
+	 *            The height of the image
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	public PngStreamWriter(final OutputStream out, final int width, final int height) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.width = width;
+		this.height = height;
+		this.line = new byte[1 + 3 * width];
+
+		this.out.write(SIGNATURE);
+		final byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = 8; // bit depth
+		ihdr[9] = 2; // colour type RGB
+		chunk("IHDR", ihdr, ihdr.length);
+		this.deflate = new DeflaterOutputStream(new IdatStream(), new Deflater(Deflater.BEST_SPEED), CHUNK_SIZE);
+	}
+
+	private static void putInt(final byte[] b, final int ofs, final int v) {
+		b[ofs] = (byte) (v >>> 24);
+		b[ofs + 1] = (byte) (v >>> 16);
+		b[ofs + 2] = (byte) (v >>> 8);
+		b[ofs + 3] = (byte) v;
+	}
+
+	private void chunk(final String type, final byte[] data, final int len) throws IOException {
+		final byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+		final CRC32 crc = new CRC32();
+		crc.update(t);
+		crc.update(data, 0, len);
+		out.writeInt(len);
+		out.write(t);
+		out.write(data, 0, len);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Appends the next row of the image
+	 *
+	 * @param rgb
+	 *            The rgb values of the row
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	public void writeRow(final int[] rgb) throws IOException {
+		if (rows == height)
+			throw new IllegalStateException("all rows already written");
+		// filter type "sub": store the difference to the pixel on the left
+		line[0] = 1;
+		int prev = 0;
+		for (int i = 0, j = 1; i < width; i++) {
+			final int c = rgb[i];
+			line[j++] = (byte) ((c >>> 16) - (prev >>> 16));
+			line[j++] = (byte) ((c >>> 8) - (prev >>> 8));
+			line[j++] = (byte) (c - prev);
+			prev = c;
+		}
+		deflate.write(line);
+		rows++;
+	}
+
+	/**
+	 * Finishes the image. All rows must have been written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (rows != height)
+			throw new IllegalStateException(rows + " of " + height + " rows written");
+		deflate.finish();
+		deflate.flush();
+		chunk("IEND", new byte[0], 0);
+		out.flush();
+		out.close();
+	}
+}
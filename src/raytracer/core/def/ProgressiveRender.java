@@ -0,0 +1,257 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import raytracer.core.Camera;
+import raytracer.core.Hit;
+import raytracer.core.LightSampler;
+import raytracer.core.LightSource;
+import raytracer.core.Renderer;
+import raytracer.core.Scene;
+import raytracer.math.Color;
+import raytracer.math.Ray;
+
+/**
+ * Renders views of a scene for interactive camera work as a resolution
+ * pyramid: first at 1/8 of the resolution, then at 1/4, 1/2 and finally at
+ * full resolution with super sampling. Every level is delivered tile by tile.
+ *
+ * Every call of {@link #show(Scene, Camera)} starts a new generation and
+ * cancels the previous one: its queued tiles never start and the tiles in
+ * flight are discarded, so a new view only waits for at most one tile per
+ * worker. The first level has to fit into the frame time of the target frame
+ * rate; if it takes longer, the next view starts at a coarser level, and if it
+ * is much faster, the next view starts at a finer one again (but not finer
+ * than 1/8). The preview therefore stays responsive however expensive the
+ * scene is.
+ */
+public class ProgressiveRender {
+
+	/** The scale of the first level if the frame time allows */
+	public static final int START_SCALE = 8;
+	/** The coarsest scale of the first level */
+	public static final int MAX_SCALE = 64;
+
+	/**
+	 * Receives the tiles of the levels
+	 */
+	public interface TileSink {
+
+		/**
+		 * Called for every finished tile of the current view. The coordinates
+		 * are pixels of the level, each covering scale x scale pixels of the
+		 * full resolution image.
+		 *
+		 * @param scale
+		 *            The scale of the level, 1 for full resolution
+		 * @param work
+		 *            The rendered tile
+		 */
+		void tile(int scale, Renderer.Work work);
+	}
+
+	/**
+	 * A scene seen through another camera
+	 */
+	private static final class View implements Scene {
+		private final Scene scene;
+		private final Camera cam;
+
+		View(final Scene scene, final Camera cam) {
+			this.scene = scene;
+			this.cam = cam;
+		}
+
+		@Override
+		public Color getBackground() {
+			return scene.getBackground();
+		}
+
+		@Override
+		public Camera getCamera() {
+			return cam;
+		}
+
+		@Override
+		public Collection<LightSource> getLightSources() {
+			return scene.getLightSources();
+		}
+
+		@Override
+		public LightSampler getLightSampler() {
+			return scene.getLightSampler();
+		}
+
+		@Override
+		public Hit hit(final Ray ray) {
+			return scene.hit(ray);
+		}
+
+		@Override
+		public Hit shadowHit(final Ray ray) {
+			return scene.shadowHit(ray);
+		}
+	}
+
+	private final int xRes, yRes, superSample, packet;
+	private final long frameNanos;
+	private final TileSink sink;
+	private final ExecutorService workers;
+	private final ExecutorService driver = Executors.newSingleThreadExecutor();
+	private final AtomicInteger generation = new AtomicInteger();
+	private volatile int startScale = START_SCALE;
+
+	/**
+	 * Creates a progressive renderer
+	 *
+	 * @param xRes
+	 *            The X resolution of the full image
+	 * @param yRes
+	 *            The Y resolution of the full image
+	 * @param superSample
+	 *            The amount of super sampling of the full resolution level
+	 * @param packet
+	 *            The edge length of a tile
+	 * @param fps
+	 *            The target frame rate, which the first level has to keep
+	 * @param threads
+	 *            The number of worker threads
+	 * @param sink
+	 *            Receives the tiles
+	 * @throws IllegalArgumentException
+	 *             If a size, the frame rate or the number of threads is not
+	 *             positive or the sink is null
+	 */
+	public ProgressiveRender(final int xRes, final int yRes, final int superSample, final int packet,
+			final float fps, final int threads, final TileSink sink) {
+		if (xRes <= 0 || yRes <= 0 || superSample <= 0 || packet <= 0 || !(fps > 0) || threads <= 0
+				|| sink == null)
+			throw new IllegalArgumentException();
+		this.xRes = xRes;
+		this.yRes = yRes;
+		this.superSample = superSample;
+		this.packet = packet;
+		this.frameNanos = (long) (1e9 / fps);
+		this.sink = sink;
+		this.workers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Starts rendering a new view and cancels the previous one. Returns
+	 * immediately.
+	 *
+	 * @param scene
+	 *            The scene
+	 * @param cam
+	 *            The camera to view the scene with
+	 * @return The generation of the view
+	 */
+	public int show(final Scene scene, final Camera cam) {
+		final int gen = generation.incrementAndGet();
+		final Scene view = new View(scene, cam);
+		driver.execute(new Runnable() {
+			@Override
+			public void run() {
+				render(view, gen);
+			}
+		});
+		return gen;
+	}
+
+	/**
+	 * Returns the generation of the latest view
+	 *
+	 * @return The current generation
+	 */
+	public int getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Returns the scale the next view starts with
+	 *
+	 * @return The scale of the first level
+	 */
+	public int getStartScale() {
+		return startScale;
+	}
+
+	/**
+	 * Stops all threads, cancelling the current view
+	 */
+	public void shutdown() {
+		generation.incrementAndGet();
+		driver.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Renders the levels of a view until it is finished or superseded
+	 */
+	private void render(final Scene view, final int gen) {
+		for (int scale = startScale; scale >= 1; scale /= 2) {
+			if (generation.get() != gen)
+				return;
+			final long start = System.nanoTime();
+			if (!renderLevel(view, gen, scale))
+				return;
+			if (scale == startScale) {
+				// adapt the first level of the next view to the frame time
+				final long took = System.nanoTime() - start;
+				if (took > frameNanos && startScale < MAX_SCALE)
+					startScale = startScale * 2;
+				else if (took * 8 < frameNanos && startScale > START_SCALE)
+					startScale = startScale / 2;
+			}
+		}
+	}
+
+	/**
+	 * Renders one level, returns false if the view was superseded
+	 */
+	private boolean renderLevel(final Scene view, final int gen, final int scale) {
+		final int w = (xRes + scale - 1) / scale, h = (yRes + scale - 1) / scale;
+		final Renderer r = new Renderer(view, w, h, scale == 1 ? superSample : 1);
+		final CompletionService<Renderer.Work> ecs = new ExecutorCompletionService<Renderer.Work>(workers);
+		final List<Future<Renderer.Work>> futures = new ArrayList<Future<Renderer.Work>>();
+		for (int y = 0; y < h; y += packet) {
+			for (int x = 0; x < w; x += packet) {
+				final Callable<Renderer.Work> tile = r.render(x, y, Math.min(packet, w - x), Math.min(packet, h - y));
+				futures.add(ecs.submit(new Callable<Renderer.Work>() {
+					@Override
+					public Renderer.Work call() throws Exception {
+						return generation.get() == gen ? tile.call() : null;
+					}
+				}));
+			}
+		}
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				final Renderer.Work work = ecs.take().get();
+				if (work == null || generation.get() != gen) {
+					for (final Future<Renderer.Work> f : futures)
+						f.cancel(false);
+					return false;
+				}
+				sink.tile(scale, work);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (final ExecutionException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,448 @@
+package raytracer.core.def;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import raytracer.core.Obj;
+import raytracer.core.Renderer;
+import raytracer.geom.BBox;
+
+/**
+ * Adapts a {@link CompactBVH} to the rays of a fixed view. The surface area
+ * heuristic assumes rays which are uniformly distributed over all
+ * directions, while the rays of a fixed camera and fixed lights are not. A
+ * pilot render records the rays traced through the hierarchy, each up to its
+ * nearest hit, and the hierarchy is then improved by tree rotations (Kensler,
+ * "Tree Rotations for Improving Bounding Volume Hierarchies") which lower the
+ * traversal cost of these rays: the number of recorded rays entering every
+ * inner node plus the number of primitive tests in the leaves they enter.
+ *
+ * A rotation exchanges a child of a node with a grandchild, or two
+ * grandchildren, so only the boxes of the children of the node change and
+ * only the rays entering the node have to be tested against the new boxes.
+ *
+ * The optimized hierarchy can be saved and restored for later renders of the
+ * same view, so that the pilot render is only needed once.
+ */
+public final class RayDistributionOptimizer {
+
+    private static final int MAGIC = 0x52545244; // "RTRD"
+    private static final int VERSION = 1;
+    private static final int PACKET = 16;
+
+    private final CompactBVH bvh;
+    private float[][] rays = null;
+    /** The recorded rays entering every node, as indices into the rays */
+    private Map<BuildNode, int[]> entered = null;
+
+    /**
+     * The result of an optimization
+     */
+    public static final class Report {
+        private final long rays;
+        private final float before, after;
+        private final int rotations;
+
+        Report(final long rays, final float before, final float after, final int rotations) {
+            this.rays = rays;
+            this.before = before;
+            this.after = after;
+            this.rotations = rotations;
+        }
+
+        /**
+         * Returns the number of recorded traversals
+         *
+         * @return The number of rays of the pilot render
+         */
+        public long getRays() {
+            return rays;
+        }
+
+        /**
+         * Returns the measured traversal cost per ray before the optimization
+         *
+         * @return The cost before
+         */
+        public float getCostBefore() {
+            return before;
+        }
+
+        /**
+         * Returns the estimated traversal cost per ray after the optimization
+         *
+         * @return The cost after
+         */
+        public float getCostAfter() {
+            return after;
+        }
+
+        /**
+         * Returns the number of applied rotations
+         *
+         * @return The number of rotations
+         */
+        public int getRotations() {
+            return rotations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rays, cost per ray %.2f -> %.2f, %d rotations", rays, before, after, rotations);
+        }
+    }
+
+    /**
+     * Creates an optimizer for the given hierarchy
+     *
+     * @param bvh
+     *            The hierarchy to optimize
+     * @throws IllegalArgumentException
+     *             If the hierarchy is null
+     */
+    public RayDistributionOptimizer(final CompactBVH bvh) {
+        if (bvh == null) {
+            throw new IllegalArgumentException();
+        }
+        this.bvh = bvh;
+    }
+
+    /**
+     * Renders a pilot image and records the rays traced through the
+     * hierarchy. The pilot may have a lower resolution than the final render,
+     * as long as it uses the same camera, and it must render the scene
+     * containing the hierarchy.
+     *
+     * @param pilot
+     *            The renderer for the pilot image
+     * @param xRes
+     *            The X resolution of the pilot renderer
+     * @param yRes
+     *            The Y resolution of the pilot renderer
+     * @throws Exception
+     *             If rendering fails
+     */
+    public void record(final Renderer pilot, final int xRes, final int yRes) throws Exception {
+        bvh.getTree();
+        bvh.setRecording(true);
+        try {
+            for (int y = 0; y < yRes; y += PACKET) {
+                for (int x = 0; x < xRes; x += PACKET) {
+                    pilot.render(x, y, Math.min(PACKET, xRes - x), Math.min(PACKET, yRes - y)).call();
+                }
+            }
+            final List<float[]> log = bvh.getRecorded();
+            synchronized (log) {
+                rays = log.toArray(new float[log.size()][]);
+            }
+        } finally {
+            bvh.setRecording(false);
+        }
+    }
+
+    /**
+     * Rotates the hierarchy to lower the traversal cost of the rays recorded
+     * by {@link #record}
+     *
+     * @param passes
+     *            The maximum number of passes over the hierarchy
+     * @return The cost before and after the optimization
+     * @throws IllegalStateException
+     *             If nothing has been recorded
+     */
+    public Report optimize(final int passes) {
+        if (rays == null) {
+            throw new IllegalStateException("no pilot render recorded");
+        }
+        synchronized (bvh) {
+            final BuildNode root = bvh.getTree();
+            if (root == null) {
+                return new Report(rays.length, 0, 0, 0);
+            }
+            entered = new IdentityHashMap<BuildNode, int[]>();
+            final int[] all = new int[rays.length];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            distribute(root, all);
+            final int n = Math.max(1, rays.length);
+            final float before = cost(root) / n;
+            int rotations = 0;
+            for (int pass = 0; pass < passes; pass++) {
+                final int r = rotate(root);
+                if (r == 0) {
+                    break;
+                }
+                rotations += r;
+            }
+            final float after = cost(root) / n;
+            bvh.refresh(bvh.getLeafObjects());
+            entered = null;
+            return new Report(rays.length, before, after, rotations);
+        }
+    }
+
+    /**
+     * Stores for every node of the subtree the rays entering it, given the
+     * rays entering its parent
+     */
+    private void distribute(final BuildNode node, final int[] parent) {
+        final int[] own = filter(parent, node.minX, node.minY, node.minZ, node.maxX, node.maxY, node.maxZ);
+        entered.put(node, own);
+        if (!node.isLeaf()) {
+            distribute(node.left, own);
+            distribute(node.right, own);
+        }
+    }
+
+    /**
+     * Returns the rays of the given ones which intersect the box within
+     * their interval
+     */
+    private int[] filter(final int[] candidates, final float minX, final float minY, final float minZ,
+            final float maxX, final float maxY, final float maxZ) {
+        final int[] hits = new int[candidates.length];
+        int n = 0;
+        for (final int i : candidates) {
+            final float[] r = rays[i];
+            float near = r[6], far = r[7];
+            float a = (minX - r[0]) * r[3], b = (maxX - r[0]) * r[3];
+            near = Math.max(near, Math.min(a, b));
+            far = Math.min(far, Math.max(a, b));
+            a = (minY - r[1]) * r[4];
+            b = (maxY - r[1]) * r[4];
+            near = Math.max(near, Math.min(a, b));
+            far = Math.min(far, Math.max(a, b));
+            a = (minZ - r[2]) * r[5];
+            b = (maxZ - r[2]) * r[5];
+            near = Math.max(near, Math.min(a, b));
+            far = Math.min(far, Math.max(a, b));
+            if (near <= far) {
+                hits[n++] = i;
+            }
+        }
+        return Arrays.copyOf(hits, n);
+    }
+
+    private int count(final BuildNode node) {
+        return entered.get(node).length;
+    }
+
+    /**
+     * Returns the traversal cost of the subtree summed over all rays
+     */
+    private float cost(final BuildNode node) {
+        if (node.isLeaf()) {
+            return (float) count(node) * node.count;
+        }
+        return count(node) * SAHBuilder.TRAVERSAL_COST + cost(node.left) + cost(node.right);
+    }
+
+    /**
+     * Applies the best improving rotation at every node of the subtree,
+     * children first, and returns the number of rotations
+     */
+    private int rotate(final BuildNode node) {
+        if (node.isLeaf()) {
+            return 0;
+        }
+        final int rotations = rotate(node.left) + rotate(node.right);
+        final BuildNode l = node.left, r = node.right;
+        final int el = count(l), er = count(r);
+        int best = 0, choice = -1;
+        int[] bestFirst = null, bestSecond = null;
+        // 0, 1: exchange the left child with a child of the right one
+        // 2, 3: exchange the right child with a child of the left one
+        // 4, 5: exchange the left child of the left one with a child of the right one
+        for (int k = 0; k < 6; k++) {
+            int[] first, second = null;
+            int delta;
+            if (k < 2) {
+                if (r.isLeaf()) {
+                    continue;
+                }
+                first = entering(node, l, k == 0 ? r.right : r.left);
+                delta = first.length - er;
+            } else if (k < 4) {
+                if (l.isLeaf()) {
+                    continue;
+                }
+                first = entering(node, r, k == 2 ? l.right : l.left);
+                delta = first.length - el;
+            } else {
+                if (l.isLeaf() || r.isLeaf()) {
+                    continue;
+                }
+                first = entering(node, k == 4 ? r.left : r.right, l.right);
+                second = entering(node, l.left, k == 4 ? r.right : r.left);
+                delta = first.length + second.length - el - er;
+            }
+            if (delta < best) {
+                best = delta;
+                choice = k;
+                bestFirst = first;
+                bestSecond = second;
+            }
+        }
+        if (choice < 0) {
+            return rotations;
+        }
+        if (choice < 2) {
+            final BuildNode moved = choice == 0 ? r.left : r.right;
+            set(r, l, choice == 0 ? r.right : r.left, bestFirst);
+            node.left = moved;
+        } else if (choice < 4) {
+            final BuildNode moved = choice == 2 ? l.left : l.right;
+            set(l, r, choice == 2 ? l.right : l.left, bestFirst);
+            node.right = moved;
+        } else {
+            final BuildNode a = l.left, b = l.right;
+            final BuildNode c = choice == 4 ? r.left : r.right, d = choice == 4 ? r.right : r.left;
+            set(l, c, b, bestFirst);
+            set(r, a, d, bestSecond);
+        }
+        return rotations + 1;
+    }
+
+    /**
+     * Turns the node into the parent of the two given subtrees
+     */
+    private void set(final BuildNode node, final BuildNode a, final BuildNode b, final int[] rays) {
+        node.left = a;
+        node.right = b;
+        node.fit();
+        entered.put(node, rays);
+    }
+
+    /**
+     * Returns the rays which would enter a node below the parent over the two
+     * subtrees
+     */
+    private int[] entering(final BuildNode parent, final BuildNode a, final BuildNode b) {
+        return filter(entered.get(parent), Math.min(a.minX, b.minX), Math.min(a.minY, b.minY),
+                Math.min(a.minZ, b.minZ), Math.max(a.maxX, b.maxX), Math.max(a.maxY, b.maxY),
+                Math.max(a.maxZ, b.maxZ));
+    }
+
+    /**
+     * Saves the hierarchy for later renders of the same view
+     *
+     * @param file
+     *            The file to write
+     * @param view
+     *            A description of the view, e.g. of the camera and the scene
+     * @throws IOException
+     *             If writing fails
+     */
+    public void save(final File file, final String view) throws IOException {
+        synchronized (bvh) {
+            final BuildNode root = bvh.getTree();
+            final List<Obj> added = bvh.getAdded();
+            final Map<Obj, Integer> index = new IdentityHashMap<Obj, Integer>();
+            for (int i = 0; i < added.size(); i++) {
+                index.put(added.get(i), i);
+            }
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(view);
+                out.writeInt(added.size());
+                out.writeBoolean(root != null);
+                if (root != null) {
+                    write(out, root, bvh.getLeafObjects(), index);
+                }
+            }
+        }
+    }
+
+    private static void write(final DataOutputStream out, final BuildNode node, final Obj[] objects,
+            final Map<Obj, Integer> index) throws IOException {
+        out.writeBoolean(node.isLeaf());
+        if (node.isLeaf()) {
+            out.writeInt(node.count);
+            for (int i = node.first; i < node.first + node.count; i++) {
+                out.writeInt(index.get(objects[i]));
+            }
+            return;
+        }
+        write(out, node.left, objects, index);
+        write(out, node.right, objects, index);
+    }
+
+    /**
+     * Restores a hierarchy saved by {@link #save} for the same view and the
+     * same objects. The bounds of the nodes are recomputed from the objects,
+     * so clipped bounds of spatial splits are not restored.
+     *
+     * @param file
+     *            The file to read
+     * @param view
+     *            A description of the view, as passed to {@link #save}
+     * @return True if the hierarchy was restored, false if the file does not
+     *         exist or was saved for a different view or different objects
+     * @throws IOException
+     *             If reading fails
+     */
+    public boolean load(final File file, final String view) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        synchronized (bvh) {
+            final List<Obj> added = bvh.getAdded();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(view)
+                        || in.readInt() != added.size()) {
+                    return false;
+                }
+                final List<Obj> order = new ArrayList<Obj>();
+                final BuildNode root = in.readBoolean() ? read(in, added, order) : null;
+                if (root == null && !added.isEmpty()) {
+                    return false;
+                }
+                bvh.setTree(root, order.toArray(new Obj[order.size()]));
+                return true;
+            }
+        }
+    }
+
+    private static BuildNode read(final DataInputStream in, final List<Obj> added, final List<Obj> order)
+            throws IOException {
+        final BuildNode node = new BuildNode();
+        if (!in.readBoolean()) {
+            node.left = read(in, added, order);
+            node.right = read(in, added, order);
+            node.fit();
+            return node;
+        }
+        node.first = order.size();
+        node.count = in.readInt();
+        BBox box = BBox.EMPTY;
+        for (int i = 0; i < node.count; i++) {
+            final int k = in.readInt();
+            if (k < 0 || k >= added.size()) {
+                throw new IOException("invalid object index " + k);
+            }
+            order.add(added.get(k));
+            box = BBox.surround(box, added.get(k).bbox());
+        }
+        node.minX = box.getMin().x();
+        node.minY = box.getMin().y();
+        node.minZ = box.getMin().z();
+        node.maxX = box.getMax().x();
+        node.maxY = box.getMax().y();
+        node.maxZ = box.getMax().z();
+        return node;
+    }
+}
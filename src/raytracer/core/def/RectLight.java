@@ -0,0 +1,70 @@
+package raytracer.core.def;
+
+import raytracer.core.AreaLight;
+import raytracer.geom.BBox;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Vec3;
+
+/**
+ * Represents a parallelogram shaped light source
+ */
+public class RectLight implements AreaLight {
+
+	private final Color color;
+	private final Point corner;
+	private final Vec3 a, b;
+	private final Point center;
+	private final int samples;
+
+	/**
+	 * Creates a new rectangle light source
+	 *
+	 * @param corner
+	 *            A corner of the rectangle
+	 * @param a
+	 *            The first edge starting at the corner
+	 * @param b
+	 *            The second edge starting at the corner
+	 * @param color
+	 *            The color of the light source
+	 * @param samples
+	 *            The maximum number of shadow rays per shading point
+	 */
+	public RectLight(final Point corner, final Vec3 a, final Vec3 b, final Color color, final int samples) {
+		if (samples <= 0)
+			throw new IllegalArgumentException();
+		this.corner = corner;
+		this.a = a;
+		this.b = b;
+		this.color = color;
+		this.samples = samples;
+		this.center = corner.add(a.scale(0.5f)).add(b.scale(0.5f));
+	}
+
+	@Override
+	public Point getLocation() {
+		return center;
+	}
+
+	@Override
+	public Color getColor() {
+		return color;
+	}
+
+	@Override
+	public Point sample(final float u, final float v) {
+		return corner.add(a.scale(u)).add(b.scale(v));
+	}
+
+	@Override
+	public int getSamples() {
+		return samples;
+	}
+
+	@Override
+	public BBox bbox() {
+		final Point far = corner.add(a).add(b);
+		return BBox.surround(BBox.create(corner, far), BBox.create(corner.add(a), corner.add(b)));
+	}
+}
@@ -0,0 +1,329 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import raytracer.core.Hit;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Scene;
+import raytracer.core.Trace;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec2;
+import raytracer.math.Vec3;
+
+/**
+ * Renders the frames of a moving camera by reusing the previous frame. Every
+ * pixel keeps the point its primary ray hit (or the direction of the ray if it
+ * hit nothing) together with its colour. For a new camera these samples are
+ * projected into the new image, the nearest one winning every pixel, and only
+ * the remaining pixels get fresh primary rays:
+ * <ul>
+ * <li>pixels no sample landed on, e.g. disoccluded surfaces or parts that
+ * entered the image, unless they are single pixel gaps between samples of the
+ * same surface, which take the closest of these samples,</li>
+ * <li>samples between noticeably closer neighbours, which may be seen
+ * through a gap of the closer surface,</li>
+ * <li>samples that were reprojected too often, since the colour of a sample
+ * is only correct for the view it was traced from,</li>
+ * <li>a rotating subset of the pixels, so every pixel is traced again
+ * regularly.</li>
+ * </ul>
+ * A pixel uses one primary ray through the same position as a
+ * {@link raytracer.core.Renderer} without super sampling.
+ *
+ * The cached samples belong to the scene as it was traced; after the scene was
+ * edited the cache has to be {@link #invalidate() invalidated}.
+ */
+public class ReprojectionCache {
+
+	/** The default number of frames in which every pixel is traced once */
+	public static final int DEFAULT_REFRESH = 16;
+	/** The default relative depth difference treated as an occlusion */
+	public static final float DEFAULT_DEPTH_TOLERANCE = 0.05f;
+
+	private static final byte EMPTY = 0, SURFACE = 1, SKY = 2;
+	private static final int CHUNK = 1024;
+
+	private final Scene scene;
+	private final int xRes, yRes, refresh, maxAge;
+	private final float dx, dy, tolerance;
+	private final int[] slots;
+	// the current samples and the buffers the next frame is projected into
+	private int[] color, nColor;
+	private float[] pos, nPos;
+	private byte[] kind, nKind, age, nAge;
+	private final float[] depth;
+	private final int[] source, pending;
+	private int frame = 0, traced = 0, reprojected = 0;
+
+	/**
+	 * Creates a cache with the default refresh rate and depth tolerance
+	 *
+	 * @param scene
+	 *            The scene to render, its camera is not used
+	 * @param xRes
+	 *            The X resolution of the frames
+	 * @param yRes
+	 *            The Y resolution of the frames
+	 */
+	public ReprojectionCache(final Scene scene, final int xRes, final int yRes) {
+		this(scene, xRes, yRes, DEFAULT_REFRESH, DEFAULT_DEPTH_TOLERANCE);
+	}
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param scene
+	 *            The scene to render, its camera is not used
+	 * @param xRes
+	 *            The X resolution of the frames
+	 * @param yRes
+	 *            The Y resolution of the frames
+	 * @param refresh
+	 *            Every pixel is traced again at least once in this number of
+	 *            frames, and no sample is reprojected more than twice as often
+	 * @param tolerance
+	 *            A sample at least this much (relatively) farther away than
+	 *            two opposite neighbours is traced again
+	 * @throws IllegalArgumentException
+	 *             If the scene is null, a resolution is not positive, refresh
+	 *             is not in [1, 63] or the tolerance is negative
+	 */
+	public ReprojectionCache(final Scene scene, final int xRes, final int yRes, final int refresh,
+			final float tolerance) {
+		if (scene == null || xRes <= 0 || yRes <= 0 || refresh < 1 || refresh > 63 || !(tolerance >= 0))
+			throw new IllegalArgumentException();
+		this.scene = scene;
+		this.xRes = xRes;
+		this.yRes = yRes;
+		this.refresh = refresh;
+		this.maxAge = 2 * refresh;
+		this.dx = 1.0f / xRes;
+		this.dy = 1.0f / yRes;
+		this.tolerance = tolerance;
+		final int n = xRes * yRes;
+		color = new int[n];
+		nColor = new int[n];
+		pos = new float[3 * n];
+		nPos = new float[3 * n];
+		kind = new byte[n];
+		nKind = new byte[n];
+		age = new byte[n];
+		nAge = new byte[n];
+		depth = new float[n];
+		source = new int[n];
+		pending = new int[n];
+		// a fixed random slot per pixel spreads the refreshed subset evenly
+		slots = new int[n];
+		final Random random = new Random(n);
+		for (int i = 0; i < n; i++)
+			slots[i] = random.nextInt(refresh);
+	}
+
+	/**
+	 * Renders the next frame, reusing the samples of the previous one
+	 *
+	 * @param cam
+	 *            The camera of the frame
+	 * @param exe
+	 *            Traces the fresh primary rays
+	 * @return The pixels of the frame in row-major order
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the traced pixels
+	 * @throws ExecutionException
+	 *             If tracing a pixel failed
+	 */
+	public int[] render(final PerspectiveCamera cam, final ExecutorService exe)
+			throws InterruptedException, ExecutionException {
+		final int n = xRes * yRes;
+		final Point eye = cam.getPosition();
+		Arrays.fill(nKind, EMPTY);
+		Arrays.fill(depth, Float.POSITIVE_INFINITY);
+
+		// project the samples into the new image, keeping the nearest one
+		for (int i = 0; i < n; i++) {
+			if (kind[i] == EMPTY || age[i] + 1 >= maxAge)
+				continue;
+			final Vec3 v = new Vec3(pos[3 * i], pos[3 * i + 1], pos[3 * i + 2]);
+			final Point p = kind[i] == SKY ? eye.add(v) : Point.ORIGIN.add(v);
+			final Vec2 uv = cam.project(p);
+			if (uv == null)
+				continue;
+			// inverse of the sampling position (x - 1/2) / xRes in render()
+			final float fx = uv.x() * xRes + 1, fy = uv.y() * yRes + 1;
+			if (!(fx >= 0 && fx < xRes && fy >= 0 && fy < yRes))
+				continue;
+			final int j = (int) fy * xRes + (int) fx;
+			final float d = kind[i] == SKY ? Float.POSITIVE_INFINITY : p.sub(eye).norm();
+			if (nKind[j] != EMPTY && !(d < depth[j]))
+				continue;
+			nKind[j] = kind[i];
+			nAge[j] = (byte) (age[i] + 1);
+			nColor[j] = color[i];
+			System.arraycopy(pos, 3 * i, nPos, 3 * j, 3);
+			depth[j] = d;
+		}
+
+		// fill the single pixel gaps left between the projected samples
+		for (int y = 0; y < yRes; y++)
+			for (int x = 0; x < xRes; x++)
+				source[y * xRes + x] = nKind[y * xRes + x] == EMPTY ? gapSource(x, y) : -1;
+		for (int j = 0; j < n; j++) {
+			final int i = source[j];
+			if (i < 0)
+				continue;
+			nKind[j] = nKind[i];
+			nAge[j] = nAge[i];
+			nColor[j] = nColor[i];
+			System.arraycopy(nPos, 3 * i, nPos, 3 * j, 3);
+			depth[j] = depth[i];
+		}
+
+		// collect the pixels to trace
+		int count = 0;
+		for (int y = 0; y < yRes; y++) {
+			for (int x = 0; x < xRes; x++) {
+				final int j = y * xRes + x;
+				if (nKind[j] == EMPTY || slots[j] == frame % refresh || occluded(x, y))
+					pending[count++] = j;
+			}
+		}
+
+		swap();
+		traced = count;
+		reprojected = n - count;
+		frame++;
+
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int start = 0; start < count; start += CHUNK) {
+			final int from = start, to = Math.min(count, start + CHUNK);
+			futures.add(exe.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int k = from; k < to; k++)
+						trace(cam, pending[k]);
+					return null;
+				}
+			}));
+		}
+		for (final Future<?> f : futures)
+			f.get();
+		return color.clone();
+	}
+
+	/**
+	 * Returns the closest of the samples around an empty pixel if at least
+	 * three of its four neighbours got one and they lie at about the same
+	 * depth, or -1. Samples drifting off the pixel centres leave such gaps,
+	 * while disocclusions lie next to a depth discontinuity.
+	 */
+	private int gapSource(final int x, final int y) {
+		int found = 0, nearest = -1;
+		float min = Float.POSITIVE_INFINITY, max = 0;
+		for (int k = 0; k < 4; k++) {
+			final int i = x + (k == 0 ? -1 : k == 1 ? 1 : 0), j = y + (k == 2 ? -1 : k == 3 ? 1 : 0);
+			if (i < 0 || i >= xRes || j < 0 || j >= yRes || nKind[j * xRes + i] == EMPTY)
+				continue;
+			final float d = depth[j * xRes + i];
+			if (nearest < 0 || d < min) {
+				min = d;
+				nearest = j * xRes + i;
+			}
+			max = Math.max(max, d);
+			found++;
+		}
+		return found >= 3 && max <= min / (1 - tolerance) ? nearest : -1;
+	}
+
+	/**
+	 * Returns true if closer samples lie on opposite sides of the pixel, so
+	 * its sample may be seen through a gap between the projected samples of a
+	 * closer surface. A single closer neighbour is not enough, since the depth
+	 * of a surface seen at a grazing angle changes quickly from pixel to pixel.
+	 */
+	private boolean occluded(final int x, final int y) {
+		final float limit = depth[y * xRes + x] * (1 - tolerance);
+		return closer(x - 1, y, limit) && closer(x + 1, y, limit)
+				|| closer(x, y - 1, limit) && closer(x, y + 1, limit)
+				|| closer(x - 1, y - 1, limit) && closer(x + 1, y + 1, limit)
+				|| closer(x - 1, y + 1, limit) && closer(x + 1, y - 1, limit);
+	}
+
+	private boolean closer(final int x, final int y, final float limit) {
+		return x >= 0 && x < xRes && y >= 0 && y < yRes && depth[y * xRes + x] < limit;
+	}
+
+	/**
+	 * Traces the primary ray of a pixel and stores the new sample
+	 */
+	private void trace(final PerspectiveCamera cam, final int j) {
+		final int x = j % xRes, y = j / xRes;
+		final Ray ray = cam.cast((x - 0.5f) * dx, (y - 0.5f) * dy);
+		final Trace trace = Trace.primary(scene, ray);
+		final Color c = trace.shade();
+		final Hit hit = trace.getHit();
+		if (hit.hits()) {
+			final Point p = hit.getPoint();
+			kind[j] = SURFACE;
+			pos[3 * j] = p.x();
+			pos[3 * j + 1] = p.y();
+			pos[3 * j + 2] = p.z();
+		} else {
+			kind[j] = SKY;
+			pos[3 * j] = ray.dir().x();
+			pos[3 * j + 1] = ray.dir().y();
+			pos[3 * j + 2] = ray.dir().z();
+		}
+		age[j] = 0;
+		color[j] = c.rgb();
+	}
+
+	private void swap() {
+		final int[] c = color;
+		color = nColor;
+		nColor = c;
+		final float[] p = pos;
+		pos = nPos;
+		nPos = p;
+		final byte[] k = kind;
+		kind = nKind;
+		nKind = k;
+		final byte[] a = age;
+		age = nAge;
+		nAge = a;
+	}
+
+	/**
+	 * Discards all samples, the next frame is traced completely
+	 */
+	public void invalidate() {
+		Arrays.fill(kind, EMPTY);
+	}
+
+	/**
+	 * Returns the number of primary rays traced for the last frame
+	 *
+	 * @return The number of traced pixels
+	 */
+	public int getTracedCount() {
+		return traced;
+	}
+
+	/**
+	 * Returns the number of pixels of the last frame taken from the previous
+	 * one
+	 *
+	 * @return The number of reprojected pixels
+	 */
+	public int getReprojectedCount() {
+		return reprojected;
+	}
+}
@@ -0,0 +1,261 @@
+package raytracer.core.def;
+
+import java.util.Arrays;
+import java.util.List;
+
+import raytracer.core.Obj;
+import raytracer.geom.BBox;
+
+/**
+ * Builds a binary hierarchy over objects using the surface area heuristic,
+ * evaluated on a fixed number of bins along each axis. The objects are
+ * reordered so that every leaf references a contiguous range of
+ * {@link #getObjects()}.
+ */
+final class SAHBuilder {
+
+    /** The number of bins per axis */
+    static final int BINS = 16;
+    /** The cost of visiting a node relative to testing a primitive */
+    static final float TRAVERSAL_COST = 1;
+
+    private final Obj[] objects;
+    private final float[] bounds;
+    private final float[] centers;
+
+    /**
+     * Creates a builder for the given objects
+     *
+     * @param objs
+     *            The objects, all of them with finite bounds
+     */
+    SAHBuilder(final List<Obj> objs) {
+        objects = objs.toArray(new Obj[objs.size()]);
+        bounds = new float[6 * objects.length];
+        centers = new float[3 * objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            final BBox b = objects[i].bbox();
+            for (int k = 0; k < 3; k++) {
+                bounds[6 * i + k] = b.getMin().get(k);
+                bounds[6 * i + 3 + k] = b.getMax().get(k);
+                centers[3 * i + k] = (b.getMin().get(k) + b.getMax().get(k)) * 0.5f;
+            }
+        }
+    }
+
+    /**
+     * Returns the objects in leaf order
+     */
+    Obj[] getObjects() {
+        return objects;
+    }
+
+    /**
+     * Builds the hierarchy
+     *
+     * @param maxLeaf
+     *            Leaves with more objects are split whenever possible
+     * @return The root or null if there are no objects
+     */
+    BuildNode build(final int maxLeaf) {
+        return objects.length == 0 ? null : build(0, objects.length, maxLeaf);
+    }
+
+    /**
+     * Builds the hierarchy without evaluating the heuristic: every node is
+     * split at the middle of the largest extent of the centers of its
+     * objects. This is much faster but gives a worse hierarchy, meant to be
+     * improved with {@link TreeletOptimizer} afterwards.
+     *
+     * @param maxLeaf
+     *            Leaves with more objects are split whenever possible
+     * @return The root or null if there are no objects
+     */
+    BuildNode buildMidpoint(final int maxLeaf) {
+        return objects.length == 0 ? null : buildMidpoint(0, objects.length, maxLeaf);
+    }
+
+    private BuildNode buildMidpoint(final int first, final int count, final int maxLeaf) {
+        final BuildNode node = leaf(first, count);
+        if (count <= maxLeaf) {
+            return node;
+        }
+        int axis = -1;
+        float cmin = 0, cmax = 0;
+        for (int k = 0; k < 3; k++) {
+            float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+            for (int i = first; i < first + count; i++) {
+                lo = Math.min(lo, centers[3 * i + k]);
+                hi = Math.max(hi, centers[3 * i + k]);
+            }
+            if (hi - lo > cmax - cmin) {
+                axis = k;
+                cmin = lo;
+                cmax = hi;
+            }
+        }
+        if (axis < 0) {
+            return node; // all centers coincide
+        }
+        final float mid = (cmin + cmax) * 0.5f;
+        int i = first, j = first + count - 1;
+        while (i <= j) {
+            if (centers[3 * i + axis] <= mid) {
+                i++;
+            } else {
+                swap(i, j--);
+            }
+        }
+        if (i == first || i == first + count) {
+            i = first + count / 2; // the middle is not representable between the centers
+        }
+        node.left = buildMidpoint(first, i - first, maxLeaf);
+        node.right = buildMidpoint(i, first + count - i, maxLeaf);
+        node.count = 0;
+        return node;
+    }
+
+    private BuildNode leaf(final int first, final int count) {
+        final BuildNode node = new BuildNode();
+        node.first = first;
+        node.count = count;
+        node.minX = node.minY = node.minZ = Float.POSITIVE_INFINITY;
+        node.maxX = node.maxY = node.maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = first; i < first + count; i++) {
+            node.minX = Math.min(node.minX, bounds[6 * i]);
+            node.minY = Math.min(node.minY, bounds[6 * i + 1]);
+            node.minZ = Math.min(node.minZ, bounds[6 * i + 2]);
+            node.maxX = Math.max(node.maxX, bounds[6 * i + 3]);
+            node.maxY = Math.max(node.maxY, bounds[6 * i + 4]);
+            node.maxZ = Math.max(node.maxZ, bounds[6 * i + 5]);
+        }
+        return node;
+    }
+
+    private BuildNode build(final int first, final int count, final int maxLeaf) {
+        final BuildNode node = leaf(first, count);
+        if (count <= 1) {
+            return node;
+        }
+
+        // bounds of the centers, the bins are spread over them
+        final float[] cmin = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+        final float[] cmax = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+        for (int i = first; i < first + count; i++) {
+            for (int k = 0; k < 3; k++) {
+                cmin[k] = Math.min(cmin[k], centers[3 * i + k]);
+                cmax[k] = Math.max(cmax[k], centers[3 * i + k]);
+            }
+        }
+
+        float bestCost = Float.POSITIVE_INFINITY;
+        int bestAxis = -1, bestBin = -1;
+        final int[] binCount = new int[BINS];
+        final float[] binBounds = new float[6 * BINS];
+        final float[] rightArea = new float[BINS];
+        for (int axis = 0; axis < 3; axis++) {
+            final float extent = cmax[axis] - cmin[axis];
+            if (!(extent > 0)) {
+                continue;
+            }
+            final float scale = BINS / extent;
+            Arrays.fill(binCount, 0);
+            for (int b = 0; b < BINS; b++) {
+                binBounds[6 * b] = binBounds[6 * b + 1] = binBounds[6 * b + 2] = Float.POSITIVE_INFINITY;
+                binBounds[6 * b + 3] = binBounds[6 * b + 4] = binBounds[6 * b + 5] = Float.NEGATIVE_INFINITY;
+            }
+            for (int i = first; i < first + count; i++) {
+                final int b = bin(centers[3 * i + axis], cmin[axis], scale);
+                binCount[b]++;
+                for (int k = 0; k < 3; k++) {
+                    binBounds[6 * b + k] = Math.min(binBounds[6 * b + k], bounds[6 * i + k]);
+                    binBounds[6 * b + 3 + k] = Math.max(binBounds[6 * b + 3 + k], bounds[6 * i + 3 + k]);
+                }
+            }
+
+            // sweep from the right, then from the left evaluating every plane
+            final float[] acc = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                    Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+            for (int b = BINS - 1; b > 0; b--) {
+                grow(acc, binBounds, b);
+                rightArea[b] = area(acc);
+            }
+            acc[0] = acc[1] = acc[2] = Float.POSITIVE_INFINITY;
+            acc[3] = acc[4] = acc[5] = Float.NEGATIVE_INFINITY;
+            int leftCount = 0;
+            for (int b = 0; b < BINS - 1; b++) {
+                grow(acc, binBounds, b);
+                leftCount += binCount[b];
+                final int rightCount = count - leftCount;
+                if (leftCount == 0 || rightCount == 0) {
+                    continue;
+                }
+                final float cost = area(acc) * leftCount + rightArea[b + 1] * rightCount;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = b;
+                }
+            }
+        }
+
+        if (bestAxis < 0) {
+            return node; // all centers coincide
+        }
+        final float parentArea = node.area();
+        final float splitCost = parentArea > 0 ? TRAVERSAL_COST + bestCost / parentArea : TRAVERSAL_COST + count;
+        if (count <= maxLeaf && splitCost >= count) {
+            return node;
+        }
+
+        // partition the range by the chosen plane
+        final float scale = BINS / (cmax[bestAxis] - cmin[bestAxis]);
+        int i = first, j = first + count - 1;
+        while (i <= j) {
+            if (bin(centers[3 * i + bestAxis], cmin[bestAxis], scale) <= bestBin) {
+                i++;
+            } else {
+                swap(i, j--);
+            }
+        }
+        node.left = build(first, i - first, maxLeaf);
+        node.right = build(i, first + count - i, maxLeaf);
+        node.count = 0;
+        return node;
+    }
+
+    private static int bin(final float c, final float min, final float scale) {
+        return Math.min(BINS - 1, (int) ((c - min) * scale));
+    }
+
+    private static void grow(final float[] acc, final float[] binBounds, final int b) {
+        for (int k = 0; k < 3; k++) {
+            acc[k] = Math.min(acc[k], binBounds[6 * b + k]);
+            acc[3 + k] = Math.max(acc[3 + k], binBounds[6 * b + 3 + k]);
+        }
+    }
+
+    private static float area(final float[] b) {
+        if (b[0] > b[3]) {
+            return 0;
+        }
+        final float ex = b[3] - b[0], ey = b[4] - b[1], ez = b[5] - b[2];
+        return ex * ey + ey * ez + ez * ex;
+    }
+
+    private void swap(final int a, final int b) {
+        final Obj o = objects[a];
+        objects[a] = objects[b];
+        objects[b] = o;
+        for (int k = 0; k < 6; k++) {
+            final float t = bounds[6 * a + k];
+            bounds[6 * a + k] = bounds[6 * b + k];
+            bounds[6 * b + k] = t;
+        }
+        for (int k = 0; k < 3; k++) {
+            final float t = centers[3 * a + k];
+            centers[3 * a + k] = centers[3 * b + k];
+            centers[3 * b + k] = t;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.List;
 
 import raytracer.core.Hit;
 import raytracer.core.Obj;
+import raytracer.core.TraversalStats;
 import raytracer.geom.BBox;
 import raytracer.math.Ray;
 
@@ -35,6 +36,18 @@ public class SimpleAccelerator extends Accelerator {
 		prims.add(prim);
 	}
 
+	/**
+	 * Removes an object from the acceleration structure
+	 *
+	 * @param prim
+	 *            The object to remove
+	 * @return True if the object was contained
+	 */
+	@Override
+	public boolean remove(final Obj prim) {
+		return prims.remove(prim);
+	}
+
 	/**
 	 * Computes a hit point with the given parameters
 	 *
@@ -51,6 +64,8 @@ public class SimpleAccelerator extends Accelerator {
 	public Hit hit(final Ray ray, final Obj obj, final float tmin, float tmax) {
 		Hit nearest = Hit.No.get();
 		for (final Obj p : prims) {
+			if (!(p instanceof Accelerator))
+				TraversalStats.countPrimitive();
 			final Hit hit = p.hit(ray, p, tmin, tmax);
 			if (hit.hits()) {
 				final float t = hit.getParameter();
@@ -0,0 +1,54 @@
+package raytracer.core.def;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import raytracer.core.Scene;
+import raytracer.core.WavefrontRenderer;
+
+/**
+ * Measures the throughput of the spawned ray stage of the wavefront renderer
+ * on the demo (bunny) scene with and without coherent ray sorting. Hardware
+ * cache misses are not visible from Java; run this class under
+ * {@code perf stat -e cache-misses,cache-references} once per mode to see
+ * them.
+ *
+ * Arguments: [off|on|both] [iterations] [region size]
+ */
+public class SortBenchmark {
+
+	private static double run(final Scene scene, final boolean sort, final int xRes, final int yRes,
+			final int region, final ExecutorService exe, final int threads)
+			throws InterruptedException, ExecutionException {
+		final WavefrontRenderer r = new WavefrontRenderer(scene, xRes, yRes, 2, exe, threads);
+		r.setSortSpawned(sort);
+		for (int y = 0; y < yRes; y += region)
+			for (int x = 0; x < xRes; x += region)
+				r.render(x, y, Math.min(region, xRes - x), Math.min(region, yRes - y));
+		return r.getSpawnedRays() / (r.getSpawnedNanos() / 1e9);
+	}
+
+	public static void main(final String[] args) throws IOException, InterruptedException, ExecutionException {
+		final String mode = args.length > 0 ? args[0] : "both";
+		final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		final int region = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+		final int xRes = 640, yRes = 480, threads = Runtime.getRuntime().availableProcessors();
+
+		final Scene scene = new DemoScene().create(new String[0]);
+		final ExecutorService exe = Executors.newFixedThreadPool(threads);
+		try {
+			for (int i = 0; i < iterations; i++) {
+				final StringBuilder line = new StringBuilder("iteration " + i + ":");
+				if (!mode.equals("on"))
+					line.append(String.format(" unsorted %.0f rays/s", run(scene, false, xRes, yRes, region, exe, threads)));
+				if (!mode.equals("off"))
+					line.append(String.format(" sorted %.0f rays/s", run(scene, true, xRes, yRes, region, exe, threads)));
+				System.out.println(line);
+			}
+		} finally {
+			exe.shutdown();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package raytracer.core.def;
+
+import raytracer.core.AreaLight;
+import raytracer.geom.BBox;
+import raytracer.math.Color;
+import raytracer.math.ONB;
+import raytracer.math.Point;
+import raytracer.math.Vec3;
+
+/**
+ * Represents a spherical light source with a radius
+ */
+public class SphereLight implements AreaLight {
+
+	private final Color color;
+	private final Point m;
+	private final float r;
+	private final int samples;
+
+	/**
+	 * Creates a new sphere light source
+	 *
+	 * @param m
+	 *            The center of the sphere
+	 * @param r
+	 *            The radius of the sphere
+	 * @param color
+	 *            The color of the light source
+	 * @param samples
+	 *            The maximum number of shadow rays per shading point
+	 */
+	public SphereLight(final Point m, final float r, final Color color, final int samples) {
+		if (r < 0 || samples <= 0)
+			throw new IllegalArgumentException();
+		this.m = m;
+		this.r = r;
+		this.color = color;
+		this.samples = samples;
+	}
+
+	@Override
+	public Point getLocation() {
+		return m;
+	}
+
+	@Override
+	public Color getColor() {
+		return color;
+	}
+
+	/**
+	 * Returns a point uniformly distributed on the surface of the sphere
+	 */
+	@Override
+	public Point sample(final float u, final float v) {
+		final float z = 1 - 2 * u;
+		final float s = (float) Math.sqrt(Math.max(0, 1 - z * z));
+		final double phi = 2 * Math.PI * v;
+		return m.add(new Vec3(s * (float) Math.cos(phi), s * (float) Math.sin(phi), z).scale(r));
+	}
+
+	/**
+	 * Returns a point on the cap of the sphere visible from the given point,
+	 * sampling the cone of directions it subtends uniformly. Points inside the
+	 * sphere see all of it.
+	 */
+	@Override
+	public Point sample(final Point from, final float u, final float v) {
+		final Vec3 toCenter = m.sub(from);
+		final float d = toCenter.norm();
+		if (!(d > r))
+			return sample(u, v);
+		final double cosMax = Math.sqrt(Math.max(0, 1 - (double) r * r / ((double) d * d)));
+		final double cos = 1 - u * (1 - cosMax);
+		final double sin2 = Math.max(0, 1 - cos * cos);
+		// distance to the nearer intersection of the sampled direction with the
+		// sphere, and the angle between the intersection and the point seen
+		// from the center, which is less sensitive to rounding near the horizon
+		final double t = d * cos - Math.sqrt(Math.max(0, (double) r * r - (double) d * d * sin2));
+		final double cosAlpha = Math.min(1, ((double) d * d + (double) r * r - t * t) / (2.0 * d * r));
+		final float sinAlpha = (float) Math.sqrt(Math.max(0, 1 - cosAlpha * cosAlpha));
+		final double phi = 2 * Math.PI * v;
+		final Vec3 w = toCenter.scale(-1 / d);
+		final ONB onb = ONB.fromWU(w, Math.abs(w.x()) < 0.9f ? Vec3.X : Vec3.Y);
+		return m.add(onb.combine(sinAlpha * (float) Math.cos(phi),
+				sinAlpha * (float) Math.sin(phi), (float) cosAlpha).scale(r));
+	}
+
+	@Override
+	public int getSamples() {
+		return samples;
+	}
+
+	@Override
+	public BBox bbox() {
+		final Vec3 extent = new Vec3(r, r, r);
+		return BBox.create(m.sub(extent), m.add(extent));
+	}
+}
@@ -0,0 +1,427 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import raytracer.core.Obj;
+import raytracer.geom.BBox;
+import raytracer.math.Point;
+
+/**
+ * Builds a binary hierarchy like {@link SAHBuilder}, but additionally
+ * considers spatial splits (Stich et al., "Spatial Splits in Bounding Volume
+ * Hierarchies"). A spatial split cuts the bounds of a node by a plane and
+ * references objects straddling the plane from both children, each reference
+ * clipped to its side with {@link Obj#clip(BBox)}. Long, thin objects then no
+ * longer make the boxes of both children span the whole node.
+ *
+ * Spatial splits are only evaluated for nodes whose best object split has
+ * children overlapping by more than a small fraction of the root surface, and
+ * only as long as the number of duplicated references stays within the growth
+ * budget. Objects may be referenced by several leaves of the result, so
+ * {@link #getObjects()} can contain an object more than once.
+ */
+final class SplitBuilder {
+
+    /** The minimum overlap of object split children relative to the root area */
+    static final float OVERLAP = 1e-5f;
+    /** The maximum depth of the hierarchy */
+    static final int MAX_DEPTH = 64;
+
+    private final Obj[] source;
+    private final List<Obj> order = new ArrayList<Obj>();
+    private int budget;
+    private float rootArea;
+
+    /**
+     * Creates a builder for the given objects
+     *
+     * @param objs
+     *            The objects, all of them with finite bounds
+     * @param growth
+     *            The number of additional references allowed, as a fraction
+     *            of the number of objects
+     * @throws IllegalArgumentException
+     *             If the growth is negative
+     */
+    SplitBuilder(final List<Obj> objs, final float growth) {
+        if (!(growth >= 0)) {
+            throw new IllegalArgumentException();
+        }
+        source = objs.toArray(new Obj[objs.size()]);
+        budget = (int) Math.min(Integer.MAX_VALUE, growth * source.length);
+    }
+
+    /**
+     * Returns the object references in leaf order
+     */
+    Obj[] getObjects() {
+        return order.toArray(new Obj[order.size()]);
+    }
+
+    /**
+     * Builds the hierarchy
+     *
+     * @param maxLeaf
+     *            Leaves with more references are split whenever possible
+     * @return The root or null if there are no objects
+     */
+    BuildNode build(final int maxLeaf) {
+        order.clear();
+        if (source.length == 0) {
+            return null;
+        }
+        final int[] ids = new int[source.length];
+        final float[] bounds = new float[6 * source.length];
+        for (int i = 0; i < source.length; i++) {
+            ids[i] = i;
+            final BBox b = source[i].bbox();
+            for (int k = 0; k < 3; k++) {
+                bounds[6 * i + k] = b.getMin().get(k);
+                bounds[6 * i + 3 + k] = b.getMax().get(k);
+            }
+        }
+        final BuildNode root = bounds(bounds, source.length);
+        rootArea = root.area();
+        return build(ids, bounds, source.length, maxLeaf, 0);
+    }
+
+    /**
+     * Returns a node with the union of the given reference bounds
+     */
+    private static BuildNode bounds(final float[] bounds, final int n) {
+        final BuildNode node = new BuildNode();
+        node.minX = node.minY = node.minZ = Float.POSITIVE_INFINITY;
+        node.maxX = node.maxY = node.maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            node.minX = Math.min(node.minX, bounds[6 * i]);
+            node.minY = Math.min(node.minY, bounds[6 * i + 1]);
+            node.minZ = Math.min(node.minZ, bounds[6 * i + 2]);
+            node.maxX = Math.max(node.maxX, bounds[6 * i + 3]);
+            node.maxY = Math.max(node.maxY, bounds[6 * i + 4]);
+            node.maxZ = Math.max(node.maxZ, bounds[6 * i + 5]);
+        }
+        return node;
+    }
+
+    private BuildNode leaf(final BuildNode node, final int[] ids, final int n) {
+        node.first = order.size();
+        node.count = n;
+        for (int i = 0; i < n; i++) {
+            order.add(source[ids[i]]);
+        }
+        return node;
+    }
+
+    private BuildNode build(final int[] ids, final float[] bounds, final int n, final int maxLeaf,
+            final int depth) {
+        final BuildNode node = bounds(bounds, n);
+        if (n <= 1 || depth >= MAX_DEPTH) {
+            return leaf(node, ids, n);
+        }
+        final float[] nmin = { node.minX, node.minY, node.minZ };
+        final float[] nmax = { node.maxX, node.maxY, node.maxZ };
+
+        // object split: binned over the centers of the references
+        final float[] cmin = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+        final float[] cmax = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < 3; k++) {
+                final float c = center(bounds, i, k);
+                cmin[k] = Math.min(cmin[k], c);
+                cmax[k] = Math.max(cmax[k], c);
+            }
+        }
+        float objectCost = Float.POSITIVE_INFINITY;
+        int objectAxis = -1, objectBin = -1;
+        final int bins = SAHBuilder.BINS;
+        final int[] binCount = new int[bins];
+        final float[] binBounds = new float[6 * bins];
+        final float[] rightArea = new float[bins];
+        final float[] acc = new float[6];
+        for (int axis = 0; axis < 3; axis++) {
+            final float extent = cmax[axis] - cmin[axis];
+            if (!(extent > 0)) {
+                continue;
+            }
+            final float scale = bins / extent;
+            reset(binCount, binBounds);
+            for (int i = 0; i < n; i++) {
+                final int b = bin(center(bounds, i, axis), cmin[axis], scale);
+                binCount[b]++;
+                grow(binBounds, b, bounds, i);
+            }
+            reset(acc);
+            for (int b = bins - 1; b > 0; b--) {
+                grow(acc, binBounds, b);
+                rightArea[b] = area(acc);
+            }
+            reset(acc);
+            int leftCount = 0;
+            for (int b = 0; b < bins - 1; b++) {
+                grow(acc, binBounds, b);
+                leftCount += binCount[b];
+                final int rightCount = n - leftCount;
+                if (leftCount == 0 || rightCount == 0) {
+                    continue;
+                }
+                final float cost = area(acc) * leftCount + rightArea[b + 1] * rightCount;
+                if (cost < objectCost) {
+                    objectCost = cost;
+                    objectAxis = axis;
+                    objectBin = b;
+                }
+            }
+        }
+
+        // spatial split: binned over the node bounds, references are clipped
+        // to every bin they overlap
+        float spatialCost = Float.POSITIVE_INFINITY;
+        int spatialAxis = -1, spatialBin = -1;
+        if (budget > 0 && (objectAxis < 0
+                || overlap(bounds, n, objectAxis, objectBin, cmin, cmax) > OVERLAP * rootArea)) {
+            final int[] entry = new int[bins], exit = new int[bins];
+            for (int axis = 0; axis < 3; axis++) {
+                final float extent = nmax[axis] - nmin[axis];
+                if (!(extent > 0)) {
+                    continue;
+                }
+                final float scale = bins / extent;
+                reset(entry, binBounds);
+                Arrays.fill(exit, 0);
+                for (int i = 0; i < n; i++) {
+                    final int lo = bin(bounds[6 * i + axis], nmin[axis], scale);
+                    final int hi = bin(bounds[6 * i + 3 + axis], nmin[axis], scale);
+                    entry[lo]++;
+                    exit[hi]++;
+                    if (lo == hi) {
+                        grow(binBounds, lo, bounds, i);
+                        continue;
+                    }
+                    for (int b = lo; b <= hi; b++) {
+                        final float[] part = clip(ids[i], bounds, i, axis, plane(nmin, nmax, axis, b),
+                                plane(nmin, nmax, axis, b + 1));
+                        if (part != null) {
+                            grow(binBounds, b, part, 0);
+                        }
+                    }
+                }
+                reset(acc);
+                for (int b = bins - 1; b > 0; b--) {
+                    grow(acc, binBounds, b);
+                    rightArea[b] = area(acc);
+                }
+                reset(acc);
+                int leftCount = 0, rightCount = n;
+                for (int b = 0; b < bins - 1; b++) {
+                    grow(acc, binBounds, b);
+                    leftCount += entry[b];
+                    rightCount -= exit[b];
+                    if (leftCount == 0 || rightCount == 0 || leftCount + rightCount - n > budget) {
+                        continue;
+                    }
+                    final float cost = area(acc) * leftCount + rightArea[b + 1] * rightCount;
+                    if (cost < spatialCost) {
+                        spatialCost = cost;
+                        spatialAxis = axis;
+                        spatialBin = b;
+                    }
+                }
+            }
+        }
+
+        final float bestCost = Math.min(objectCost, spatialCost);
+        if (objectAxis < 0 && spatialAxis < 0) {
+            return leaf(node, ids, n);
+        }
+        final float parentArea = node.area();
+        final float splitCost = parentArea > 0 ? SAHBuilder.TRAVERSAL_COST + bestCost / parentArea
+                : SAHBuilder.TRAVERSAL_COST + n;
+        if (n <= maxLeaf && splitCost >= n) {
+            return leaf(node, ids, n);
+        }
+
+        final int[][] childIds = new int[2][];
+        final float[][] childBounds = new float[2][];
+        final int[] childCount = new int[2];
+        boolean split = false;
+        if (spatialCost < objectCost) {
+            split = splitSpatial(ids, bounds, n, spatialAxis, plane(nmin, nmax, spatialAxis, spatialBin + 1),
+                    childIds, childBounds, childCount);
+        }
+        if (!split) {
+            if (objectAxis < 0) {
+                return leaf(node, ids, n);
+            }
+            splitObjects(ids, bounds, n, objectAxis, objectBin, cmin[objectAxis],
+                    bins / (cmax[objectAxis] - cmin[objectAxis]), childIds, childBounds, childCount);
+        }
+        node.left = build(childIds[0], childBounds[0], childCount[0], maxLeaf, depth + 1);
+        node.right = build(childIds[1], childBounds[1], childCount[1], maxLeaf, depth + 1);
+        node.count = 0;
+        return node;
+    }
+
+    /**
+     * Returns the surface area of the overlap of the children of an object
+     * split
+     */
+    private static float overlap(final float[] bounds, final int n, final int axis, final int bin,
+            final float[] cmin, final float[] cmax) {
+        final float scale = SAHBuilder.BINS / (cmax[axis] - cmin[axis]);
+        final float[] left = new float[6], right = new float[6];
+        reset(left);
+        reset(right);
+        for (int i = 0; i < n; i++) {
+            grow(bin(center(bounds, i, axis), cmin[axis], scale) <= bin ? left : right, 0, bounds, i);
+        }
+        final float[] both = new float[6];
+        for (int k = 0; k < 3; k++) {
+            both[k] = Math.max(left[k], right[k]);
+            both[3 + k] = Math.min(left[3 + k], right[3 + k]);
+            if (both[k] > both[3 + k]) {
+                return 0;
+            }
+        }
+        return area(both);
+    }
+
+    private static void splitObjects(final int[] ids, final float[] bounds, final int n, final int axis,
+            final int bin, final float min, final float scale, final int[][] childIds,
+            final float[][] childBounds, final int[] childCount) {
+        for (int side = 0; side < 2; side++) {
+            childIds[side] = new int[n];
+            childBounds[side] = new float[6 * n];
+            childCount[side] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            add(bin(center(bounds, i, axis), min, scale) <= bin ? 0 : 1, ids[i], bounds, i, childIds,
+                    childBounds, childCount);
+        }
+    }
+
+    /**
+     * Distributes the references to both sides of the plane, clipping those
+     * which straddle it. Returns false if one side would be empty or contain
+     * all references, since the split would then not make progress.
+     */
+    private boolean splitSpatial(final int[] ids, final float[] bounds, final int n, final int axis,
+            final float plane, final int[][] childIds, final float[][] childBounds, final int[] childCount) {
+        for (int side = 0; side < 2; side++) {
+            childIds[side] = new int[n];
+            childBounds[side] = new float[6 * n];
+            childCount[side] = 0;
+        }
+        int duplicates = 0;
+        for (int i = 0; i < n; i++) {
+            if (bounds[6 * i + 3 + axis] <= plane) {
+                add(0, ids[i], bounds, i, childIds, childBounds, childCount);
+            } else if (bounds[6 * i + axis] >= plane) {
+                add(1, ids[i], bounds, i, childIds, childBounds, childCount);
+            } else {
+                final float[] left = clip(ids[i], bounds, i, axis, Float.NEGATIVE_INFINITY, plane);
+                final float[] right = clip(ids[i], bounds, i, axis, plane, Float.POSITIVE_INFINITY);
+                if (left != null) {
+                    add(0, ids[i], left, 0, childIds, childBounds, childCount);
+                }
+                if (right != null) {
+                    add(1, ids[i], right, 0, childIds, childBounds, childCount);
+                }
+                if (left != null && right != null) {
+                    duplicates++;
+                }
+            }
+        }
+        if (childCount[0] == 0 || childCount[1] == 0 || childCount[0] == n + duplicates
+                || childCount[1] == n + duplicates || duplicates > budget) {
+            return false;
+        }
+        budget -= duplicates;
+        return true;
+    }
+
+    private static void add(final int side, final int id, final float[] bounds, final int i,
+            final int[][] childIds, final float[][] childBounds, final int[] childCount) {
+        final int c = childCount[side]++;
+        if (c == childIds[side].length) {
+            childIds[side] = Arrays.copyOf(childIds[side], 2 * c);
+            childBounds[side] = Arrays.copyOf(childBounds[side], 12 * c);
+        }
+        childIds[side][c] = id;
+        System.arraycopy(bounds, 6 * i, childBounds[side], 6 * c, 6);
+    }
+
+    /**
+     * Clips the reference to the slab [lo, hi] along the axis, returns its
+     * new bounds or null if nothing is left
+     */
+    private float[] clip(final int id, final float[] bounds, final int i, final int axis, final float lo,
+            final float hi) {
+        final float[] min = { bounds[6 * i], bounds[6 * i + 1], bounds[6 * i + 2] };
+        final float[] max = { bounds[6 * i + 3], bounds[6 * i + 4], bounds[6 * i + 5] };
+        min[axis] = Math.max(min[axis], lo);
+        max[axis] = Math.min(max[axis], hi);
+        if (min[axis] > max[axis]) {
+            return null;
+        }
+        final BBox box = source[id].clip(BBox.create(new Point(min[0], min[1], min[2]),
+                new Point(max[0], max[1], max[2])));
+        final float[] part = new float[6];
+        for (int k = 0; k < 3; k++) {
+            part[k] = box.getMin().get(k);
+            part[3 + k] = box.getMax().get(k);
+            if (!(part[k] <= part[3 + k])) {
+                return null;
+            }
+        }
+        return part;
+    }
+
+    private static float plane(final float[] min, final float[] max, final int axis, final int b) {
+        return b >= SAHBuilder.BINS ? max[axis] : min[axis] + (max[axis] - min[axis]) * b / SAHBuilder.BINS;
+    }
+
+    private static float center(final float[] bounds, final int i, final int axis) {
+        return (bounds[6 * i + axis] + bounds[6 * i + 3 + axis]) * 0.5f;
+    }
+
+    private static int bin(final float c, final float min, final float scale) {
+        return Math.max(0, Math.min(SAHBuilder.BINS - 1, (int) ((c - min) * scale)));
+    }
+
+    private static void reset(final float[] acc) {
+        acc[0] = acc[1] = acc[2] = Float.POSITIVE_INFINITY;
+        acc[3] = acc[4] = acc[5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void reset(final int[] binCount, final float[] binBounds) {
+        Arrays.fill(binCount, 0);
+        for (int b = 0; b < binCount.length; b++) {
+            binBounds[6 * b] = binBounds[6 * b + 1] = binBounds[6 * b + 2] = Float.POSITIVE_INFINITY;
+            binBounds[6 * b + 3] = binBounds[6 * b + 4] = binBounds[6 * b + 5] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void grow(final float[] acc, final float[] binBounds, final int b) {
+        for (int k = 0; k < 3; k++) {
+            acc[k] = Math.min(acc[k], binBounds[6 * b + k]);
+            acc[3 + k] = Math.max(acc[3 + k], binBounds[6 * b + 3 + k]);
+        }
+    }
+
+    private static void grow(final float[] binBounds, final int b, final float[] bounds, final int i) {
+        for (int k = 0; k < 3; k++) {
+            binBounds[6 * b + k] = Math.min(binBounds[6 * b + k], bounds[6 * i + k]);
+            binBounds[6 * b + 3 + k] = Math.max(binBounds[6 * b + 3 + k], bounds[6 * i + 3 + k]);
+        }
+    }
+
+    private static float area(final float[] b) {
+        if (b[0] > b[3]) {
+            return 0;
+        }
+        final float ex = b[3] - b[0], ey = b[4] - b[1], ez = b[5] - b[2];
+        return ex * ey + ey * ez + ez * ex;
+    }
+}
@@ -38,6 +38,14 @@ public class StandardObj implements Obj {
 		return shader.shade(hit, trace);
 	}
 
+	/**
+	 * Returns the internal shader
+	 */
+	@Override
+	public Shader getShader() {
+		return shader;
+	}
+
 	/**
 	 * Returns the bounding box of the encapsulated primitive
 	 */
@@ -46,6 +54,14 @@ public class StandardObj implements Obj {
 		return primitive.bbox();
 	}
 
+	/**
+	 * Clips the encapsulated primitive against the given box
+	 */
+	@Override
+	public BBox clip(final BBox box) {
+		return primitive.clip(box);
+	}
+
 	/**
 	 * Computes a hit point with the given parameters
 	 *
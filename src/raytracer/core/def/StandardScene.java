@@ -4,6 +4,7 @@ import java.util.Collection;
 
 import raytracer.core.Camera;
 import raytracer.core.Hit;
+import raytracer.core.LightSampler;
 import raytracer.core.LightSource;
 import raytracer.core.Scene;
 import raytracer.geom.Primitive;
@@ -19,6 +20,7 @@ public class StandardScene implements Scene {
 	private final Primitive accel;
 	private final Color background = Color.BLACK;
 	private final Camera camera;
+	private LightSampler lightSampler;
 
 	/**
 	 * Creates a new standard scene
@@ -67,6 +69,28 @@ public class StandardScene implements Scene {
 		return lights;
 	}
 
+	/**
+	 * Sets the sampler choosing a subset of the light sources per shading
+	 * point, e.g. a {@link LightTree} for scenes with many lights
+	 *
+	 * @param sampler
+	 *            The light sampler or null to use all lights
+	 */
+	public void setLightSampler(final LightSampler sampler) {
+		this.lightSampler = sampler;
+	}
+
+	/**
+	 * Returns the sampler choosing a subset of the light sources per shading
+	 * point
+	 *
+	 * @return The light sampler or null if all lights are to be used
+	 */
+	@Override
+	public LightSampler getLightSampler() {
+		return lightSampler;
+	}
+
 	/**
 	 * Computes an hit (if possible) with the given ray and the scene
 	 *
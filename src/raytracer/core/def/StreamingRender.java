@@ -0,0 +1,152 @@
+package raytracer.core.def;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import raytracer.core.Renderer;
+
+/**
+ * Renders images of arbitrary size with a constant amount of heap. Tiles are
+ * submitted band by band with a bounded number of tiles in flight, finished
+ * tiles go to a {@link MappedFrameBuffer} and every band of rows is encoded
+ * as soon as all of its tiles are done.
+ */
+public class StreamingRender {
+
+	private final Renderer renderer;
+	private final MappedFrameBuffer fb;
+	private final int packet;
+	private final int[] open;
+	private IOException failure = null;
+
+	/**
+	 * Creates a new streaming render
+	 *
+	 * @param renderer
+	 *            The renderer, created with the resolution of the frame
+	 *            buffer
+	 * @param fb
+	 *            The frame buffer receiving the tiles
+	 * @param packet
+	 *            The edge length of a tile, which is also the band height
+	 */
+	public StreamingRender(final Renderer renderer, final MappedFrameBuffer fb, final int packet) {
+		this.renderer = renderer;
+		this.fb = fb;
+		this.packet = packet;
+		this.open = new int[(fb.getHeight() + packet - 1) / packet];
+		final int tilesPerBand = (fb.getWidth() + packet - 1) / packet;
+		for (int i = 0; i < open.length; i++)
+			open[i] = tilesPerBand;
+	}
+
+	private synchronized void finished(final int band) {
+		if (--open[band] == 0)
+			notifyAll();
+	}
+
+	/**
+	 * Records a failure, keeping the first one
+	 */
+	private synchronized void failed(final IOException e) {
+		if (failure == null)
+			failure = e;
+		notifyAll();
+	}
+
+	private synchronized boolean hasFailed() {
+		return failure != null;
+	}
+
+	private synchronized void awaitBand(final int band) throws IOException, InterruptedException {
+		while (open[band] > 0 && failure == null)
+			wait();
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Renders the image and streams it to the given writer. Once a tile has
+	 * failed no further tiles are submitted.
+	 *
+	 * @param exe
+	 *            The executor running the tiles
+	 * @param inFlight
+	 *            The maximum number of tiles submitted but not yet finished
+	 * @param png
+	 *            The image writer
+	 * @throws IOException
+	 *             If the frame buffer or the image could not be written
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted
+	 */
+	public void run(final ExecutorService exe, final int inFlight, final PngStreamWriter png)
+			throws IOException, InterruptedException {
+		final Semaphore slots = new Semaphore(inFlight);
+		final int width = fb.getWidth(), height = fb.getHeight();
+
+		final Thread submitter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int y = 0; y < height; y += packet) {
+						for (int x = 0; x < width; x += packet) {
+							slots.acquire();
+							if (hasFailed()) {
+								slots.release();
+								return;
+							}
+							final int band = y / packet;
+							final Callable<Renderer.Work> task = renderer.render(x, y,
+									Math.min(packet, width - x), Math.min(packet, height - y));
+							exe.submit(new Callable<Void>() {
+								@Override
+								public Void call() throws Exception {
+									try {
+										final Renderer.Work w = task.call();
+										fb.write(w.x, w.y, w.w, w.h, w.pixels);
+										finished(band);
+									} catch (final IOException e) {
+										failed(e);
+									} catch (final Exception e) {
+										failed(new IOException("tile failed", e));
+									} finally {
+										slots.release();
+									}
+									return null;
+								}
+							});
+						}
+					}
+				} catch (final InterruptedException e) {
+					failed(new IOException("render interrupted", e));
+				} catch (final RejectedExecutionException e) {
+					failed(new IOException("tile rejected", e));
+				}
+			}
+		}, "streaming-submit");
+		submitter.setDaemon(true);
+		submitter.start();
+
+		boolean done = false;
+		try {
+			final int[] row = new int[width];
+			for (int band = 0; band < open.length; band++) {
+				awaitBand(band);
+				for (int y = band * packet; y < Math.min(height, (band + 1) * packet); y++) {
+					fb.readRow(y, row);
+					png.writeRow(row);
+				}
+			}
+			done = true;
+		} finally {
+			// stop the submitter if a tile or the image writer failed
+			if (!done)
+				submitter.interrupt();
+			submitter.join();
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import raytracer.core.Obj;
+
+/**
+ * Improves a built hierarchy by restructuring small treelets (Karras and Aila,
+ * "Fast Parallel Construction of High-Quality Bounding Volume Hierarchies").
+ * A treelet is formed at every inner node by repeatedly opening its inner
+ * child of largest surface area until it has the desired number of leaves.
+ * The binary tree over these leaves with the lowest surface area heuristic
+ * cost is found by dynamic programming over all subsets of the leaves, and it
+ * replaces the treelet if it is cheaper. Nodes are processed bottom up, with
+ * disjoint subtrees processed in parallel.
+ *
+ * The leaves are not changed while treelets are restructured. Afterwards the
+ * objects are reordered depth first and inner nodes over two small leaves are
+ * merged into a single leaf where this lowers the cost, so that a hierarchy
+ * built down to single objects per leaf gets leaves of several objects where
+ * they pay off. Costs are reported relative to the surface area of the root,
+ * with a node traversal costing {@link SAHBuilder#TRAVERSAL_COST} and a
+ * primitive test costing 1.
+ */
+public final class TreeletOptimizer {
+
+    /** The default number of leaves per treelet */
+    public static final int DEFAULT_LEAVES = 7;
+    /** The default number of bottom up passes */
+    public static final int DEFAULT_PASSES = 3;
+
+    /** Subtrees at most this deep from the root are processed as separate tasks */
+    private static final int FORK_DEPTH = 8;
+
+    private final int leaves, passes;
+
+    /**
+     * The result of an optimization
+     */
+    public static final class Report {
+        private final float before, after;
+        private final int treelets;
+
+        Report(final float before, final float after, final int treelets) {
+            this.before = before;
+            this.after = after;
+            this.treelets = treelets;
+        }
+
+        /**
+         * Returns the cost of the hierarchy before the optimization
+         *
+         * @return The cost before
+         */
+        public float getCostBefore() {
+            return before;
+        }
+
+        /**
+         * Returns the cost of the hierarchy after the optimization
+         *
+         * @return The cost after
+         */
+        public float getCostAfter() {
+            return after;
+        }
+
+        /**
+         * Returns the number of treelets which were replaced
+         *
+         * @return The number of restructured treelets
+         */
+        public int getRestructured() {
+            return treelets;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("SAH cost %.2f -> %.2f, %d treelets restructured", before, after, treelets);
+        }
+    }
+
+    /**
+     * Creates an optimizer with treelets of {@link #DEFAULT_LEAVES} leaves and
+     * {@link #DEFAULT_PASSES} passes
+     */
+    public TreeletOptimizer() {
+        this(DEFAULT_LEAVES, DEFAULT_PASSES);
+    }
+
+    /**
+     * Creates an optimizer
+     *
+     * @param leaves
+     *            The number of leaves per treelet, between 3 and 12
+     * @param passes
+     *            The number of bottom up passes over the hierarchy
+     * @throws IllegalArgumentException
+     *             If the number of leaves or passes is out of range
+     */
+    public TreeletOptimizer(final int leaves, final int passes) {
+        if (leaves < 3 || leaves > 12 || passes < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.leaves = leaves;
+        this.passes = passes;
+    }
+
+    /**
+     * Optimizes the hierarchy of an accelerator and encodes it again. The
+     * accelerator is built first if necessary. It must not be used for
+     * tracing while it is optimized.
+     *
+     * @param bvh
+     *            A {@link CompactBVH} or {@link WideBVH}
+     * @return The costs before and after the optimization
+     * @throws IllegalArgumentException
+     *             If the accelerator is not a hierarchy built from
+     *             {@link BuildNode}s
+     */
+    public Report optimize(final Accelerator bvh) {
+        if (bvh instanceof CompactBVH) {
+            final CompactBVH compact = (CompactBVH) bvh;
+            synchronized (compact) {
+                final BuildNode root = compact.getTree();
+                final Obj[] objects = compact.getLeafObjects().clone();
+                final Report report = optimize(root, objects, CompactBVH.MAX_LEAF);
+                compact.refresh(objects);
+                return report;
+            }
+        } else if (bvh instanceof WideBVH) {
+            final WideBVH wide = (WideBVH) bvh;
+            synchronized (wide) {
+                final BuildNode root = wide.getTree();
+                final Obj[] objects = wide.getLeafObjects().clone();
+                final Report report = optimize(root, objects, WideBVH.MAX_LEAF);
+                wide.refresh(objects);
+                return report;
+            }
+        }
+        throw new IllegalArgumentException();
+    }
+
+    /**
+     * Returns the cost of a hierarchy relative to the area of its root
+     *
+     * @param root
+     *            The root, may be null
+     * @return The cost of the hierarchy
+     */
+    static float cost(final BuildNode root) {
+        if (root == null) {
+            return 0;
+        }
+        final float area = root.area();
+        return area > 0 ? update(root) / area : 0;
+    }
+
+    /**
+     * Computes and stores the cost of every node of the subtree
+     */
+    private static float update(final BuildNode node) {
+        node.cost = node.isLeaf() ? node.area() * node.count
+                : node.area() * SAHBuilder.TRAVERSAL_COST + update(node.left) + update(node.right);
+        return node.cost;
+    }
+
+    private Report optimize(final BuildNode root, final Obj[] objects, final int maxLeaf) {
+        final float before = cost(root);
+        if (root == null || root.isLeaf()) {
+            return new Report(before, before, 0);
+        }
+        int restructured = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            final Pass task = new Pass(root, 0);
+            ForkJoinPool.commonPool().invoke(task);
+            if (task.restructured == 0) {
+                break;
+            }
+            restructured += task.restructured;
+        }
+        // order the objects depth first, so that every subtree references a
+        // contiguous range and can be merged into a leaf
+        gather(root, objects.clone(), objects, 0);
+        update(root);
+        merge(root, maxLeaf);
+        return new Report(before, cost(root), restructured);
+    }
+
+    private static int gather(final BuildNode node, final Obj[] from, final Obj[] to, final int next) {
+        if (node.isLeaf()) {
+            System.arraycopy(from, node.first, to, next, node.count);
+            node.first = next;
+            return next + node.count;
+        }
+        return gather(node.right, from, to, gather(node.left, from, to, next));
+    }
+
+    /**
+     * Replaces inner nodes over two leaves by a single leaf where this is
+     * cheaper and the leaf is not larger than the given size
+     */
+    private static void merge(final BuildNode node, final int maxLeaf) {
+        if (node.isLeaf()) {
+            return;
+        }
+        merge(node.left, maxLeaf);
+        merge(node.right, maxLeaf);
+        // the children may just have been merged into leaves
+        node.cost = node.area() * SAHBuilder.TRAVERSAL_COST + node.left.cost + node.right.cost;
+        final int count = node.left.count + node.right.count;
+        if (node.left.isLeaf() && node.right.isLeaf() && count <= maxLeaf
+                && node.area() * count <= node.cost) {
+            node.first = node.left.first;
+            node.count = count;
+            node.left = node.right = null;
+            node.cost = node.area() * count;
+        }
+    }
+
+    /**
+     * Optimizes all treelets of a subtree bottom up
+     */
+    private final class Pass extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final BuildNode node;
+        private final int depth;
+        int restructured = 0;
+
+        Pass(final BuildNode node, final int depth) {
+            this.node = node;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            restructured = run(node, depth);
+        }
+
+        private int run(final BuildNode n, final int level) {
+            if (n.isLeaf()) {
+                n.cost = n.area() * n.count;
+                return 0;
+            }
+            int count;
+            if (level < FORK_DEPTH) {
+                final Pass left = new Pass(n.left, level + 1), right = new Pass(n.right, level + 1);
+                invokeAll(left, right);
+                count = left.restructured + right.restructured;
+            } else {
+                count = run(n.left, level + 1) + run(n.right, level + 1);
+            }
+            n.cost = n.area() * SAHBuilder.TRAVERSAL_COST + n.left.cost + n.right.cost;
+            return restructure(n) ? count + 1 : count;
+        }
+    }
+
+    /**
+     * Replaces the treelet rooted at the node by its optimal restructuring,
+     * returns whether it changed. The costs of the nodes below the treelet
+     * leaves must be up to date.
+     */
+    private boolean restructure(final BuildNode root) {
+        final List<BuildNode> leafNodes = new ArrayList<BuildNode>(leaves);
+        final List<BuildNode> inner = new ArrayList<BuildNode>(leaves);
+        inner.add(root);
+        leafNodes.add(root.left);
+        leafNodes.add(root.right);
+        while (leafNodes.size() < leaves) {
+            int largest = -1;
+            for (int i = 0; i < leafNodes.size(); i++) {
+                if (!leafNodes.get(i).isLeaf()
+                        && (largest < 0 || leafNodes.get(i).area() > leafNodes.get(largest).area())) {
+                    largest = i;
+                }
+            }
+            if (largest < 0) {
+                break;
+            }
+            final BuildNode open = leafNodes.remove(largest);
+            inner.add(open);
+            leafNodes.add(open.left);
+            leafNodes.add(open.right);
+        }
+        final int n = leafNodes.size();
+        if (n < 3) {
+            return false;
+        }
+
+        // bounds and cost of the best tree for every subset of the leaves
+        final int full = (1 << n) - 1;
+        final float[] bounds = new float[6 * (full + 1)];
+        final float[] cost = new float[full + 1];
+        final int[] partition = new int[full + 1];
+        for (int s = 1; s <= full; s++) {
+            final int low = Integer.numberOfTrailingZeros(s);
+            final BuildNode leaf = leafNodes.get(low);
+            final int rest = s & (s - 1);
+            if (rest == 0) {
+                bounds[6 * s] = leaf.minX;
+                bounds[6 * s + 1] = leaf.minY;
+                bounds[6 * s + 2] = leaf.minZ;
+                bounds[6 * s + 3] = leaf.maxX;
+                bounds[6 * s + 4] = leaf.maxY;
+                bounds[6 * s + 5] = leaf.maxZ;
+                cost[s] = leaf.cost;
+                continue;
+            }
+            bounds[6 * s] = Math.min(bounds[6 * rest], leaf.minX);
+            bounds[6 * s + 1] = Math.min(bounds[6 * rest + 1], leaf.minY);
+            bounds[6 * s + 2] = Math.min(bounds[6 * rest + 2], leaf.minZ);
+            bounds[6 * s + 3] = Math.max(bounds[6 * rest + 3], leaf.maxX);
+            bounds[6 * s + 4] = Math.max(bounds[6 * rest + 4], leaf.maxY);
+            bounds[6 * s + 5] = Math.max(bounds[6 * rest + 5], leaf.maxZ);
+
+            // every partition once: the part containing the lowest leaf
+            float best = Float.POSITIVE_INFINITY;
+            int bestPart = 0;
+            final int lowBit = s & -s;
+            for (int p = (rest - 1) & rest; ; p = (p - 1) & rest) {
+                final int part = p | lowBit;
+                final float c = cost[part] + cost[s ^ part];
+                if (c < best) {
+                    best = c;
+                    bestPart = part;
+                }
+                if (p == 0) {
+                    break;
+                }
+            }
+            final float ex = bounds[6 * s + 3] - bounds[6 * s], ey = bounds[6 * s + 4] - bounds[6 * s + 1];
+            final float ez = bounds[6 * s + 5] - bounds[6 * s + 2];
+            cost[s] = (ex * ey + ey * ez + ez * ex) * SAHBuilder.TRAVERSAL_COST + best;
+            partition[s] = bestPart;
+        }
+
+        if (!(cost[full] < root.cost * (1 - 1e-5f))) {
+            return false;
+        }
+        final List<BuildNode> pool = new ArrayList<BuildNode>(inner.subList(1, inner.size()));
+        assign(root, full, partition, cost, leafNodes, pool);
+        return true;
+    }
+
+    /**
+     * Rebuilds the node as the best tree over the given subset of the leaves,
+     * taking inner nodes from the pool
+     */
+    private static void assign(final BuildNode node, final int s, final int[] partition, final float[] cost,
+            final List<BuildNode> leafNodes, final List<BuildNode> pool) {
+        final int part = partition[s];
+        node.left = child(part, partition, cost, leafNodes, pool);
+        node.right = child(s ^ part, partition, cost, leafNodes, pool);
+        node.fit();
+        node.cost = cost[s];
+    }
+
+    private static BuildNode child(final int s, final int[] partition, final float[] cost,
+            final List<BuildNode> leafNodes, final List<BuildNode> pool) {
+        if ((s & (s - 1)) == 0) {
+            return leafNodes.get(Integer.numberOfTrailingZeros(s));
+        }
+        final BuildNode node = pool.remove(pool.size() - 1);
+        assign(node, s, partition, cost, leafNodes, pool);
+        return node;
+    }
+}
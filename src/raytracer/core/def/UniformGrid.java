@@ -0,0 +1,345 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import raytracer.core.Hit;
+import raytracer.core.Obj;
+import raytracer.core.TraversalStats;
+import raytracer.geom.BBox;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+
+/**
+ * A uniform grid over the bounds of its objects, traversed cell by cell along
+ * the ray with a 3D digital differential analyzer (Amanatides and Woo). Every
+ * cell lists the objects overlapping it; objects spanning several cells are
+ * clipped against each of them with {@link Obj#clip(BBox)}, so long triangles
+ * are only listed in the cells they actually pass through. The traversal
+ * stops at the first cell containing a hit, since no later cell can contain
+ * a closer one.
+ *
+ * The resolution is chosen so that there are about {@link #DEFAULT_DENSITY}
+ * cells per object, with roughly cubic cells. Grids adapt badly to scenes
+ * with very uneven density, so cells which still contain more than
+ * {@link #NESTED_THRESHOLD} objects are given their own nested grid, up to
+ * the configured number of levels.
+ *
+ * The grid is built by {@link #build()} before the first trace after objects
+ * were added or removed.
+ * Objects with infinite bounds, such as planes, are kept out of the grid and
+ * tested after its traversal.
+ */
+public class UniformGrid extends Accelerator {
+
+    /** The default number of cells per object */
+    public static final float DEFAULT_DENSITY = 3;
+    /** The maximum resolution along each axis */
+    public static final int MAX_RESOLUTION = 128;
+    /** Cells with more objects get a nested grid */
+    public static final int NESTED_THRESHOLD = 32;
+
+    private final float density;
+    private final int levels;
+    private final List<Obj> pending = new ArrayList<Obj>();
+    /** Objects with infinite bounds, tested after the traversal */
+    private final List<Obj> unbounded = new ArrayList<Obj>();
+    private BBox boundingBox = BBox.EMPTY;
+    private volatile boolean built = false;
+
+    private final float[] min = new float[3], cellSize = new float[3];
+    private final int[] res = new int[3];
+    /** Offsets of the object lists of the cells into {@link #items} */
+    private int[] cellStart = new int[1];
+    private Obj[] items = new Obj[0];
+
+    /**
+     * Creates a grid with the default density and two levels
+     */
+    public UniformGrid() {
+        this(DEFAULT_DENSITY, 2);
+    }
+
+    /**
+     * Creates a grid
+     *
+     * @param density
+     *            The number of cells per object
+     * @param levels
+     *            The number of grid levels, 1 for a single uniform grid
+     * @throws IllegalArgumentException
+     *             If the density is not positive or there is less than one
+     *             level
+     */
+    public UniformGrid(final float density, final int levels) {
+        if (!(density > 0) || levels < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.density = density;
+        this.levels = levels;
+    }
+
+    @Override
+    public BBox bbox() {
+        return unbounded.isEmpty() ? boundingBox : BBox.INF;
+    }
+
+    /**
+     * Adds an object to the grid. The grid is built again before the next
+     * trace.
+     *
+     * @param prim
+     *             The object to add
+     */
+    @Override
+    public synchronized void add(final Obj prim) {
+        if (!isBounded(prim)) {
+            unbounded.add(prim);
+            return;
+        }
+        pending.add(prim);
+        boundingBox = BBox.surround(boundingBox, prim.bbox());
+        built = false;
+    }
+
+    /**
+     * Removes an object. The grid is built again before the next trace.
+     *
+     * @param prim
+     *             The object to remove
+     * @return True if the object was contained
+     */
+    @Override
+    public synchronized boolean remove(final Obj prim) {
+        if (!isBounded(prim)) {
+            return unbounded.remove(prim);
+        }
+        if (!pending.remove(prim)) {
+            return false;
+        }
+        boundingBox = surround(pending);
+        built = false;
+        return true;
+    }
+
+    /**
+     * Returns the number of cells along the given axis
+     *
+     * @param axis
+     *            The axis, 0 to 2
+     * @return The resolution along the axis
+     */
+    public int getResolution(final int axis) {
+        ensureBuilt();
+        return res[axis];
+    }
+
+    /**
+     * Sorts the objects into the cells
+     */
+    public synchronized void build() {
+        final int n = pending.size();
+        if (n == 0) {
+            res[0] = res[1] = res[2] = 0;
+            cellStart = new int[1];
+            items = new Obj[0];
+            built = true;
+            return;
+        }
+        final float[] extent = new float[3];
+        float volume = 1;
+        int flat = 0;
+        for (int k = 0; k < 3; k++) {
+            min[k] = boundingBox.getMin().get(k);
+            extent[k] = boundingBox.getMax().get(k) - min[k];
+            if (extent[k] > 0) {
+                volume *= extent[k];
+            } else {
+                flat++;
+            }
+        }
+        // cells per unit length for about density * n roughly cubic cells
+        final double perLength = Math.pow(density * n / volume, 1.0 / (3 - Math.min(2, flat)));
+        for (int k = 0; k < 3; k++) {
+            res[k] = extent[k] > 0
+                    ? (int) Math.max(1, Math.min(MAX_RESOLUTION, Math.round(extent[k] * perLength)))
+                    : 1;
+            cellSize[k] = extent[k] > 0 ? extent[k] / res[k] : 1;
+        }
+
+        // the cell ranges of the objects, refined by clipping if an object
+        // overlaps more than one cell
+        final int cells = res[0] * res[1] * res[2];
+        final List<List<Obj>> lists = new ArrayList<List<Obj>>(cells);
+        for (int c = 0; c < cells; c++) {
+            lists.add(null);
+        }
+        final int[] lo = new int[3], hi = new int[3];
+        for (final Obj o : pending) {
+            final BBox b = o.bbox();
+            for (int k = 0; k < 3; k++) {
+                lo[k] = cell(b.getMin().get(k), k);
+                hi[k] = cell(b.getMax().get(k), k);
+            }
+            final boolean single = lo[0] == hi[0] && lo[1] == hi[1] && lo[2] == hi[2];
+            for (int z = lo[2]; z <= hi[2]; z++) {
+                for (int y = lo[1]; y <= hi[1]; y++) {
+                    for (int x = lo[0]; x <= hi[0]; x++) {
+                        if (!single && !overlaps(o, x, y, z)) {
+                            continue;
+                        }
+                        final int c = index(x, y, z);
+                        if (lists.get(c) == null) {
+                            lists.set(c, new ArrayList<Obj>(4));
+                        }
+                        lists.get(c).add(o);
+                    }
+                }
+            }
+        }
+
+        // dense cells of an upper level get a nested grid
+        cellStart = new int[cells + 1];
+        int total = 0;
+        for (int c = 0; c < cells; c++) {
+            final List<Obj> list = lists.get(c);
+            if (list != null && levels > 1 && list.size() > NESTED_THRESHOLD && list.size() < n) {
+                final UniformGrid nested = new UniformGrid(density, levels - 1);
+                for (final Obj o : list) {
+                    nested.add(o);
+                }
+                nested.build();
+                list.clear();
+                list.add(nested);
+            }
+            cellStart[c] = total;
+            total += list == null ? 0 : list.size();
+        }
+        cellStart[cells] = total;
+        items = new Obj[total];
+        for (int c = 0; c < cells; c++) {
+            final List<Obj> list = lists.get(c);
+            if (list != null) {
+                for (int i = 0; i < list.size(); i++) {
+                    items[cellStart[c] + i] = list.get(i);
+                }
+            }
+        }
+        built = true;
+    }
+
+    private int cell(final float v, final int axis) {
+        return Math.max(0, Math.min(res[axis] - 1, (int) ((v - min[axis]) / cellSize[axis])));
+    }
+
+    private int index(final int x, final int y, final int z) {
+        return (z * res[1] + y) * res[0] + x;
+    }
+
+    /**
+     * Returns whether the clipped object overlaps the cell, slightly enlarged
+     * so that rounding in the clipping never drops an object touching it
+     */
+    private boolean overlaps(final Obj o, final int x, final int y, final int z) {
+        final int[] c = { x, y, z };
+        final float[] lo = new float[3], hi = new float[3];
+        for (int k = 0; k < 3; k++) {
+            final float eps = cellSize[k] * 1e-4f;
+            lo[k] = min[k] + c[k] * cellSize[k] - eps;
+            hi[k] = min[k] + (c[k] + 1) * cellSize[k] + eps;
+        }
+        final BBox part = o.clip(BBox.create(new Point(lo[0], lo[1], lo[2]), new Point(hi[0], hi[1], hi[2])));
+        return part.getMin().x() <= part.getMax().x();
+    }
+
+    private void ensureBuilt() {
+        if (!built) {
+            synchronized (this) {
+                if (!built) {
+                    build();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Hit hit(final Ray ray, final Obj obj, final float tMin, final float tMax) {
+        return hitUnbounded(unbounded, ray, tMin, tMax, traverse(ray, tMin, tMax));
+    }
+
+    /**
+     * Returns the nearest hit among the objects with finite bounds
+     */
+    private Hit traverse(final Ray ray, final float tMin, final float tMax) {
+        ensureBuilt();
+        TraversalStats.countNode();
+        if (items.length == 0) {
+            return Hit.No.get();
+        }
+        // the interval of the ray inside the grid
+        final Point base = ray.base();
+        float t0 = tMin, t1 = tMax;
+        for (int k = 0; k < 3; k++) {
+            final float inv = ray.invDir().get(k);
+            final float a = (min[k] - base.get(k)) * inv;
+            final float b = (min[k] + res[k] * cellSize[k] - base.get(k)) * inv;
+            t0 = Math.max(t0, Math.min(a, b));
+            t1 = Math.min(t1, Math.max(a, b));
+        }
+        if (!(t0 <= t1)) {
+            return Hit.No.get();
+        }
+
+        // the cell containing the entry point and the distances to the next
+        // cell boundary along every axis
+        final int[] cell = new int[3], step = new int[3], out = new int[3];
+        final float[] next = new float[3], delta = new float[3];
+        for (int k = 0; k < 3; k++) {
+            final float o = base.get(k), d = ray.dir().get(k), inv = ray.invDir().get(k);
+            cell[k] = cell(o + d * t0, k);
+            if (d > 0) {
+                step[k] = 1;
+                out[k] = res[k];
+                next[k] = (min[k] + (cell[k] + 1) * cellSize[k] - o) * inv;
+                delta[k] = cellSize[k] * inv;
+            } else if (d < 0) {
+                step[k] = -1;
+                out[k] = -1;
+                next[k] = (min[k] + cell[k] * cellSize[k] - o) * inv;
+                delta[k] = -cellSize[k] * inv;
+            } else {
+                step[k] = 0;
+                out[k] = -1;
+                next[k] = Float.POSITIVE_INFINITY;
+                delta[k] = Float.POSITIVE_INFINITY;
+            }
+        }
+
+        Hit nearest = Hit.No.get();
+        float closest = tMax;
+        while (true) {
+            TraversalStats.countNode();
+            final int c = index(cell[0], cell[1], cell[2]);
+            for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+                if (!(items[i] instanceof Accelerator)) {
+                    TraversalStats.countPrimitive();
+                }
+                final Hit hit = items[i].hit(ray, items[i], tMin, closest);
+                if (hit.hits() && hit.getParameter() < closest) {
+                    closest = hit.getParameter();
+                    nearest = hit;
+                }
+            }
+            // step to the neighbour across the nearest boundary
+            final int axis = next[0] < next[1] ? (next[0] < next[2] ? 0 : 2) : (next[1] < next[2] ? 1 : 2);
+            if (closest <= next[axis]) {
+                return nearest; // the hit lies in this cell, later cells are farther
+            }
+            cell[axis] += step[axis];
+            if (cell[axis] == out[axis] || next[axis] > t1) {
+                return nearest;
+            }
+            next[axis] += delta[axis];
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package raytracer.core.def;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import raytracer.core.Hit;
+import raytracer.core.Obj;
+import raytracer.core.TraversalStats;
+import raytracer.geom.BBox;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+
+/**
+ * A bounding volume hierarchy with 4 or 8 children per node. It is built as a
+ * binary hierarchy with the surface area heuristic and then collapsed: every
+ * wide node takes the children of a binary node and repeatedly replaces the
+ * largest inner child by its two children until it has the desired width.
+ *
+ * The child boxes of a node are stored as structure of arrays (all minimum x
+ * of the children next to each other, then all minimum y and so on), so that
+ * all children are slab tested in one loop over the lanes. The loop uses only
+ * plain float arithmetic on consecutive array elements so that it can be
+ * vectorized by the JIT; the incubating Vector API is not used since it would
+ * require every user of the ray tracer to add a module.
+ *
+ * Objects with infinite bounds, such as planes, are kept out of the hierarchy
+ * and tested after its traversal.
+ */
+public class WideBVH extends Accelerator {
+
+    /** The maximum number of objects per leaf, if the heuristic allows */
+    public static final int MAX_LEAF = 4;
+
+    private final int width;
+    private final List<Obj> pending = new ArrayList<Obj>();
+    /** Objects with infinite bounds, tested after the traversal */
+    private final List<Obj> unbounded = new ArrayList<Obj>();
+    private float splitGrowth = 0;
+    private boolean fastBuild = false;
+    private BuildNode tree = null;
+    private BBox boundingBox = BBox.EMPTY;
+    private volatile boolean built = false;
+
+    /** Child boxes, 6 * width floats per node: min x, y, z, max x, y, z */
+    private float[] boxes = new float[0];
+    /** Child references, width ints per node: node index or ~first object */
+    private int[] refs = new int[0];
+    /** Object counts of leaf children, -1 for unused slots */
+    private int[] counts = new int[0];
+    private Obj[] objects = new Obj[0];
+    private int nodeCount = 0, depth = 0;
+
+    /**
+     * Creates a new 4-wide bounding volume hierarchy
+     */
+    public WideBVH() {
+        this(4);
+    }
+
+    /**
+     * Creates a new wide bounding volume hierarchy
+     *
+     * @param width
+     *            The number of children per node, 4 or 8
+     * @throws IllegalArgumentException
+     *             If the width is not 4 or 8
+     */
+    public WideBVH(final int width) {
+        if (width != 4 && width != 8) {
+            throw new IllegalArgumentException();
+        }
+        this.width = width;
+    }
+
+    @Override
+    public BBox bbox() {
+        return unbounded.isEmpty() ? boundingBox : BBox.INF;
+    }
+
+    /**
+     * Adds an object to the acceleration structure. The hierarchy is built
+     * again before the next trace.
+     *
+     * @param prim
+     *             The object to add
+     */
+    @Override
+    public synchronized void add(final Obj prim) {
+        if (!isBounded(prim)) {
+            unbounded.add(prim);
+            return;
+        }
+        pending.add(prim);
+        boundingBox = BBox.surround(boundingBox, prim.bbox());
+        built = false;
+    }
+
+    /**
+     * Removes an object. The hierarchy is built again before the next trace.
+     *
+     * @param prim
+     *             The object to remove
+     * @return True if the object was contained
+     */
+    @Override
+    public synchronized boolean remove(final Obj prim) {
+        if (!isBounded(prim)) {
+            return unbounded.remove(prim);
+        }
+        if (!pending.remove(prim)) {
+            return false;
+        }
+        boundingBox = surround(pending);
+        built = false;
+        return true;
+    }
+
+    /**
+     * Builds the hierarchy over all added objects
+     */
+    public synchronized void build() {
+        final BuildNode root;
+        if (splitGrowth > 0) {
+            final SplitBuilder builder = new SplitBuilder(pending, splitGrowth);
+            root = builder.build(MAX_LEAF);
+            objects = builder.getObjects();
+        } else {
+            final SAHBuilder builder = new SAHBuilder(pending);
+            root = fastBuild ? builder.buildMidpoint(1) : builder.build(MAX_LEAF);
+            objects = builder.getObjects();
+        }
+        tree = root;
+        refresh(objects);
+        built = true;
+    }
+
+    /**
+     * Returns the hierarchy, building it first if necessary
+     */
+    BuildNode getTree() {
+        ensureBuilt();
+        return tree;
+    }
+
+    /**
+     * Returns the objects referenced by the leaves of the hierarchy
+     */
+    Obj[] getLeafObjects() {
+        return objects;
+    }
+
+    /**
+     * Encodes the hierarchy again after it was restructured
+     *
+     * @param leafObjects
+     *            The objects referenced by the leaves
+     */
+    synchronized void refresh(final Obj[] leafObjects) {
+        final BuildNode root = tree;
+        objects = leafObjects;
+        nodeCount = 0;
+        depth = 0;
+        if (root == null) {
+            boxes = new float[0];
+            refs = new int[0];
+            counts = new int[0];
+        } else {
+            final int capacity = root.size();
+            boxes = new float[6 * width * capacity];
+            refs = new int[width * capacity];
+            counts = new int[width * capacity];
+            final List<BuildNode> single = new ArrayList<BuildNode>(1);
+            single.add(root);
+            depth = collapse(root.isLeaf() ? single : children(root), 1);
+        }
+    }
+
+    /**
+     * Enables spatial splits for the next build: nodes whose object partition
+     * would produce overlapping children may instead be cut by a plane, with
+     * the objects straddling it referenced from both sides. This reduces the
+     * overlap caused by long, thin triangles at the cost of memory.
+     *
+     * @param growth
+     *            The number of additional object references allowed, as a
+     *            fraction of the number of objects (e.g. 0.3 for 30% more
+     *            references), or 0 to disable spatial splits
+     * @throws IllegalArgumentException
+     *             If the growth is negative
+     */
+    public synchronized void setSpatialSplits(final float growth) {
+        if (!(growth >= 0)) {
+            throw new IllegalArgumentException();
+        }
+        splitGrowth = growth;
+    }
+
+    /**
+     * Selects a fast build for the next build, which splits nodes at the
+     * middle of their largest extent instead of evaluating the surface area
+     * heuristic, down to single objects per leaf. The result is meant to be
+     * improved with {@link TreeletOptimizer}, which also merges leaves.
+     * Ignored if spatial splits are enabled.
+     *
+     * @param fast
+     *            Whether to build fast
+     */
+    public synchronized void setFastBuild(final boolean fast) {
+        fastBuild = fast;
+    }
+
+    /**
+     * Returns the number of object references stored in the leaves, which
+     * exceeds the number of objects if spatial splits duplicated some
+     *
+     * @return The number of object references
+     */
+    public int getReferenceCount() {
+        return objects.length;
+    }
+
+    /**
+     * Returns the number of nodes
+     *
+     * @return The number of nodes
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of children per node
+     *
+     * @return The width of the nodes
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the children of the wide node replacing the given binary node
+     */
+    private List<BuildNode> children(final BuildNode node) {
+        final List<BuildNode> children = new ArrayList<BuildNode>(width);
+        children.add(node.left);
+        children.add(node.right);
+        while (children.size() < width) {
+            int largest = -1;
+            for (int i = 0; i < children.size(); i++) {
+                if (!children.get(i).isLeaf()
+                        && (largest < 0 || children.get(i).area() > children.get(largest).area())) {
+                    largest = i;
+                }
+            }
+            if (largest < 0) {
+                break;
+            }
+            final BuildNode open = children.remove(largest);
+            children.add(open.left);
+            children.add(open.right);
+        }
+        return children;
+    }
+
+    /**
+     * Writes a wide node with the given children and all nodes below it,
+     * returns the depth of the subtree
+     */
+    private int collapse(final List<BuildNode> children, final int level) {
+        final int node = nodeCount++;
+        final int b = 6 * width * node;
+        int maxDepth = level;
+        for (int c = 0; c < width; c++) {
+            if (c >= children.size()) {
+                // unused slot: an empty box never hit by a ray
+                boxes[b + c] = boxes[b + width + c] = boxes[b + 2 * width + c] = Float.POSITIVE_INFINITY;
+                boxes[b + 3 * width + c] = boxes[b + 4 * width + c] = boxes[b + 5 * width + c] = Float.NEGATIVE_INFINITY;
+                counts[width * node + c] = -1;
+                continue;
+            }
+            final BuildNode child = children.get(c);
+            boxes[b + c] = child.minX;
+            boxes[b + width + c] = child.minY;
+            boxes[b + 2 * width + c] = child.minZ;
+            boxes[b + 3 * width + c] = child.maxX;
+            boxes[b + 4 * width + c] = child.maxY;
+            boxes[b + 5 * width + c] = child.maxZ;
+            if (child.isLeaf()) {
+                refs[width * node + c] = ~child.first;
+                counts[width * node + c] = child.count;
+            } else {
+                refs[width * node + c] = nodeCount;
+                counts[width * node + c] = 0;
+                maxDepth = Math.max(maxDepth, collapse(children(child), level + 1));
+            }
+        }
+        return maxDepth;
+    }
+
+    private void ensureBuilt() {
+        if (!built) {
+            synchronized (this) {
+                if (!built) {
+                    build();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Hit hit(final Ray ray, final Obj obj, final float tMin, final float tMax) {
+        return hitUnbounded(unbounded, ray, tMin, tMax, traverse(ray, tMin, tMax));
+    }
+
+    /**
+     * Returns the nearest hit among the objects with finite bounds
+     */
+    private Hit traverse(final Ray ray, final float tMin, final float tMax) {
+        ensureBuilt();
+        TraversalStats.countNode();
+        if (nodeCount == 0 || !boundingBox.hit(ray, tMin, tMax).hits()) {
+            return Hit.No.get();
+        }
+
+        final Point base = ray.base();
+        final float ox = base.x(), oy = base.y(), oz = base.z();
+        final float ix = ray.invDir().x(), iy = ray.invDir().y(), iz = ray.invDir().z();
+        // offsets of the near and far planes within the child boxes of a node
+        final int nx = ix < 0 ? 3 * width : 0, fx = 3 * width - nx;
+        final int ny = iy < 0 ? 4 * width : width, fy = 5 * width - ny;
+        final int nz = iz < 0 ? 5 * width : 2 * width, fz = 7 * width - nz;
+
+        final int w = width;
+        final float[] box = boxes;
+        final float[] t = new float[w];
+        final int[] hitRef = new int[w], hitCount = new int[w];
+        final float[] hitT = new float[w];
+        final int[] stack = new int[depth * (w - 1) + 2];
+        final int[] stackCount = new int[stack.length];
+        final float[] stackT = new float[stack.length];
+        int sp = 0;
+        stack[sp] = 0;
+        stackCount[sp] = 0;
+        stackT[sp++] = tMin;
+
+        Hit nearest = Hit.No.get();
+        float closest = tMax;
+        while (sp > 0) {
+            sp--;
+            if (!(stackT[sp] <= closest)) {
+                continue;
+            }
+            final int ref = stack[sp];
+            if (ref < 0) {
+                final int first = ~ref, count = stackCount[sp];
+                for (int k = first; k < first + count; k++) {
+                    TraversalStats.countPrimitive();
+                    final Hit hit = objects[k].hit(ray, objects[k], tMin, closest);
+                    if (hit.hits() && hit.getParameter() < closest) {
+                        closest = hit.getParameter();
+                        nearest = hit;
+                    }
+                }
+                continue;
+            }
+
+            TraversalStats.countNode();
+            final int b = 6 * w * ref;
+            // slab test of all children at once
+            for (int c = 0; c < w; c++) {
+                float near = tMin, far = closest;
+                final float ax = (box[b + nx + c] - ox) * ix, bx = (box[b + fx + c] - ox) * ix;
+                final float ay = (box[b + ny + c] - oy) * iy, by = (box[b + fy + c] - oy) * iy;
+                final float az = (box[b + nz + c] - oz) * iz, bz = (box[b + fz + c] - oz) * iz;
+                near = ax > near ? ax : near;
+                near = ay > near ? ay : near;
+                near = az > near ? az : near;
+                far = bx < far ? bx : far;
+                far = by < far ? by : far;
+                far = bz < far ? bz : far;
+                t[c] = near <= far ? near : Float.NaN;
+            }
+
+            // sort the hit children by descending distance and push them, so
+            // that the nearest one is visited next
+            int n = 0;
+            for (int c = 0; c < w; c++) {
+                final int count = counts[w * ref + c];
+                if (count < 0 || !(t[c] <= closest)) {
+                    continue;
+                }
+                int pos = n++;
+                while (pos > 0 && hitT[pos - 1] < t[c]) {
+                    hitRef[pos] = hitRef[pos - 1];
+                    hitCount[pos] = hitCount[pos - 1];
+                    hitT[pos] = hitT[pos - 1];
+                    pos--;
+                }
+                hitRef[pos] = refs[w * ref + c];
+                hitCount[pos] = count;
+                hitT[pos] = t[c];
+            }
+            for (int i = 0; i < n; i++) {
+                stack[sp] = hitRef[i];
+                stackCount[sp] = hitCount[i];
+                stackT[sp++] = hitT[i];
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,273 @@
+package raytracer.core.dist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import raytracer.core.SceneFactory;
+
+/**
+ * Distributes the tiles of an image over worker processes connected via TCP.
+ * Every worker receives the scene description (the class name of a
+ * {@link SceneFactory} plus its arguments) and then requests tiles on demand.
+ * Tiles of workers which die or stop answering are handed out again. The
+ * render fails if no worker is connected for longer than the tile timeout or
+ * if it does not finish before an optional deadline.
+ */
+public class Coordinator {
+
+	static final byte READY = 1;
+	static final byte FAILED = 2;
+	static final byte TILE = 3;
+	static final byte BYE = 4;
+
+	/**
+	 * Receives the finished tiles. Calls are serialized by the coordinator.
+	 */
+	public interface TileSink {
+
+		/**
+		 * Called for every finished tile
+		 *
+		 * @param x
+		 *            The x position of the tile
+		 * @param y
+		 *            The y position of the tile
+		 * @param w
+		 *            The width of the tile
+		 * @param h
+		 *            The height of the tile
+		 * @param pixels
+		 *            The rgb values of the tile, row by row
+		 */
+		void tile(int x, int y, int w, int h, int[] pixels);
+	}
+
+	private final String factory;
+	private final String[] args;
+	private final int xRes, yRes, superSample;
+	private final BlockingDeque<int[]> pending = new LinkedBlockingDeque<int[]>();
+	private final CountDownLatch remaining;
+	private final AtomicInteger live = new AtomicInteger();
+	private volatile boolean finished = false;
+	private int timeout = 60 * 1000;
+	private long deadline = 0;
+
+	/**
+	 * Creates a new coordinator
+	 *
+	 * @param factory
+	 *            The scene factory class, which must be on the class path of
+	 *            the workers
+	 * @param args
+	 *            The arguments passed to the scene factory
+	 * @param xRes
+	 *            The X target resolution to render the image with
+	 * @param yRes
+	 *            The Y target resolution to render the image with
+	 * @param superSample
+	 *            The amount of super sampling to use
+	 * @param packet
+	 *            The edge length of a tile
+	 */
+	public Coordinator(final Class<? extends SceneFactory> factory, final String[] args, final int xRes,
+			final int yRes, final int superSample, final int packet) {
+		this.factory = factory.getName();
+		this.args = args;
+		this.xRes = xRes;
+		this.yRes = yRes;
+		this.superSample = superSample;
+		for (int y = 0; y < yRes; y += packet)
+			for (int x = 0; x < xRes; x += packet)
+				pending.add(new int[] { x, y, Math.min(packet, xRes - x), Math.min(packet, yRes - y) });
+		this.remaining = new CountDownLatch(pending.size());
+	}
+
+	/**
+	 * Sets the time after which an unanswered tile is given to another worker
+	 *
+	 * @param millis
+	 *            The timeout in milliseconds
+	 */
+	public void setTimeout(final int millis) {
+		this.timeout = millis;
+	}
+
+	/**
+	 * Sets the time after which an unfinished render fails
+	 *
+	 * @param millis
+	 *            The deadline in milliseconds after the start of the render,
+	 *            0 for none
+	 * @throws IllegalArgumentException
+	 *             If the deadline is negative
+	 */
+	public void setDeadline(final long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException();
+		this.deadline = millis;
+	}
+
+	/**
+	 * Accepts workers on the given server socket and blocks until every tile
+	 * has been delivered to the sink. Workers may connect at any time; the
+	 * server socket is closed afterwards.
+	 *
+	 * @param server
+	 *            The socket the workers connect to
+	 * @param sink
+	 *            The receiver of the finished tiles
+	 * @throws IOException
+	 *             If no worker was connected for longer than the tile timeout,
+	 *             e.g. because all workers died or failed to create the scene,
+	 *             or if the deadline passed
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted
+	 */
+	public void render(final ServerSocket server, final TileSink sink) throws IOException, InterruptedException {
+		final Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						final Socket s = server.accept();
+						live.incrementAndGet();
+						final Thread t = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								serve(s, sink);
+							}
+						}, "coordinator-" + s.getRemoteSocketAddress());
+						t.setDaemon(true);
+						t.start();
+					} catch (final IOException e) {
+						// socket closed after the last tile
+					}
+				}
+			}
+		}, "coordinator-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		final long start = System.currentTimeMillis();
+		long idleSince = start;
+		try {
+			while (!remaining.await(100, TimeUnit.MILLISECONDS)) {
+				final long now = System.currentTimeMillis();
+				if (deadline > 0 && now - start > deadline)
+					throw new IOException("render not finished after " + deadline + " ms, "
+							+ remaining.getCount() + " tiles left");
+				if (live.get() > 0)
+					idleSince = now;
+				else if (now - idleSince > timeout)
+					throw new IOException("no worker connected for " + timeout + " ms, "
+							+ remaining.getCount() + " tiles left");
+			}
+		} finally {
+			finished = true;
+			try {
+				server.close();
+			} catch (final IOException e) {
+				// ignore, we are done anyway
+			}
+		}
+	}
+
+	private int[] next() throws InterruptedException {
+		while (!finished && remaining.getCount() > 0) {
+			final int[] tile = pending.poll(100, TimeUnit.MILLISECONDS);
+			if (tile != null)
+				return tile;
+		}
+		return null;
+	}
+
+	private void serve(final Socket socket, final TileSink sink) {
+		int[] tile = null;
+		try {
+			socket.setTcpNoDelay(true);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			out.writeUTF(factory);
+			out.writeInt(args.length);
+			for (final String a : args)
+				out.writeUTF(a);
+			out.writeInt(xRes);
+			out.writeInt(yRes);
+			out.writeInt(superSample);
+			out.flush();
+			// building the scene may take a while, so no timeout here
+			if (in.readByte() != READY) {
+				System.err.println("worker failed to create scene: " + in.readUTF());
+				return;
+			}
+			socket.setSoTimeout(timeout);
+
+			while ((tile = next()) != null) {
+				out.writeByte(TILE);
+				for (final int v : tile)
+					out.writeInt(v);
+				out.flush();
+
+				final int[] pixels = new int[tile[2] * tile[3]];
+				for (int i = 0; i < pixels.length; i++)
+					pixels[i] = in.readInt();
+				synchronized (sink) {
+					sink.tile(tile[0], tile[1], tile[2], tile[3], pixels);
+				}
+				tile = null;
+				remaining.countDown();
+			}
+			out.writeByte(BYE);
+			out.flush();
+		} catch (final IOException e) {
+			System.err.println("lost worker " + socket.getRemoteSocketAddress() + ": " + e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			live.decrementAndGet();
+			if (tile != null)
+				pending.addFirst(tile);
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Starts worker processes on this machine which connect to the given port
+	 *
+	 * @param n
+	 *            The number of processes
+	 * @param port
+	 *            The port of the coordinator
+	 * @param threads
+	 *            The number of rendering threads per process
+	 * @return The started processes
+	 * @throws IOException
+	 *             If a process could not be started
+	 */
+	public static Process[] spawnLocalWorkers(final int n, final int port, final int threads) throws IOException {
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		final Process[] procs = new Process[n];
+		for (int i = 0; i < n; i++) {
+			procs[i] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					Worker.class.getName(), "localhost", String.valueOf(port), String.valueOf(threads))
+					.inheritIO().start();
+		}
+		return procs;
+	}
+}
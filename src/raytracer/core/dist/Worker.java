@@ -0,0 +1,130 @@
+package raytracer.core.dist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import raytracer.core.Renderer;
+import raytracer.core.SceneFactory;
+
+/**
+ * A render worker. Each connection to the coordinator renders one tile at a
+ * time; a worker opens one connection per rendering thread and shares the
+ * scene between them.
+ */
+public class Worker implements Runnable {
+
+	/**
+	 * The renderers already built in this JVM, keyed by scene description
+	 */
+	private static final Map<String, Renderer> RENDERERS = new HashMap<String, Renderer>();
+
+	private final String host;
+	private final int port;
+
+	/**
+	 * Creates a new worker connection
+	 *
+	 * @param host
+	 *            The host of the coordinator
+	 * @param port
+	 *            The port of the coordinator
+	 */
+	public Worker(final String host, final int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	private static synchronized Renderer renderer(final String factory, final String[] args, final int xRes,
+			final int yRes, final int superSample) throws Exception {
+		final String key = factory + " " + String.join(" ", args) + " " + xRes + "x" + yRes + "x" + superSample;
+		Renderer r = RENDERERS.get(key);
+		if (r == null) {
+			final SceneFactory f = (SceneFactory) Class.forName(factory).getDeclaredConstructor().newInstance();
+			r = new Renderer(f.create(args), xRes, yRes, superSample);
+			RENDERERS.put(key, r);
+		}
+		return r;
+	}
+
+	private Socket connect() throws IOException, InterruptedException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				return new Socket(host, port);
+			} catch (final ConnectException e) {
+				if (attempt >= 50)
+					throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Connects to the coordinator and renders tiles until it says goodbye
+	 */
+	@Override
+	public void run() {
+		try (Socket socket = connect()) {
+			socket.setTcpNoDelay(true);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			final String factory = in.readUTF();
+			final String[] args = new String[in.readInt()];
+			for (int i = 0; i < args.length; i++)
+				args[i] = in.readUTF();
+			final int xRes = in.readInt(), yRes = in.readInt(), superSample = in.readInt();
+
+			final Renderer r;
+			try {
+				r = renderer(factory, args, xRes, yRes, superSample);
+			} catch (final Exception e) {
+				out.writeByte(Coordinator.FAILED);
+				out.writeUTF(String.valueOf(e));
+				out.flush();
+				return;
+			}
+			out.writeByte(Coordinator.READY);
+			out.flush();
+
+			while (in.readByte() == Coordinator.TILE) {
+				final int x = in.readInt(), y = in.readInt(), w = in.readInt(), h = in.readInt();
+				final Renderer.Work work = r.render(x, y, w, h).call();
+				for (final int p : work.pixels)
+					out.writeInt(p);
+				out.flush();
+			}
+		} catch (final EOFException e) {
+			// coordinator went away, nothing left to do
+		} catch (final Exception e) {
+			System.err.println("worker: " + e);
+		}
+	}
+
+	/**
+	 * Starts a worker process
+	 *
+	 * @param args
+	 *            host, port and optionally the number of rendering threads
+	 */
+	public static void main(final String[] args) throws InterruptedException {
+		final String host = args[0];
+		final int port = Integer.parseInt(args[1]);
+		final int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		final Thread[] pool = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			pool[i] = new Thread(new Worker(host, port), "worker-" + i);
+			pool[i].start();
+		}
+		for (final Thread t : pool)
+			t.join();
+	}
+}
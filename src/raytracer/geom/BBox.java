@@ -62,6 +62,26 @@ public class BBox {
 		return new BBox(min, max);
 	}
 
+	/**
+	 * Computes the intersection of the two given bounding boxes
+	 *
+	 * @param a
+	 *            The first bounding box
+	 * @param b
+	 *            The second bounding box
+	 * @return The bounding box contained in both boxes or {@link #EMPTY} if
+	 *         they do not overlap
+	 */
+	public static BBox intersection(final BBox a, final BBox b) {
+		final Point min = a.pp[MIN].max(b.pp[MIN]);
+		final Point max = a.pp[MAX].min(b.pp[MAX]);
+		for (int i = 0; i != 3; ++i) {
+			if (!(min.get(i) <= max.get(i)))
+				return EMPTY;
+		}
+		return new BBox(min, max);
+	}
+
 	/**
 	 * Checks whether the given box intersects the current once
 	 *
@@ -16,6 +16,20 @@ public interface Primitive {
 	 */
 	BBox bbox();
 
+	/**
+	 * Computes the bounds of the part of this primitive inside the given box.
+	 * The default implementation intersects the bounding box of the primitive
+	 * with the box, which is conservative but not tight.
+	 *
+	 * @param box
+	 *            The box to clip against
+	 * @return The bounds of the clipped primitive or {@link BBox#EMPTY} if no
+	 *         part of the primitive is inside the box
+	 */
+	default BBox clip(final BBox box) {
+		return BBox.intersection(bbox(), box);
+	}
+
 	/**
 	 * Computes a hit point with the given parameters
 	 *
@@ -70,11 +70,8 @@ class Triangle extends BBoxedPrimitive {
 				if (t < 0.0 || (s + t) > 1.0)
 					return false;
 
-				if (t < tmin || t > tmax)
-					return false;
-
 				r = v.dot(qvec) * invDet;
-				return r >= Constants.EPS;
+				return r >= Constants.EPS && r >= tmin && r <= tmax;
 			}
 
 			@Override
@@ -90,6 +87,58 @@ class Triangle extends BBoxedPrimitive {
 		};
 	}
 
+	/**
+	 * Clips the triangle against the six planes of the box (Sutherland-Hodgman)
+	 * and returns the bounds of the remaining polygon
+	 */
+	@Override
+	public BBox clip(final BBox box) {
+		// a triangle clipped by six planes has at most nine vertices
+		float[] poly = new float[3 * 9], next = new float[3 * 9];
+		for (int k = 0; k < 3; k++) {
+			poly[k] = m.get(k);
+			poly[3 + k] = m.get(k) + u.get(k);
+			poly[6 + k] = m.get(k) + v.get(k);
+		}
+		int n = 3;
+		for (int plane = 0; plane < 6 && n > 0; plane++) {
+			final int axis = plane % 3;
+			final boolean upper = plane >= 3;
+			final float bound = upper ? box.getMax().get(axis) : box.getMin().get(axis);
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				final int a = 3 * i, b = 3 * ((i + 1) % n);
+				final float da = upper ? bound - poly[a + axis] : poly[a + axis] - bound;
+				final float db = upper ? bound - poly[b + axis] : poly[b + axis] - bound;
+				if (da >= 0) {
+					System.arraycopy(poly, a, next, 3 * count++, 3);
+				}
+				if ((da >= 0) != (db >= 0)) {
+					final float t = da / (da - db);
+					for (int k = 0; k < 3; k++)
+						next[3 * count + k] = poly[a + k] + t * (poly[b + k] - poly[a + k]);
+					next[3 * count + axis] = bound;
+					count++;
+				}
+			}
+			final float[] swap = poly;
+			poly = next;
+			next = swap;
+			n = count;
+		}
+		if (n == 0)
+			return BBox.EMPTY;
+		Point min = new Point(poly[0], poly[1], poly[2]);
+		Point max = min;
+		for (int i = 1; i < n; i++) {
+			final Point p = new Point(poly[3 * i], poly[3 * i + 1], poly[3 * i + 2]);
+			min = min.min(p);
+			max = max.max(p);
+		}
+		// rounding may move the intersection points slightly outside the box
+		return BBox.intersection(BBox.create(min, max), box);
+	}
+
 	@Override
 	public int hashCode() {
 		return m.hashCode() ^ u.hashCode() ^ v.hashCode();
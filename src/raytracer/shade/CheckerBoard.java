@@ -19,14 +19,29 @@ public class CheckerBoard implements Shader {
 
     @Override
     public Color shade(final Hit hit, final Trace trace) {
+        if (isFirst(hit))
+            return shader1.shade(hit, trace);
+        return shader2.shade(hit, trace);
+    }
+
+    /**
+     * Returns true if the hit lies on a tile of the first shader
+     */
+    boolean isFirst(final Hit hit) {
         final Vec2 texCoord = hit.getUV();
 
         final float u = texCoord.x() / size;
         final float v = texCoord.y() / size;
         final int x = (int) Math.floor(u) + (int) Math.floor(v);
 
-        if (x % 2 == 0)
-            return shader1.shade(hit, trace);
-        return shader2.shade(hit, trace);
+        return x % 2 == 0;
+    }
+
+    Shader getFirst() {
+        return shader1;
+    }
+
+    Shader getSecond() {
+        return shader2;
     }
 }
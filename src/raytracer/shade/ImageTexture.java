@@ -0,0 +1,361 @@
+package raytracer.shade;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import raytracer.core.Hit;
+import raytracer.core.Shader;
+import raytracer.core.Trace;
+import raytracer.math.Color;
+import raytracer.math.Vec2;
+
+/**
+ * A shader mapping an image file onto a surface using the texture coordinates
+ * of the hit. The image is never kept as a whole: when the first tile is
+ * needed, it is decoded once, band by band, into a mipmap pyramid of square
+ * tiles in a temporary side file. Tiles are then read from that file on demand
+ * into a {@link TextureCache}. The level is chosen by the distance of the hit,
+ * so distant surfaces only touch a few small tiles.
+ */
+public class ImageTexture implements Shader {
+
+    /** The edge length of a tile in texels */
+    public static final int TILE = 64;
+    /** The number of source texels decoded at a time while building the pyramid */
+    private static final int BUILD_TEXELS = 1 << 24;
+
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final File file;
+    private final int id;
+    private final int width, height, levels;
+    private final float scale, footprint;
+    private final TextureCache cache;
+    private volatile FileChannel tiles;
+
+    /**
+     * Creates a new image texture using the shared cache
+     *
+     * @param file
+     *            The image file, in any format readable by ImageIO
+     * @param scale
+     *            The size of one repetition of the image in texture coordinates
+     * @param footprint
+     *            The size of a pixel at unit distance from the camera in
+     *            texture coordinates, e.g. the field of view divided by the
+     *            horizontal resolution for surfaces whose texture coordinates
+     *            are world units (0 always uses the full resolution)
+     * @throws IOException
+     *             If the size of the image could not be read
+     */
+    public ImageTexture(final File file, final float scale, final float footprint) throws IOException {
+        this(file, scale, footprint, TextureCache.getShared());
+    }
+
+    /**
+     * Creates a new image texture
+     *
+     * @param file
+     *            The image file, in any format readable by ImageIO
+     * @param scale
+     *            The size of one repetition of the image in texture coordinates
+     * @param footprint
+     *            The size of a pixel at unit distance from the camera in
+     *            texture coordinates (0 always uses the full resolution)
+     * @param cache
+     *            The cache holding the tiles
+     * @throws IOException
+     *             If the size of the image could not be read
+     */
+    public ImageTexture(final File file, final float scale, final float footprint, final TextureCache cache)
+            throws IOException {
+        if (file == null || cache == null || !(scale > 0) || !(footprint >= 0)) {
+            throw new IllegalArgumentException();
+        }
+        this.file = file;
+        this.scale = scale;
+        this.footprint = footprint;
+        this.cache = cache;
+        this.id = ids.getAndIncrement();
+        final ImageReader reader = open();
+        try {
+            this.width = reader.getWidth(0);
+            this.height = reader.getHeight(0);
+        } finally {
+            close(reader);
+        }
+        int l = 1;
+        while (Math.max(width, height) >> (l - 1) > 1) {
+            l++;
+        }
+        this.levels = l;
+    }
+
+    private ImageReader open() throws IOException {
+        final ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            throw new IOException("cannot open " + file);
+        }
+        final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            in.close();
+            throw new IOException("unsupported image format: " + file);
+        }
+        final ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+    private static void close(final ImageReader reader) throws IOException {
+        final Object in = reader.getInput();
+        reader.dispose();
+        if (in instanceof ImageInputStream) {
+            ((ImageInputStream) in).close();
+        }
+    }
+
+    private int levelWidth(final int level) {
+        return Math.max(1, width >> level);
+    }
+
+    private int levelHeight(final int level) {
+        return Math.max(1, height >> level);
+    }
+
+    private long key(final int level, final int tx, final int ty) {
+        return (long) id << 44 | (long) level << 40 | (long) tx << 20 | ty;
+    }
+
+    private int tilesX(final int level) {
+        return (levelWidth(level) + TILE - 1) / TILE;
+    }
+
+    private int tilesY(final int level) {
+        return (levelHeight(level) + TILE - 1) / TILE;
+    }
+
+    /**
+     * Returns the position of a tile in the side file. Every tile takes the
+     * space of a full tile, stored row by row with the width of the tile.
+     */
+    private long offset(final int level, final int tx, final int ty) {
+        long offset = 0;
+        for (int l = 0; l < level; l++) {
+            offset += (long) tilesX(l) * tilesY(l);
+        }
+        return (offset + (long) ty * tilesX(level) + tx) * TILE * TILE * 4;
+    }
+
+    /**
+     * Returns the side file holding the pyramid, building it on first use
+     */
+    private FileChannel pyramid() throws IOException {
+        FileChannel channel = tiles;
+        if (channel == null) {
+            synchronized (this) {
+                channel = tiles;
+                if (channel == null) {
+                    channel = build();
+                    tiles = channel;
+                }
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Decodes the image once, band by band, and writes all levels as tiles
+     * to a temporary side file. Every level is filtered from the one below
+     * with a 2x2 box while the rows pass through, so only one band of rows
+     * per level is held at a time.
+     */
+    private FileChannel build() throws IOException {
+        final File side = File.createTempFile("texture", ".tiles");
+        side.deleteOnExit();
+        final FileChannel channel = new RandomAccessFile(side, "rw").getChannel();
+        try {
+            final PyramidWriter writer = new PyramidWriter(channel);
+            final int band = Math.max(1, Math.min(height, BUILD_TEXELS / width));
+            for (int y = 0; y < height; y += band) {
+                final int rows = Math.min(band, height - y);
+                final BufferedImage img;
+                final ImageReader reader = open();
+                try {
+                    final ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(new Rectangle(0, y, width, rows));
+                    img = reader.read(0, param);
+                } finally {
+                    close(reader);
+                }
+                final int[] src = img.getRGB(0, 0, width, rows, null, 0, width);
+                for (int j = 0; j < rows; j++) {
+                    final int[] row = new int[width];
+                    for (int i = 0; i < width; i++) {
+                        row[i] = src[j * width + i] & 0xFFFFFF;
+                    }
+                    writer.add(0, row);
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Receives the rows of every level from top to bottom, writes them as
+     * tiles once a band of tiles is complete and passes pairs of rows down
+     * to the next level
+     */
+    private final class PyramidWriter {
+        private final FileChannel channel;
+        private final int[][] bands = new int[levels][];
+        private final int[] rows = new int[levels];
+        private final int[] received = new int[levels];
+        private final int[][] pending = new int[levels][];
+
+        PyramidWriter(final FileChannel channel) {
+            this.channel = channel;
+            for (int l = 0; l < levels; l++) {
+                bands[l] = new int[levelWidth(l) * TILE];
+            }
+        }
+
+        void add(final int level, final int[] row) throws IOException {
+            final int lw = levelWidth(level), lh = levelHeight(level);
+            final int r = received[level]++;
+            System.arraycopy(row, 0, bands[level], rows[level]++ * lw, lw);
+            if (rows[level] == TILE || r == lh - 1) {
+                writeBand(level, r / TILE);
+                rows[level] = 0;
+            }
+            if (level + 1 == levels) {
+                return;
+            }
+            if (lh == 1) {
+                add(level + 1, down(lw, row, row));
+            } else if (r % 2 == 0) {
+                pending[level] = row;
+            } else if (r / 2 < levelHeight(level + 1)) {
+                add(level + 1, down(lw, pending[level], row));
+            }
+        }
+
+        /**
+         * Averages two rows and each pair of texels in them
+         */
+        private int[] down(final int lw, final int[] a, final int[] b) {
+            final int[] out = new int[Math.max(1, lw >> 1)];
+            for (int i = 0; i < out.length; i++) {
+                final int i0 = Math.min(lw - 1, 2 * i), i1 = Math.min(lw - 1, 2 * i + 1);
+                int c = 0;
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    final int sum = (a[i0] >> shift & 255) + (a[i1] >> shift & 255) + (b[i0] >> shift & 255)
+                            + (b[i1] >> shift & 255);
+                    c |= (sum + 2) / 4 << shift;
+                }
+                out[i] = c;
+            }
+            return out;
+        }
+
+        private void writeBand(final int level, final int ty) throws IOException {
+            final int lw = levelWidth(level), h = rows[level];
+            for (int tx = 0, x0 = 0; x0 < lw; tx++, x0 += TILE) {
+                final int w = Math.min(TILE, lw - x0);
+                final ByteBuffer buf = ByteBuffer.allocate(w * h * 4);
+                final IntBuffer texels = buf.asIntBuffer();
+                for (int j = 0; j < h; j++) {
+                    texels.put(bands[level], j * lw + x0, w);
+                }
+                long pos = offset(level, tx, ty);
+                while (buf.hasRemaining()) {
+                    pos += channel.write(buf, pos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a tile from the side file
+     */
+    private int[] readTile(final int level, final int tx, final int ty) throws IOException {
+        final FileChannel channel = pyramid();
+        final int w = Math.min(TILE, levelWidth(level) - tx * TILE);
+        final int h = Math.min(TILE, levelHeight(level) - ty * TILE);
+        final ByteBuffer buf = ByteBuffer.allocate(w * h * 4);
+        long pos = offset(level, tx, ty);
+        while (buf.hasRemaining()) {
+            final int n = channel.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("truncated tile file of " + file);
+            }
+            pos += n;
+        }
+        buf.flip();
+        final int[] tile = new int[w * h];
+        buf.asIntBuffer().get(tile);
+        return tile;
+    }
+
+    /**
+     * Returns the rgb value of a texel of the given level
+     */
+    private int texel(final int level, final int x, final int y) {
+        final int tx = x / TILE, ty = y / TILE;
+        final int[] tile = cache.get(key(level, tx, ty), new TextureCache.Loader() {
+            @Override
+            public int[] load() throws IOException {
+                return readTile(level, tx, ty);
+            }
+        });
+        final int w = Math.min(TILE, levelWidth(level) - tx * TILE);
+        return tile[(y - ty * TILE) * w + x - tx * TILE];
+    }
+
+    @Override
+    public Color shade(final Hit hit, final Trace trace) {
+        int level = 0;
+        if (footprint > 0) {
+            final float distance = hit.getPoint().sub(trace.getRay().base()).norm();
+            final float texels = distance * footprint / scale * Math.max(width, height);
+            if (texels > 1) {
+                level = Math.min(levels - 1, (int) (Math.log(texels) / Math.log(2)));
+            }
+        }
+
+        // bilinear filtering at the chosen level, repeating the image
+        final int lw = levelWidth(level), lh = levelHeight(level);
+        final Vec2 uv = hit.getUV();
+        final float u = uv.x() / scale * lw - 0.5f, v = uv.y() / scale * lh - 0.5f;
+        final float fu = (float) Math.floor(u), fv = (float) Math.floor(v);
+        final float du = u - fu, dv = v - fv;
+        final int x0 = Math.floorMod((int) fu, lw), y0 = Math.floorMod((int) fv, lh);
+        final int x1 = (x0 + 1) % lw, y1 = (y0 + 1) % lh;
+        final int a = texel(level, x0, y0), b = texel(level, x1, y0);
+        final int c = texel(level, x0, y1), d = texel(level, x1, y1);
+        final float wa = (1 - du) * (1 - dv), wb = du * (1 - dv), wc = (1 - du) * dv, wd = du * dv;
+        return new Color(channel(a, b, c, d, 16, wa, wb, wc, wd), channel(a, b, c, d, 8, wa, wb, wc, wd),
+                channel(a, b, c, d, 0, wa, wb, wc, wd));
+    }
+
+    private static float channel(final int a, final int b, final int c, final int d, final int shift,
+            final float wa, final float wb, final float wc, final float wd) {
+        return ((a >> shift & 255) * wa + (b >> shift & 255) * wb + (c >> shift & 255) * wc
+                + (d >> shift & 255) * wd) / 255f;
+    }
+}
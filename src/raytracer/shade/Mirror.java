@@ -0,0 +1,38 @@
+package raytracer.shade;
+
+import raytracer.core.Hit;
+import raytracer.core.Shader;
+import raytracer.core.Trace;
+import raytracer.math.Color;
+import raytracer.math.Vec3;
+
+public class Mirror implements Shader {
+    private final Shader inner;
+    private final float reflectivity;
+
+    public Mirror(final Shader inner, final float reflectivity) {
+        this.inner = inner;
+        this.reflectivity = reflectivity;
+    }
+
+    @Override
+    public Color shade(final Hit hit, final Trace trace) {
+        return reflect(inner.shade(hit, trace), hit, trace);
+    }
+
+    Shader getInner() {
+        return inner;
+    }
+
+    /**
+     * Blends the color of the inner shader with the reflected color
+     */
+    Color reflect(final Color sub, final Hit hit, final Trace trace) {
+        final Color base = sub.scale(1 - reflectivity);
+        final Vec3 reflectDir = trace.getRay().dir().normalized().reflect(hit.getNormal()).normalized();
+        final Trace reflected = trace.spawn(hit.getPoint(), reflectDir, reflectivity);
+        // the roulette factor is folded into the weight, the reflected color
+        // itself is clamped
+        return base.add(reflected.shade().scale(reflectivity * reflected.getScale()));
+    }
+}
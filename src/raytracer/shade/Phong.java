@@ -1,18 +1,24 @@
 package raytracer.shade;
 
-import java.util.Collection;
+import java.util.SplittableRandom;
 
+import raytracer.core.AreaLight;
 import raytracer.core.Hit;
+import raytracer.core.LightSampler;
 import raytracer.core.LightSource;
+import raytracer.core.Obj;
 import raytracer.core.Shader;
 import raytracer.core.Trace;
+import raytracer.core.TraversalStats;
 import raytracer.math.Color;
 import raytracer.math.Vec3;
-import raytracer.math.Ray;
-import raytracer.core.Scene;
 import raytracer.math.Point;
+import raytracer.math.Ray;
 
 public class Phong implements Shader {
+    /** The number of probe rays deciding whether a point lies in a penumbra */
+    private static final int PROBES = 4;
+
     private Shader inner;
     private Color ambient;
     private float diffuse;
@@ -30,48 +36,159 @@ public class Phong implements Shader {
 
     @Override
     public Color shade(Hit hit, Trace trace) {
-        Color sub = inner.shade(hit, trace);
-        Collection<LightSource> lightCollection = trace.getScene().getLightSources();
+        return lit(inner.shade(hit, trace), hit, trace);
+    }
+
+    Shader getInner() {
+        return inner;
+    }
+
+    /**
+     * Applies the lighting to the color of the inner shader
+     */
+    Color lit(Color sub, Hit hit, Trace trace) {
+        Vec3 viewDir = trace.getRay().dir().normalized();
+        Vec3 reflectDir = viewDir.reflect(hit.getNormal()).normalized();
+        LightSampler sampler = trace.getScene().getLightSampler();
 
         Color diffuseColor = Color.BLACK;
         Color speculaColor = Color.BLACK;
 
-        for (LightSource light : lightCollection) {
-
-            Vec3 v = light.getLocation().sub(hit.getPoint()).normalized();
+        if (sampler == null) {
+            for (LightSource light : trace.getScene().getLightSources()) {
+                Vec3 v = light.getLocation().sub(hit.getPoint()).normalized();
+                float lit = visibility(trace, hit.getPoint(), light, v);
+                if (lit > 0) {
+                    diffuseColor = diffuseColor.add(diffuseTerm(light, sub, hit, v, lit));
+                    speculaColor = speculaColor.add(specularTerm(light, reflectDir, v, lit));
+                }
+            }
+        } else {
+            LightSource[] lights = new LightSource[sampler.getSamples()];
+            float[] weights = new float[lights.length];
+            int n = sampler.sample(hit.getPoint(), lights, weights);
+            for (int i = 0; i < n; i++) {
+                Vec3 v = lights[i].getLocation().sub(hit.getPoint()).normalized();
+                float lit = visibility(trace, hit.getPoint(), lights[i], v);
+                if (lit > 0) {
+                    diffuseColor = diffuseColor.add(diffuseTerm(lights[i], sub, hit, v, weights[i] * lit));
+                    speculaColor = speculaColor.add(specularTerm(lights[i], reflectDir, v, weights[i] * lit));
+                }
+            }
+        }
+        return ambient.add(speculaColor).add(diffuseColor);
+    }
 
-            Ray illuminateRay = trace.spawn(hit.getPoint(), v).getRay();
-            Scene scene = trace.getScene();
-            Hit blockHit = scene.hit(illuminateRay);
+    /**
+     * Returns the diffuse contribution of a light, scaled by the sample
+     * weight. The factors are combined before scaling since colors saturate.
+     */
+    private Color diffuseTerm(LightSource light, Color sub, Hit hit, Vec3 v, float weight) {
+        return light.getColor().mul(sub).scale(diffuse * Float.max(hit.getNormal().dot(v), 0) * weight);
+    }
 
-            Point hitPoint = hit.getPoint();
-            boolean ignore = false;
+    /**
+     * Returns the specular contribution of a light, scaled by the sample
+     * weight
+     */
+    private Color specularTerm(LightSource light, Vec3 reflectDir, Vec3 v, float weight) {
+        float lastTerm = (float) Math.pow(Float.max(0, reflectDir.dot(v)), shininess);
+        return light.getColor().scale(specular * lastTerm * weight);
+    }
 
-            if (blockHit.hits()) {
-                Point blockHPoint = blockHit.getPoint();
-                Point lightPoint = light.getLocation();
+    /**
+     * Returns true if the given blocking hit lies between the shaded point
+     * and the light
+     */
+    private static boolean blocks(Hit blockHit, Point hitPoint, Point lightPoint) {
+        if (!blockHit.hits()) {
+            return false;
+        }
+        Point blockHPoint = blockHit.getPoint();
 
-                Vec3 hitToLight = new Vec3(hitPoint.x() - lightPoint.x(), hitPoint.y() - lightPoint.y(),
-                        hitPoint.z() - lightPoint.z());
+        Vec3 hitToLight = new Vec3(hitPoint.x() - lightPoint.x(), hitPoint.y() - lightPoint.y(),
+                hitPoint.z() - lightPoint.z());
 
-                Vec3 hitToBlockHit = new Vec3(blockHPoint.x() - hitPoint.x(), blockHPoint.y() - hitPoint.y(),
-                        blockHPoint.z() - hitPoint.z());
+        Vec3 hitToBlockHit = new Vec3(blockHPoint.x() - hitPoint.x(), blockHPoint.y() - hitPoint.y(),
+                blockHPoint.z() - hitPoint.z());
 
-                ignore = hitToLight.norm() < hitToBlockHit.norm();
-            }
-            if (!blockHit.hits() || ignore) {
+        return !(hitToLight.norm() < hitToBlockHit.norm());
+    }
 
-                diffuseColor = diffuseColor
-                        .add(light.getColor().mul(sub).scale(diffuse).scale(Float.max(hit.getNormal().dot(v), 0)));
+    /**
+     * Returns the visible fraction of the light as seen from the given point.
+     * Area lights are first tested with a few stratified probe rays; the rest
+     * of their sample budget is only spent if the probes disagree, i.e. in the
+     * penumbra. The samples are drawn from a generator seeded by the point
+     * and the light, so shading the same point again (e.g. in the replay pass
+     * of the wavefront renderer) traces the same shadow rays.
+     */
+    private static float visibility(Trace trace, Point hitPoint, LightSource light, Vec3 v) {
+        if (!(light instanceof AreaLight)) {
+            return isShadowed(trace, hitPoint, light, light.getLocation(), v) ? 0 : 1;
+        }
+        AreaLight area = (AreaLight) light;
+        SplittableRandom rnd = new SplittableRandom(seed(hitPoint, light));
+        int budget = area.getSamples();
+        int probes = Math.min(PROBES, budget);
+        int lit = 0;
+        for (int i = 0; i < probes; i++) {
+            float u = ((i & 1) + rnd.nextFloat()) * 0.5f;
+            float w = ((i >> 1 & 1) + rnd.nextFloat()) * 0.5f;
+            lit += sampleLit(trace, hitPoint, area, area.sample(hitPoint, u, w));
+        }
+        if (lit == 0 || lit == probes) {
+            return lit / (float) probes;
+        }
+        for (int i = probes; i < budget; i++) {
+            lit += sampleLit(trace, hitPoint, area, area.sample(hitPoint, rnd.nextFloat(), rnd.nextFloat()));
+        }
+        return lit / (float) budget;
+    }
 
-                Vec3 viewDir = trace.getRay().dir().normalized();
-                Vec3 reflectDir = viewDir.reflect(hit.getNormal()).normalized();
+    /**
+     * Returns the seed of the light samples of a shading point
+     */
+    private static long seed(Point p, LightSource light) {
+        long seed = light.hashCode();
+        seed = seed * 0x9E3779B97F4A7C15L + Float.floatToIntBits(p.x());
+        seed = seed * 0x9E3779B97F4A7C15L + Float.floatToIntBits(p.y());
+        return seed * 0x9E3779B97F4A7C15L + Float.floatToIntBits(p.z());
+    }
 
-                float lastTerm = (float) Math.pow(Float.max(0, reflectDir.dot(v)), shininess);
+    /**
+     * Returns 1 if the given point on the light is visible, 0 otherwise
+     */
+    private static int sampleLit(Trace trace, Point hitPoint, LightSource light, Point lightPoint) {
+        Vec3 v = lightPoint.sub(hitPoint).normalized();
+        return isShadowed(trace, hitPoint, light, lightPoint, v) ? 0 : 1;
+    }
 
-                speculaColor = speculaColor.add(light.getColor().scale(specular).scale(lastTerm));
+    /**
+     * Tests whether the light is blocked as seen from the given point. The
+     * last occluder of the light is tested first; only if it does not block
+     * the light any more a shadow ray is traced through the scene.
+     */
+    private static boolean isShadowed(Trace trace, Point hitPoint, LightSource light, Point lightPoint, Vec3 v) {
+        Obj last = ShadowCache.lookup(light);
+        if (last != null) {
+            boolean cached = blocks(last.hit(new Ray(hitPoint, v), last, 0, Float.POSITIVE_INFINITY), hitPoint,
+                    lightPoint);
+            // a recording run is repeated, count the test only once
+            if (!trace.isRecording()) {
+                TraversalStats.countPrimitive();
+                ShadowCache.count(cached);
+            }
+            if (cached) {
+                return true;
             }
         }
-        return ambient.add(speculaColor).add(diffuseColor);
+
+        Hit blockHit = trace.shadowHit(hitPoint, v);
+        boolean blocked = blocks(blockHit, hitPoint, lightPoint);
+        if (blocked) {
+            ShadowCache.store(light, blockHit.get());
+        }
+        return blocked;
     }
 }
@@ -0,0 +1,264 @@
+package raytracer.shade;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import raytracer.core.Hit;
+import raytracer.core.Shader;
+import raytracer.core.Trace;
+import raytracer.math.Color;
+
+/**
+ * Flattens a tree of shaders into a single method handle. Interpreting a tree
+ * such as {@code Phong(CheckerBoard(SingleColor, SingleColor))} calls
+ * {@link Shader#shade} at every node, and these call sites see every shader
+ * class of the scene. The compiled form instead composes the steps of the
+ * nodes (e.g. {@link Phong#lit}) with method handle combinators, so the
+ * structure of the tree is fixed in the composed handle and the JIT can
+ * inline the whole pipeline.
+ *
+ * The composed handle of a structure is a template taking the nodes of the
+ * tree as leading parameters, spread from an array. Only these classes
+ * themselves are flattened; subclasses and unknown shader classes are called
+ * through {@link Shader#shade}.
+ *
+ * The JIT only inlines a handle it sees as a constant. Every structure
+ * therefore gets its own hidden class, a copy of {@code Template}, which keeps
+ * the template in a static final field. The hidden classes are cached by
+ * structure, and every tree is compiled to an instance of the class of its
+ * structure holding the nodes of the tree. The call sites of
+ * {@link Shader#shade} thus see one class per structure, not one per tree.
+ */
+public final class ShaderCompiler {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType SHADE = MethodType.methodType(Color.class, Hit.class, Trace.class);
+    private static final MethodType SPREAD = MethodType.methodType(Color.class, Object[].class, Hit.class,
+            Trace.class);
+    private static final MethodType CREATE = MethodType.methodType(Shader.class, Shader.class, Object[].class);
+    /** The constructors of the hidden classes, by structure */
+    private static final ConcurrentHashMap<String, MethodHandle> templates = new ConcurrentHashMap<String, MethodHandle>();
+    private static final byte[] TEMPLATE_CLASS = templateClass();
+
+    /**
+     * A shader evaluating a compiled tree
+     */
+    abstract static class CompiledShader implements Shader {
+        private final Shader source;
+
+        CompiledShader(final Shader source) {
+            this.source = source;
+        }
+    }
+
+    /**
+     * The class file every structure is defined from as a hidden class, whose
+     * class data is the template of the structure taking the nodes as an
+     * array. This class itself is never loaded.
+     */
+    static final class Template extends CompiledShader {
+        private static final MethodHandle HANDLE;
+
+        static {
+            try {
+                HANDLE = MethodHandles.classData(MethodHandles.lookup(), ConstantDescs.DEFAULT_NAME,
+                        MethodHandle.class);
+            } catch (final IllegalAccessException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final Object[] nodes;
+
+        Template(final Shader source, final Object[] nodes) {
+            super(source);
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Color shade(final Hit hit, final Trace trace) {
+            try {
+                return (Color) HANDLE.invokeExact(nodes, hit, trace);
+            } catch (final RuntimeException | Error e) {
+                throw e;
+            } catch (final Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private ShaderCompiler() {
+    }
+
+    /**
+     * Compiles a shader tree
+     *
+     * @param shader
+     *            The root of the tree
+     * @return A shader computing the same colors as the tree
+     * @throws IllegalArgumentException
+     *             If the shader is null
+     */
+    public static Shader compile(final Shader shader) {
+        if (shader == null) {
+            throw new IllegalArgumentException();
+        }
+        if (shader instanceof CompiledShader) {
+            return shader;
+        }
+        final StringBuilder key = new StringBuilder();
+        final List<Shader> nodes = new ArrayList<Shader>();
+        describe(shader, key, nodes);
+        try {
+            MethodHandle create = templates.get(key.toString());
+            if (create == null) {
+                final MethodHandle template = template(shader);
+                final MethodHandle spread = template.asType(template.type().generic())
+                        .asSpreader(0, Object[].class, nodes.size()).asType(SPREAD);
+                final MethodHandles.Lookup hidden = LOOKUP.defineHiddenClassWithClassData(TEMPLATE_CLASS, spread,
+                        true);
+                create = hidden.findConstructor(hidden.lookupClass(),
+                        MethodType.methodType(void.class, Shader.class, Object[].class)).asType(CREATE);
+                final MethodHandle old = templates.putIfAbsent(key.toString(), create);
+                if (old != null) {
+                    create = old;
+                }
+            }
+            return (Shader) create.invokeExact(shader, nodes.toArray());
+        } catch (final RuntimeException | Error e) {
+            throw e;
+        } catch (final Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the uncompiled tree of a compiled shader
+     *
+     * @param shader
+     *            A shader, compiled or not
+     * @return The uncompiled tree
+     */
+    public static Shader source(final Shader shader) {
+        return shader instanceof CompiledShader ? ((CompiledShader) shader).source : shader;
+    }
+
+    /**
+     * Returns the number of distinct tree structures compiled so far
+     *
+     * @return The number of cached templates
+     */
+    public static int getTemplateCount() {
+        return templates.size();
+    }
+
+    /**
+     * Reads the class file of {@code Template}
+     */
+    private static byte[] templateClass() {
+        final String name = ShaderCompiler.class.getSimpleName() + "$Template.class";
+        try (InputStream in = ShaderCompiler.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IllegalStateException("missing " + name);
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) > 0;) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends the structure of the tree to the key and its nodes in pre-order
+     * to the list
+     */
+    private static void describe(final Shader shader, final StringBuilder key, final List<Shader> nodes) {
+        nodes.add(shader);
+        if (shader.getClass() == Phong.class) {
+            key.append("Phong(");
+            describe(((Phong) shader).getInner(), key, nodes);
+            key.append(')');
+        } else if (shader.getClass() == Mirror.class) {
+            key.append("Mirror(");
+            describe(((Mirror) shader).getInner(), key, nodes);
+            key.append(')');
+        } else if (shader.getClass() == CheckerBoard.class) {
+            key.append("CheckerBoard(");
+            describe(((CheckerBoard) shader).getFirst(), key, nodes);
+            key.append(',');
+            describe(((CheckerBoard) shader).getSecond(), key, nodes);
+            key.append(')');
+        } else if (shader.getClass() == SingleColor.class) {
+            key.append("SingleColor");
+        } else {
+            key.append(shader.getClass().getName());
+        }
+    }
+
+    /**
+     * Builds the template of the tree: a handle of type (nodes in pre-order,
+     * Hit, Trace) -> Color
+     */
+    private static MethodHandle template(final Shader shader) {
+        try {
+            if (shader.getClass() == Phong.class) {
+                return fold(LOOKUP.findVirtual(Phong.class, "lit",
+                        MethodType.methodType(Color.class, Color.class, Hit.class, Trace.class)),
+                        template(((Phong) shader).getInner()));
+            } else if (shader.getClass() == Mirror.class) {
+                return fold(LOOKUP.findVirtual(Mirror.class, "reflect",
+                        MethodType.methodType(Color.class, Color.class, Hit.class, Trace.class)),
+                        template(((Mirror) shader).getInner()));
+            } else if (shader.getClass() == CheckerBoard.class) {
+                final MethodHandle test = LOOKUP.findVirtual(CheckerBoard.class, "isFirst",
+                        MethodType.methodType(boolean.class, Hit.class));
+                final MethodHandle a = template(((CheckerBoard) shader).getFirst());
+                final MethodHandle b = template(((CheckerBoard) shader).getSecond());
+                final List<Class<?>> aNodes = nodeTypes(a), bNodes = nodeTypes(b);
+                final MethodHandle first = MethodHandles.dropArguments(
+                        MethodHandles.dropArguments(a, aNodes.size(), bNodes), 0, CheckerBoard.class);
+                final MethodHandle second = MethodHandles.dropArguments(
+                        MethodHandles.dropArguments(b, 0, aNodes), 0, CheckerBoard.class);
+                final List<Class<?>> children = new ArrayList<Class<?>>(aNodes);
+                children.addAll(bNodes);
+                return MethodHandles.guardWithTest(MethodHandles.dropArguments(test, 1, children), first, second);
+            } else if (shader.getClass() == SingleColor.class) {
+                return MethodHandles.dropArguments(
+                        LOOKUP.findVirtual(SingleColor.class, "getColor", MethodType.methodType(Color.class)), 1,
+                        Hit.class, Trace.class);
+            }
+            return LOOKUP.findVirtual(Shader.class, "shade", SHADE);
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the node parameter types of a template
+     */
+    private static List<Class<?>> nodeTypes(final MethodHandle template) {
+        final List<Class<?>> types = template.type().parameterList();
+        return types.subList(0, types.size() - 2);
+    }
+
+    /**
+     * Combines the step of a node, of type (node, Color, Hit, Trace) -> Color,
+     * with the template of its inner shader
+     */
+    private static MethodHandle fold(final MethodHandle step, final MethodHandle inner) {
+        final MethodHandle target = MethodHandles.dropArguments(step, 2, nodeTypes(inner));
+        return MethodHandles.foldArguments(target, 1, inner);
+    }
+}
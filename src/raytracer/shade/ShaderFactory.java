@@ -1,5 +1,8 @@
 package raytracer.shade;
 
+import java.io.File;
+import java.io.IOException;
+
 import raytracer.core.Shader;
 import raytracer.math.Color;
 import raytracer.math.Constants;
@@ -67,4 +70,47 @@ public final class ShaderFactory {
 
         return new Phong(inner, ambient, diffuse, specular, shininess);
     }
+
+    /**
+     * Generates a mirror shader which blends the color of its base shader with
+     * the color seen in the reflected direction.
+     *
+     * @param inner
+     *                     The base shader of this mirror shader
+     * @param reflectivity
+     *                     The ratio of reflected light in [0, 1]
+     * @throws IllegalArgumentException
+     *                                  If the shader is null or the
+     *                                  reflectivity is not in [0, 1]
+     */
+    public static Shader createMirror(final Shader inner, final float reflectivity) {
+        if (inner == null || !(reflectivity >= 0.0f && reflectivity <= 1.0f)) throw new IllegalArgumentException();
+
+        return new Mirror(inner, reflectivity);
+    }
+
+    /**
+     * Generates an image texture shader. The image is loaded lazily in tiles
+     * into the shared {@link TextureCache}.
+     *
+     * @param file
+     *                  The image file
+     * @param scale
+     *                  The size of one repetition of the image in texture
+     *                  coordinates
+     * @param footprint
+     *                  The size of a pixel at unit distance in texture
+     *                  coordinates, used to select the mipmap level (0 always
+     *                  uses the full resolution)
+     * @throws IllegalArgumentException
+     *                                  If the file is null, the scale is not a
+     *                                  positive number or the footprint is
+     *                                  negative
+     * @throws IOException
+     *                                  If the image size could not be read
+     */
+    public static Shader createImageTexture(final File file, final float scale, final float footprint)
+            throws IOException {
+        return new ImageTexture(file, scale, footprint);
+    }
 }
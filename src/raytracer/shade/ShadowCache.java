@@ -0,0 +1,142 @@
+package raytracer.shade;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import raytracer.core.LightSource;
+import raytracer.core.Obj;
+
+/**
+ * Remembers per thread and per light source the object which blocked the
+ * last shadow ray. Neighbouring shading points are usually blocked by the
+ * same object, so testing it first often saves the full traversal.
+ */
+public final class ShadowCache {
+
+	/**
+	 * The occluders of one thread, stored while the scene had the given
+	 * version
+	 */
+	private static final class Occluders extends IdentityHashMap<LightSource, Obj> {
+		private static final long serialVersionUID = 1L;
+		private int version;
+	}
+
+	private static final ThreadLocal<Occluders> LAST = new ThreadLocal<Occluders>() {
+		@Override
+		protected Occluders initialValue() {
+			return new Occluders();
+		}
+	};
+
+	private static final AtomicInteger version = new AtomicInteger();
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static volatile boolean enabled = true;
+
+	private ShadowCache() {
+	}
+
+	/**
+	 * Enables or disables the cache for all threads
+	 *
+	 * @param on
+	 *            True to enable the cache
+	 */
+	public static void setEnabled(final boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Returns the last occluder of the given light for the current thread
+	 *
+	 * @param light
+	 *            The light source
+	 * @return The last occluder or null if there is none
+	 */
+	static Obj lookup(final LightSource light) {
+		return enabled ? current().get(light) : null;
+	}
+
+	/**
+	 * Stores the occluder of the given light for the current thread
+	 *
+	 * @param light
+	 *            The light source
+	 * @param occluder
+	 *            The object which blocked the shadow ray
+	 */
+	static void store(final LightSource light, final Obj occluder) {
+		if (enabled)
+			current().put(light, occluder);
+	}
+
+	/**
+	 * Forgets the occluders of all threads, e.g. after objects were removed
+	 * from the scene. Every thread clears its occluders on its next access.
+	 */
+	public static void invalidate() {
+		version.incrementAndGet();
+	}
+
+	private static Occluders current() {
+		final Occluders last = LAST.get();
+		final int v = version.get();
+		if (last.version != v) {
+			last.clear();
+			last.version = v;
+		}
+		return last;
+	}
+
+	/**
+	 * Records whether a shadow test was answered by the cache
+	 *
+	 * @param hit
+	 *            True if the cached occluder still blocked the shadow ray
+	 */
+	static void count(final boolean hit) {
+		if (hit)
+			hits.increment();
+		else
+			misses.increment();
+	}
+
+	/**
+	 * Returns the number of shadow tests answered by the cache
+	 *
+	 * @return The number of cache hits
+	 */
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of shadow tests which needed a full traversal
+	 *
+	 * @return The number of cache misses
+	 */
+	public static long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the fraction of shadow tests answered by the cache
+	 *
+	 * @return The hit rate in [0, 1]
+	 */
+	public static double getHitRate() {
+		final long h = getHits(), total = h + getMisses();
+		return total == 0 ? 0 : h / (double) total;
+	}
+
+	/**
+	 * Resets the hit and miss counters
+	 */
+	public static void resetStats() {
+		hits.reset();
+		misses.reset();
+	}
+}
@@ -32,4 +32,8 @@ public class SingleColor implements Shader {
 		return color;
 	}
 
+	Color getColor() {
+		return color;
+	}
+
 }
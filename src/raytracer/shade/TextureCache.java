@@ -0,0 +1,219 @@
+package raytracer.shade;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of texture tiles shared by all image textures. The cache is
+ * split into segments, each a least recently used map with its own lock, so
+ * that concurrent render threads rarely wait for each other. Tiles are loaded
+ * outside of the locks; two threads missing the same tile at the same time
+ * may both load it.
+ */
+public final class TextureCache {
+
+    /**
+     * Loads a tile which is not in the cache
+     */
+    public interface Loader {
+
+        /**
+         * Loads the tile
+         *
+         * @return The rgb values of the tile
+         * @throws IOException
+         *             If the tile could not be read
+         */
+        int[] load() throws IOException;
+    }
+
+    private static final int SEGMENTS = 16;
+
+    private static volatile TextureCache shared = new TextureCache(256L << 20);
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final class Segment extends LinkedHashMap<Long, int[]> {
+        private static final long serialVersionUID = 1L;
+        private final long budget;
+        private long bytes;
+
+        Segment(final long budget) {
+            super(64, 0.75f, true);
+            this.budget = budget;
+        }
+
+        /**
+         * Drops least recently used tiles until the segment fits its budget,
+         * always keeping the most recent tile
+         */
+        void trim() {
+            final Iterator<int[]> it = values().iterator();
+            while (bytes > budget && size() > 1) {
+                bytes -= 4L * it.next().length;
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Creates a new texture cache
+     *
+     * @param budget
+     *            The maximum size of all cached tiles in bytes
+     */
+    public TextureCache(final long budget) {
+        this(budget, SEGMENTS);
+    }
+
+    /**
+     * Creates a new texture cache
+     *
+     * @param budget
+     *            The maximum size of all cached tiles in bytes
+     * @param segments
+     *            The number of segments, each with its own lock and an equal
+     *            share of the budget
+     */
+    public TextureCache(final long budget, final int segments) {
+        if (budget <= 0 || segments <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(budget / segments);
+        }
+    }
+
+    /**
+     * Returns the cache used by image textures created without an explicit
+     * cache
+     *
+     * @return The shared cache
+     */
+    public static TextureCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the cache used by image textures created afterwards without an
+     * explicit cache
+     *
+     * @param cache
+     *            The new shared cache
+     */
+    public static void setShared(final TextureCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException();
+        }
+        shared = cache;
+    }
+
+    private Segment segment(final long key) {
+        return segments[(int) (((key ^ key >>> 29) * 0x9E3779B97F4A7C15L >>> 33) % segments.length)];
+    }
+
+    /**
+     * Returns the tile with the given key, loading it if necessary
+     *
+     * @param key
+     *            The key of the tile
+     * @param loader
+     *            Loads the tile on a miss
+     * @return The rgb values of the tile
+     * @throws UncheckedIOException
+     *             If the tile could not be loaded
+     */
+    public int[] get(final long key, final Loader loader) {
+        final Segment segment = segment(key);
+        synchronized (segment) {
+            final int[] tile = segment.get(key);
+            if (tile != null) {
+                hits.increment();
+                return tile;
+            }
+        }
+        misses.increment();
+        final int[] tile;
+        try {
+            tile = loader.load();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        put(key, tile);
+        return tile;
+    }
+
+    /**
+     * Adds a tile and drops least recently used tiles beyond the budget
+     */
+    private void put(final long key, final int[] tile) {
+        final Segment segment = segment(key);
+        synchronized (segment) {
+            final int[] old = segment.put(key, tile);
+            segment.bytes += 4L * tile.length;
+            if (old != null) {
+                segment.bytes -= 4L * old.length;
+            }
+            segment.trim();
+        }
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache
+     *
+     * @return The number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups which needed to load a tile
+     *
+     * @return The number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of tiles dropped to stay within the budget
+     *
+     * @return The number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the current size of all cached tiles
+     *
+     * @return The size in bytes
+     */
+    public long getBytes() {
+        long sum = 0;
+        for (final Segment s : segments) {
+            synchronized (s) {
+                sum += s.bytes;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+}
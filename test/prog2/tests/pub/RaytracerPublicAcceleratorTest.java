@@ -0,0 +1,326 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import prog2.tests.BVHExercise;
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import raytracer.core.Hit;
+import raytracer.core.LightSource;
+import raytracer.core.Obj;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Renderer;
+import raytracer.core.Scene;
+import raytracer.core.def.Accelerator;
+import raytracer.core.def.AcceleratorSelector;
+import raytracer.core.def.BVH;
+import raytracer.core.def.CompactBVH;
+import raytracer.core.def.DynamicBVH;
+import raytracer.core.def.KdTree;
+import raytracer.core.def.PointLightSource;
+import raytracer.core.def.RayDistributionOptimizer;
+import raytracer.core.def.SimpleAccelerator;
+import raytracer.core.def.StandardScene;
+import raytracer.core.def.TreeletOptimizer;
+import raytracer.core.def.UniformGrid;
+import raytracer.core.def.WideBVH;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec3;
+
+/**
+ * Traces random rays through every acceleration structure and compares the
+ * hits with those of a {@link SimpleAccelerator} over the same objects
+ */
+public class RaytracerPublicAcceleratorTest extends RayTracerTestBase implements PublicTest, BVHExercise {
+
+	private static final int RAYS = 2000;
+
+	/**
+	 * Returns random triangles of very different sizes, spheres and two
+	 * planes, so spatial splits clip references and the planes have to be
+	 * kept out of the hierarchies
+	 */
+	private List<Obj> objects(final Random random) {
+		final List<Obj> objects = new ArrayList<Obj>();
+		for (int i = 0; i < 300; i++) {
+			final Point a = point(random, 10);
+			final float size = i % 10 == 0 ? 12 : 1;
+			objects.add(createSomeObject(createTriangle(a, a.add(point(random, size).sub(Point.ORIGIN)),
+					a.add(point(random, size).sub(Point.ORIGIN)))));
+		}
+		for (int i = 0; i < 30; i++)
+			objects.add(createSomeObject(createSphere(point(random, 10), 0.2f + random.nextFloat())));
+		objects.add(createSomeObject(createPlane(Vec3.Y, new Point(0, -12, 0))));
+		objects.add(createSomeObject(createPlane(new Vec3(1, 1, 0).normalized(), new Point(15, 0, 0))));
+		return objects;
+	}
+
+	private static Point point(final Random random, final float scale) {
+		return new Point((random.nextFloat() * 2 - 1) * scale, (random.nextFloat() * 2 - 1) * scale,
+				(random.nextFloat() * 2 - 1) * scale);
+	}
+
+	private static Accelerator fill(final Accelerator accel, final List<Obj> objects) {
+		for (final Obj o : objects)
+			accel.add(o);
+		return accel;
+	}
+
+	/**
+	 * Asserts that the structure finds the same nearest hits as the reference
+	 */
+	private static void assertSameHits(final String name, final Accelerator reference, final Accelerator accel,
+			final Random random) {
+		for (int i = 0; i < RAYS; i++) {
+			final Point origin = point(random, 20);
+			final Vec3 dir = point(random, 1).sub(Point.ORIGIN);
+			if (dir.norm() < 1e-3f)
+				continue;
+			final Ray ray = new Ray(origin, dir.normalized());
+			final Hit expected = reference.hit(ray, null, 0, Float.POSITIVE_INFINITY);
+			final Hit actual = accel.hit(ray, null, 0, Float.POSITIVE_INFINITY);
+			assertEquals(name + " must hit if the reference hits, ray " + i, expected.hits(), actual.hits());
+			if (expected.hits())
+				assertEquals(name + " must find the nearest hit, ray " + i, expected.getParameter(),
+						actual.getParameter(), 1e-4f * Math.max(1, expected.getParameter()));
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testBVHsMatchReference() {
+		printCurrentMethodName();
+		final List<Obj> objects = objects(new Random(1));
+		final Accelerator reference = fill(new SimpleAccelerator(), objects);
+		final CompactBVH compact = new CompactBVH();
+		final CompactBVH compactSplits = new CompactBVH();
+		compactSplits.setSpatialSplits(0.5f);
+		final WideBVH wide = new WideBVH();
+		final WideBVH wideSplits = new WideBVH(8);
+		wideSplits.setSpatialSplits(0.5f);
+		fill(compact, objects);
+		fill(compactSplits, objects);
+		fill(wide, objects);
+		fill(wideSplits, objects);
+		assertSameHits("CompactBVH", reference, compact, new Random(2));
+		assertSameHits("CompactBVH with spatial splits", reference, compactSplits, new Random(3));
+		assertTrue("Spatial splits must duplicate some references",
+				compactSplits.getReferenceCount() > compact.getReferenceCount());
+		assertSameHits("WideBVH", reference, wide, new Random(4));
+		assertSameHits("WideBVH with spatial splits", reference, wideSplits, new Random(5));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testKdTreeAndGridMatchReference() {
+		printCurrentMethodName();
+		final List<Obj> objects = objects(new Random(6));
+		final Accelerator reference = fill(new SimpleAccelerator(), objects);
+		assertSameHits("KdTree", reference, fill(new KdTree(), objects), new Random(7));
+		assertSameHits("UniformGrid", reference, fill(new UniformGrid(), objects), new Random(8));
+		assertSameHits("Nested UniformGrid", reference,
+				fill(new UniformGrid(UniformGrid.DEFAULT_DENSITY, 2), objects), new Random(9));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testDynamicBVHMatchesReference() {
+		printCurrentMethodName();
+		final List<Obj> objects = objects(new Random(10));
+		final DynamicBVH dynamic = new DynamicBVH();
+		fill(dynamic, objects);
+		assertSameHits("DynamicBVH", fill(new SimpleAccelerator(), objects), dynamic, new Random(11));
+
+		// remove every third object, including a plane
+		final List<Obj> kept = new ArrayList<Obj>();
+		for (int i = 0; i < objects.size(); i++) {
+			if (i % 3 == 1)
+				assertTrue(dynamic.remove(objects.get(i)));
+			else
+				kept.add(objects.get(i));
+		}
+		assertSameHits("DynamicBVH after removals", fill(new SimpleAccelerator(), kept), dynamic, new Random(12));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testRemoveMatchesReference() {
+		printCurrentMethodName();
+		final List<Obj> objects = objects(new Random(15));
+		final List<Obj> kept = new ArrayList<Obj>();
+		for (int i = 0; i < objects.size(); i++)
+			if (i % 3 != 1)
+				kept.add(objects.get(i));
+		final Accelerator reference = fill(new SimpleAccelerator(), kept);
+		final Accelerator full = fill(new SimpleAccelerator(), objects);
+		final BVH bvh = new BVH();
+		fill(bvh, objects);
+		bvh.buildBVH();
+		final WideBVH wideSplits = new WideBVH();
+		wideSplits.setSpatialSplits(0.5f);
+		final Accelerator[] accels = { bvh, fill(new CompactBVH(), objects), fill(wideSplits, objects),
+				fill(new KdTree(), objects), fill(new UniformGrid(), objects), fill(new DynamicBVH(), objects) };
+		for (final Accelerator accel : accels) {
+			final String name = accel.getClass().getSimpleName();
+			// trace once, so the structure is built before the removals
+			accel.hit(new Ray(Point.ORIGIN, Vec3.Y), null, 0, Float.POSITIVE_INFINITY);
+			for (int i = 0; i < objects.size(); i++)
+				if (i % 3 == 1)
+					assertTrue(name + " must remove a contained object", accel.remove(objects.get(i)));
+			assertTrue(name + " must not remove an object twice", !accel.remove(objects.get(1)));
+			assertSameHits(name + " after removals", reference, accel, new Random(16));
+			// objects added after a trace must be found by the next one
+			for (int i = 0; i < objects.size(); i++)
+				if (i % 3 == 1)
+					accel.add(objects.get(i));
+			assertSameHits(name + " after adding back", full, accel, new Random(17));
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testDynamicBVHRebuildLeavesNoGhosts() throws InterruptedException {
+		printCurrentMethodName();
+		// a threshold of 0 keeps background rebuilds running while objects
+		// are added, so edits are journaled when the explicit rebuild starts
+		final DynamicBVH dynamic = new DynamicBVH(0);
+		final List<Obj> objects = new ArrayList<Obj>();
+		final Random random = new Random(13);
+		for (int i = 0; i < 2000; i++) {
+			final Obj o = createSomeObject(createSphere(point(random, 10), 0.1f + random.nextFloat() * 0.5f));
+			objects.add(o);
+			dynamic.add(o);
+		}
+		dynamic.rebuild();
+		for (int i = 0; i < 100; i++) {
+			final Obj o = createSomeObject(createSphere(point(random, 10), 0.1f + random.nextFloat() * 0.5f));
+			objects.add(o);
+			dynamic.add(o);
+		}
+		dynamic.awaitRebuild();
+		assertEquals(objects.size(), dynamic.size());
+		for (final Obj o : objects)
+			assertTrue(dynamic.remove(o));
+		assertSameHits("Emptied DynamicBVH", new SimpleAccelerator(), dynamic, new Random(14));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testTreeletOptimizerKeepsHits() {
+		printCurrentMethodName();
+		final List<Obj> objects = objects(new Random(18));
+		final Accelerator reference = fill(new SimpleAccelerator(), objects);
+		// the fast build leaves more for the optimizer to improve
+		final CompactBVH compact = new CompactBVH();
+		compact.setFastBuild(true);
+		fill(compact, objects);
+		final WideBVH wide = new WideBVH();
+		fill(wide, objects);
+		final TreeletOptimizer optimizer = new TreeletOptimizer();
+		for (final Accelerator accel : new Accelerator[] { compact, wide }) {
+			final String name = accel.getClass().getSimpleName();
+			final TreeletOptimizer.Report report = optimizer.optimize(accel);
+			assertTrue(name + " must not get more expensive: " + report,
+					report.getCostAfter() <= report.getCostBefore());
+			assertSameHits("Optimized " + name, reference, accel, new Random(19));
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testRayDistributionOptimizerRoundTrip() throws Exception {
+		printCurrentMethodName();
+		final List<Obj> objects = objects(new Random(20));
+		final Accelerator reference = fill(new SimpleAccelerator(), objects);
+		final CompactBVH compact = new CompactBVH();
+		compact.setFastBuild(true);
+		fill(compact, objects);
+		final List<LightSource> lights = new ArrayList<LightSource>();
+		lights.add(new PointLightSource(new Point(-20, 20, -20), Color.WHITE));
+		final Scene scene = new StandardScene(
+				new PerspectiveCamera(new Point(0, 5, -30), Point.ORIGIN, Vec3.Y, 3, 4, 3), lights, compact);
+		final RayDistributionOptimizer optimizer = new RayDistributionOptimizer(compact);
+		optimizer.record(new Renderer(scene, 40, 30, 1), 40, 30);
+		final RayDistributionOptimizer.Report report = optimizer.optimize(4);
+		assertTrue("The pilot must record rays", report.getRays() > 0);
+		assertTrue("The measured cost must not grow: " + report, report.getCostAfter() <= report.getCostBefore());
+		assertSameHits("Optimized CompactBVH", reference, compact, new Random(21));
+
+		final File file = File.createTempFile("bvh", ".bin");
+		file.deleteOnExit();
+		optimizer.save(file, "view");
+		final CompactBVH loaded = new CompactBVH();
+		fill(loaded, objects);
+		assertTrue("The saved hierarchy must load for the same view",
+				new RayDistributionOptimizer(loaded).load(file, "view"));
+		assertEquals("The loaded hierarchy must have the same nodes", compact.getNodeCount(), loaded.getNodeCount());
+		assertSameHits("Loaded CompactBVH", reference, loaded, new Random(21));
+		final CompactBVH other = new CompactBVH();
+		fill(other, objects);
+		assertTrue("The saved hierarchy must not load for a different view",
+				!new RayDistributionOptimizer(other).load(file, "other view"));
+		final CompactBVH fewer = new CompactBVH();
+		fill(fewer, objects.subList(1, objects.size()));
+		assertTrue("The saved hierarchy must not load for different objects",
+				!new RayDistributionOptimizer(fewer).load(file, "view"));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testSelectorMatchesReference() {
+		printCurrentMethodName();
+		final List<Obj> objects = objects(new Random(22));
+		// a sample smaller than the scene, so the timed structures hold
+		// only some of the objects while the result has to hold all of them
+		final AcceleratorSelector selector = new AcceleratorSelector(200, 100, 23);
+		final Accelerator selected = selector.select(objects);
+		assertEquals("Every candidate must be timed", 4, selector.getTimings().size());
+		assertTrue("The selected candidate must have been timed",
+				selector.getTimings().containsKey(selector.getSelected()));
+		assertEquals(selector.getSelected(), selected.getClass().getSimpleName());
+		assertSameHits("Selected " + selector.getSelected(), fill(new SimpleAccelerator(), objects), selected,
+				new Random(24));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testPlanesInsideHierarchyMatchTwoLevels() {
+		printCurrentMethodName();
+		final List<Obj> objects = objects(new Random(25));
+		// the previous setup: the planes next to a hierarchy of the rest
+		final List<Obj> planes = objects.subList(objects.size() - 2, objects.size());
+		final BVH inner = new BVH();
+		fill(inner, objects.subList(0, objects.size() - 2));
+		inner.buildBVH();
+		final Accelerator twoLevels = fill(new SimpleAccelerator(), planes);
+		twoLevels.add(inner);
+
+		final BVH bvh = new BVH();
+		fill(bvh, objects);
+		bvh.buildBVH();
+		final Accelerator[] accels = { bvh, fill(new CompactBVH(), objects) };
+		for (final Accelerator accel : accels) {
+			final String name = accel.getClass().getSimpleName();
+			assertTrue(name + " with planes must have infinite bounds",
+					Float.isInfinite(accel.bbox().getMax().y()));
+			final Random random = new Random(26);
+			for (int i = 0; i < RAYS; i++) {
+				final Point origin = point(random, 20);
+				final Vec3 dir = point(random, 1).sub(Point.ORIGIN);
+				if (dir.norm() < 1e-3f)
+					continue;
+				final Ray ray = new Ray(origin, dir.normalized());
+				final Hit expected = twoLevels.hit(ray, null, 0, Float.POSITIVE_INFINITY);
+				final Hit actual = accel.hit(ray, null, 0, Float.POSITIVE_INFINITY);
+				assertEquals(name + " must hit if the two levels hit, ray " + i, expected.hits(), actual.hits());
+				if (expected.hits()) {
+					assertEquals(name + " must find the same distance, ray " + i, expected.getParameter(),
+							actual.getParameter(), 1e-4f * Math.max(1, expected.getParameter()));
+					assertTrue(name + " must hit the same object, ray " + i, expected.get() == actual.get());
+				}
+			}
+		}
+	}
+}
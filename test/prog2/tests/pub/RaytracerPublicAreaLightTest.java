@@ -0,0 +1,78 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import prog2.tests.ShaderExercise;
+import raytracer.core.LightSource;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Scene;
+import raytracer.core.Trace;
+import raytracer.core.def.SimpleAccelerator;
+import raytracer.core.def.SphereLight;
+import raytracer.core.def.StandardObj;
+import raytracer.core.def.StandardScene;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec3;
+import raytracer.shade.SingleColor;
+
+public class RaytracerPublicAreaLightTest extends RayTracerTestBase implements PublicTest, ShaderExercise {
+
+	private static final Color AMBIENT = new Color(0.05f, 0.05f, 0.05f);
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testSphereLightSamplesVisibleCap() {
+		printCurrentMethodName();
+		final Point m = new Point(0, 10, 0);
+		final float r = 2;
+		final SphereLight light = new SphereLight(m, r, Color.WHITE, 16);
+		final Point from = new Point(1, 0, -1);
+		final Vec3 toFrom = from.sub(m);
+		final float d = toFrom.norm();
+		final Random random = new Random(11);
+		float minCos = 1;
+		for (int i = 0; i < 1000; i++) {
+			final Point p = light.sample(from, random.nextFloat(), random.nextFloat());
+			final Vec3 n = p.sub(m);
+			assertEquals("Sample must lie on the sphere", r, n.norm(), 1e-3f);
+			// the sample faces the point it is seen from
+			assertTrue("Sample must lie on the visible cap", n.scale(1 / r).dot(from.sub(p)) >= -1e-3f);
+			minCos = Math.min(minCos, n.scale(1 / r).dot(toFrom.scale(1 / d)));
+		}
+		// the cap reaches to the horizon at cos = r / d
+		assertTrue("Samples must cover the visible cap", minCos < r / d + 0.05f);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testAreaShadowsRepeatable() {
+		printCurrentMethodName();
+		final SimpleAccelerator accel = new SimpleAccelerator();
+		accel.add(new StandardObj(createTriangle(new Point(-50, 0, -50), new Point(50, 0, -50), new Point(0, 0, 50)),
+				createPhong(new SingleColor(Color.WHITE), AMBIENT, 1, 0, 10)));
+		accel.add(createSomeObject(createSphere(new Point(0, 2, 0), 1)));
+		final Scene scene = new StandardScene(
+				new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3),
+				Arrays.<LightSource> asList(new SphereLight(new Point(0, 10, 0), 2, Color.WHITE, 16)), accel);
+		int penumbra = 0;
+		for (int i = 0; i < 60; i++) {
+			// straight down across the shadow edge, passing below the sphere
+			final Ray ray = new Ray(new Point(i * 0.05f, 0.5f, 0.1f), new Vec3(0, -1, 0));
+			final Color a = Trace.primary(scene, ray).shade();
+			final Color b = Trace.primary(scene, ray).shade();
+			assertEquals("Shading a point twice must trace the same shadow rays", a.x(), b.x(), 0);
+			if (a.x() > AMBIENT.x() + 0.01f && a.x() < 0.9f)
+				penumbra++;
+		}
+		assertTrue("The points must cross the penumbra", penumbra > 0);
+	}
+}
@@ -0,0 +1,129 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import prog2.tests.RenderExercise;
+import raytracer.core.Renderer;
+import raytracer.core.def.Checkpoint;
+import raytracer.core.def.PointLightSource;
+import raytracer.math.Color;
+import raytracer.math.Point;
+
+public class RaytracerPublicCheckpointTest extends RayTracerTestBase implements PublicTest, RenderExercise {
+
+	private static final String SETTINGS = "test 64x64 packet16";
+
+	private Renderer renderer;
+
+	@Before
+	public void setUp() {
+		renderer = new Renderer(getScene(createSomeObject(createSphere(Point.ORIGIN, 5)),
+				new PointLightSource(new Point(0, 0, -10), Color.WHITE)), 64, 64, 1);
+	}
+
+	private Renderer.Work tile(final int x, final int y) {
+		final Renderer.Work w = renderer.new Work(x, y, 16, 16);
+		for (int i = 0; i < w.pixels.length; i++)
+			w.pixels[i] = x * 1000 + y * 10 + i;
+		return w;
+	}
+
+	private static void assertTile(final Renderer.Work expected, final Checkpoint.Tile t) {
+		assertEquals("x", expected.x, t.x);
+		assertEquals("y", expected.y, t.y);
+		assertEquals("w", expected.w, t.w);
+		assertEquals("h", expected.h, t.h);
+		assertTrue("Pixels of tile " + t.x + "," + t.y, Arrays.equals(expected.pixels, t.pixels));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testCheckpointResume() throws IOException {
+		printCurrentMethodName();
+		final File f = File.createTempFile("checkpoint", ".rtck");
+		f.delete();
+		try {
+			final Renderer.Work a = tile(0, 0), b = tile(16, 0), c = tile(0, 16);
+			try (Checkpoint cp = Checkpoint.open(f, SETTINGS, 0)) {
+				assertTrue("New checkpoint has no tiles", cp.restored().isEmpty());
+				cp.record(a);
+				cp.record(b);
+			}
+			try (Checkpoint cp = Checkpoint.open(f, SETTINGS, 0)) {
+				assertEquals("Restored tiles", 2, cp.restored().size());
+				assertTile(a, cp.restored().get(0));
+				assertTile(b, cp.restored().get(1));
+				assertTrue(cp.isDone(0, 0));
+				assertTrue(cp.isDone(16, 0));
+				assertFalse(cp.isDone(0, 16));
+				cp.record(c);
+			}
+			try (Checkpoint cp = Checkpoint.open(f, SETTINGS, 0)) {
+				assertEquals("Restored tiles after resume", 3, cp.restored().size());
+				assertTile(c, cp.restored().get(2));
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testCheckpointDropsTornTile() throws IOException {
+		printCurrentMethodName();
+		final File f = File.createTempFile("checkpoint", ".rtck");
+		f.delete();
+		try {
+			final Renderer.Work a = tile(0, 0), b = tile(16, 0), c = tile(32, 0);
+			try (Checkpoint cp = Checkpoint.open(f, SETTINGS, 0)) {
+				cp.record(a);
+				cp.record(b);
+			}
+			// a kill while writing leaves a partial record behind
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+				raf.setLength(raf.length() - 10);
+			}
+			try (Checkpoint cp = Checkpoint.open(f, SETTINGS, 0)) {
+				assertEquals("Torn tile is dropped", 1, cp.restored().size());
+				assertTile(a, cp.restored().get(0));
+				assertFalse(cp.isDone(16, 0));
+				cp.record(c);
+			}
+			try (Checkpoint cp = Checkpoint.open(f, SETTINGS, 0)) {
+				assertEquals("Tiles after the torn one are readable", 2, cp.restored().size());
+				assertTile(c, cp.restored().get(1));
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testCheckpointOtherSettings() throws IOException {
+		printCurrentMethodName();
+		final File f = File.createTempFile("checkpoint", ".rtck");
+		f.delete();
+		try {
+			try (Checkpoint cp = Checkpoint.open(f, SETTINGS, 0)) {
+				cp.record(tile(0, 0));
+			}
+			try (Checkpoint cp = Checkpoint.open(f, SETTINGS + " ss4", 0)) {
+				assertTrue("Checkpoint of other settings is not resumed", cp.restored().isEmpty());
+				assertFalse(cp.isDone(0, 0));
+			}
+		} finally {
+			f.delete();
+		}
+	}
+}
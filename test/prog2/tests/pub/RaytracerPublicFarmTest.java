@@ -0,0 +1,105 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import prog2.tests.RenderExercise;
+import raytracer.core.Camera;
+import raytracer.core.LightSource;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Renderer;
+import raytracer.core.Scene;
+import raytracer.core.SceneFactory;
+import raytracer.core.def.PointLightSource;
+import raytracer.core.def.SimpleAccelerator;
+import raytracer.core.def.StandardObj;
+import raytracer.core.def.StandardScene;
+import raytracer.core.dist.Coordinator;
+import raytracer.core.dist.Worker;
+import raytracer.geom.GeomFactory;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Vec3;
+import raytracer.shade.SingleColor;
+
+public class RaytracerPublicFarmTest extends RayTracerTestBase implements PublicTest, RenderExercise {
+
+	public static class SphereScene implements SceneFactory {
+		@Override
+		public Scene create(final String[] args) {
+			final Camera cam = new PerspectiveCamera(new Point(0, 0, -20), Point.ORIGIN, new Vec3(0, 1, 0), 3, 4, 3);
+			final SimpleAccelerator accel = new SimpleAccelerator();
+			accel.add(new StandardObj(GeomFactory.createSphere(Point.ORIGIN, 5), new SingleColor(Color.RED)));
+			return new StandardScene(cam, Arrays.<LightSource> asList(new PointLightSource(new Point(0, 0, -10),
+					Color.WHITE)), accel);
+		}
+	}
+
+	public static class BrokenScene implements SceneFactory {
+		@Override
+		public Scene create(final String[] args) throws IOException {
+			throw new IOException("no scene");
+		}
+	}
+
+	private static void startWorkers(final int n, final int port) {
+		for (int i = 0; i < n; i++) {
+			final Thread t = new Thread(new Worker("localhost", port));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testFarmDeliversAllTiles() throws Exception {
+		printCurrentMethodName();
+		final int xRes = 40, yRes = 30;
+		final int[] image = new int[xRes * yRes];
+		final int[] tiles = { 0 };
+		final Coordinator coordinator = new Coordinator(SphereScene.class, new String[0], xRes, yRes, 1, 16);
+		final ServerSocket server = new ServerSocket(0);
+		startWorkers(2, server.getLocalPort());
+		coordinator.render(server, new Coordinator.TileSink() {
+			@Override
+			public void tile(final int x, final int y, final int w, final int h, final int[] pixels) {
+				tiles[0]++;
+				for (int j = 0; j < h; j++)
+					System.arraycopy(pixels, j * w, image, (y + j) * xRes + x, w);
+			}
+		});
+		assertEquals("Number of tiles", 6, tiles[0]);
+		final Renderer.Work ref = new Renderer(new SphereScene().create(new String[0]), xRes, yRes, 1)
+				.render(0, 0, xRes, yRes).call();
+		assertTrue("Farm image differs from a local render", Arrays.equals(ref.pixels, image));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testFarmFailsWithoutWorkers() throws Exception {
+		printCurrentMethodName();
+		final Coordinator coordinator = new Coordinator(BrokenScene.class, new String[0], 32, 32, 1, 16);
+		coordinator.setTimeout(300);
+		final ServerSocket server = new ServerSocket(0);
+		startWorkers(1, server.getLocalPort());
+		try {
+			coordinator.render(server, new Coordinator.TileSink() {
+				@Override
+				public void tile(final int x, final int y, final int w, final int h, final int[] pixels) {
+					fail("No tile can be rendered");
+				}
+			});
+		} catch (final IOException e) {
+			return;
+		}
+		fail("Render without workers should fail");
+	}
+}
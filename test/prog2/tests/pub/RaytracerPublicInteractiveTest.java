@@ -0,0 +1,148 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import prog2.tests.RenderExercise;
+import raytracer.core.LightSource;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Renderer;
+import raytracer.core.Scene;
+import raytracer.core.def.CompactBVH;
+import raytracer.core.def.PointLightSource;
+import raytracer.core.def.ProgressiveRender;
+import raytracer.core.def.ReprojectionCache;
+import raytracer.core.def.StandardObj;
+import raytracer.core.def.StandardScene;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Vec3;
+import raytracer.shade.SingleColor;
+
+/**
+ * Compares the images of the renderers for interactive camera work with those
+ * of the {@link Renderer}
+ */
+public class RaytracerPublicInteractiveTest extends RayTracerTestBase implements PublicTest, RenderExercise {
+
+	private static final int X_RES = 64, Y_RES = 48, PACKET = 16;
+
+	/**
+	 * Returns a few spheres on a floor, so that objects occlude each other
+	 * and cast shadows
+	 */
+	private Scene scene() {
+		final Color ambient = Color.WHITE.scale(0.1f);
+		final CompactBVH bvh = new CompactBVH();
+		bvh.add(new StandardObj(createTriangle(new Point(-20, 0, -20), new Point(20, 0, -20), new Point(0, 0, 20)),
+				createCheckerBoard(new SingleColor(Color.BLACK), new SingleColor(Color.WHITE), 2f)));
+		bvh.add(new StandardObj(createSphere(new Point(0, 1, 0), 1),
+				createPhong(new SingleColor(Color.BLUE), ambient, 0.6f, 0.5f, 15)));
+		bvh.add(new StandardObj(createSphere(new Point(2, 0.7f, -2), 0.7f),
+				createPhong(new SingleColor(Color.RED), ambient, 0.6f, 0.5f, 15)));
+		bvh.add(new StandardObj(createSphere(new Point(-2.5f, 1.5f, 1), 1.5f),
+				createPhong(new SingleColor(Color.GREEN), ambient, 0.6f, 0.5f, 15)));
+		final List<LightSource> lights = new ArrayList<LightSource>();
+		lights.add(new PointLightSource(new Point(-10, 10, -10), Color.WHITE));
+		return new StandardScene(new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3), lights,
+				bvh);
+	}
+
+	private static int[] render(final Renderer renderer) throws Exception {
+		final int[] image = new int[X_RES * Y_RES];
+		for (int y = 0; y < Y_RES; y += PACKET)
+			for (int x = 0; x < X_RES; x += PACKET)
+				paste(image, renderer.render(x, y, PACKET, PACKET).call());
+		return image;
+	}
+
+	private static void paste(final int[] image, final Renderer.Work work) {
+		for (int j = 0; j < work.h; j++)
+			System.arraycopy(work.pixels, j * work.w, image, (work.y + j) * X_RES + work.x, work.w);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testProgressiveRenderMatchesRenderer() throws Exception {
+		printCurrentMethodName();
+		final Scene scene = scene();
+		final int[] image = new int[X_RES * Y_RES];
+		final List<Integer> scales = new ArrayList<Integer>();
+		final CountDownLatch finished = new CountDownLatch((X_RES / PACKET) * (Y_RES / PACKET));
+		// a low frame rate keeps the first level at the start scale
+		final ProgressiveRender progressive = new ProgressiveRender(X_RES, Y_RES, 2, PACKET, 1, 4,
+				new ProgressiveRender.TileSink() {
+					@Override
+					public void tile(final int scale, final Renderer.Work work) {
+						synchronized (image) {
+							scales.add(scale);
+							if (scale == 1) {
+								paste(image, work);
+								finished.countDown();
+							}
+						}
+					}
+				});
+		try {
+			progressive.show(scene, scene.getCamera());
+			finished.await();
+		} finally {
+			progressive.shutdown();
+		}
+		synchronized (image) {
+			assertEquals("The first level must use the start scale", ProgressiveRender.START_SCALE,
+					(int) scales.get(0));
+			for (int i = 1; i < scales.size(); i++)
+				assertTrue("The levels must get finer", scales.get(i) <= scales.get(i - 1));
+			for (int scale = ProgressiveRender.START_SCALE; scale >= 1; scale /= 2)
+				assertTrue("Level " + scale + " must be delivered", scales.contains(scale));
+			assertTrue("The full resolution level must equal the image of the renderer",
+					Arrays.equals(render(new Renderer(scene, X_RES, Y_RES, 2)), image));
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testReprojectionWithFixedCamera() throws Exception {
+		printCurrentMethodName();
+		final Scene scene = scene();
+		final PerspectiveCamera cam = (PerspectiveCamera) scene.getCamera();
+		final int pixels = X_RES * Y_RES, refresh = 8;
+		final ExecutorService exe = Executors.newFixedThreadPool(4);
+		try {
+			final ReprojectionCache cache = new ReprojectionCache(scene, X_RES, Y_RES, refresh,
+					ReprojectionCache.DEFAULT_DEPTH_TOLERANCE);
+			final int[] first = cache.render(cam, exe);
+			assertEquals("The first frame must be traced completely", pixels, cache.getTracedCount());
+			assertTrue("The first frame must equal the image of the renderer",
+					Arrays.equals(render(new Renderer(scene, X_RES, Y_RES, 1)), first));
+			int traced = 0;
+			for (int frame = 1; frame <= refresh; frame++) {
+				final int[] image = cache.render(cam, exe);
+				// the rotating subset, plus a few pixels behind silhouettes
+				assertTrue("Frame " + frame + " must trace about the refresh subset, not "
+						+ cache.getTracedCount(), cache.getTracedCount() < 2 * pixels / refresh);
+				assertEquals(pixels - cache.getTracedCount(), cache.getReprojectedCount());
+				assertTrue("Frame " + frame + " must equal the first one", Arrays.equals(first, image));
+				traced += cache.getTracedCount();
+			}
+			assertTrue("Every pixel must be traced again within the refresh frames", traced >= pixels);
+
+			cache.invalidate();
+			assertTrue(Arrays.equals(first, cache.render(cam, exe)));
+			assertEquals("An invalidated cache must trace every pixel", pixels, cache.getTracedCount());
+		} finally {
+			exe.shutdown();
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package prog2.tests.pub;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -11,6 +16,7 @@ import org.junit.Test;
 import prog2.tests.PublicTest;
 import prog2.tests.RayTracerTestBase;
 import prog2.tests.ReadObjExercise;
+import raytracer.core.OBJReader;
 import raytracer.core.def.StandardObj;
 import raytracer.geom.Primitive;
 import raytracer.math.Color;
@@ -36,6 +42,48 @@ public class RaytracerPublicReadObjTest extends RayTracerTestBase implements Pub
 				student.equals(ref));
 	}
 
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testWeldReport() throws IOException {
+		printCurrentMethodName();
+		final String obj = String.join("\n",
+				"v 0 0 0", "v 1 0 0", "v 0 0 1",
+				// welded to the second and third vertex
+				"v 1.0005 0 0", "v 1 0 1", "v 0 0.0002 1",
+				// on the line through the first two vertices
+				"v 2 0 0",
+				"f 1 2 3",
+				// shares an edge with the first face after welding
+				"f 4 5 6",
+				// the first face again, with the same winding
+				"f 2 3 1",
+				// collapses to an edge after welding
+				"f 1 2 4",
+				// zero area
+				"f 1 2 7", "");
+		final File f = File.createTempFile("weld", ".obj");
+		try {
+			Files.write(f.toPath(), obj.getBytes(StandardCharsets.US_ASCII));
+			final ComparableAccelarator student = new ComparableAccelarator();
+			final OBJReader.Report report = OBJReader.read(f.getPath(), student, new SingleColor(Color.GRAY), 1.0f,
+					new Vec3(0, 0, 0), 1e-3f);
+			assertEquals(7, report.getVertices());
+			assertEquals(2, report.getWeldedVertices());
+			assertEquals(5, report.getFaces());
+			assertEquals(2, report.getDegenerateFaces());
+			assertEquals(1, report.getDuplicateFaces());
+			assertEquals(2, report.getKeptFaces());
+
+			final ComparableAccelarator ref = new ComparableAccelarator();
+			ref.add(new StandardObj(createTriangle(new Point(0, 0, 0), new Point(1, 0, 0), new Point(0, 0, 1)),
+					new SingleColor(Color.GRAY)));
+			ref.add(new StandardObj(createTriangle(new Point(1, 0, 0), new Point(1, 0, 1), new Point(0, 0, 1)),
+					new SingleColor(Color.GRAY)));
+			assertTrue("The welded faces must use the earlier vertices", student.equals(ref));
+		} finally {
+			f.delete();
+		}
+	}
+
 	private void getSimple(final ComparableAccelarator ref) {
 		Primitive t;
 
@@ -1,15 +1,32 @@
 package prog2.tests.pub;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
 
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import prog2.tests.PublicTest;
 import prog2.tests.RayTracerTestBase;
 import prog2.tests.ShaderExercise;
+import raytracer.core.LightSource;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Scene;
+import raytracer.core.Shader;
+import raytracer.core.Trace;
+import raytracer.core.def.PointLightSource;
+import raytracer.core.def.SimpleAccelerator;
+import raytracer.core.def.StandardObj;
+import raytracer.core.def.StandardScene;
 import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec3;
+import raytracer.shade.ShaderCompiler;
+import raytracer.shade.ShaderFactory;
 import raytracer.shade.SingleColor;
 
 public class RaytracerPublicShaderTest extends RayTracerTestBase implements PublicTest, ShaderExercise {
@@ -68,4 +85,59 @@ public class RaytracerPublicShaderTest extends RayTracerTestBase implements Publ
 				IllegalArgumentException.class, new SingleColor(Color.RED),
 				null, 1.0f));
 	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testCompiledShadersMatchInterpreted() {
+		printCurrentMethodName();
+		final Shader[] trees = {
+				createPhong(createCheckerBoard(new SingleColor(Color.RED), new SingleColor(Color.WHITE), 1),
+						new Color(0.1f, 0.1f, 0.1f), 0.7f, 0.3f, 20),
+				ShaderFactory.createMirror(createPhong(new SingleColor(Color.GREEN), Color.BLACK, 1, 0, 10), 0.5f),
+				createCheckerBoard(ShaderFactory.createMirror(new SingleColor(Color.BLUE), 0.8f),
+						createPhong(new SingleColor(Color.YELLOW), Color.BLACK, 0.5f, 0.5f, 5), 0.5f) };
+		final Shader[] compiled = new Shader[trees.length];
+		for (int i = 0; i < trees.length; i++)
+			compiled[i] = ShaderCompiler.compile(trees[i]);
+		final Scene interpreted = shaderScene(trees);
+		final Scene flattened = shaderScene(compiled);
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 40; x++) {
+				final Point eye = new Point(0, 4, -10);
+				final Ray ray = new Ray(eye, new Point(x * 0.25f - 5, y * 0.25f - 2, 0).sub(eye).normalized());
+				final Color a = Trace.primary(interpreted, ray).shade();
+				final Color b = Trace.primary(flattened, ray).shade();
+				assertEquals("Red at " + x + ", " + y, a.x(), b.x(), 0);
+				assertEquals("Green at " + x + ", " + y, a.y(), b.y(), 0);
+				assertEquals("Blue at " + x + ", " + y, a.z(), b.z(), 0);
+			}
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testCompiledShadersShareClassByStructure() {
+		printCurrentMethodName();
+		final Shader red = ShaderCompiler.compile(createPhong(new SingleColor(Color.RED), Color.BLACK, 1, 0, 10));
+		final Shader green = ShaderCompiler.compile(createPhong(new SingleColor(Color.GREEN), Color.BLACK, 1, 0, 10));
+		final Shader mirror = ShaderCompiler.compile(ShaderFactory.createMirror(new SingleColor(Color.RED), 1));
+		assertTrue("Trees of the same structure must share their class", red.getClass() == green.getClass());
+		assertTrue("Trees of different structures must not share their class",
+				red.getClass() != mirror.getClass());
+		final Scene scene = shaderScene(green);
+		final Color c = Trace.primary(scene, new Ray(new Point(0, 1, -1), new Vec3(0, -1, 0))).shade();
+		assertTrue("A tree must be shaded with its own nodes but the color was " + c, c.y() > 0 && c.x() == 0);
+	}
+
+	/**
+	 * Returns a scene with a floor shaded by the first shader and a sphere for
+	 * each further shader
+	 */
+	private Scene shaderScene(final Shader... shaders) {
+		final SimpleAccelerator accel = new SimpleAccelerator();
+		accel.add(new StandardObj(createTriangle(new Point(-50, 0, -50), new Point(50, 0, -50), new Point(0, 0, 50)),
+				shaders[0]));
+		for (int i = 1; i < shaders.length; i++)
+			accel.add(new StandardObj(createSphere(new Point(i * 3 - 4.5f, 1.5f, 3), 1.5f), shaders[i]));
+		return new StandardScene(new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3),
+				Arrays.<LightSource> asList(new PointLightSource(new Point(2, 10, -4), Color.WHITE)), accel);
+	}
 }
@@ -0,0 +1,158 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import prog2.tests.RenderExercise;
+import raytracer.core.Camera;
+import raytracer.core.Hit;
+import raytracer.core.LightSource;
+import raytracer.core.Renderer;
+import raytracer.core.Scene;
+import raytracer.core.def.MappedFrameBuffer;
+import raytracer.core.def.PngStreamWriter;
+import raytracer.core.def.PointLightSource;
+import raytracer.core.def.StreamingRender;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+
+public class RaytracerPublicStreamTest extends RayTracerTestBase implements PublicTest, RenderExercise {
+
+	private static void assertImage(final int[] expected, final int w, final int h, final InputStream png)
+			throws IOException {
+		final BufferedImage img = ImageIO.read(png);
+		assertEquals("Width", w, img.getWidth());
+		assertEquals("Height", h, img.getHeight());
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++)
+				assertEquals("Pixel " + x + "," + y, expected[y * w + x] & 0xffffff, img.getRGB(x, y) & 0xffffff);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testPngRoundTrip() throws IOException {
+		printCurrentMethodName();
+		// random pixels do not compress, so the data spans several IDAT chunks
+		final int w = 211, h = 157;
+		final int[] pixels = new int[w * h];
+		final Random random = new Random(42);
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextInt() & 0xffffff;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (PngStreamWriter png = new PngStreamWriter(bytes, w, h)) {
+			final int[] row = new int[w];
+			for (int y = 0; y < h; y++) {
+				System.arraycopy(pixels, y * w, row, 0, w);
+				png.writeRow(row);
+			}
+		}
+		assertImage(pixels, w, h, new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testStreamingRenderMatchesTiles() throws Exception {
+		printCurrentMethodName();
+		final int w = 50, h = 35, packet = 16;
+		final Scene scene = getScene(createSomeObject(createSphere(Point.ORIGIN, 5)),
+				new PointLightSource(new Point(0, 0, -10), Color.WHITE));
+		final Renderer r = new Renderer(scene, w, h, 1);
+		final int[] expected = new int[w * h];
+		for (int y = 0; y < h; y += packet) {
+			for (int x = 0; x < w; x += packet) {
+				final Renderer.Work t = r.render(x, y, Math.min(packet, w - x), Math.min(packet, h - y)).call();
+				for (int j = 0; j < t.h; j++)
+					System.arraycopy(t.pixels, j * t.w, expected, (t.y + j) * w + t.x, t.w);
+			}
+		}
+
+		final File fbFile = File.createTempFile("stream", ".fb");
+		final File pngFile = File.createTempFile("stream", ".png");
+		final ExecutorService exe = Executors.newFixedThreadPool(2);
+		try {
+			try (MappedFrameBuffer fb = new MappedFrameBuffer(fbFile, w, h);
+					OutputStream out = new FileOutputStream(pngFile);
+					PngStreamWriter png = new PngStreamWriter(out, w, h)) {
+				new StreamingRender(r, fb, packet).run(exe, 3, png);
+			}
+			try (InputStream in = new FileInputStream(pngFile)) {
+				assertImage(expected, w, h, in);
+			}
+		} finally {
+			exe.shutdown();
+			fbFile.delete();
+			pngFile.delete();
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testStreamingRenderStopsAfterFailure() throws Exception {
+		printCurrentMethodName();
+		final int w = 64, h = 64, packet = 4;
+		final Scene plain = getScene(createSomeObject(createSphere(Point.ORIGIN, 5)));
+		final AtomicInteger tiles = new AtomicInteger();
+		// every tile fails at its first ray
+		final Scene failing = new Scene() {
+			@Override
+			public Color getBackground() {
+				return plain.getBackground();
+			}
+
+			@Override
+			public Camera getCamera() {
+				return plain.getCamera();
+			}
+
+			@Override
+			public Collection<LightSource> getLightSources() {
+				return plain.getLightSources();
+			}
+
+			@Override
+			public Hit hit(final Ray ray) {
+				tiles.incrementAndGet();
+				throw new IllegalStateException("broken scene");
+			}
+		};
+		final File fbFile = File.createTempFile("stream", ".fb");
+		final ExecutorService exe = Executors.newFixedThreadPool(2);
+		try {
+			boolean thrown = false;
+			try (MappedFrameBuffer fb = new MappedFrameBuffer(fbFile, w, h);
+					PngStreamWriter png = new PngStreamWriter(new ByteArrayOutputStream(), w, h)) {
+				new StreamingRender(new Renderer(failing, w, h, 1), fb, packet).run(exe, 2, png);
+			} catch (final IOException e) {
+				thrown = true;
+			}
+			assertTrue("The failure of a tile must be reported", thrown);
+			// give tiles submitted in the background time to run
+			Thread.sleep(200);
+			assertTrue("Only the tiles in flight at the failure may run but " + tiles.get() + " did",
+					tiles.get() <= 2);
+		} finally {
+			exe.shutdown();
+			fbFile.delete();
+		}
+	}
+}
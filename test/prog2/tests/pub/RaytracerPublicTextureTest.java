@@ -0,0 +1,195 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import prog2.tests.ShaderExercise;
+import raytracer.core.Hit;
+import raytracer.core.LightSource;
+import raytracer.core.Obj;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Scene;
+import raytracer.core.Trace;
+import raytracer.core.def.SimpleAccelerator;
+import raytracer.core.def.StandardScene;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec2;
+import raytracer.math.Vec3;
+import raytracer.shade.ImageTexture;
+import raytracer.shade.TextureCache;
+
+public class RaytracerPublicTextureTest extends RayTracerTestBase implements PublicTest, ShaderExercise {
+
+	private static final int TILE_BYTES = 4 * ImageTexture.TILE * ImageTexture.TILE;
+
+	/**
+	 * Counts the loads of a cache test
+	 */
+	private static final class CountingLoader implements TextureCache.Loader {
+		private int loads = 0;
+
+		@Override
+		public int[] load() {
+			loads++;
+			return new int[ImageTexture.TILE * ImageTexture.TILE];
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testTextureCacheBudget() {
+		printCurrentMethodName();
+		// four tiles for each of the default segments
+		final TextureCache cache = new TextureCache(64L * TILE_BYTES);
+		final CountingLoader loader = new CountingLoader();
+		for (long key = 0; key < 1000; key++) {
+			cache.get(key, loader);
+			assertTrue("The cache must stay within its budget", cache.getBytes() <= 64L * TILE_BYTES);
+		}
+		assertEquals(1000, loader.loads);
+		assertEquals(1000, cache.getMisses());
+		assertEquals(cache.getMisses() - cache.getBytes() / TILE_BYTES, cache.getEvictions());
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testTextureCacheEvictsLeastRecentlyUsed() {
+		printCurrentMethodName();
+		final TextureCache cache = new TextureCache(3L * TILE_BYTES, 1);
+		final CountingLoader loader = new CountingLoader();
+		cache.get(1, loader);
+		cache.get(2, loader);
+		cache.get(3, loader);
+		// using 1 again leaves 2 as the least recently used tile
+		cache.get(1, loader);
+		cache.get(4, loader);
+		assertEquals(1, cache.getEvictions());
+		assertEquals(4, loader.loads);
+		cache.get(1, loader);
+		cache.get(3, loader);
+		cache.get(4, loader);
+		assertEquals("Tiles 1, 3 and 4 must still be cached", 4, loader.loads);
+		cache.get(2, loader);
+		assertEquals("Tile 2 must have been evicted", 5, loader.loads);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testTextureCacheStats() {
+		printCurrentMethodName();
+		final TextureCache cache = new TextureCache(100L * TILE_BYTES, 4);
+		final CountingLoader loader = new CountingLoader();
+		for (int pass = 0; pass < 3; pass++)
+			for (long key = 0; key < 20; key++)
+				cache.get(key, loader);
+		assertEquals(20, cache.getMisses());
+		assertEquals(40, cache.getHits());
+		assertEquals(0, cache.getEvictions());
+		assertEquals(20L * TILE_BYTES, cache.getBytes());
+		cache.resetStats();
+		assertEquals(0, cache.getMisses());
+		assertEquals(0, cache.getHits());
+		assertEquals("Resetting the counters must keep the tiles", 20L * TILE_BYTES, cache.getBytes());
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testImageTextureLevels() throws IOException {
+		printCurrentMethodName();
+		// spans several tiles with partial tiles at the right and bottom edge
+		final int width = 150, height = 70;
+		final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Random random = new Random(3);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, random.nextInt(1 << 24));
+		final File file = File.createTempFile("texture", ".png");
+		file.deleteOnExit();
+		ImageIO.write(img, "png", file);
+
+		final TextureCache cache = new TextureCache(64L << 20);
+		final ImageTexture full = new ImageTexture(file, 1, 0, cache);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				assertTexel("Texel " + x + ", " + y, img.getRGB(x, y),
+						texel(full, (x + 0.5f) / width, (y + 0.5f) / height, 1));
+		assertEquals("Every tile of the full resolution must be read once", 3 * 2, cache.getMisses());
+
+		// at distance 2 a pixel covers 2 to 4 texels, which selects level 1
+		final ImageTexture coarse = new ImageTexture(file, 1, 1.5f / width, cache);
+		for (int y = 0; y < height / 2; y++) {
+			for (int x = 0; x < width / 2; x++) {
+				int r = 0, g = 0, b = 0;
+				for (int j = 0; j < 4; j++) {
+					final int c = img.getRGB(2 * x + j % 2, 2 * y + j / 2);
+					r += c >> 16 & 255;
+					g += c >> 8 & 255;
+					b += c & 255;
+				}
+				assertTexel("Level 1 texel " + x + ", " + y, (r + 2) / 4 << 16 | (g + 2) / 4 << 8 | (b + 2) / 4,
+						texel(coarse, (x + 0.5f) / (width / 2), (y + 0.5f) / (height / 2), 2));
+			}
+		}
+		assertEquals("The level 1 tiles must be read once", 3 * 2 + 2, cache.getMisses());
+	}
+
+	private static void assertTexel(final String message, final int rgb, final Color color) {
+		assertEquals(message, (rgb >> 16 & 255) / 255f, color.x(), 1e-4f);
+		assertEquals(message, (rgb >> 8 & 255) / 255f, color.y(), 1e-4f);
+		assertEquals(message, (rgb & 255) / 255f, color.z(), 1e-4f);
+	}
+
+	/**
+	 * Shades a hit at the given texture coordinates, seen from the given
+	 * distance
+	 */
+	private static Color texel(final ImageTexture texture, final float u, final float v, final float distance) {
+		final Point p = new Point(u, 0, v);
+		final Ray ray = new Ray(new Point(u, distance, v), new Vec3(0, -1, 0));
+		final Hit hit = new Hit() {
+			@Override
+			public boolean hits() {
+				return true;
+			}
+
+			@Override
+			public float getParameter() {
+				return distance;
+			}
+
+			@Override
+			public Point getPoint() {
+				return p;
+			}
+
+			@Override
+			public Vec3 getNormal() {
+				return Vec3.Y;
+			}
+
+			@Override
+			public Vec2 getUV() {
+				return new Vec2(u, v);
+			}
+
+			@Override
+			public Obj get() {
+				return null;
+			}
+		};
+		final Scene scene = new StandardScene(new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3),
+				new ArrayList<LightSource>(), new SimpleAccelerator());
+		return texture.shade(hit, Trace.primary(scene, ray, hit, null));
+	}
+}
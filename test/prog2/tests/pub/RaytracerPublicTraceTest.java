@@ -0,0 +1,317 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import prog2.tests.RenderExercise;
+import raytracer.core.LightSource;
+import raytracer.core.Obj;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.RayBuffer;
+import raytracer.core.Scene;
+import raytracer.core.Termination;
+import raytracer.core.Trace;
+import raytracer.core.def.Accelerator;
+import raytracer.core.def.BVH;
+import raytracer.core.def.CompactBVH;
+import raytracer.core.def.DynamicBVH;
+import raytracer.core.def.EditableScene;
+import raytracer.core.def.IncrementalRenderer;
+import raytracer.core.def.KdTree;
+import raytracer.core.def.LightTree;
+import raytracer.core.def.PointLightSource;
+import raytracer.core.def.SimpleAccelerator;
+import raytracer.core.def.SphereLight;
+import raytracer.core.def.StandardObj;
+import raytracer.core.def.StandardScene;
+import raytracer.core.def.UniformGrid;
+import raytracer.core.def.WideBVH;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Ray;
+import raytracer.math.Vec3;
+import raytracer.shade.ShaderFactory;
+import raytracer.shade.SingleColor;
+
+public class RaytracerPublicTraceTest extends RayTracerTestBase implements PublicTest, RenderExercise {
+
+	private static final Color AMBIENT = new Color(0.05f, 0.05f, 0.05f);
+
+	/**
+	 * A Phong floor at y = 0 below a sphere which shadows the origin from a
+	 * light straight above
+	 */
+	private Scene shadowScene() {
+		final SimpleAccelerator accel = new SimpleAccelerator();
+		accel.add(new StandardObj(createTriangle(new Point(-50, 0, -50), new Point(50, 0, -50), new Point(0, 0, 50)),
+				createPhong(new SingleColor(Color.WHITE), AMBIENT, 1, 0, 10)));
+		accel.add(createSomeObject(createSphere(new Point(0, 2, 0), 1)));
+		return new StandardScene(new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3),
+				Arrays.<LightSource> asList(new PointLightSource(new Point(0, 10, 0), Color.WHITE)), accel);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testShadowIgnoresMaxDepth() {
+		printCurrentMethodName();
+		final Scene scene = shadowScene();
+		// from the side, so the primary ray misses the sphere
+		final Ray ray = new Ray(new Point(5, 1, 0), new Vec3(-5, -1, 0).normalized());
+		for (final int depth : new int[] { 0, 1, 5 }) {
+			final Color c = Trace.primary(scene, ray, new Termination(depth, 0, false)).shade();
+			assertTrue("Point below the sphere must be shadowed at max depth " + depth + " but was " + c,
+					colorEqualsPhong(AMBIENT, c));
+		}
+		final Ray lit = new Ray(new Point(8, 1, 0), new Vec3(-5, -1, 0).normalized());
+		final Color c = Trace.primary(scene, lit, new Termination(0, 0, false)).shade();
+		assertTrue("Point beside the sphere must be lit but was " + c, c.x() > 0.5f);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testCoherentOrderGroupsOctants() {
+		printCurrentMethodName();
+		final Random random = new Random(7);
+		final RayBuffer buffer = new RayBuffer(64);
+		for (int i = 0; i < 512; i++) {
+			final int octant = i % 8;
+			final Vec3 dir = new Vec3((octant & 4) != 0 ? -1 : 1, (octant & 2) != 0 ? -1 : 1,
+					(octant & 1) != 0 ? -1 : 1).normalized();
+			buffer.add(new Ray(new Point(random.nextFloat() * 100, random.nextFloat() * 100,
+					random.nextFloat() * 100), dir), i);
+		}
+		final int[] order = buffer.coherentOrder();
+		assertTrue("Order must contain every ray once", order.length == 512);
+		final boolean[] seen = new boolean[512];
+		int previous = -1, changes = 0;
+		for (final int i : order) {
+			assertTrue("Ray " + i + " appears twice", !seen[i]);
+			seen[i] = true;
+			final int octant = (buffer.dx(i) < 0 ? 4 : 0) | (buffer.dy(i) < 0 ? 2 : 0) | (buffer.dz(i) < 0 ? 1 : 0);
+			assertTrue("Octants must be sorted", octant >= previous);
+			if (octant != previous)
+				changes++;
+			previous = octant;
+		}
+		assertTrue("Every octant must form one group", changes == 8);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testRouletteMatchesDeterministicMean() {
+		printCurrentMethodName();
+		// a black mirror reflecting a white sphere behind the origin of the ray
+		final SimpleAccelerator accel = new SimpleAccelerator();
+		accel.add(new StandardObj(createSphere(new Point(0, 0, 5), 5),
+				ShaderFactory.createMirror(new SingleColor(Color.BLACK), 0.3f)));
+		accel.add(createSomeObject(createSphere(new Point(0, 0, -20), 5)));
+		final Scene scene = new StandardScene(
+				new PerspectiveCamera(new Point(0, 0, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3),
+				Arrays.<LightSource> asList(new PointLightSource(new Point(0, 10, -10), Color.WHITE)), accel);
+		final Ray ray = new Ray(new Point(0, 0, -10), new Vec3(0, 0, 1));
+		final float expected = Trace.primary(scene, ray, new Termination(4, 0, false)).shade().x();
+		assertEquals(0.3f, expected, 1e-4f);
+		// the reflection survives with probability 0.6 and is weighted by 1/0.6
+		final Termination roulette = new Termination(4, 0.5f, true);
+		final int n = 4000;
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += Trace.primary(scene, ray, roulette).shade().x();
+		assertEquals("Russian roulette must not change the mean color", expected, sum / n, 0.03);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testLightTreeFollowsLightEdits() {
+		printCurrentMethodName();
+		final SimpleAccelerator accel = new SimpleAccelerator();
+		accel.add(new StandardObj(createTriangle(new Point(-50, 0, -50), new Point(50, 0, -50), new Point(0, 0, 50)),
+				createPhong(new SingleColor(Color.WHITE), AMBIENT, 1, 0, 10)));
+		final EditableScene scene = new EditableScene(
+				new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3),
+				new ArrayList<LightSource>(), accel);
+		scene.setLightSampler(new LightTree(scene.getLightSources(), 1, 0));
+		final Ray ray = new Ray(new Point(0, 5, 0), new Vec3(0, -1, 0));
+		assertTrue("Without lights only the ambient term remains",
+				colorEqualsPhong(AMBIENT, Trace.primary(scene, ray).shade()));
+
+		final LightSource light = new PointLightSource(new Point(0, 10, 0), Color.WHITE);
+		scene.addLight(light);
+		final Color lit = Trace.primary(scene, ray).shade();
+		assertTrue("The sampler must choose the added light but the color was " + lit, lit.x() > 0.5f);
+
+		scene.removeLight(light);
+		assertTrue("The sampler must not choose the removed light",
+				colorEqualsPhong(AMBIENT, Trace.primary(scene, ray).shade()));
+	}
+
+	/**
+	 * Returns dim point lights of different intensities around the origin
+	 */
+	private static List<LightSource> ringOfLights() {
+		final List<LightSource> lights = new ArrayList<LightSource>();
+		for (int i = 0; i < 8; i++) {
+			final double a = i * Math.PI / 4;
+			final float c = 0.01f + 0.01f * (i % 4);
+			lights.add(new PointLightSource(new Point((float) (5 * Math.cos(a)), 3 + i % 3, (float) (5 * Math.sin(a))),
+					new Color(c, c, c)));
+		}
+		return lights;
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testLightTreePdfSumsToOne() {
+		printCurrentMethodName();
+		final List<LightSource> lights = ringOfLights();
+		final LightSource dark = new PointLightSource(new Point(0, 1, 0), Color.BLACK);
+		lights.add(dark);
+		final LightTree tree = new LightTree(lights, 1, 0);
+		final Random random = new Random(21);
+		final LightSource[] chosen = new LightSource[1];
+		final float[] weights = new float[1];
+		for (int i = 0; i < 50; i++) {
+			final Point p = new Point(random.nextFloat() * 20 - 10, random.nextFloat() * 10, random.nextFloat() * 20 - 10);
+			float sum = 0;
+			for (final LightSource l : lights)
+				sum += tree.pdf(p, l);
+			assertEquals("The probabilities of all lights must sum to 1", 1, sum, 1e-5f);
+			assertEquals("A light without intensity must never be chosen", 0, tree.pdf(p, dark), 0);
+			assertEquals(1, tree.sample(p, chosen, weights));
+			assertEquals("The weight must be the inverse probability", 1 / tree.pdf(p, chosen[0]), weights[0],
+					1e-4f * weights[0]);
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testLightTreeConvergesToAllLights() {
+		printCurrentMethodName();
+		final SimpleAccelerator accel = new SimpleAccelerator();
+		accel.add(new StandardObj(createTriangle(new Point(-50, 0, -50), new Point(50, 0, -50), new Point(0, 0, 50)),
+				createPhong(new SingleColor(Color.WHITE), Color.BLACK, 1, 0, 10)));
+		final StandardScene scene = new StandardScene(
+				new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3), ringOfLights(), accel);
+		final Ray ray = new Ray(new Point(0.5f, 5, 0.5f), new Vec3(0, -1, 0));
+		final float expected = Trace.primary(scene, ray).shade().x();
+
+		scene.setLightSampler(new LightTree(scene.getLightSources(), 2, 0));
+		final int n = 20000;
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += Trace.primary(scene, ray).shade().x();
+		assertEquals("The mean of the sampled lights must equal the sum over all lights", expected, sum / n,
+				0.02 * expected);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testIncrementalRecordsReflectionsThroughLights() throws Exception {
+		printCurrentMethodName();
+		// the reflections of the mirror floor pass through the bounds of the
+		// sphere light before they hit the sphere behind it; the tiles are
+		// small enough that some of them see nothing else
+		final SimpleAccelerator accel = new SimpleAccelerator();
+		accel.add(new StandardObj(createTriangle(new Point(-50, 0, -50), new Point(50, 0, -50), new Point(0, 0, 50)),
+				ShaderFactory.createMirror(new SingleColor(Color.BLACK), 1)));
+		final Obj before = createSomeObject(createSphere(new Point(0, 6, 20), 1));
+		accel.add(before);
+		final EditableScene scene = new EditableScene(
+				new PerspectiveCamera(new Point(0, 3, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3),
+				new ArrayList<LightSource>(Arrays.<LightSource> asList(
+						new SphereLight(new Point(0, 3, 10), 2, Color.WHITE, 4))), accel);
+		final ExecutorService exe = Executors.newFixedThreadPool(2);
+		try {
+			final IncrementalRenderer incremental = new IncrementalRenderer(scene, 80, 60, 1, 2);
+			incremental.render(exe);
+			final int[] old = incremental.getImage().clone();
+			scene.replace(before, new StandardObj(createSphere(new Point(0, 6, 20), 1), new SingleColor(Color.RED)));
+			incremental.render(exe);
+
+			final IncrementalRenderer full = new IncrementalRenderer(scene, 80, 60, 1, 2);
+			full.render(exe);
+			assertTrue("The edit must change the reflection", !Arrays.equals(old, full.getImage()));
+			assertTrue("The reflections through the light must be rendered again",
+					Arrays.equals(full.getImage(), incremental.getImage()));
+		} finally {
+			exe.shutdown();
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testIncrementalEditsMatchFreshRender() throws Exception {
+		printCurrentMethodName();
+		final ExecutorService exe = Executors.newFixedThreadPool(2);
+		try {
+			final BVH bvh = new BVH();
+			final Accelerator[] accels = { bvh, new CompactBVH(), new WideBVH(), new KdTree(), new UniformGrid(),
+					new DynamicBVH() };
+			for (final Accelerator accel : accels) {
+				final String name = accel.getClass().getSimpleName();
+				final List<Obj> objects = new ArrayList<Obj>();
+				objects.add(new StandardObj(
+						createTriangle(new Point(-50, 0, -50), new Point(50, 0, -50), new Point(0, 0, 50)),
+						createPhong(new SingleColor(Color.WHITE), AMBIENT, 1, 0, 10)));
+				final Obj moved = createSomeObject(createSphere(new Point(-2, 1, 0), 1));
+				final Obj removed = createSomeObject(createSphere(new Point(2, 1, 0), 1));
+				objects.add(moved);
+				objects.add(removed);
+				for (final Obj o : objects)
+					accel.add(o);
+				if (accel == bvh)
+					bvh.buildBVH();
+				final LightSource light = new PointLightSource(new Point(0, 10, -5), Color.WHITE);
+				final EditableScene scene = new EditableScene(
+						new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, Vec3.Y, 3, 4, 3),
+						new ArrayList<LightSource>(Arrays.asList(light)), accel);
+				final IncrementalRenderer incremental = new IncrementalRenderer(scene, 40, 30, 1, 8);
+				incremental.render(exe);
+				assertSameImage(name + " before the edits", objects, scene, incremental, exe);
+
+				final Obj copy = createSomeObject(createSphere(new Point(-1, 1, 2), 1));
+				scene.replace(moved, copy);
+				objects.remove(moved);
+				objects.add(copy);
+				assertSameImage(name + " after moving a sphere", objects, scene, incremental, exe);
+
+				final Obj added = createSomeObject(createSphere(new Point(0, 2, -3), 0.5f));
+				scene.add(added);
+				objects.add(added);
+				assertSameImage(name + " after adding a sphere", objects, scene, incremental, exe);
+
+				scene.remove(removed);
+				objects.remove(removed);
+				assertSameImage(name + " after removing a sphere", objects, scene, incremental, exe);
+
+				scene.addLight(new PointLightSource(new Point(5, 5, -5), Color.WHITE));
+				assertSameImage(name + " after adding a light", objects, scene, incremental, exe);
+
+				scene.removeLight(light);
+				assertSameImage(name + " after removing a light", objects, scene, incremental, exe);
+			}
+		} finally {
+			exe.shutdown();
+		}
+	}
+
+	/**
+	 * Renders the edited scene incrementally and asserts that the image equals
+	 * a fresh render of the objects over a new acceleration structure
+	 */
+	private static void assertSameImage(final String frame, final List<Obj> objects, final EditableScene scene,
+			final IncrementalRenderer incremental, final ExecutorService exe) throws Exception {
+		incremental.render(exe);
+		final SimpleAccelerator accel = new SimpleAccelerator();
+		for (final Obj o : objects)
+			accel.add(o);
+		final IncrementalRenderer fresh = new IncrementalRenderer(new EditableScene(scene.getCamera(),
+				new ArrayList<LightSource>(scene.getLightSources()), accel), 40, 30, 1, 8);
+		fresh.render(exe);
+		assertTrue(frame + " must equal a fresh render", Arrays.equals(fresh.getImage(), incremental.getImage()));
+	}
+}
@@ -0,0 +1,141 @@
+package prog2.tests.pub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static prog2.tests.TestUtil.DEFAULT_TIMEOUT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import prog2.tests.PublicTest;
+import prog2.tests.RayTracerTestBase;
+import prog2.tests.RenderExercise;
+import raytracer.core.LightSource;
+import raytracer.core.OBJReader;
+import raytracer.core.PerspectiveCamera;
+import raytracer.core.Renderer;
+import raytracer.core.Scene;
+import raytracer.core.WavefrontRenderer;
+import raytracer.core.def.BVH;
+import raytracer.core.def.PointLightSource;
+import raytracer.core.def.SphereLight;
+import raytracer.core.def.StandardObj;
+import raytracer.core.def.StandardScene;
+import raytracer.math.Color;
+import raytracer.math.Point;
+import raytracer.math.Vec3;
+import raytracer.shade.ShadowCache;
+import raytracer.shade.ShaderFactory;
+import raytracer.shade.SingleColor;
+
+/**
+ * Compares the images of the {@link WavefrontRenderer} with those of the depth
+ * first {@link Renderer}
+ */
+public class RaytracerPublicWavefrontTest extends RayTracerTestBase implements PublicTest, RenderExercise {
+
+	private static final int X_RES = 80, Y_RES = 60, REGION = 20;
+
+	/**
+	 * Returns the demo scene with a mirror sphere and an additional sphere
+	 * light, so that the replay sees reflected rays and several shadow rays
+	 * per sample
+	 */
+	private Scene scene() throws Exception {
+		final Color ambient = Color.WHITE.scale(0.05f);
+		final BVH bvh = new BVH();
+		bvh.add(new StandardObj(createPlane(Vec3.Y, Point.ORIGIN), ShaderFactory
+				.createCheckerBoard(new SingleColor(Color.BLACK), new SingleColor(Color.WHITE), 2f)));
+		bvh.add(new StandardObj(createTriangle(new Point(-3, .5f, -1.5f), new Point(-1, 2.5f, -1.5f),
+				new Point(1, .5f, -1.5f)), new SingleColor(Color.YELLOW)));
+		bvh.add(new StandardObj(createSphere(new Point(0, 1, 0), 1),
+				createPhong(new SingleColor(Color.BLUE), ambient, 0.4f, 1.0f, 15)));
+		bvh.add(new StandardObj(createSphere(new Point(2.5f, 1.3f, 0), 1), ShaderFactory
+				.createMirror(createPhong(new SingleColor(Color.RED), ambient, 0.4f, 1.0f, 15), 0.7f)));
+		OBJReader.read("obj/bunny.obj", bvh, createPhong(new SingleColor(Color.GREEN), ambient, 1.f, .5f, 50), 25,
+				new Vec3(-3, 0, 0));
+		bvh.buildBVH();
+		final List<LightSource> lights = new ArrayList<LightSource>();
+		lights.add(new PointLightSource(new Point(-10, 10, -10), Color.WHITE));
+		lights.add(new SphereLight(new Point(4, 6, -4), 1, Color.WHITE.scale(0.5f), 4));
+		return new StandardScene(new PerspectiveCamera(new Point(0, 4, -10), Point.ORIGIN, new Vec3(0, 5, 0), 3, 4, 3),
+				lights, bvh);
+	}
+
+	private static int[] render(final Renderer renderer) throws Exception {
+		final int[] image = new int[X_RES * Y_RES];
+		for (int y = 0; y < Y_RES; y += REGION)
+			for (int x = 0; x < X_RES; x += REGION)
+				paste(image, x, y, renderer.render(x, y, REGION, REGION).call().pixels);
+		return image;
+	}
+
+	private static int[] render(final WavefrontRenderer renderer) throws Exception {
+		final int[] image = new int[X_RES * Y_RES];
+		for (int y = 0; y < Y_RES; y += REGION)
+			for (int x = 0; x < X_RES; x += REGION)
+				paste(image, x, y, renderer.render(x, y, REGION, REGION));
+		return image;
+	}
+
+	private static void paste(final int[] image, final int x, final int y, final int[] region) {
+		for (int j = 0; j < REGION; j++)
+			System.arraycopy(region, j * REGION, image, (y + j) * X_RES + x, REGION);
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testWavefrontMatchesRenderer() throws Exception {
+		printCurrentMethodName();
+		final Scene scene = scene();
+		final int[] expected = render(new Renderer(scene, X_RES, Y_RES, 2));
+		final ExecutorService exe = Executors.newFixedThreadPool(4);
+		try {
+			final WavefrontRenderer wavefront = new WavefrontRenderer(scene, X_RES, Y_RES, 2, exe, 4);
+			assertTrue("The wavefront image must equal the depth first one",
+					Arrays.equals(expected, render(wavefront)));
+			wavefront.setSortByMaterial(true);
+			assertTrue("Sorting by material must not change the image", Arrays.equals(expected, render(wavefront)));
+			wavefront.setSortSpawned(true);
+			assertTrue("Sorting the spawned rays must not change the image",
+					Arrays.equals(expected, render(wavefront)));
+		} finally {
+			exe.shutdown();
+		}
+	}
+
+	@Test(timeout = DEFAULT_TIMEOUT)
+	public void testWavefrontCountsShadowCacheOnce() throws Exception {
+		printCurrentMethodName();
+		final Scene scene = scene();
+		// on a single thread both renderers shade the samples in the same
+		// order, so the shadow cache sees the same tests
+		final ExecutorService exe = Executors.newSingleThreadExecutor();
+		try {
+			ShadowCache.invalidate();
+			ShadowCache.resetStats();
+			final Renderer renderer = new Renderer(scene, X_RES, Y_RES, 2);
+			exe.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() throws Exception {
+					return render(renderer);
+				}
+			}).get();
+			final long hits = ShadowCache.getHits(), misses = ShadowCache.getMisses();
+			assertTrue("The scene must use the shadow cache", hits > 0);
+
+			ShadowCache.invalidate();
+			ShadowCache.resetStats();
+			render(new WavefrontRenderer(scene, X_RES, Y_RES, 2, exe, 1));
+			assertEquals("Shadow cache hits", hits, ShadowCache.getHits());
+			assertEquals("Shadow cache misses", misses, ShadowCache.getMisses());
+		} finally {
+			exe.shutdown();
+		}
+	}
+}